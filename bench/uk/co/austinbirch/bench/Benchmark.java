@@ -0,0 +1,70 @@
+package uk.co.austinbirch.bench;
+
+/**
+ * @author Austin Birch
+ *
+ * A single benchmarked operation. The runner calls setUp() with the world
+ * size before each measurement iteration, then calls run() as many times as
+ * fits in the iteration, timing only the run() calls.
+ *
+ */
+public abstract class Benchmark {
+
+    // Member variables
+    
+    /**
+     * The name the results are reported under
+     */
+    protected final String name;
+    
+    /**
+     * Whether the cost of this benchmark depends on the world size. If not,
+     * it is only run once rather than for every size.
+     */
+    protected final boolean scalesWithWorld;
+    
+    /**
+     * Creates a benchmark
+     * 
+     * @param name the name the results are reported under
+     * @param scalesWithWorld whether the cost depends on the world size
+     */
+    public Benchmark(String name, boolean scalesWithWorld) {
+        this.name = name;
+        this.scalesWithWorld = scalesWithWorld;
+    }
+    
+    /**
+     * @return the name the results are reported under
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * @return whether the cost of this benchmark depends on the world size
+     */
+    public boolean scalesWithWorld() {
+        return this.scalesWithWorld;
+    }
+    
+    /**
+     * Prepares the state for a measurement iteration. Not timed.
+     * 
+     * @param size the size of world to build
+     */
+    public abstract void setUp(WorldSize size);
+    
+    /**
+     * Performs one operation. Timed.
+     */
+    public abstract void run();
+    
+    /**
+     * Releases anything setUp() created. Not timed.
+     */
+    public void tearDown() {
+        // nothing by default
+    }
+    
+}
@@ -0,0 +1,223 @@
+package uk.co.austinbirch.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author Austin Birch
+ *
+ * Runs benchmarks and reports throughput, average time and allocation per
+ * operation, along with the collections that happened while measuring.
+ *
+ * Arguments:
+ *   --sizes 30,300,3000          world sizes, each "n" or "h:a:b"
+ *   --warmup 3                   warmup iterations per size
+ *   --iterations 5               measured iterations per size
+ *   --time 500                   milliseconds per iteration
+ *   --only name                  only run benchmarks containing name
+ *   --csv results.csv            also write the results as CSV
+ *   --max-op 10000               stop growing a benchmark once one op
+ *                                takes longer than this many milliseconds
+ *
+ */
+public class BenchmarkRunner {
+
+    // Member variables
+    
+    protected List<WorldSize> sizes = new ArrayList<WorldSize>();
+    protected int warmupIterations = 3;
+    protected int iterations = 5;
+    protected long iterationMillis = 500;
+    protected long maxOpMillis = 10000;
+    protected String only = null;
+    protected String csvPath = null;
+    
+    /**
+     * The allocation counter for the current thread, if the JVM has one
+     */
+    protected com.sun.management.ThreadMXBean threadBean;
+    
+    /**
+     * The rows written so far
+     */
+    protected List<String> csvRows = new ArrayList<String>();
+    
+    /**
+     * Creates a runner configured from command line arguments
+     * 
+     * @param args the command line arguments
+     * @param defaultSizes the sizes to use if none are given
+     */
+    public BenchmarkRunner(String[] args, String defaultSizes) {
+        String sizeList = defaultSizes;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--sizes")) {
+                sizeList = args[++i];
+            } else if (arg.equals("--warmup")) {
+                this.warmupIterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--iterations")) {
+                this.iterations = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--time")) {
+                this.iterationMillis = Long.parseLong(args[++i]);
+            } else if (arg.equals("--max-op")) {
+                this.maxOpMillis = Long.parseLong(args[++i]);
+            } else if (arg.equals("--only")) {
+                this.only = args[++i];
+            } else if (arg.equals("--csv")) {
+                this.csvPath = args[++i];
+            }
+        }
+        for (String size : sizeList.split(",")) {
+            this.sizes.add(WorldSize.parse(size.trim()));
+        }
+        
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            this.threadBean = (com.sun.management.ThreadMXBean) bean;
+            this.threadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+    
+    /**
+     * Runs every benchmark against every world size, printing the results
+     * 
+     * @param benchmarks the benchmarks to run
+     */
+    public void run(List<Benchmark> benchmarks) {
+        System.out.println(String.format(Locale.ROOT, "%-40s %8s %14s %14s %14s %8s %8s",
+                "benchmark", "size", "ops/s", "us/op", "B/op", "gc.count", "gc.ms"));
+        this.csvRows.add("benchmark,hammers,aliens,buildings,ops_per_s,us_per_op,bytes_per_op,gc_count,gc_ms");
+        
+        for (Benchmark benchmark : benchmarks) {
+            if (this.only != null && !benchmark.getName().contains(this.only)) {
+                continue;
+            }
+            for (WorldSize size : this.sizes) {
+                double usPerOp = this.measure(benchmark, size);
+                if (!benchmark.scalesWithWorld()) {
+                    break;
+                }
+                if (usPerOp / 1000.0 > this.maxOpMillis) {
+                    System.out.println(String.format(Locale.ROOT, "%-40s %8s", benchmark.getName(),
+                            "(larger sizes skipped, too slow)"));
+                    break;
+                }
+            }
+        }
+        
+        if (this.csvPath != null) {
+            this.writeCsv();
+        }
+    }
+    
+    /**
+     * Measures one benchmark at one world size
+     * 
+     * @param benchmark the benchmark to measure
+     * @param size the world size
+     * @return the average microseconds per operation
+     */
+    protected double measure(Benchmark benchmark, WorldSize size) {
+        for (int i = 0; i < this.warmupIterations; i++) {
+            this.iterate(benchmark, size, null);
+        }
+        
+        long[] totals = new long[5];
+        for (int i = 0; i < this.iterations; i++) {
+            this.iterate(benchmark, size, totals);
+        }
+        
+        long ops = totals[0];
+        double seconds = totals[1] / 1.0e9;
+        double opsPerSecond = ops / seconds;
+        double usPerOp = (totals[1] / 1000.0) / ops;
+        double bytesPerOp = this.threadBean != null ? (double) totals[2] / ops : Double.NaN;
+        long gcCount = totals[3];
+        long gcMillis = totals[4];
+        
+        String sizeText = benchmark.scalesWithWorld() ? size.toString() : "-";
+        System.out.println(String.format(Locale.ROOT, "%-40s %8s %14.1f %14.3f %14.1f %8d %8d",
+                benchmark.getName(), sizeText, opsPerSecond, usPerOp, bytesPerOp, gcCount, gcMillis));
+        this.csvRows.add(String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.3f,%.1f,%d,%d",
+                benchmark.getName(), size.hammers, size.aliens, size.buildings,
+                opsPerSecond, usPerOp, bytesPerOp, gcCount, gcMillis));
+        return usPerOp;
+    }
+    
+    /**
+     * Runs a single iteration, adding ops, nanoseconds, allocated bytes,
+     * collections and collection time to the totals if they are given
+     * 
+     * @param benchmark the benchmark to run
+     * @param size the world size
+     * @param totals where to accumulate the results, or null when warming up
+     */
+    protected void iterate(Benchmark benchmark, WorldSize size, long[] totals) {
+        benchmark.setUp(size);
+        
+        long threadId = Thread.currentThread().getId();
+        long limit = this.iterationMillis * 1000000L;
+        long[] gcBefore = this.gcTotals();
+        long allocatedBefore = this.threadBean != null ? this.threadBean.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        long elapsed = 0;
+        long ops = 0;
+        do {
+            benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < limit);
+        long allocatedAfter = this.threadBean != null ? this.threadBean.getThreadAllocatedBytes(threadId) : 0;
+        long[] gcAfter = this.gcTotals();
+        
+        benchmark.tearDown();
+        
+        if (totals != null) {
+            totals[0] += ops;
+            totals[1] += elapsed;
+            totals[2] += allocatedAfter - allocatedBefore;
+            totals[3] += gcAfter[0] - gcBefore[0];
+            totals[4] += gcAfter[1] - gcBefore[1];
+        }
+    }
+    
+    /**
+     * @return the total collection count and time across all collectors
+     */
+    protected long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+    
+    /**
+     * Writes the collected rows to the CSV file
+     */
+    protected void writeCsv() {
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(this.csvPath));
+            for (String row : this.csvRows) {
+                out.println(row);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+    
+}
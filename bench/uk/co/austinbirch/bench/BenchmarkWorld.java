@@ -0,0 +1,65 @@
+package uk.co.austinbirch.bench;
+
+import java.util.Random;
+
+import org.newdawn.slick.geom.Vector2f;
+
+import uk.co.austinbirch.Building;
+import uk.co.austinbirch.Hammer;
+import uk.co.austinbirch.Simulation;
+
+/**
+ * @author Austin Birch
+ *
+ * Builds running simulations filled with a given number of entities, spread
+ * across the play space, for the benchmarks to work on.
+ *
+ */
+public class BenchmarkWorld {
+
+    /**
+     * The seed used for entity placement, so runs are comparable
+     */
+    public static final long SEED = 0x4d634861L;
+    
+    /**
+     * Creates a running simulation containing the given entities
+     * 
+     * @param size the number of each kind of entity to create
+     * @return the populated simulation
+     */
+    public static Simulation create(WorldSize size) {
+        Random rand = new Random(SEED);
+        Simulation simulation = new Simulation();
+        simulation.restartGame();
+        
+        float width = simulation.getSpaceWidth();
+        float height = simulation.getSpaceHeight();
+        
+        for (int i = 0; i < size.hammers; i++) {
+            Hammer hammer = new Hammer(simulation,
+                    new Vector2f(20.0f + rand.nextFloat() * (width - 40.0f),
+                                 20.0f + rand.nextFloat() * (height - 40.0f)));
+            double theta = rand.nextDouble() * Math.PI * 2.0;
+            hammer.setVelocity((float)(Math.cos(theta) * 400.0),
+                               (float)(Math.sin(theta) * 400.0));
+            simulation.addHammer(hammer);
+        }
+        
+        for (int i = 0; i < size.aliens; i++) {
+            simulation.spawnAlien();
+        }
+        
+        for (int i = 0; i < size.buildings; i++) {
+            Building building = new Building(simulation,
+                    new Vector2f(rand.nextFloat() * width,
+                                 rand.nextFloat() * height),
+                    new Vector2f(0.0f, 0.0f));
+            simulation.addBuilding(building);
+        }
+        simulation.flushEntities();
+        
+        return simulation;
+    }
+    
+}
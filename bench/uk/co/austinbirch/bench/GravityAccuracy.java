@@ -0,0 +1,295 @@
+package uk.co.austinbirch.bench;
+
+import java.util.Locale;
+import java.util.Random;
+
+import uk.co.austinbirch.physics.GravityTree;
+import uk.co.austinbirch.physics.Kinematic;
+import uk.co.austinbirch.physics.KinematicStore;
+
+/**
+ * @author Austin Birch
+ *
+ * Compares the GravityTree against the direct sum for a field of hammers
+ * that all pull on each other, at a range of opening angles, and reports
+ * how much quicker and how far out each one is.
+ *
+ * The direct sum is what the simulation would have to do without the
+ * tree: every hammer against every other one, with the same softened
+ * force law. The error of each hammer's acceleration is measured against
+ * the same sum worked out in doubles. The largest errors are always in
+ * the few hammers whose pulls very nearly cancel out, where a small error
+ * is large next to what is left, so the mean is the better guide.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.bench.GravityAccuracy
+ *        --bodies 10000 --thetas 0.3,0.5,0.7,1.0
+ *
+ * Arguments:
+ *   --bodies 10000               the number of hammers
+ *   --space 4000x2000            the size of space they are scattered over
+ *   --thetas 0.3,0.5,0.7,1.0     the opening angles to try
+ *   --softening 16               the softening length
+ *   --runs 5                     runs of each, the fastest of which counts
+ *
+ */
+public class GravityAccuracy {
+
+    // Global variables
+    
+    /**
+     * The mass of each hammer
+     */
+    public static final float HAMMER_MASS = 1000.0f;
+    
+    /**
+     * The timestep the accelerations are accumulated over, which only
+     * scales them
+     */
+    public static final float DELTA_SECONDS = 1.0f;
+    
+    // Member variables
+    
+    /**
+     * The number of hammers
+     */
+    protected int bodies = 10000;
+    
+    /**
+     * The size of space the hammers are scattered over
+     */
+    protected float spaceWidth = 4000.0f;
+    protected float spaceHeight = 2000.0f;
+    
+    /**
+     * The opening angles to try
+     */
+    protected float[] thetas = { 0.3f, 0.5f, 0.7f, 1.0f };
+    
+    /**
+     * The softening length
+     */
+    protected float softening = 16.0f;
+    
+    /**
+     * The number of runs of each, the fastest of which counts
+     */
+    protected int runs = 5;
+    
+    public static void main(String[] args) {
+        GravityAccuracy report;
+        try {
+            report = new GravityAccuracy(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        report.run();
+    }
+    
+    /**
+     * Creates a report configured from command line arguments
+     * 
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an argument isn't understood
+     */
+    public GravityAccuracy(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--bodies")) {
+                this.bodies = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--space")) {
+                String[] size = args[++i].split("x");
+                this.spaceWidth = Float.parseFloat(size[0]);
+                this.spaceHeight = Float.parseFloat(size[1]);
+            } else if (arg.equals("--thetas")) {
+                String[] values = args[++i].split(",");
+                this.thetas = new float[values.length];
+                for (int t = 0; t < values.length; t++) {
+                    this.thetas[t] = Float.parseFloat(values[t]);
+                }
+            } else if (arg.equals("--softening")) {
+                this.softening = Float.parseFloat(args[++i]);
+            } else if (arg.equals("--runs")) {
+                this.runs = Integer.parseInt(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+    }
+    
+    /**
+     * Times the direct sum and each tree, and prints the results
+     */
+    public void run() {
+        KinematicStore store = this.createStore();
+        int count = store.size();
+        
+        // the exact accelerations, in doubles
+        double[] exactX = new double[count];
+        double[] exactY = new double[count];
+        this.sumExact(store, exactX, exactY);
+        
+        long directNanos = Long.MAX_VALUE;
+        for (int r = 0; r < this.runs; r++) {
+            this.clearVelocities(store);
+            long start = System.nanoTime();
+            this.sumDirect(store);
+            directNanos = Math.min(directNanos, System.nanoTime() - start);
+        }
+        double directError = this.maxError(store, exactX, exactY);
+        
+        System.out.println(String.format(Locale.ROOT,
+                "bodies      %d hammers over %.0fx%.0f, softening %.1f",
+                count, this.spaceWidth, this.spaceHeight, this.softening));
+        System.out.println(String.format(Locale.ROOT,
+                "direct      %10.2fms                    max error %.5f%%",
+                directNanos / 1.0e6, directError * 100.0));
+        
+        for (float theta : this.thetas) {
+            GravityTree tree = new GravityTree(theta, this.softening);
+            long buildNanos = Long.MAX_VALUE;
+            long walkNanos = Long.MAX_VALUE;
+            for (int r = 0; r < this.runs; r++) {
+                this.clearVelocities(store);
+                long start = System.nanoTime();
+                tree.build(store);
+                long built = System.nanoTime();
+                tree.accumulate(store, 0, count, DELTA_SECONDS);
+                long end = System.nanoTime();
+                buildNanos = Math.min(buildNanos, built - start);
+                walkNanos = Math.min(walkNanos, end - built);
+            }
+            
+            double meanError = this.meanError(store, exactX, exactY);
+            double maxError = this.maxError(store, exactX, exactY);
+            double totalNanos = buildNanos + walkNanos;
+            System.out.println(String.format(Locale.ROOT,
+                    "theta %.2f  %10.2fms (build %.2fms) %6.1fx  mean error %.5f%%, max %.5f%%, %d nodes",
+                    theta,
+                    totalNanos / 1.0e6, buildNanos / 1.0e6,
+                    directNanos / totalNanos,
+                    meanError * 100.0, maxError * 100.0,
+                    tree.getNodeCount()));
+        }
+    }
+    
+    /**
+     * @return a store of hammers scattered at random over space, at rest
+     */
+    protected KinematicStore createStore() {
+        Random rand = new Random(BenchmarkWorld.SEED);
+        Kinematic body = new Kinematic() {
+            public void setSlot(KinematicStore store, int slot) {
+                // the bodies never move slot
+            }
+        };
+        KinematicStore store = new KinematicStore(this.bodies);
+        for (int i = 0; i < this.bodies; i++) {
+            int slot = store.add(body);
+            store.x[slot] = rand.nextFloat() * this.spaceWidth;
+            store.y[slot] = rand.nextFloat() * this.spaceHeight;
+            store.mass[slot] = HAMMER_MASS;
+        }
+        return store;
+    }
+    
+    /**
+     * Accumulates the pull of every hammer on every other one in floats,
+     * as the simulation would without the tree
+     */
+    protected void sumDirect(KinematicStore store) {
+        int count = store.size();
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] mass = store.mass;
+        float softeningSquared = this.softening * this.softening;
+        for (int i = 0; i < count; i++) {
+            float ax = 0.0f;
+            float ay = 0.0f;
+            for (int j = 0; j < count; j++) {
+                float dx = x[i] - x[j];
+                float dy = y[i] - y[j];
+                float rSquared = dx * dx + dy * dy + softeningSquared;
+                if (rSquared > 0.0f) {
+                    float scale = mass[j] / rSquared;
+                    ax += dx * scale;
+                    ay -= dy * scale;
+                }
+            }
+            store.vx[i] += ax * DELTA_SECONDS;
+            store.vy[i] += ay * DELTA_SECONDS;
+        }
+    }
+    
+    /**
+     * Works out the pull of every hammer on every other one in doubles
+     */
+    protected void sumExact(KinematicStore store, double[] exactX, double[] exactY) {
+        int count = store.size();
+        double softeningSquared = (double)this.softening * this.softening;
+        for (int i = 0; i < count; i++) {
+            double ax = 0.0;
+            double ay = 0.0;
+            for (int j = 0; j < count; j++) {
+                double dx = (double)store.x[i] - store.x[j];
+                double dy = (double)store.y[i] - store.y[j];
+                double rSquared = dx * dx + dy * dy + softeningSquared;
+                if (rSquared > 0.0) {
+                    double scale = store.mass[j] / rSquared;
+                    ax += dx * scale;
+                    ay -= dy * scale;
+                }
+            }
+            exactX[i] = ax * DELTA_SECONDS;
+            exactY[i] = ay * DELTA_SECONDS;
+        }
+    }
+    
+    /**
+     * @return the largest error in any hammer's acceleration, relative to
+     *         the size of its exact acceleration
+     */
+    protected double maxError(KinematicStore store, double[] exactX, double[] exactY) {
+        double worst = 0.0;
+        for (int i = 0; i < store.size(); i++) {
+            worst = Math.max(worst, this.error(store, i, exactX, exactY));
+        }
+        return worst;
+    }
+    
+    /**
+     * @return the mean error in the hammers' accelerations, relative to the
+     *         size of their exact accelerations
+     */
+    protected double meanError(KinematicStore store, double[] exactX, double[] exactY) {
+        double total = 0.0;
+        for (int i = 0; i < store.size(); i++) {
+            total += this.error(store, i, exactX, exactY);
+        }
+        return total / Math.max(1, store.size());
+    }
+    
+    /**
+     * @return the error in one hammer's acceleration, relative to the size
+     *         of its exact acceleration
+     */
+    protected double error(KinematicStore store, int i, double[] exactX, double[] exactY) {
+        double errorX = store.vx[i] - exactX[i];
+        double errorY = store.vy[i] - exactY[i];
+        double magnitude = Math.sqrt(exactX[i] * exactX[i] + exactY[i] * exactY[i]);
+        return magnitude > 0.0 ? Math.sqrt(errorX * errorX + errorY * errorY) / magnitude : 0.0;
+    }
+    
+    /**
+     * Stops every hammer, so the next sum starts from nothing
+     */
+    protected void clearVelocities(KinematicStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            store.vx[i] = 0.0f;
+            store.vy[i] = 0.0f;
+        }
+    }
+    
+}
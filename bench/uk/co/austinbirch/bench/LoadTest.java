@@ -0,0 +1,343 @@
+package uk.co.austinbirch.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.LatencyHistogram;
+import uk.co.austinbirch.ParallelExecutor;
+import uk.co.austinbirch.Scenario;
+import uk.co.austinbirch.Simulation;
+import uk.co.austinbirch.Universe;
+
+/**
+ * @author Austin Birch
+ *
+ * Plays a scenario headless with a scripted player, as fast as it will go,
+ * and reports how the simulation held up: ticks per second, tick times, the
+ * most entities there were at once and the most heap that was used.
+ *
+ * The scripted player spins on the spot, throwing hammers at the
+ * scenario's rate. If the aliens win, the game is restarted straight away
+ * so the load keeps up for the whole run.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.bench.LoadTest
+ *        --scenario large --seconds 120
+ *
+ * Arguments:
+ *   --scenario default           the scenario to play, one of Scenario.NAMES
+ *   --seconds 60                 simulated seconds to run for
+ *   --tick-rate 60               ticks per simulated second
+ *   --seed 1                     the seed for the simulation
+ *   --threads 1                  threads to spread each tick over
+ *   --worlds 4                   the number of worlds
+ *   --space 2000x1000            the size of space
+ *   --world-spacing 500          how far apart the worlds are in a row
+ *   --chunk-size 0               the size of each chunk of space, or 0
+ *   --active-radius 1            chunks out from the player simulated
+ *   --mutual-gravity false       whether the hammers pull on everything
+ *   --aliens 30                  the most aliens there can be
+ *   --release-limit 1000         milliseconds before the first release
+ *   --release-count 0            aliens in the first release, less a half
+ *   --throw-rate 2               hammers thrown each second
+ *   --hammer-cap 64              the most hammers in flight
+ *   --csv results.csv            also write the results as CSV
+ *
+ * The settings after --threads change the scenario, and default to its
+ * own.
+ *
+ */
+public class LoadTest {
+
+    // Member variables
+    
+    /**
+     * The scenario to play
+     */
+    protected Scenario scenario;
+    
+    /**
+     * The number of simulated seconds to run for
+     */
+    protected float seconds = 60.0f;
+    
+    /**
+     * The number of ticks in each simulated second
+     */
+    protected float tickRate = 60.0f;
+    
+    /**
+     * The seed for the simulation, so runs are comparable
+     */
+    protected long seed = 1;
+    
+    /**
+     * The number of threads to spread each tick over
+     */
+    protected int threads = 1;
+    
+    /**
+     * Where to write the results as CSV, or null if they aren't wanted
+     */
+    protected String csvPath = null;
+    
+    /**
+     * The time taken by each tick, in nanoseconds
+     */
+    protected LatencyHistogram tickTimes = new LatencyHistogram();
+    
+    public static void main(String[] args) {
+        LoadTest loadTest;
+        try {
+            loadTest = new LoadTest(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        loadTest.run();
+    }
+    
+    /**
+     * Creates a load test configured from command line arguments
+     * 
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an argument isn't understood
+     */
+    public LoadTest(String[] args) {
+        String name = "default";
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--scenario")) {
+                name = args[i + 1];
+            }
+        }
+        this.scenario = Scenario.named(name);
+        
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--scenario")) {
+                i++;
+            } else if (arg.equals("--seconds")) {
+                this.seconds = Float.parseFloat(args[++i]);
+            } else if (arg.equals("--tick-rate")) {
+                this.tickRate = Float.parseFloat(args[++i]);
+            } else if (arg.equals("--seed")) {
+                this.seed = Long.parseLong(args[++i]);
+            } else if (arg.equals("--threads")) {
+                this.threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--worlds")) {
+                this.scenario.setWorldCount(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--space")) {
+                String[] size = args[++i].split("x");
+                this.scenario.setSpaceSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            } else if (arg.equals("--world-spacing")) {
+                this.scenario.setWorldSpacing(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--chunk-size")) {
+                this.scenario.setChunkSize(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--active-radius")) {
+                this.scenario.setActiveRadius(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--mutual-gravity")) {
+                this.scenario.setMutualGravity(Boolean.parseBoolean(args[++i]));
+            } else if (arg.equals("--aliens")) {
+                this.scenario.setAlienCountLimit(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--release-limit")) {
+                this.scenario.setAlienReleaseLimit(Float.parseFloat(args[++i]));
+            } else if (arg.equals("--release-count")) {
+                this.scenario.setAlienReleaseCount(Float.parseFloat(args[++i]));
+            } else if (arg.equals("--throw-rate")) {
+                this.scenario.setHammerThrowRate(Float.parseFloat(args[++i]));
+            } else if (arg.equals("--hammer-cap")) {
+                this.scenario.setHammerCap(Integer.parseInt(args[++i]));
+            } else if (arg.equals("--csv")) {
+                this.csvPath = args[++i];
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+    }
+    
+    /**
+     * Plays the scenario for the whole run, then prints the results
+     */
+    public void run() {
+        ParallelExecutor executor = new ParallelExecutor(this.threads);
+        try {
+            this.play(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Plays the scenario for the whole run, then prints the results
+     * 
+     * @param executor the executor to spread each tick over
+     */
+    protected void play(ParallelExecutor executor) {
+        Simulation simulation = new Simulation(this.scenario, this.seed);
+        simulation.setExecutor(executor);
+        simulation.restartGame();
+        
+        float deltaSeconds = 1.0f / this.tickRate;
+        long ticks = (long)Math.ceil(this.seconds * this.tickRate);
+        float throwsPerTick = this.scenario.getHammerThrowRate() * deltaSeconds;
+        InputQueue inputs = new InputQueue();
+        
+        // spin for the whole run, so the hammers go everywhere
+        inputs.press(Control.ROTATE_RIGHT);
+        
+        int peakHammers = 0;
+        int peakAliens = 0;
+        int peakBuildings = 0;
+        int peakEntities = 0;
+        int peakPaged = 0;
+        Universe universe = simulation.getUniverse();
+        int restarts = 0;
+        float throwsOwed = 0.0f;
+        
+        this.tickTimes.reset();
+        this.resetHeapPeaks();
+        long[] gcBefore = this.gcTotals();
+        long start = System.nanoTime();
+        for (long tick = 0; tick < ticks; tick++) {
+            if (simulation.getGameState() == Simulation.GAME_OVER) {
+                inputs.press(Control.RESTART);
+                inputs.release(Control.RESTART);
+                restarts++;
+            }
+            throwsOwed += throwsPerTick;
+            while (throwsOwed >= 1.0f) {
+                inputs.press(Control.THROW);
+                inputs.release(Control.THROW);
+                throwsOwed -= 1.0f;
+            }
+            
+            long tickStart = System.nanoTime();
+            simulation.tick(inputs, deltaSeconds);
+            this.tickTimes.record(System.nanoTime() - tickStart);
+            
+            int hammers = simulation.getHammerCount();
+            int aliens = simulation.getAlienCount();
+            int buildings = simulation.getBuildingCount();
+            peakHammers = Math.max(peakHammers, hammers);
+            peakAliens = Math.max(peakAliens, aliens);
+            peakBuildings = Math.max(peakBuildings, buildings);
+            peakEntities = Math.max(peakEntities, hammers + aliens + buildings);
+            peakPaged = Math.max(peakPaged, universe.getPagedAlienCount() + universe.getPagedBuildingCount());
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1.0e9;
+        long[] gcAfter = this.gcTotals();
+        long heapPeak = this.heapPeak();
+        
+        double ticksPerSecond = ticks / wallSeconds;
+        double p50 = this.tickTimes.getValueAtPercentile(50.0) / 1000.0;
+        double p99 = this.tickTimes.getValueAtPercentile(99.0) / 1000.0;
+        double max = this.tickTimes.getMax() / 1000.0;
+        double heapPeakMb = heapPeak / (1024.0 * 1024.0);
+        long gcCount = gcAfter[0] - gcBefore[0];
+        long gcMillis = gcAfter[1] - gcBefore[1];
+        
+        System.out.println("scenario    " + this.scenario + ", throwing " +
+                this.scenario.getHammerThrowRate() + "/s, seed " + this.seed +
+                ", " + this.threads + " thread(s)");
+        System.out.println(String.format(Locale.ROOT,
+                "simulated   %.1fs in %d ticks, in %.2fs: %.1f ticks/s (%.1fx real time)",
+                ticks * deltaSeconds, ticks, wallSeconds, ticksPerSecond, ticksPerSecond / this.tickRate));
+        System.out.println(String.format(Locale.ROOT,
+                "tick        mean %.1fus, p50 %.1fus, p99 %.1fus, max %.1fus",
+                this.tickTimes.getMean() / 1000.0, p50, p99, max));
+        System.out.println(String.format(Locale.ROOT,
+                "peak        %d hammers, %d aliens, %d buildings, %d entities at once",
+                peakHammers, peakAliens, peakBuildings, peakEntities));
+        if (!universe.isWholeSpaceActive()) {
+            System.out.println(String.format(Locale.ROOT,
+                    "paged       %d entities at most, in %dx%d chunks of %d",
+                    peakPaged, universe.getColumns(), universe.getRows(), universe.getChunkSize()));
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "heap        %.1fMB at most (of %.1fMB), %d collections taking %dms",
+                heapPeakMb, Runtime.getRuntime().maxMemory() / (1024.0 * 1024.0), gcCount, gcMillis));
+        System.out.println("restarts    " + restarts);
+        
+        if (this.csvPath != null) {
+            this.writeCsv(String.format(Locale.ROOT, "%s,%d,%d,%d,%.1f,%d,%.1f,%.1f,%.1f,%d,%d,%d,%d,%.1f,%d,%d,%d",
+                    this.scenario.getName(), this.scenario.getWorldCount(),
+                    this.scenario.getSpaceWidth(), this.scenario.getSpaceHeight(),
+                    this.scenario.getHammerThrowRate(), ticks, ticksPerSecond, p50, p99,
+                    peakHammers, peakAliens, peakBuildings, peakEntities, heapPeakMb,
+                    gcCount, gcMillis, restarts));
+        }
+    }
+    
+    /**
+     * Starts measuring the most heap used from now on
+     */
+    protected void resetHeapPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+    
+    /**
+     * The pools reach their peaks at different times, so the total of their
+     * peaks can only be more than the most heap that was ever in use at
+     * once, never less
+     * 
+     * @return the total of each heap pool's peak usage since
+     *         resetHeapPeaks(), in bytes
+     */
+    protected long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+    
+    /**
+     * @return the total collection count and time across all collectors
+     */
+    protected long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+    
+    /**
+     * Writes the results as CSV
+     * 
+     * @param row the results
+     */
+    protected void writeCsv(String row) {
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(this.csvPath));
+            try {
+                out.println("scenario,worlds,space_width,space_height,throw_rate,ticks,ticks_per_s," +
+                            "p50_us,p99_us,peak_hammers,peak_aliens,peak_buildings,peak_entities," +
+                            "heap_peak_mb,gc_count,gc_ms,restarts");
+                out.println(row);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write " + this.csvPath + ": " + e.getMessage());
+        }
+    }
+    
+}
@@ -0,0 +1,131 @@
+package uk.co.austinbirch.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.ParallelExecutor;
+import uk.co.austinbirch.Simulation;
+
+/**
+ * @author Austin Birch
+ *
+ * Measures how the parallel parts of the tick scale with the number of
+ * threads: gravity and integration, collision detection, and a whole tick,
+ * each run with 1 thread and then with more up to the number of processors.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.bench.ScalingBenchmarks
+ *        --sizes 3000,30000,100000 --threads 1,2,4,8
+ *
+ * Any of the usual BenchmarkRunner arguments can be given as well.
+ *
+ */
+public class ScalingBenchmarks {
+
+    public static void main(String[] args) {
+        int[] threads = ScalingBenchmarks.threadCounts(args);
+        List<ParallelExecutor> executors = new ArrayList<ParallelExecutor>();
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        for (int i = 0; i < threads.length; i++) {
+            ParallelExecutor executor = new ParallelExecutor(threads[i]);
+            executors.add(executor);
+            benchmarks.addAll(ScalingBenchmarks.benchmarks(executor));
+        }
+        
+        BenchmarkRunner runner = new BenchmarkRunner(args, "3000,30000,100000");
+        try {
+            runner.run(benchmarks);
+        } finally {
+            for (ParallelExecutor executor : executors) {
+                executor.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Reads the thread counts from a --threads argument, or doubles from 1 up
+     * to the number of processors if there isn't one
+     * 
+     * @param args the command line arguments
+     * @return the thread counts to measure
+     */
+    static int[] threadCounts(String[] args) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--threads")) {
+                String[] parts = args[i + 1].split(",");
+                int[] threads = new int[parts.length];
+                for (int p = 0; p < parts.length; p++) {
+                    threads[p] = Integer.parseInt(parts[p].trim());
+                }
+                return threads;
+            }
+        }
+        
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int count = 1; count < processors; count *= 2) {
+            counts.add(count);
+        }
+        counts.add(processors);
+        int[] threads = new int[counts.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = counts.get(i);
+        }
+        return threads;
+    }
+    
+    /**
+     * @param executor the executor the benchmarks should run on
+     * @return the scaling benchmarks for one thread count
+     */
+    static List<Benchmark> benchmarks(final ParallelExecutor executor) {
+        String suffix = "[" + executor.getParallelism() + "]";
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new Benchmark("simulatePhysics" + suffix, true) {
+            Simulation simulation;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.simulation.setExecutor(executor);
+            }
+            
+            public void run() {
+                this.simulation.simulatePhysics(SimulationBenchmarks.DELTA_SECONDS);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("detectCollisions" + suffix, true) {
+            Simulation simulation;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.simulation.setExecutor(executor);
+            }
+            
+            public void run() {
+                this.simulation.detectCollisions();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("tick" + suffix, true) {
+            Simulation simulation;
+            InputQueue inputs;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.simulation.setExecutor(executor);
+                this.inputs = new InputQueue();
+            }
+            
+            public void run() {
+                this.simulation.tick(this.inputs, SimulationBenchmarks.DELTA_SECONDS);
+            }
+        });
+        
+        return benchmarks;
+    }
+    
+}
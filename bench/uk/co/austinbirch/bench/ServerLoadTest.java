@@ -0,0 +1,239 @@
+package uk.co.austinbirch.bench;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.LatencyHistogram;
+import uk.co.austinbirch.Scenario;
+import uk.co.austinbirch.Simulation;
+import uk.co.austinbirch.net.ClientConnection;
+import uk.co.austinbirch.net.GameClient;
+import uk.co.austinbirch.net.GameServer;
+import uk.co.austinbirch.net.StateFrame;
+
+/**
+ * @author Austin Birch
+ *
+ * Runs a GameServer over loopback with a number of headless GameClients
+ * for a while in real time, and reports how much each client was sent and
+ * how long the snapshots took to encode.
+ *
+ * The first client plays as the scripted player in LoadTest does,
+ * spinning on the spot and throwing hammers at the scenario's rate, and
+ * follows the player with its view. The rest look at points spread
+ * across space, so each is sent a different part of it.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.bench.ServerLoadTest
+ *        --scenario large --clients 8 --seconds 30
+ *
+ * Arguments:
+ *   --scenario default           the scenario to play, one of Scenario.NAMES
+ *   --clients 4                  the number of clients
+ *   --seconds 10                 seconds to run for
+ *   --tick-rate 60               ticks per second
+ *   --snapshot-interval 3        ticks between the snapshots sent
+ *   --view 800x600               the size of each client's view
+ *   --seed 1                     the seed for the simulation
+ *
+ */
+public class ServerLoadTest {
+
+    // Member variables
+    
+    /**
+     * The scenario to play
+     */
+    protected Scenario scenario;
+    
+    /**
+     * The number of clients
+     */
+    protected int clients = 4;
+    
+    /**
+     * The number of seconds to run for
+     */
+    protected float seconds = 10.0f;
+    
+    /**
+     * The number of ticks each second
+     */
+    protected int tickRate = 60;
+    
+    /**
+     * The number of ticks between the snapshots sent
+     */
+    protected int snapshotInterval = 3;
+    
+    /**
+     * The size of each client's view
+     */
+    protected int viewWidth = 800;
+    protected int viewHeight = 600;
+    
+    /**
+     * The seed for the simulation, so runs are comparable
+     */
+    protected long seed = 1;
+    
+    public static void main(String[] args) {
+        ServerLoadTest loadTest;
+        try {
+            loadTest = new ServerLoadTest(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            loadTest.run();
+        } catch (IOException e) {
+            System.err.println("Unable to run the server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Creates a load test configured from command line arguments
+     * 
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an argument isn't understood
+     */
+    public ServerLoadTest(String[] args) {
+        String name = "default";
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--scenario")) {
+                name = args[++i];
+            } else if (arg.equals("--clients")) {
+                this.clients = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--seconds")) {
+                this.seconds = Float.parseFloat(args[++i]);
+            } else if (arg.equals("--tick-rate")) {
+                this.tickRate = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--snapshot-interval")) {
+                this.snapshotInterval = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--view")) {
+                String[] size = args[++i].split("x");
+                this.viewWidth = Integer.parseInt(size[0]);
+                this.viewHeight = Integer.parseInt(size[1]);
+            } else if (arg.equals("--seed")) {
+                this.seed = Long.parseLong(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        this.scenario = Scenario.named(name);
+    }
+    
+    /**
+     * Serves the scenario for the whole run, then prints the results
+     * 
+     * @throws IOException if the server or a client can't be started
+     */
+    public void run() throws IOException {
+        float tickDeltaSeconds = 1.0f / Math.max(1, this.tickRate);
+        GameServer server = new GameServer(new Simulation(this.scenario, this.seed),
+                                           tickDeltaSeconds,
+                                           this.snapshotInterval);
+        server.start(0);
+        
+        GameClient[] clients = new GameClient[this.clients];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new GameClient("localhost", server.getPort(), this.viewWidth, this.viewHeight);
+            if (c > 0) {
+                // spread the rest of the views across the middle of space
+                clients[c].setView((c - 0.5f) * clients[c].getSpaceWidth() / (clients.length - 1),
+                                   clients[c].getSpaceHeight() / 2.0f);
+            }
+        }
+        
+        // start the game, and spin for the whole run
+        GameClient player = clients[0];
+        player.sendInput(Control.THROW, true);
+        player.sendInput(Control.THROW, false);
+        player.sendInput(Control.ROTATE_RIGHT, true);
+        
+        StateFrame frame = new StateFrame();
+        long throwNanos = (long)(1.0e9 / Math.max(0.001f, this.scenario.getHammerThrowRate()));
+        long start = System.nanoTime();
+        long end = start + (long)(this.seconds * 1.0e9);
+        long nextThrow = start;
+        int restarts = 0;
+        long lastRestartSequence = 0;
+        while (System.nanoTime() - end < 0) {
+            long now = System.nanoTime();
+            while (now - nextThrow >= 0) {
+                player.sendInput(Control.THROW, true);
+                player.sendInput(Control.THROW, false);
+                nextThrow += throwNanos;
+            }
+            if (player.getLatestFrame(frame) &&
+                    frame.getGameState() == Simulation.GAME_OVER &&
+                    frame.getSequence() > lastRestartSequence + 60) {
+                player.sendInput(Control.RESTART, true);
+                player.sendInput(Control.RESTART, false);
+                lastRestartSequence = frame.getSequence();
+                restarts++;
+            }
+            LockSupport.parkNanos(Math.min(nextThrow - now, 5000000L));
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1.0e9;
+        
+        // read the server's side before it is stopped
+        long[] dropped = new long[clients.length];
+        int c = 0;
+        for (ClientConnection connection : server.getClients()) {
+            if (c < dropped.length) {
+                dropped[c++] = connection.getSnapshotsDropped();
+            }
+        }
+        LatencyHistogram encodeTimes = server.getEncodeTimes();
+        long encodes;
+        double p50;
+        double p99;
+        double max;
+        double mean;
+        synchronized (encodeTimes) {
+            encodes = encodeTimes.getCount();
+            p50 = encodeTimes.getValueAtPercentile(50.0) / 1000.0;
+            p99 = encodeTimes.getValueAtPercentile(99.0) / 1000.0;
+            max = encodeTimes.getMax() / 1000.0;
+            mean = encodeTimes.getMean() / 1000.0;
+        }
+        long fullSnapshots = server.getFullSnapshots();
+        long deltaSnapshots = server.getDeltaSnapshots();
+        server.stop();
+        
+        System.out.println("scenario    " + this.scenario + ", throwing " +
+                this.scenario.getHammerThrowRate() + "/s, seed " + this.seed);
+        System.out.println(String.format(Locale.ROOT,
+                "served      %d clients for %.1fs, a snapshot every %d ticks at %d ticks/s, views of %dx%d",
+                clients.length, wallSeconds, this.snapshotInterval, this.tickRate,
+                this.viewWidth, this.viewHeight));
+        System.out.println(String.format(Locale.ROOT,
+                "encode      %d snapshots, %d whole and %d as differences: mean %.1fus, p50 %.1fus, p99 %.1fus, max %.1fus",
+                encodes, fullSnapshots, deltaSnapshots, mean, p50, p99, max));
+        long totalBytes = 0;
+        for (c = 0; c < clients.length; c++) {
+            GameClient client = clients[c];
+            long bytes = client.getBytesReceived();
+            long snapshots = client.getSnapshotsReceived();
+            totalBytes += bytes;
+            System.out.println(String.format(Locale.ROOT,
+                    "client %-4d %.1fKB/s, %d snapshots of %.0f bytes on average, %d whole, %d dropped%s",
+                    c, bytes / 1024.0 / wallSeconds, snapshots,
+                    bytes / (double)Math.max(1, snapshots), client.getFullSnapshots(), dropped[c],
+                    c == 0 ? ", following the player" : ""));
+            client.close();
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "total       %.1fKB/s, %.1fKB/s per client",
+                totalBytes / 1024.0 / wallSeconds, totalBytes / 1024.0 / wallSeconds / clients.length));
+        System.out.println("restarts    " + restarts);
+    }
+    
+}
@@ -0,0 +1,637 @@
+package uk.co.austinbirch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.newdawn.slick.geom.Ellipse;
+import org.newdawn.slick.geom.Rectangle;
+import org.newdawn.slick.geom.Vector2f;
+
+import uk.co.austinbirch.Background;
+import uk.co.austinbirch.EntityRegistry;
+import uk.co.austinbirch.Hammer;
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.RenderSnapshot;
+import uk.co.austinbirch.RewindBuffer;
+import uk.co.austinbirch.SaveGame;
+import uk.co.austinbirch.Simulation;
+import uk.co.austinbirch.SnapshotBuffer;
+import uk.co.austinbirch.VisibilityCuller;
+import uk.co.austinbirch.physics.ABPhysicsHelper;
+import uk.co.austinbirch.physics.GravityField;
+import uk.co.austinbirch.physics.GravityTree;
+import uk.co.austinbirch.physics.Kinematic;
+import uk.co.austinbirch.physics.KinematicKernel;
+import uk.co.austinbirch.physics.KinematicStore;
+import uk.co.austinbirch.physics.Kinematics;
+import uk.co.austinbirch.physics.Narrowphase;
+import uk.co.austinbirch.physics.OrientedRectangle;
+import uk.co.austinbirch.physics.ScalarKinematicKernel;
+
+/**
+ * @author Austin Birch
+ *
+ * Benchmarks for the hot paths of the simulation: gravity, collision
+ * detection, MTV resolution, narrowphase tests against their Slick shape
+ * equivalents, the background, culling, render snapshots, saving and
+ * loading, recording and rewinding, and a whole tick.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.bench.SimulationBenchmarks
+ *        --sizes 30,300,3000,30000,100000
+ *
+ */
+public class SimulationBenchmarks {
+
+    /**
+     * The timestep used by the benchmarks, matching a 60Hz frame
+     */
+    public static final float DELTA_SECONDS = 1.0f / 60.0f;
+    
+    /**
+     * The number of entities in the churn benchmarks
+     */
+    public static final int CHURN_ENTITIES = 10000;
+    
+    /**
+     * The churn benchmarks remove and re-add one in this many entities
+     */
+    public static final int CHURN_EVERY = 10;
+    
+    public static void main(String[] args) {
+        BenchmarkRunner runner = new BenchmarkRunner(args, "30,300,3000,30000,100000");
+        runner.run(SimulationBenchmarks.benchmarks());
+    }
+    
+    /**
+     * @return the simulation benchmarks
+     */
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        
+        benchmarks.add(new Benchmark("simulatePhysics", true) {
+            Simulation simulation;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+            }
+            
+            public void run() {
+                this.simulation.simulatePhysics(DELTA_SECONDS);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("detectCollisions", true) {
+            Simulation simulation;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+            }
+            
+            public void run() {
+                this.simulation.detectCollisions();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("calculateMTV.rectEllipse", false) {
+            Rectangle rect;
+            Ellipse ellipse;
+            Vector2f result;
+            
+            public void setUp(WorldSize size) {
+                this.ellipse = new Ellipse(100.0f, 100.0f, 100.0f, 100.0f);
+                this.rect = new Rectangle(180.0f, 150.0f, 50.0f, 50.0f);
+            }
+            
+            public void run() {
+                this.result = ABPhysicsHelper.calculateMTV(this.rect, this.ellipse);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("calculateMTV.rectRect", false) {
+            Rectangle rectA;
+            Rectangle rectB;
+            Vector2f result;
+            
+            public void setUp(WorldSize size) {
+                this.rectA = new Rectangle(0.0f, 0.0f, 50.0f, 50.0f);
+                this.rectB = new Rectangle(40.0f, 30.0f, 50.0f, 50.0f);
+            }
+            
+            public void run() {
+                this.result = ABPhysicsHelper.calculateMTV(this.rectA, this.rectB);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("narrowphase.boxCircle.slick", false) {
+            Ellipse ellipse;
+            Rectangle rect;
+            boolean result;
+            
+            public void setUp(WorldSize size) {
+                this.ellipse = new Ellipse(100.0f, 100.0f, 100.0f, 100.0f);
+                this.rect = new Rectangle(180.0f, 150.0f, 50.0f, 50.0f);
+            }
+            
+            public void run() {
+                // buildings move, so their points are rebuilt every tick
+                this.rect.setX(this.rect.getX() == 180.0f ? 181.0f : 180.0f);
+                this.result = this.ellipse.intersects(this.rect);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("narrowphase.boxCircle.analytic", false) {
+            Rectangle rect;
+            boolean result;
+            
+            public void setUp(WorldSize size) {
+                this.rect = new Rectangle(180.0f, 150.0f, 50.0f, 50.0f);
+            }
+            
+            public void run() {
+                this.rect.setX(this.rect.getX() == 180.0f ? 181.0f : 180.0f);
+                this.result = Narrowphase.circleIntersectsBox(100.0f, 100.0f, 100.0f,
+                                                              this.rect.getX(), this.rect.getY(),
+                                                              this.rect.getWidth(), this.rect.getHeight());
+            }
+        });
+        
+        benchmarks.add(new Benchmark("narrowphase.orientedBoxCircle.slick", false) {
+            Ellipse ellipse;
+            OrientedRectangle box;
+            float rotation;
+            boolean result;
+            
+            public void setUp(WorldSize size) {
+                this.ellipse = new Ellipse(100.0f, 100.0f, 100.0f, 100.0f);
+                this.box = new OrientedRectangle();
+            }
+            
+            public void run() {
+                // as the player, turning a little every tick
+                this.rotation += 0.05f;
+                this.box.set(180.0f, 150.0f, 32.0f, 64.0f, this.rotation, 196.0f, 182.0f);
+                this.result = this.ellipse.intersects(this.box);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("narrowphase.orientedBoxCircle.analytic", false) {
+            float rotation;
+            boolean result;
+            
+            public void setUp(WorldSize size) {
+                this.rotation = 0.0f;
+            }
+            
+            public void run() {
+                this.rotation += 0.05f;
+                this.result = Narrowphase.orientedBoxIntersectsCircle(196.0f, 182.0f, 16.0f, 32.0f,
+                                                                      (float)Math.cos(this.rotation),
+                                                                      (float)Math.sin(this.rotation),
+                                                                      100.0f, 100.0f, 100.0f);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("background.update", false) {
+            Background background;
+            
+            public void setUp(WorldSize size) {
+                this.background = new Background(new Rectangle(0, 0, 2000, 1000));
+            }
+            
+            public void run() {
+                this.background.update(DELTA_SECONDS);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("background.stars", false) {
+            Background background;
+            int stars;
+            
+            public void setUp(WorldSize size) {
+                this.background = new Background(new Rectangle(0, 0, 2000, 1000));
+            }
+            
+            public void run() {
+                // the stars an 800x600 camera would draw
+                this.background.update(DELTA_SECONDS);
+                this.stars = this.background.countStars(600.0f, 200.0f, 800.0f, 600.0f);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("render.cull", true) {
+            RenderSnapshot snapshot;
+            VisibilityCuller culler;
+            
+            public void setUp(WorldSize size) {
+                this.snapshot = new RenderSnapshot();
+                this.snapshot.capture(BenchmarkWorld.create(size), 0, 0);
+                this.culler = new VisibilityCuller(32.0f);
+            }
+            
+            public void run() {
+                // an 800x600 camera in the middle of space, culling the
+                // snapshot the renderer is handed
+                this.culler.cull(this.snapshot, 600.0f, 200.0f, 800.0f, 600.0f);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("snapshot.capture", true) {
+            Simulation simulation;
+            SnapshotBuffer snapshots;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.snapshots = new SnapshotBuffer();
+            }
+            
+            public void run() {
+                // what the simulation thread does after every tick
+                this.snapshots.getWriteSnapshot().capture(this.simulation, 0, 0);
+                this.snapshots.publish();
+                this.snapshots.acquire();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("save.capture", true) {
+            Simulation simulation;
+            SaveGame save;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.save = new SaveGame();
+            }
+            
+            public void run() {
+                // what the simulation thread does to save
+                this.save.capture(this.simulation);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("save.write", true) {
+            SaveGame save;
+            File file;
+            
+            public void setUp(WorldSize size) {
+                this.save = new SaveGame();
+                this.save.capture(BenchmarkWorld.create(size));
+                this.file = SimulationBenchmarks.saveFile();
+            }
+            
+            public void run() {
+                // what the saver's thread does with it
+                try {
+                    this.save.write(this.file);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            public void tearDown() {
+                this.file.delete();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("save.load", true) {
+            Simulation simulation;
+            File file;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.file = SimulationBenchmarks.saveFile();
+                SaveGame save = new SaveGame();
+                save.capture(this.simulation);
+                try {
+                    save.write(this.file);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            public void run() {
+                // mapping the file in and putting everything back
+                try {
+                    SaveGame.read(this.file).restore(this.simulation);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            public void tearDown() {
+                this.file.delete();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("rewind.record", true) {
+            Simulation simulation;
+            InputQueue inputs;
+            RenderSnapshot snapshot;
+            RewindBuffer rewind;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.inputs = new InputQueue();
+                this.snapshot = new RenderSnapshot();
+                this.rewind = new RewindBuffer(60, 600, Long.MAX_VALUE);
+            }
+            
+            public void run() {
+                // what the simulation thread does every tick while keeping
+                // a history, so this is on top of tick and snapshot.capture
+                this.rewind.recordInputs(this.inputs);
+                this.simulation.tick(this.inputs, DELTA_SECONDS);
+                this.snapshot.capture(this.simulation, 0, 0);
+                this.rewind.record(this.simulation, this.snapshot);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("rewind.seek", true) {
+            RenderSnapshot snapshot;
+            RewindBuffer rewind;
+            long tick;
+            
+            public void setUp(WorldSize size) {
+                Simulation simulation = BenchmarkWorld.create(size);
+                InputQueue inputs = new InputQueue();
+                this.snapshot = new RenderSnapshot();
+                this.rewind = new RewindBuffer(60, 600, Long.MAX_VALUE);
+                for (int i = 0; i < 180; i++) {
+                    this.rewind.recordInputs(inputs);
+                    simulation.tick(inputs, DELTA_SECONDS);
+                    this.snapshot.capture(simulation, 0, 0);
+                    this.rewind.record(simulation, this.snapshot);
+                }
+                this.tick = this.rewind.getNewestTick();
+            }
+            
+            public void run() {
+                // scrubbing backwards a few ticks at a time, wrapping round
+                this.tick -= 7;
+                if (this.tick < this.rewind.getOldestTick()) {
+                    this.tick = this.rewind.getNewestTick();
+                }
+                try {
+                    this.rewind.reconstruct(this.tick, -7, this.snapshot, 0);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        
+        benchmarks.add(new KernelBenchmark("kernel.scalar", new ScalarKinematicKernel()));
+        if (Kinematics.isVectorApiAvailable()) {
+            benchmarks.add(new KernelBenchmark("kernel.vector", Kinematics.getKernel()));
+        }
+        
+        for (int worlds : new int[] { 4, 64, 1024 }) {
+            benchmarks.add(new GravityBenchmark("gravity.exact." + worlds, worlds, GravityBenchmark.EXACT));
+            benchmarks.add(new GravityBenchmark("gravity.field." + worlds, worlds, GravityBenchmark.FIELD));
+            benchmarks.add(new GravityBenchmark("gravity.tree." + worlds, worlds, GravityBenchmark.TREE));
+        }
+        
+        benchmarks.add(new Benchmark("gravity.mutual", true) {
+            GravityTree tree;
+            KinematicStore store;
+            
+            public void setUp(WorldSize size) {
+                this.tree = new GravityTree(0.5f, 16.0f);
+                this.store = GravityBenchmark.createStore(size.hammers, new Random(BenchmarkWorld.SEED));
+            }
+            
+            public void run() {
+                // every hammer pulling on every other one, as in the debris
+                // scenario
+                this.tree.build(this.store);
+                this.tree.accumulate(this.store, 0, this.store.size(), DELTA_SECONDS);
+            }
+        });
+        
+        benchmarks.add(new Benchmark("churn.copyOnWrite", false) {
+            CopyOnWriteArrayList<Hammer> list;
+            Hammer[] removed;
+            
+            public void setUp(WorldSize size) {
+                this.list = new CopyOnWriteArrayList<Hammer>();
+                for (Hammer hammer : SimulationBenchmarks.churnHammers()) {
+                    this.list.add(hammer);
+                }
+                this.removed = new Hammer[CHURN_ENTITIES / CHURN_EVERY];
+            }
+            
+            public void run() {
+                // remove every tenth entity while looping, then add them back
+                int count = 0;
+                int index = 0;
+                for (Hammer hammer : this.list) {
+                    if (index++ % CHURN_EVERY == 0) {
+                        this.list.remove(hammer);
+                        this.removed[count++] = hammer;
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    this.list.add(this.removed[i]);
+                }
+            }
+        });
+        
+        benchmarks.add(new Benchmark("churn.registry", false) {
+            EntityRegistry<Hammer> registry;
+            Hammer[] removed;
+            
+            public void setUp(WorldSize size) {
+                this.registry = new EntityRegistry<Hammer>(CHURN_ENTITIES);
+                for (Hammer hammer : SimulationBenchmarks.churnHammers()) {
+                    this.registry.add(hammer);
+                }
+                this.registry.flush();
+                this.removed = new Hammer[CHURN_ENTITIES / CHURN_EVERY];
+            }
+            
+            public void run() {
+                // remove every tenth entity while looping, then add them back
+                int count = 0;
+                for (int i = 0; i < this.registry.size(); i++) {
+                    if (i % CHURN_EVERY == 0) {
+                        Hammer hammer = this.registry.get(i);
+                        this.registry.remove(hammer);
+                        this.removed[count++] = hammer;
+                    }
+                }
+                this.registry.flush();
+                for (int i = 0; i < count; i++) {
+                    this.registry.add(this.removed[i]);
+                }
+                this.registry.flush();
+            }
+        });
+        
+        benchmarks.add(new Benchmark("tick", true) {
+            Simulation simulation;
+            InputQueue inputs;
+            
+            public void setUp(WorldSize size) {
+                this.simulation = BenchmarkWorld.create(size);
+                this.inputs = new InputQueue();
+            }
+            
+            public void run() {
+                this.simulation.tick(this.inputs, DELTA_SECONDS);
+            }
+        });
+        
+        return benchmarks;
+    }
+    
+    /**
+     * @return a new file for the save benchmarks to write to
+     */
+    static File saveFile() {
+        try {
+            File file = File.createTempFile("mchammer-bench", ".mchs");
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * @return the hammers used by the churn benchmarks
+     */
+    static Hammer[] churnHammers() {
+        Hammer[] hammers = new Hammer[CHURN_ENTITIES];
+        for (int i = 0; i < CHURN_ENTITIES; i++) {
+            hammers[i] = new Hammer(null, new Vector2f(i, i));
+        }
+        return hammers;
+    }
+    
+    /**
+     * Runs gravity from four worlds and then integration over a store the
+     * size of the hammer count, with a given kernel
+     */
+    static class KernelBenchmark extends Benchmark {
+        KinematicKernel kernel;
+        KinematicStore store;
+        
+        KernelBenchmark(String name, KinematicKernel kernel) {
+            super(name, true);
+            this.kernel = kernel;
+        }
+        
+        public void setUp(WorldSize size) {
+            Random rand = new Random(BenchmarkWorld.SEED);
+            Kinematic body = new Kinematic() {
+                public void setSlot(KinematicStore store, int slot) {
+                    // the bodies never move slot
+                }
+            };
+            this.store = new KinematicStore(size.hammers);
+            for (int i = 0; i < size.hammers; i++) {
+                int slot = this.store.add(body);
+                this.store.x[slot] = rand.nextFloat() * 2000.0f;
+                this.store.y[slot] = rand.nextFloat() * 1000.0f;
+                this.store.vx[slot] = rand.nextFloat() * 800.0f - 400.0f;
+                this.store.vy[slot] = rand.nextFloat() * 800.0f - 400.0f;
+                this.store.mass[slot] = 1000.0f;
+            }
+        }
+        
+        public void run() {
+            for (int w = 0; w < 4; w++) {
+                this.kernel.accumulateGravity(this.store, 150.0f + w * 500.0f, 444.0f, 2500.0f, DELTA_SECONDS);
+            }
+            this.kernel.integrate(this.store, DELTA_SECONDS);
+        }
+    }
+    
+    /**
+     * Accumulates gravity from a number of worlds into a store the size of
+     * the hammer count, either summing every world with the kernel,
+     * sampling a GravityField or walking a GravityTree
+     */
+    static class GravityBenchmark extends Benchmark {
+        static final int EXACT = 0;
+        static final int FIELD = 1;
+        static final int TREE = 2;
+        
+        int worlds;
+        int mode;
+        float[] worldX;
+        float[] worldY;
+        float[] worldMass;
+        KinematicKernel kernel;
+        GravityField field;
+        GravityTree tree;
+        KinematicStore store;
+        
+        GravityBenchmark(String name, int worlds, int mode) {
+            super(name, true);
+            this.worlds = worlds;
+            this.mode = mode;
+        }
+        
+        public void setUp(WorldSize size) {
+            Random rand = new Random(BenchmarkWorld.SEED);
+            this.worldX = new float[this.worlds];
+            this.worldY = new float[this.worlds];
+            this.worldMass = new float[this.worlds];
+            for (int w = 0; w < this.worlds; w++) {
+                this.worldX[w] = rand.nextFloat() * 2000.0f;
+                this.worldY[w] = rand.nextFloat() * 1000.0f;
+                this.worldMass[w] = 2500.0f;
+            }
+            this.kernel = Kinematics.getKernel();
+            if (this.mode == FIELD && this.field == null) {
+                // the field only depends on the worlds, so build it once
+                this.field = new GravityField(0.0f, 0.0f, 2000.0f, 1000.0f, 8.0f, 0.01f);
+                this.field.update(this.worldX, this.worldY, this.worldMass, this.worlds);
+            }
+            if (this.mode == TREE) {
+                this.tree = new GravityTree(0.5f, 0.0f);
+            }
+            this.store = GravityBenchmark.createStore(size.hammers, rand);
+        }
+        
+        /**
+         * @return a store of bodies with the mass of a hammer, scattered
+         *         at random over the default space
+         */
+        static KinematicStore createStore(int count, Random rand) {
+            Kinematic body = new Kinematic() {
+                public void setSlot(KinematicStore store, int slot) {
+                    // the bodies never move slot
+                }
+            };
+            KinematicStore store = new KinematicStore(count);
+            for (int i = 0; i < count; i++) {
+                int slot = store.add(body);
+                store.x[slot] = rand.nextFloat() * 2000.0f;
+                store.y[slot] = rand.nextFloat() * 1000.0f;
+                store.mass[slot] = 1000.0f;
+            }
+            return store;
+        }
+        
+        public void run() {
+            if (this.mode == FIELD) {
+                this.field.accumulate(this.store, 0, this.store.size(), DELTA_SECONDS);
+            } else if (this.mode == TREE) {
+                // built every time, as the simulation does
+                this.tree.build(this.worldX, this.worldY, this.worldMass, this.worlds);
+                this.tree.accumulate(this.store, 0, this.store.size(), DELTA_SECONDS);
+            } else {
+                for (int w = 0; w < this.worlds; w++) {
+                    this.kernel.accumulateGravity(this.store,
+                                                  this.worldX[w], this.worldY[w], this.worldMass[w],
+                                                  DELTA_SECONDS);
+                }
+            }
+        }
+    }
+    
+}
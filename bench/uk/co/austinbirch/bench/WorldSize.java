@@ -0,0 +1,71 @@
+package uk.co.austinbirch.bench;
+
+/**
+ * @author Austin Birch
+ *
+ * The number of each kind of entity to put into a benchmark world
+ *
+ */
+public class WorldSize {
+
+    // Member variables
+    
+    /**
+     * The number of hammers in flight
+     */
+    public final int hammers;
+    
+    /**
+     * The number of aliens, each of which also carries a building
+     */
+    public final int aliens;
+    
+    /**
+     * The number of loose buildings, on top of those the aliens carry
+     */
+    public final int buildings;
+    
+    /**
+     * Creates a world size
+     * 
+     * @param hammers the number of hammers in flight
+     * @param aliens the number of aliens
+     * @param buildings the number of loose buildings
+     */
+    public WorldSize(int hammers, int aliens, int buildings) {
+        this.hammers = hammers;
+        this.aliens = aliens;
+        this.buildings = buildings;
+    }
+    
+    /**
+     * Creates a world size with the same number of each kind of entity
+     * 
+     * @param count the number of each kind of entity
+     */
+    public WorldSize(int count) {
+        this(count, count, count);
+    }
+    
+    /**
+     * Parses a size of the form "count" or "hammers:aliens:buildings"
+     * 
+     * @param text the text to parse
+     * @return the parsed size
+     */
+    public static WorldSize parse(String text) {
+        String[] parts = text.split(":");
+        if (parts.length == 3) {
+            return new WorldSize(Integer.parseInt(parts[0]),
+                                 Integer.parseInt(parts[1]),
+                                 Integer.parseInt(parts[2]));
+        }
+        return new WorldSize(Integer.parseInt(text));
+    }
+    
+    @Override
+    public String toString() {
+        return this.hammers + ":" + this.aliens + ":" + this.buildings;
+    }
+    
+}
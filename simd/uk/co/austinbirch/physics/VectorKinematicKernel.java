@@ -0,0 +1,124 @@
+package uk.co.austinbirch.physics;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * @author Austin Birch
+ * 
+ * SIMD implementation of the kinematic kernels using the incubating Vector
+ * API. This class needs --add-modules jdk.incubator.vector both to compile
+ * and to run, so it lives in a source root of its own, simd/, which is only
+ * compiled where the module is available, e.g. from the project root
+ *   javac --add-modules jdk.incubator.vector -cp bin:McHammer.jar -d bin
+ *         $(find simd -name '*.java')
+ * once src/ has been compiled to bin. It is only ever loaded through
+ * Kinematics, which falls back to the scalar kernel if the class or the
+ * module isn't there.
+ *
+ * Ranges of fewer than MIN_BODIES bodies are left to the scalar kernel.
+ * They are quicker that way, and until C2 has compiled the Vector API
+ * calls, which takes a few thousand ticks, every call allocates.
+ *
+ */
+public class VectorKinematicKernel implements KinematicKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    
+    /**
+     * The fewest bodies in a range for it to be worth vectorizing, which is
+     * a whole chunk of a parallel tick
+     */
+    protected static final int MIN_BODIES = 2048;
+    
+    /**
+     * Does the ranges too short to vectorize
+     */
+    protected ScalarKinematicKernel scalar = new ScalarKinematicKernel();
+    
+    @Override
+    public void integrate(KinematicStore store, float deltaSeconds) {
+        this.integrate(store, 0, store.size(), deltaSeconds);
+    }
+    
+    @Override
+    public void integrate(KinematicStore store, int from, int to, float deltaSeconds) {
+        if (to - from < MIN_BODIES) {
+            this.scalar.integrate(store, from, to, deltaSeconds);
+            return;
+        }
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        int bound = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector px = FloatVector.fromArray(SPECIES, x, i);
+            FloatVector py = FloatVector.fromArray(SPECIES, y, i);
+            FloatVector pvx = FloatVector.fromArray(SPECIES, vx, i);
+            FloatVector pvy = FloatVector.fromArray(SPECIES, vy, i);
+            px.add(pvx.mul(deltaSeconds)).intoArray(x, i);
+            py.add(pvy.mul(deltaSeconds)).intoArray(y, i);
+        }
+        for (; i < to; i++) {
+            x[i] += vx[i] * deltaSeconds;
+            y[i] += vy[i] * deltaSeconds;
+        }
+    }
+    
+    @Override
+    public void accumulateGravity(KinematicStore store,
+                                  float attractorX,
+                                  float attractorY,
+                                  float attractorMass,
+                                  float deltaSeconds) {
+        this.accumulateGravity(store, 0, store.size(),
+                               attractorX, attractorY, attractorMass,
+                               deltaSeconds);
+    }
+    
+    @Override
+    public void accumulateGravity(KinematicStore store,
+                                  int from,
+                                  int to,
+                                  float attractorX,
+                                  float attractorY,
+                                  float attractorMass,
+                                  float deltaSeconds) {
+        if (to - from < MIN_BODIES) {
+            this.scalar.accumulateGravity(store, from, to,
+                                          attractorX, attractorY, attractorMass,
+                                          deltaSeconds);
+            return;
+        }
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        float[] mass = store.mass;
+        int bound = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector dx = FloatVector.fromArray(SPECIES, x, i).sub(attractorX);
+            FloatVector dy = FloatVector.fromArray(SPECIES, y, i).sub(attractorY);
+            FloatVector m = FloatVector.fromArray(SPECIES, mass, i);
+            FloatVector distance = dx.mul(dx).add(dy.mul(dy)).sqrt();
+            // a = f/m, with f = m1*m2/r
+            FloatVector a = m.mul(attractorMass).div(distance).div(m);
+            FloatVector scale = a.div(distance).mul(deltaSeconds);
+            FloatVector.fromArray(SPECIES, vx, i).add(dx.mul(scale)).intoArray(vx, i);
+            FloatVector.fromArray(SPECIES, vy, i).sub(dy.mul(scale)).intoArray(vy, i);
+        }
+        for (; i < to; i++) {
+            float dx = x[i] - attractorX;
+            float dy = y[i] - attractorY;
+            float distance = (float)Math.sqrt(dx * dx + dy * dy);
+            float a = ((attractorMass * mass[i]) / distance) / mass[i];
+            float scale = a / distance * deltaSeconds;
+            vx[i] += dx * scale;
+            vy[i] -= dy * scale;
+        }
+    }
+    
+}
@@ -1,11 +1,5 @@
 package uk.co.austinbirch;
 
-import java.util.Random;
-
-import org.newdawn.slick.GameContainer;
-import org.newdawn.slick.Image;
-import org.newdawn.slick.SlickException;
-import org.newdawn.slick.geom.Ellipse;
 import org.newdawn.slick.geom.Vector2f;
 
 public class Alien extends Entity {
@@ -31,91 +25,147 @@ public class Alien extends Entity {
     protected Building payload;
     
     /**
-     * Creates a new alien
+     * Creates a new alien, which does nothing until it is reset()
+     * 
+     * @param simulation the simulation the alien belongs to
      */
-    public Alien() {
-        try {
-            this.sprite = new Image("res/images/alien.png");
-            this.setupPositions();
-            Vector2f payloadPosition = new Vector2f();
-            payloadPosition.x = this.position.x;
-            payloadPosition.y = this.position.y + this.sprite.getHeight();
-            this.payload = new Building(payloadPosition,
-                                        this.velocity);
-            McHammerGame.getInstance().addBuilding(this.payload);
-        } catch (SlickException e) {
-            e.printStackTrace();
-        }
+    public Alien(Simulation simulation) {
+        this.simulation = simulation;
+        this.spriteInfo = SpriteInfo.ALIEN;
+        this.destinationPosition = new Vector2f();
+        this.startingPosition = new Vector2f();
+    }
+    
+    /**
+     * Sends the alien in from a new random position, launching a new
+     * payload alongside it
+     */
+    public void reset() {
+        this.leavingStage = false;
+        this.setupPositions();
+        this.payload = this.simulation.spawnBuilding(this.getX(),
+                                                     this.getY() + this.spriteInfo.getHeight(),
+                                                     this.getVelocityX(),
+                                                     this.getVelocityY());
+    }
+    
+    /**
+     * Puts the alien back part of the way through its run, as it was when
+     * it was paged out of the simulation. No payload is launched, as it was
+     * launched the first time round.
+     * 
+     * @param x the x position
+     * @param y the y position
+     * @param velocityX the x velocity
+     * @param velocityY the y velocity
+     * @param destinationX the x position we are heading for
+     * @param destinationY the y position we are heading for
+     * @param startX the x position we started from
+     * @param startY the y position we started from
+     * @param leavingStage whether we are on the way out
+     */
+    public void restore(float x, float y,
+                        float velocityX, float velocityY,
+                        float destinationX, float destinationY,
+                        float startX, float startY,
+                        boolean leavingStage) {
+        this.setPosition(x, y);
+        this.setVelocity(velocityX, velocityY);
+        this.destinationPosition.set(destinationX, destinationY);
+        this.startingPosition.set(startX, startY);
+        this.leavingStage = leavingStage;
+        this.payload = null;
+    }
+    
+    /**
+     * Moves where we are heading for and where we started from along with
+     * the simulation's frame. Our position is moved with the rest of the
+     * aliens' kinematics.
+     * 
+     * @param dx how far the frame moved everything in x
+     * @param dy how far the frame moved everything in y
+     */
+    public void translate(float dx, float dy) {
+        this.destinationPosition.set(this.destinationPosition.x + dx, this.destinationPosition.y + dy);
+        this.startingPosition.set(this.startingPosition.x + dx, this.startingPosition.y + dy);
+    }
+    
+    /**
+     * Lets go of the payload, which may be reused by now
+     */
+    @Override
+    public void onRemoved() {
+        super.onRemoved();
+        this.payload = null;
     }
     
     /**
      * Generates the starting and destination positions for this alien
-     * @throws SlickException 
      */
-    protected void setupPositions() throws SlickException {
-        // select a target destination first
-        float minX = 0.0f;
-        float maxX = McHammerGame.getInstance().spaceWidth;
-        float minY = 0.0f;
-        float maxY = McHammerGame.getInstance().spaceHeight; 
+    protected void setupPositions() {
+        // select a target destination first, anywhere in space, which is
+        // offset by the origin of the simulation's frame
+        float minX = -this.simulation.originX;
+        float maxX = this.simulation.spaceWidth - this.simulation.originX;
+        float minY = -this.simulation.originY;
+        float maxY = this.simulation.spaceHeight - this.simulation.originY; 
         
-        float xPos = minX + (int)(Math.random() * ((maxX - minX) + 1));
-        float yPos = minY + (int)(Math.random() * ((maxY - minY) + 1));
+        float xPos = minX + this.simulation.random.nextInt((int)(maxX - minX) + 1);
+        float yPos = minY + this.simulation.random.nextInt((int)(maxY - minY) + 1);
         
-        this.destinationPosition = new Vector2f(xPos, yPos);
+        this.destinationPosition.set(xPos, yPos);
         
         // generate a random distance away
-        int distance = 700 + (int)(Math.random() * ((5000 - 700) + 1));
+        int distance = 700 + this.simulation.random.nextInt((5000 - 700) + 1);
         
         // calculate the starting position
         double delta = Math.sin(Math.toRadians(45.0f)) * distance;
-        Random rand = new Random();
-        int x = rand.nextInt(4);
+        int x = this.simulation.random.nextInt(4);
         
         float alienVel = 200.0f;
         if (x < 1) {
-            this.startingPosition = new Vector2f((float)(xPos - delta), (float)(yPos - delta));
-            this.velocity = new Vector2f(alienVel, alienVel);   
+            this.startingPosition.set((float)(xPos - delta), (float)(yPos - delta));
+            this.setVelocity(alienVel, alienVel);   
         } else if (x < 2) {
-            this.startingPosition = new Vector2f((float)(xPos + delta), (float)(yPos - delta));
-            this.velocity = new Vector2f(-alienVel, alienVel);               
+            this.startingPosition.set((float)(xPos + delta), (float)(yPos - delta));
+            this.setVelocity(-alienVel, alienVel);               
         } else if (x < 3) {
-            this.startingPosition = new Vector2f((float)(xPos + delta), (float)(yPos + delta));
-            this.velocity = new Vector2f(-alienVel, -alienVel);   
+            this.startingPosition.set((float)(xPos + delta), (float)(yPos + delta));
+            this.setVelocity(-alienVel, -alienVel);   
         } else if (x < 4) {
-            this.startingPosition = new Vector2f((float)(xPos - delta), (float)(yPos + delta));
-            this.velocity = new Vector2f(alienVel, -alienVel);   
+            this.startingPosition.set((float)(xPos - delta), (float)(yPos + delta));
+            this.setVelocity(alienVel, -alienVel);   
         }
         
-        this.position = new Vector2f(this.startingPosition);
+        this.setPosition(this.startingPosition.x, this.startingPosition.y);
     }
     
     @Override
-    public void update(GameContainer gc, float deltaSeconds) throws SlickException {
+    public void update(float deltaSeconds) {
         if (this.leavingStage) {
             // we are on the way out, remove ourselves
-            if (this.position.x < -100.0f || 
-                    this.position.x > McHammerGame.getInstance().spaceWidth + 100.0f ||
-                    this.position.y < -100.0f ||
-                    this.position.y > McHammerGame.getInstance().spaceHeight + 100.0f)
-                McHammerGame.getInstance().removeAlien(this);
+            float x = this.getX() + this.simulation.originX;
+            float y = this.getY() + this.simulation.originY;
+            if (x < -100.0f || 
+                    x > this.simulation.spaceWidth + 100.0f ||
+                    y < -100.0f ||
+                    y > this.simulation.spaceHeight + 100.0f)
+                this.simulation.removeAlien(this);
         }
         
-        Ellipse nearDetection = new Ellipse(this.position.x, this.position.y, 5.0f, 5.0f);
-        if (nearDetection.contains(this.destinationPosition.x, this.destinationPosition.y)) {
+        // are we within 5 pixels of our destination?
+        float dx = this.destinationPosition.x - this.getX();
+        float dy = this.destinationPosition.y - this.getY();
+        if ((dx * dx) + (dy * dy) < 25.0f) {
             if (!this.leavingStage) {
                 // we are on the way in, go back!
-                this.destinationPosition = this.startingPosition;
+                this.destinationPosition.set(this.startingPosition);
                 // reverse our velocity
-                this.velocity.x *= -1;
-                this.velocity.y *= -1;
+                this.setVelocity(this.getVelocityX() * -1, this.getVelocityY() * -1);
                 // we are now reversing the motion
                 this.leavingStage = true;
             }
         }
-        
-        this.position.x += this.velocity.x * deltaSeconds;
-        this.position.y += this.velocity.y * deltaSeconds;
     }
     
 }
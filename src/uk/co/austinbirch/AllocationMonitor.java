@@ -0,0 +1,211 @@
+package uk.co.austinbirch;
+
+import java.lang.management.ManagementFactory;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * @author Austin Birch
+ *
+ * Watches how many bytes the simulation thread allocates during each tick,
+ * and complains when a tick goes over budget. Allocation in the tick is
+ * what makes the garbage collector run mid-game, so the steady state
+ * budget should be zero.
+ *
+ * Can be turned on without changing any code with the system properties:
+ *   mchammer.allocationBudget   the budget in bytes per tick
+ *   mchammer.allocationWarmup   the number of ticks to ignore at the start
+ *   mchammer.allocationFail     true to throw when the budget is exceeded
+ *
+ */
+public class AllocationMonitor {
+
+    // Member variables
+    
+    /**
+     * The thread MXBean, if the JVM can tell us per-thread allocation
+     */
+    protected com.sun.management.ThreadMXBean threadBean;
+    
+    /**
+     * The number of bytes a tick is allowed to allocate
+     */
+    protected long budgetBytes;
+    
+    /**
+     * The number of ticks to ignore while everything warms up
+     */
+    protected int warmupTicks;
+    
+    /**
+     * Whether going over the budget should throw, rather than log
+     */
+    protected boolean failOnExceed;
+    
+    /**
+     * The thread allocation counter when the current tick began
+     */
+    protected long tickStartBytes;
+    
+    /**
+     * The number of ticks measured, including the warmup
+     */
+    protected long ticks = 0;
+    
+    /**
+     * The number of ticks that went over the budget after warming up
+     */
+    protected long overBudgetTicks = 0;
+    
+    /**
+     * The most bytes allocated by any tick after warming up
+     */
+    protected long maxBytes = 0;
+    
+    /**
+     * The bytes allocated by the last tick
+     */
+    protected long lastBytes = 0;
+    
+    /**
+     * Creates an allocation monitor
+     * 
+     * @param budgetBytes the number of bytes a tick is allowed to allocate
+     * @param warmupTicks the number of ticks to ignore at the start
+     * @param failOnExceed whether to throw when a tick goes over budget
+     */
+    public AllocationMonitor(long budgetBytes, int warmupTicks, boolean failOnExceed) {
+        this.budgetBytes = budgetBytes;
+        this.warmupTicks = warmupTicks;
+        this.failOnExceed = failOnExceed;
+        
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                this.threadBean = sunBean;
+            }
+        }
+        if (this.threadBean == null) {
+            Log.warn("Per-thread allocation counting isn't available, allocation monitoring is disabled");
+        }
+    }
+    
+    /**
+     * Creates an allocation monitor from the mchammer.allocation* system
+     * properties
+     * 
+     * @return the monitor, or null if mchammer.allocationBudget isn't set
+     */
+    public static AllocationMonitor fromSystemProperties() {
+        String budget = System.getProperty("mchammer.allocationBudget");
+        if (budget == null) {
+            return null;
+        }
+        return new AllocationMonitor(Long.parseLong(budget),
+                                     Integer.getInteger("mchammer.allocationWarmup", 300),
+                                     Boolean.getBoolean("mchammer.allocationFail"));
+    }
+    
+    /**
+     * @return whether allocations can actually be measured on this JVM
+     */
+    public boolean isSupported() {
+        return this.threadBean != null;
+    }
+    
+    /**
+     * Marks the start of a tick
+     */
+    public void beginTick() {
+        if (this.threadBean != null) {
+            this.tickStartBytes = this.threadBean.getCurrentThreadAllocatedBytes();
+        }
+    }
+    
+    /**
+     * Marks the end of a tick, and checks what it allocated against the
+     * budget
+     * 
+     * @throws IllegalStateException if the tick went over budget and the
+     *                               monitor is set to fail
+     */
+    public void endTick() {
+        if (this.threadBean == null) {
+            return;
+        }
+        this.lastBytes = this.threadBean.getCurrentThreadAllocatedBytes() - this.tickStartBytes;
+        this.ticks++;
+        if (this.ticks <= this.warmupTicks) {
+            return;
+        }
+        
+        if (this.lastBytes > this.maxBytes) {
+            this.maxBytes = this.lastBytes;
+        }
+        if (this.lastBytes > this.budgetBytes) {
+            this.overBudgetTicks++;
+            String message = "Tick " + this.ticks + " allocated " + this.lastBytes +
+                             " bytes, over the budget of " + this.budgetBytes;
+            if (this.failOnExceed) {
+                throw new IllegalStateException(message);
+            }
+            Log.warn(message);
+        }
+    }
+    
+    /**
+     * Clears the statistics, and starts the warmup again
+     */
+    public void reset() {
+        this.ticks = 0;
+        this.overBudgetTicks = 0;
+        this.maxBytes = 0;
+        this.lastBytes = 0;
+    }
+    
+    /**
+     * @return the number of bytes a tick is allowed to allocate
+     */
+    public long getBudgetBytes() {
+        return this.budgetBytes;
+    }
+    
+    /**
+     * @return the number of ticks measured, including the warmup
+     */
+    public long getTicks() {
+        return this.ticks;
+    }
+    
+    /**
+     * @return the number of ticks that went over the budget after warming up
+     */
+    public long getOverBudgetTicks() {
+        return this.overBudgetTicks;
+    }
+    
+    /**
+     * @return the most bytes allocated by any tick after warming up
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+    
+    /**
+     * @return the bytes allocated by the last tick
+     */
+    public long getLastBytes() {
+        return this.lastBytes;
+    }
+    
+    @Override
+    public String toString() {
+        return "ticks=" + this.ticks +
+               " overBudget=" + this.overBudgetTicks +
+               " maxBytes=" + this.maxBytes +
+               " budget=" + this.budgetBytes;
+    }
+    
+}
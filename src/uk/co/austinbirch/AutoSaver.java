@@ -0,0 +1,199 @@
+package uk.co.austinbirch;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * @author Austin Birch
+ *
+ * Saves a simulation without holding up its ticks. The simulation is
+ * captured into a SaveGame on the thread that ticks it, which only copies
+ * it, and a thread of the saver's own writes it to its file.
+ *
+ * A save that is captured before the last has been written replaces it,
+ * so a slow disk only ever means the latest save is written, and the
+ * simulation never waits for it. There are three saves, swapped round
+ * rather than copied: the one being captured into, the one waiting to be
+ * written, and the one being written.
+ *
+ */
+public class AutoSaver implements Runnable {
+
+    // Member variables
+    
+    /**
+     * The save being captured into by the simulation's thread, the one
+     * waiting to be written, and the one being written by the saver's
+     * thread. The waiting one is only touched while holding the lock of
+     * the saver.
+     */
+    protected SaveGame captureSave = new SaveGame();
+    protected SaveGame pendingSave = new SaveGame();
+    protected SaveGame writeSave = new SaveGame();
+    
+    /**
+     * The file each of the saves is for
+     */
+    protected File captureFile;
+    protected File pendingFile;
+    protected File writeFile;
+    
+    /**
+     * Whether there is a save waiting to be written
+     */
+    protected boolean pending = false;
+    
+    /**
+     * Whether the saver's thread should keep going
+     */
+    protected boolean running = false;
+    
+    /**
+     * The thread writing the saves
+     */
+    protected Thread thread;
+    
+    /**
+     * What has been saved: the saves written, the ones replaced before
+     * they could be, and how long the last capture and write took
+     */
+    protected volatile long savesWritten = 0;
+    protected volatile long savesDropped = 0;
+    protected volatile long captureNanos = 0;
+    protected volatile long writeNanos = 0;
+    
+    /**
+     * Starts the thread that writes the saves
+     */
+    public void start() {
+        synchronized (this) {
+            if (this.thread != null) {
+                return;
+            }
+            this.running = true;
+        }
+        this.thread = new Thread(this, "McHammer saver");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Stops the thread once it has written the save waiting for it, if
+     * there is one, and waits for it to finish
+     */
+    public void stop() {
+        Thread thread = this.thread;
+        if (thread == null) {
+            return;
+        }
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.thread = null;
+    }
+    
+    /**
+     * Captures a simulation, and queues it to be written in place of any
+     * save that hasn't been yet. This must be done between ticks, on the
+     * thread that ticks the simulation.
+     * 
+     * @param simulation the simulation to save
+     * @param file the file to write it to
+     */
+    public void save(Simulation simulation, File file) {
+        long start = System.nanoTime();
+        this.captureSave.capture(simulation);
+        this.captureFile = file;
+        this.captureNanos = System.nanoTime() - start;
+        
+        synchronized (this) {
+            SaveGame captured = this.captureSave;
+            this.captureSave = this.pendingSave;
+            this.pendingSave = captured;
+            File capturedFile = this.captureFile;
+            this.captureFile = this.pendingFile;
+            this.pendingFile = capturedFile;
+            if (this.pending) {
+                this.savesDropped++;
+            }
+            this.pending = true;
+            this.notifyAll();
+        }
+    }
+    
+    /**
+     * Writes each save as it is queued, until stopped
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!this.pending && this.running) {
+                        this.wait();
+                    }
+                    if (!this.pending) {
+                        break;
+                    }
+                    SaveGame queued = this.pendingSave;
+                    this.pendingSave = this.writeSave;
+                    this.writeSave = queued;
+                    File queuedFile = this.pendingFile;
+                    this.pendingFile = this.writeFile;
+                    this.writeFile = queuedFile;
+                    this.pending = false;
+                }
+                long start = System.nanoTime();
+                try {
+                    this.writeSave.write(this.writeFile);
+                    this.savesWritten++;
+                } catch (IOException e) {
+                    Log.error("Unable to save to " + this.writeFile, e);
+                }
+                this.writeNanos = System.nanoTime() - start;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * @return the number of saves written
+     */
+    public long getSavesWritten() {
+        return this.savesWritten;
+    }
+    
+    /**
+     * @return the number of saves replaced by a later one before they could
+     *         be written
+     */
+    public long getSavesDropped() {
+        return this.savesDropped;
+    }
+    
+    /**
+     * @return how long the last save took to capture, on the simulation's
+     *         thread, in nanoseconds
+     */
+    public long getCaptureNanos() {
+        return this.captureNanos;
+    }
+    
+    /**
+     * @return how long the last save took to write, on the saver's thread,
+     *         in nanoseconds
+     */
+    public long getWriteNanos() {
+        return this.writeNanos;
+    }
+    
+}
@@ -1,6 +1,7 @@
 package uk.co.austinbirch;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import org.newdawn.slick.Color;
 import org.newdawn.slick.GameContainer;
@@ -13,20 +14,26 @@ import org.newdawn.slick.geom.Vector2f;
  *
  * The Background class creates, renders and updates a space background
  * that has scrolling stars etc.
+ *
+ * The stars aren't stored anywhere. The bounding rect is split into tiles,
+ * and the stars in a tile are worked out from a hash of the tile's
+ * coordinates whenever it is drawn, then moved along by how far the stars
+ * have drifted since the start, wrapping around the bounding rect. Only
+ * the tiles in view are worked out, so updating costs nothing, drawing
+ * costs what is on screen rather than what is in the whole of space, and
+ * more stars cost no memory.
+ *
+ * The stars are drawn in layers, furthest first. A layer with a parallax
+ * below 1 moves less than the camera does, so it looks further away.
  */
 public class Background {
-    
+
     // Member variables
     /**
      * The rectangle we are rendering in
      */
     protected Rectangle boundingRect;
     
-    /**
-     * The amount of stars to render
-     */
-    protected int starCount = 200;
-    
     /**
      * The color with which we should render the stars
      */
@@ -37,11 +44,6 @@ public class Background {
      */
     protected Color abyssColor = Color.black;
     
-    /**
-     * The array to store all of the stars
-     */
-    protected ArrayList<Vector2f> starField;
-    
     /**
      * The width of a rendered star
      */
@@ -57,106 +59,348 @@ public class Background {
      */
     protected Vector2f starVelocity = new Vector2f(-10.0f, 20.0f);
     
+    /**
+     * The layers of stars, furthest first
+     */
+    protected ArrayList<Layer> layers = new ArrayList<Layer>();
+    
+    /**
+     * The seed the star positions are hashed from
+     */
+    protected long seed;
+    
+    /**
+     * How long the stars have been drifting for
+     */
+    protected double elapsedTime = 0.0;
+    
+    /**
+     * The positions of the stars being drawn, reused between layers and
+     * frames, as x, y pairs
+     */
+    protected float[] starPositions = new float[512];
+    
+    /**
+     * One layer of stars
+     */
+    public static class Layer {
+        
+        /**
+         * How much the layer moves with the camera, 1 for as much as the
+         * entities, less to look further away
+         */
+        protected float parallax;
+        
+        /**
+         * The size the layer is split into tiles at, before being rounded
+         * to fit the bounding rect
+         */
+        protected float tileSize;
+        
+        /**
+         * The number of stars in each tile
+         */
+        protected int starsPerTile;
+        
+        /**
+         * The size of each star
+         */
+        protected float starWidth;
+        protected float starHeight;
+        
+        /**
+         * The color of the stars
+         */
+        protected Color color;
+        
+        /**
+         * The velocity the stars drift at
+         */
+        protected float velocityX;
+        protected float velocityY;
+        
+        /**
+         * Creates a layer of stars
+         * 
+         * @param parallax how much the layer moves with the camera
+         * @param tileSize the size of the tiles the stars are spread over
+         * @param starsPerTile the number of stars in each tile
+         * @param starWidth the width of each star
+         * @param starHeight the height of each star
+         * @param color the color of the stars
+         * @param velocityX the x velocity the stars drift at
+         * @param velocityY the y velocity the stars drift at
+         */
+        public Layer(float parallax,
+                     float tileSize,
+                     int starsPerTile,
+                     float starWidth,
+                     float starHeight,
+                     Color color,
+                     float velocityX,
+                     float velocityY) {
+            this.parallax = parallax;
+            this.tileSize = tileSize;
+            this.starsPerTile = starsPerTile;
+            this.starWidth = starWidth;
+            this.starHeight = starHeight;
+            this.color = color;
+            this.velocityX = velocityX;
+            this.velocityY = velocityY;
+        }
+        
+    }
+    
     /**
      * Creates a new background in the specified rect
      * 
      * @param rect
      */
     public Background(Rectangle rect) {
+        this(rect, new Random());
+    }
+    
+    /**
+     * Creates a new background in the specified rect, scattering the stars
+     * with the given random number generator so the same seed gives the
+     * same sky
+     * 
+     * @param rect the rectangle to fill with stars
+     * @param random the random number generator to place the stars with
+     */
+    public Background(Rectangle rect, Random random) {
         super();
         this.boundingRect = rect;
-        this.starField = new ArrayList<Vector2f>();
+        this.seed = random.nextLong();
         
-        // create a star field
-        this.generateStarfield();
+        // a faint, slow layer in the distance, and the original 200 stars
+        // (4 to each 200 pixel tile) in front of it
+        this.addLayer(new Layer(0.5f,
+                                100.0f,
+                                2,
+                                1.0f,
+                                2.0f,
+                                Color.gray,
+                                this.starVelocity.x / 2.0f,
+                                this.starVelocity.y / 2.0f));
+        this.addLayer(new Layer(1.0f,
+                                200.0f,
+                                4,
+                                this.starWidth,
+                                this.starHeight,
+                                this.starColor,
+                                this.starVelocity.x,
+                                this.starVelocity.y));
     }
     
     /**
-     * Creates a star field that suits the parameters set for this background,
-     * and puts the resultant stars into starField array.
-     */
-    protected void generateStarfield() {
-        for (int i = 0; i < this.starCount; i++) {
-            // generate a random position vector for a star
-            float minX = this.boundingRect.getX();
-            float maxX = this.boundingRect.getX() + this.boundingRect.getWidth();
-            float minY = this.boundingRect.getY();
-            float maxY = this.boundingRect.getY() + this.boundingRect.getHeight();
-            float xPos = minX + (int)(Math.random() * ((maxX - minX) + 1));
-            float yPos = minY + (int)(Math.random() * ((maxY - minY) + 1));
-            
-            // store it
-            Vector2f starPos = new Vector2f(xPos, yPos);
-            this.starField.add(starPos);
-        }
+     * Adds a layer of stars in front of the existing ones
+     * 
+     * @param layer the layer to add
+     */
+    public void addLayer(Layer layer) {
+        this.layers.add(layer);
+    }
+    
+    /**
+     * Removes every layer of stars
+     */
+    public void clearLayers() {
+        this.layers.clear();
     }
     
     /**
-     * Updates the background
+     * Updates the background. The stars' positions are worked out from the
+     * time when they are drawn, so this only has to move the time on.
      * 
-     * @param gc the game container we belong to
      * @param deltaSeconds the amount of seconds passed since last update
-     * @return 
-     */
-    public void update(GameContainer gc, float deltaSeconds) {
-        for (Vector2f star : this.starField) {
-            star.x += this.starVelocity.x * deltaSeconds;
-            star.y += this.starVelocity.y * deltaSeconds;
-            
-            // apply an offset so that we come onto screen, not appear suddenly
-            float offset = 2.0f;
-            
-            // if we have moved off of the bounding rect in the x-axis
-            if (star.x < (this.boundingRect.getX() - offset)) {
-                // put star back on the right
-                star.x = this.boundingRect.getX() + this.boundingRect.getWidth() + offset;
-            } else if (star.x > (this.boundingRect.getX() + 
-                    this.boundingRect.getWidth() + offset)) {
-                // put star back on the left
-                star.x = this.boundingRect.getX() - offset;
-            }
-            
-            // if we have moved off of the bounding rect in the y-axis
-            if (star.y < (this.boundingRect.getY() - offset)) {
-                // put star back on the bottom
-                star.y = this.boundingRect.getY() + this.boundingRect.getHeight() + offset;
-            } else if (star.y > (this.boundingRect.getY() + 
-                    this.boundingRect.getHeight() + offset)) {
-                // put star back on the top
-                star.y = this.boundingRect.getY() - offset;
-            }            
-        }
+     */
+    public void update(float deltaSeconds) {
+        this.elapsedTime += deltaSeconds;
     }
     
     /**
-     * Renders the background by iterating through all of the stored stars,
-     * and drawing them with the current star color
+     * Renders the whole of the background
      * 
      * @param gc the GameContainer we belong to
      * @param g the graphics context to draw to
-     * @return 
      */
     public void render(GameContainer gc, Graphics g) {
+        this.render(gc,
+                    g,
+                    this.boundingRect.getX(),
+                    this.boundingRect.getY(),
+                    this.boundingRect.getWidth(),
+                    this.boundingRect.getHeight());
+    }
+    
+    /**
+     * Renders the part of the background the camera can see
+     * 
+     * @param gc the GameContainer we belong to
+     * @param g the graphics context to draw to
+     * @param camera the camera we are viewing through
+     */
+    public void render(GameContainer gc, Graphics g, Camera camera) {
+        this.render(gc,
+                    g,
+                    camera.getX(),
+                    camera.getY(),
+                    camera.getViewWidth(),
+                    camera.getViewHeight());
+    }
+    
+    /**
+     * Renders the part of the background in a view, by filling it with the
+     * color of space and then drawing the stars in it with each layer's
+     * color
+     * 
+     * @param gc the GameContainer we belong to
+     * @param g the graphics context to draw to
+     * @param viewX the x position of the view
+     * @param viewY the y position of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    public void render(GameContainer gc,
+                       Graphics g,
+                       float viewX,
+                       float viewY,
+                       float viewWidth,
+                       float viewHeight) {
         // store the old color so we can reset it
         Color oldColor = g.getColor();
         
         // render the space background color
         g.setColor(abyssColor);
-        g.fillRect(this.boundingRect.getX(),
-                   this.boundingRect.getY(),
-                   this.boundingRect.getWidth(),
-                   this.boundingRect.getHeight());
-        
-        // set to the star color
-        g.setColor(starColor);
+        g.fillRect(viewX, viewY, viewWidth, viewHeight);
         
-        // draw the stars
-        for (Vector2f star : this.starField) {
-            g.fillRect(star.x, star.y, this.starWidth, this.starHeight);
+        // draw the stars, furthest first
+        for (int i = 0; i < this.layers.size(); i++) {
+            Layer layer = this.layers.get(i);
+            int count = this.generateStars(i, viewX, viewY, viewWidth, viewHeight);
+            g.setColor(layer.color);
+            float[] positions = this.starPositions;
+            for (int s = 0; s < count; s++) {
+                g.fillRect(positions[s * 2], positions[s * 2 + 1], layer.starWidth, layer.starHeight);
+            }
         }
         
         // reset the old color for the graphics context
         g.setColor(oldColor);
     }
     
+    /**
+     * Works out every star a view can see, in every layer, without drawing
+     * them
+     * 
+     * @param viewX the x position of the view
+     * @param viewY the y position of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     * @return the number of stars in the view
+     */
+    public int countStars(float viewX, float viewY, float viewWidth, float viewHeight) {
+        int total = 0;
+        for (int i = 0; i < this.layers.size(); i++) {
+            total += this.generateStars(i, viewX, viewY, viewWidth, viewHeight);
+        }
+        return total;
+    }
+    
+    /**
+     * Works out where the stars of a layer that a view can see are, and
+     * puts them into starPositions
+     * 
+     * The tiles are laid over the bounding rect in "star space", which
+     * drifts with the stars and wraps around, so a star's drawn position is
+     * its position in its tile plus the drift. The view is moved into star
+     * space, and each tile it overlaps is wrapped back into the bounding
+     * rect to find the tile whose stars are drawn there.
+     * 
+     * @param layerIndex the index of the layer
+     * @param viewX the x position of the view
+     * @param viewY the y position of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     * @return the number of stars put into starPositions
+     */
+    protected int generateStars(int layerIndex,
+                                float viewX,
+                                float viewY,
+                                float viewWidth,
+                                float viewHeight) {
+        Layer layer = this.layers.get(layerIndex);
+        float boundsX = this.boundingRect.getX();
+        float boundsY = this.boundingRect.getY();
+        float boundsWidth = this.boundingRect.getWidth();
+        float boundsHeight = this.boundingRect.getHeight();
+        
+        // fit a whole number of tiles into the bounds, so they wrap cleanly
+        int tilesX = Math.max(1, Math.round(boundsWidth / layer.tileSize));
+        int tilesY = Math.max(1, Math.round(boundsHeight / layer.tileSize));
+        float tileWidth = boundsWidth / tilesX;
+        float tileHeight = boundsHeight / tilesY;
+        
+        // how far the stars have drifted, and how far the layer has been
+        // held back from the camera
+        float driftX = (float)((layer.velocityX * this.elapsedTime) % boundsWidth);
+        float driftY = (float)((layer.velocityY * this.elapsedTime) % boundsHeight);
+        float shiftX = viewX * (1.0f - layer.parallax);
+        float shiftY = viewY * (1.0f - layer.parallax);
+        
+        // the view in star space, grown by a star so none pop in at an edge
+        float offsetX = boundsX + driftX + shiftX;
+        float offsetY = boundsY + driftY + shiftY;
+        int firstTileX = (int)Math.floor((viewX - layer.starWidth - offsetX) / tileWidth);
+        int lastTileX = (int)Math.floor((viewX + viewWidth - offsetX) / tileWidth);
+        int firstTileY = (int)Math.floor((viewY - layer.starHeight - offsetY) / tileHeight);
+        int lastTileY = (int)Math.floor((viewY + viewHeight - offsetY) / tileHeight);
+        
+        int maxStars = (lastTileX - firstTileX + 1) * (lastTileY - firstTileY + 1) * layer.starsPerTile;
+        if (maxStars * 2 > this.starPositions.length) {
+            this.starPositions = new float[maxStars * 2];
+        }
+        float[] positions = this.starPositions;
+        
+        int count = 0;
+        long layerSeed = this.seed + layerIndex * 0x9e3779b97f4a7c15L;
+        for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+            int wrappedY = Math.floorMod(tileY, tilesY);
+            for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                int wrappedX = Math.floorMod(tileX, tilesX);
+                long tileHash = Background.mix(layerSeed ^ ((long)wrappedY << 32 | (wrappedX & 0xffffffffL)));
+                for (int s = 0; s < layer.starsPerTile; s++) {
+                    long starHash = Background.mix(tileHash + s);
+                    float x = offsetX + (tileX + (starHash >>> 40) / (float)(1 << 24)) * tileWidth;
+                    float y = offsetY + (tileY + ((starHash >>> 16) & 0xffffff) / (float)(1 << 24)) * tileHeight;
+                    positions[count * 2] = x;
+                    positions[count * 2 + 1] = y;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Scrambles a value into a hash, with the SplitMix64 finaliser
+     * 
+     * @param value the value to hash
+     * @return the hash
+     */
+    protected static long mix(long value) {
+        value += 0x9e3779b97f4a7c15L;
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+    
+    /**
+     * @return how long the stars have been drifting for, in seconds
+     */
+    public double getElapsedTime() {
+        return this.elapsedTime;
+    }
+    
 }
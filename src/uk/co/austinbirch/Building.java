@@ -1,7 +1,5 @@
 package uk.co.austinbirch;
 
-import java.util.Random;
-
 import org.newdawn.slick.GameContainer;
 import org.newdawn.slick.Graphics;
 import org.newdawn.slick.Image;
@@ -9,10 +7,16 @@ import org.newdawn.slick.SlickException;
 import org.newdawn.slick.geom.Rectangle;
 import org.newdawn.slick.geom.Vector2f;
 
-import uk.co.austinbirch.physics.ABPhysicsHelper;
+import uk.co.austinbirch.physics.Narrowphase;
 
 public class Building extends Entity implements CollisionListener {
 
+    /**
+     * How long a building has to be on a planet between each lot of damage
+     * it does, in seconds
+     */
+    public static final float DAMAGE_INTERVAL = 10.0f;
+    
     /**
      * Has this been destroyed yet?
      */
@@ -34,66 +38,123 @@ public class Building extends Entity implements CollisionListener {
     protected float damageTimeAccumulator = 0.0f;
     
     /**
-     * How long to wait before the damage is incremented
+     * Somewhere to store the MTV when we land, so we don't allocate one
      */
-    protected float damageTimeLimit = 1000.0f;
+    protected Vector2f mtv = new Vector2f();
     
     /**
-     * Creates a new building with a random building sprite
-     * @throws SlickException 
+     * Creates a building, ready to be reset() and launched
+     * 
+     * @param simulation the simulation the building belongs to
      */
-    public Building(Vector2f position, Vector2f velocity) throws SlickException {
+    public Building(Simulation simulation) {
         super();
-        this.position = new Vector2f(position);
-        this.velocity = new Vector2f(velocity);
-        Random rand = new Random();
-        int x = rand.nextInt(3);
-        if (x < 1) {
-            this.sprite = new Image("res/images/building_01.png");
-        } else if (x < 2) {
-            this.sprite = new Image("res/images/building_02.png");
-        } else if (x < 3) {
-            this.sprite = new Image("res/images/building_03.png");
+        this.simulation = simulation;
+        this.spriteInfo = SpriteInfo.BUILDING_01;
+    }
+    
+    /**
+     * Creates a new building with a random building sprite
+     * 
+     * @param simulation the simulation the building belongs to
+     * @param position the starting position of the building
+     * @param velocity the starting velocity of the building
+     */
+    public Building(Simulation simulation, Vector2f position, Vector2f velocity) {
+        this(simulation);
+        this.reset(position.x, position.y, velocity.x, velocity.y);
+    }
+    
+    /**
+     * Turns this into a fresh building with a random building sprite
+     * 
+     * @param x the starting x position of the building
+     * @param y the starting y position of the building
+     * @param velocityX the starting x velocity of the building
+     * @param velocityY the starting y velocity of the building
+     */
+    public void reset(float x, float y, float velocityX, float velocityY) {
+        this.setPosition(x, y);
+        this.setVelocity(velocityX, velocityY);
+        this.isDead = false;
+        this.onPlanet = false;
+        this.damageDone = 0;
+        this.damageTimeAccumulator = 0.0f;
+        int sprite = this.simulation.random.nextInt(3);
+        if (sprite < 1) {
+            this.spriteInfo = SpriteInfo.BUILDING_01;
+        } else if (sprite < 2) {
+            this.spriteInfo = SpriteInfo.BUILDING_02;
+        } else if (sprite < 3) {
+            this.spriteInfo = SpriteInfo.BUILDING_03;
         }
     }
-  
+    
+    /**
+     * Puts the building back as it was when it was paged out of the
+     * simulation
+     * 
+     * @param x the x position
+     * @param y the y position
+     * @param velocityX the x velocity
+     * @param velocityY the y velocity
+     * @param spriteInfo the building's sprite
+     * @param onPlanet whether the building has landed
+     * @param damageTimeAccumulator how long since the building last did
+     *                              damage
+     */
+    public void restore(float x, float y,
+                        float velocityX, float velocityY,
+                        SpriteInfo spriteInfo,
+                        boolean onPlanet,
+                        float damageTimeAccumulator) {
+        this.setPosition(x, y);
+        this.setVelocity(velocityX, velocityY);
+        this.spriteInfo = spriteInfo;
+        this.isDead = false;
+        this.onPlanet = onPlanet;
+        this.damageDone = 0;
+        this.damageTimeAccumulator = damageTimeAccumulator;
+    }
+    
     @Override
-    public void update(GameContainer gc, float deltaSeconds) throws SlickException {
+    public void update(float deltaSeconds) {
         if (this.isDead) {
-            McHammerGame.getInstance().removeBuilding(this);
+            this.simulation.removeBuilding(this);
         }
         
         if (this.onPlanet) {
             this.damageTimeAccumulator += deltaSeconds;
-            if (this.damageTimeAccumulator >= this.damageTimeLimit/100.0f) {
-                Random rand = new Random();
-                int x = rand.nextInt(9);
+            if (this.damageTimeAccumulator >= DAMAGE_INTERVAL) {
+                int x = this.simulation.random.nextInt(9);
                 this.damageDone += 20 + x;
                 this.damageTimeAccumulator = 0.0f;
             }
         }
-        
-        this.position.x += this.velocity.x * deltaSeconds;
-        this.position.y += this.velocity.y * deltaSeconds;
     }
     
     @Override
-    public void render(GameContainer gc, Graphics g) {
-        g.drawImage(this.sprite, this.position.x, this.position.y);
+    public void render(GameContainer gc, Graphics g, float alpha) throws SlickException {
+        Image sprite = this.getSprite();
+        sprite.setRotation(this.getInterpolatedRotation(alpha));
+        g.drawImage(sprite, this.getInterpolatedX(alpha), this.getInterpolatedY(alpha));
     }
-
+    
     @Override
     public void onCollision(Rectangle collisionRect) {
         // not really interested in this
     }
-
+    
     @Override
     public void onCollision(Entity entity) {
         if (entity instanceof World) {
-            Vector2f mtv = ABPhysicsHelper.calculateMTV(this.collisionRectangle(),
-                                                        ((World) entity).collisionCircle());
-            this.position = this.position.add(mtv);
-            this.velocity = new Vector2f(0.0f, 0.0f);
+            World world = (World) entity;
+            Rectangle rect = this.collisionRectangle();
+            Narrowphase.boxCircleMTV(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight(),
+                                     world.getCenterX(), world.getCenterY(), world.getRadius(),
+                                     this.mtv);
+            this.setPosition(this.getX() + this.mtv.x, this.getY() + this.mtv.y);
+            this.setVelocity(0.0f, 0.0f);
             this.onPlanet = true;
         } else if (entity instanceof Hammer) {
             this.isDead = true;
@@ -9,7 +9,7 @@ import org.newdawn.slick.geom.Vector2f;
  *
  */
 public class Camera {
-    
+
     /**
      * The position of the camera
      */
@@ -20,6 +20,11 @@ public class Camera {
      */
     protected Vector2f viewableWorld;
     
+    /**
+     * The top left corner of the viewable world
+     */
+    protected Vector2f viewableOrigin = new Vector2f(0.0f, 0.0f);
+    
     /**
      * The width and height of the camera view
      */
@@ -47,24 +52,49 @@ public class Camera {
      * @param position the position to set this Camera to
      */
     public void setPosition(Vector2f position) {
-        this.position = new Vector2f();
-        this.position.x = position.x - (this.viewingArea.x / 2);
-        this.position.y = position.y - (this.viewingArea.y / 2);
+        this.setPosition(position.x, position.y);
+    }
+    
+    /**
+     * Centers the Camera on the given point, keeping it inside the viewable
+     * world
+     * 
+     * @param x the x position to center on
+     * @param y the y position to center on
+     */
+    public void setPosition(float x, float y) {
+        this.position.x = x - (this.viewingArea.x / 2);
+        this.position.y = y - (this.viewingArea.y / 2);
         
         // check the limits
-        if (this.position.x < 0) {
-            this.position.x = 0;
-        } else if (this.position.x + this.viewingArea.x > this.viewableWorld.x) {
-            this.position.x = this.viewableWorld.x - this.viewingArea.x;
+        float left = this.viewableOrigin.x;
+        float top = this.viewableOrigin.y;
+        if (this.position.x < left) {
+            this.position.x = left;
+        } else if (this.position.x + this.viewingArea.x > left + this.viewableWorld.x) {
+            this.position.x = left + this.viewableWorld.x - this.viewingArea.x;
         }
         
-        if (this.position.y < 0) {
-            this.position.y = 0;
-        } else if (this.position.y + this.viewingArea.y > this.viewableWorld.y) {
-            this.position.y = this.viewableWorld.y - this.viewingArea.y;
+        if (this.position.y < top) {
+            this.position.y = top;
+        } else if (this.position.y + this.viewingArea.y > top + this.viewableWorld.y) {
+            this.position.y = top + this.viewableWorld.y - this.viewingArea.y;
         }
     }
     
+    /**
+     * Moves the viewable world, and the Camera along with it, as when the
+     * frame everything is positioned in moves
+     * 
+     * @param x the x position of the top left corner of the viewable world
+     * @param y the y position of the top left corner of the viewable world
+     */
+    public void setViewableOrigin(float x, float y) {
+        this.position.x += x - this.viewableOrigin.x;
+        this.position.y += y - this.viewableOrigin.y;
+        this.viewableOrigin.set(x, y);
+    }
+    
     /**
      * Returns the position of the Camera
      * 
@@ -73,5 +103,33 @@ public class Camera {
     public Vector2f getPosition() {
         return new Vector2f(this.position);
     }
-
+    
+    /**
+     * @return the x position of the Camera
+     */
+    public float getX() {
+        return this.position.x;
+    }
+    
+    /**
+     * @return the y position of the Camera
+     */
+    public float getY() {
+        return this.position.y;
+    }
+    
+    /**
+     * @return the width of the camera view
+     */
+    public float getViewWidth() {
+        return this.viewingArea.x;
+    }
+    
+    /**
+     * @return the height of the camera view
+     */
+    public float getViewHeight() {
+        return this.viewingArea.y;
+    }
+    
 }
@@ -0,0 +1,346 @@
+package uk.co.austinbirch;
+
+import java.util.ArrayList;
+
+/**
+ * @author Austin Birch
+ *
+ * One square of space in a Universe. A chunk always knows the worlds in
+ * it, and while it is away from the player it also holds the aliens and
+ * buildings in it, paged out of the simulation into arrays of primitives.
+ * Record i of the aliens is at index i of each alien array, and the same
+ * goes for the buildings.
+ *
+ * Every position a chunk holds is relative to its own top left corner, so
+ * it stays precise however far across space the chunk is.
+ *
+ */
+public class Chunk {
+
+    // Member variables
+    
+    /**
+     * The column and row of the chunk in its universe
+     */
+    protected int column;
+    protected int row;
+    
+    /**
+     * The position of the chunk's top left corner in space
+     */
+    protected int originX;
+    protected int originY;
+    
+    /**
+     * Whether the chunk is being simulated in full, in which case it holds
+     * no aliens or buildings of its own
+     */
+    protected boolean active = false;
+    
+    /**
+     * Whether the chunk is waiting in its universe's schedule
+     */
+    protected boolean scheduled = false;
+    
+    /**
+     * The game time at which the chunk is next brought up to date
+     */
+    protected float dueTime = 0.0f;
+    
+    /**
+     * The worlds in the chunk
+     */
+    protected ArrayList<World> worlds = new ArrayList<World>();
+    
+    /**
+     * The position of each world, relative to the chunk
+     */
+    protected float[] worldX = new float[2];
+    protected float[] worldY = new float[2];
+    
+    /**
+     * The total mass of the worlds, and their center of mass relative to the
+     * chunk, which is what pulls on everything outside the chunk while it
+     * isn't active
+     */
+    protected float mass = 0.0f;
+    protected float massX = 0.0f;
+    protected float massY = 0.0f;
+    
+    /**
+     * The number of aliens paged into the chunk
+     */
+    protected int alienCount = 0;
+    
+    /**
+     * The position and velocity of each alien
+     */
+    protected float[] alienX = new float[4];
+    protected float[] alienY = new float[4];
+    protected float[] alienVelocityX = new float[4];
+    protected float[] alienVelocityY = new float[4];
+    
+    /**
+     * Where each alien is heading for and where it started from
+     */
+    protected float[] alienDestinationX = new float[4];
+    protected float[] alienDestinationY = new float[4];
+    protected float[] alienStartX = new float[4];
+    protected float[] alienStartY = new float[4];
+    
+    /**
+     * Whether each alien is on the way out
+     */
+    protected boolean[] alienLeaving = new boolean[4];
+    
+    /**
+     * The game time each alien's record was last brought up to
+     */
+    protected float[] alienTime = new float[4];
+    
+    /**
+     * The number of buildings paged into the chunk
+     */
+    protected int buildingCount = 0;
+    
+    /**
+     * The position and velocity of each building
+     */
+    protected float[] buildingX = new float[4];
+    protected float[] buildingY = new float[4];
+    protected float[] buildingVelocityX = new float[4];
+    protected float[] buildingVelocityY = new float[4];
+    
+    /**
+     * The index of each building's sprite in Universe.BUILDING_SPRITES
+     */
+    protected byte[] buildingSprite = new byte[4];
+    
+    /**
+     * Whether each building has landed on a world
+     */
+    protected boolean[] buildingOnPlanet = new boolean[4];
+    
+    /**
+     * How long since each building last did damage
+     */
+    protected float[] buildingDamageTime = new float[4];
+    
+    /**
+     * The game time each building's record was last brought up to
+     */
+    protected float[] buildingTime = new float[4];
+    
+    /**
+     * Creates an empty chunk
+     * 
+     * @param column the column of the chunk in its universe
+     * @param row the row of the chunk in its universe
+     * @param size the width and height of the chunk
+     */
+    public Chunk(int column, int row, int size) {
+        this.column = column;
+        this.row = row;
+        this.originX = column * size;
+        this.originY = row * size;
+    }
+    
+    /**
+     * Adds a world to the chunk, and to the chunk's mass
+     * 
+     * @param world the world
+     * @param x the x position of the world in space
+     * @param y the y position of the world in space
+     */
+    public void addWorld(World world, float x, float y) {
+        int count = this.worlds.size();
+        if (count == this.worldX.length) {
+            this.worldX = Chunk.grow(this.worldX);
+            this.worldY = Chunk.grow(this.worldY);
+        }
+        this.worlds.add(world);
+        this.worldX[count] = x - this.originX;
+        this.worldY[count] = y - this.originY;
+        
+        float mass = world.getMass();
+        float total = this.mass + mass;
+        this.massX = (this.massX * this.mass + this.worldX[count] * mass) / total;
+        this.massY = (this.massY * this.mass + this.worldY[count] * mass) / total;
+        this.mass = total;
+    }
+    
+    /**
+     * Pages an alien into the chunk. Every position is relative to the
+     * chunk.
+     * 
+     * @param time the game time the alien is up to date at
+     */
+    public void addAlien(float x, float y,
+                         float velocityX, float velocityY,
+                         float destinationX, float destinationY,
+                         float startX, float startY,
+                         boolean leaving,
+                         float time) {
+        int index = this.alienCount;
+        if (index == this.alienX.length) {
+            this.alienX = Chunk.grow(this.alienX);
+            this.alienY = Chunk.grow(this.alienY);
+            this.alienVelocityX = Chunk.grow(this.alienVelocityX);
+            this.alienVelocityY = Chunk.grow(this.alienVelocityY);
+            this.alienDestinationX = Chunk.grow(this.alienDestinationX);
+            this.alienDestinationY = Chunk.grow(this.alienDestinationY);
+            this.alienStartX = Chunk.grow(this.alienStartX);
+            this.alienStartY = Chunk.grow(this.alienStartY);
+            this.alienTime = Chunk.grow(this.alienTime);
+            boolean[] newLeaving = new boolean[index * 2];
+            System.arraycopy(this.alienLeaving, 0, newLeaving, 0, index);
+            this.alienLeaving = newLeaving;
+        }
+        this.alienX[index] = x;
+        this.alienY[index] = y;
+        this.alienVelocityX[index] = velocityX;
+        this.alienVelocityY[index] = velocityY;
+        this.alienDestinationX[index] = destinationX;
+        this.alienDestinationY[index] = destinationY;
+        this.alienStartX[index] = startX;
+        this.alienStartY[index] = startY;
+        this.alienLeaving[index] = leaving;
+        this.alienTime[index] = time;
+        this.alienCount++;
+    }
+    
+    /**
+     * Drops an alien, moving the last alien into its place
+     * 
+     * @param index the index of the alien
+     */
+    public void removeAlien(int index) {
+        int last = --this.alienCount;
+        if (index != last) {
+            this.alienX[index] = this.alienX[last];
+            this.alienY[index] = this.alienY[last];
+            this.alienVelocityX[index] = this.alienVelocityX[last];
+            this.alienVelocityY[index] = this.alienVelocityY[last];
+            this.alienDestinationX[index] = this.alienDestinationX[last];
+            this.alienDestinationY[index] = this.alienDestinationY[last];
+            this.alienStartX[index] = this.alienStartX[last];
+            this.alienStartY[index] = this.alienStartY[last];
+            this.alienLeaving[index] = this.alienLeaving[last];
+            this.alienTime[index] = this.alienTime[last];
+        }
+    }
+    
+    /**
+     * Pages a building into the chunk. The position is relative to the
+     * chunk.
+     * 
+     * @param time the game time the building is up to date at
+     */
+    public void addBuilding(float x, float y,
+                            float velocityX, float velocityY,
+                            int sprite,
+                            boolean onPlanet,
+                            float damageTime,
+                            float time) {
+        int index = this.buildingCount;
+        if (index == this.buildingX.length) {
+            this.buildingX = Chunk.grow(this.buildingX);
+            this.buildingY = Chunk.grow(this.buildingY);
+            this.buildingVelocityX = Chunk.grow(this.buildingVelocityX);
+            this.buildingVelocityY = Chunk.grow(this.buildingVelocityY);
+            this.buildingDamageTime = Chunk.grow(this.buildingDamageTime);
+            this.buildingTime = Chunk.grow(this.buildingTime);
+            byte[] newSprite = new byte[index * 2];
+            System.arraycopy(this.buildingSprite, 0, newSprite, 0, index);
+            this.buildingSprite = newSprite;
+            boolean[] newOnPlanet = new boolean[index * 2];
+            System.arraycopy(this.buildingOnPlanet, 0, newOnPlanet, 0, index);
+            this.buildingOnPlanet = newOnPlanet;
+        }
+        this.buildingX[index] = x;
+        this.buildingY[index] = y;
+        this.buildingVelocityX[index] = velocityX;
+        this.buildingVelocityY[index] = velocityY;
+        this.buildingSprite[index] = (byte)sprite;
+        this.buildingOnPlanet[index] = onPlanet;
+        this.buildingDamageTime[index] = damageTime;
+        this.buildingTime[index] = time;
+        this.buildingCount++;
+    }
+    
+    /**
+     * Drops a building, moving the last building into its place
+     * 
+     * @param index the index of the building
+     */
+    public void removeBuilding(int index) {
+        int last = --this.buildingCount;
+        if (index != last) {
+            this.buildingX[index] = this.buildingX[last];
+            this.buildingY[index] = this.buildingY[last];
+            this.buildingVelocityX[index] = this.buildingVelocityX[last];
+            this.buildingVelocityY[index] = this.buildingVelocityY[last];
+            this.buildingSprite[index] = this.buildingSprite[last];
+            this.buildingOnPlanet[index] = this.buildingOnPlanet[last];
+            this.buildingDamageTime[index] = this.buildingDamageTime[last];
+            this.buildingTime[index] = this.buildingTime[last];
+        }
+    }
+    
+    /**
+     * Drops every alien and building paged into the chunk
+     */
+    public void clear() {
+        this.alienCount = 0;
+        this.buildingCount = 0;
+    }
+    
+    /**
+     * @return whether any aliens or buildings are paged into the chunk
+     */
+    public boolean hasPaged() {
+        return this.alienCount > 0 || this.buildingCount > 0;
+    }
+    
+    /**
+     * @return the column of the chunk in its universe
+     */
+    public int getColumn() {
+        return this.column;
+    }
+    
+    /**
+     * @return the row of the chunk in its universe
+     */
+    public int getRow() {
+        return this.row;
+    }
+    
+    /**
+     * @return whether the chunk is being simulated in full
+     */
+    public boolean isActive() {
+        return this.active;
+    }
+    
+    /**
+     * @return the number of aliens paged into the chunk
+     */
+    public int getAlienCount() {
+        return this.alienCount;
+    }
+    
+    /**
+     * @return the number of buildings paged into the chunk
+     */
+    public int getBuildingCount() {
+        return this.buildingCount;
+    }
+    
+    private static float[] grow(float[] array) {
+        float[] newArray = new float[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+}
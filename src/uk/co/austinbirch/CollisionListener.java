@@ -8,5 +8,5 @@ public interface CollisionListener {
 
     void onCollision(Rectangle collisionRect);
     void onCollision(Entity entity);
-
+    
 }
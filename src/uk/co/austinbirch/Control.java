@@ -0,0 +1,18 @@
+package uk.co.austinbirch;
+
+/**
+ * @author Austin Birch
+ *
+ * The controls the player has over the game. These are what the simulation
+ * understands, so it doesn't need to know about keyboard codes.
+ *
+ */
+public enum Control {
+    ROTATE_LEFT,
+    ROTATE_RIGHT,
+    JETPACK_ON,
+    JETPACK_REVERSE,
+    THROW,
+    PAUSE,
+    RESTART
+}
@@ -8,44 +8,105 @@ import org.newdawn.slick.SlickException;
 import org.newdawn.slick.geom.Rectangle;
 import org.newdawn.slick.geom.Vector2f;
 
+import uk.co.austinbirch.physics.Kinematic;
+import uk.co.austinbirch.physics.KinematicStore;
+import uk.co.austinbirch.physics.MutableRectangle;
+
 /**
  * @author Austin Birch
  *
  *  An Entity is an object that can have a position, a velocity, a mass,
  *  an on-screen representation, and can be involved in collisions  
+ *  
+ *  The position, velocity and mass live in a KinematicStore so they can be
+ *  processed in bulk. While an Entity is part of a Simulation it sits in
+ *  the store for its type, otherwise it keeps them in a store of its own.
  *
  */
-public class Entity {
-    
+public class Entity implements Kinematic {
+
     // Member variables
     /**
-     * The Entities position
+     * The store holding our position, velocity and mass
+     */
+    protected KinematicStore kinematics;
+    
+    /**
+     * Our slot in the kinematics store
      */
-    protected Vector2f position;
+    protected int slot;
     
     /**
-     * The velocity of this Entity
+     * Our own single body store, used while we aren't attached to a shared one
      */
-    protected Vector2f velocity;
+    protected KinematicStore ownKinematics;
     
     /**
-     * The mass of this Entity, used for physics calculations
+     * The collision Rectangle, reused every time it is asked for
      */
-    protected float mass;
+    protected MutableRectangle collisionRect = new MutableRectangle(0, 0, 0, 0);
     
     /**
-     * The visual representation of this Entity
+     * The color used to draw the collision Rectangle in debug mode
+     */
+    protected static final Color DEBUG_COLOR = new Color(0.5f, 0.5f, 0.0f, 0.5f);
+    
+    /**
+     * Describes the visual representation of this Entity, used for sizing
+     * collision shapes
+     */
+    protected SpriteInfo spriteInfo;
+    
+    /**
+     * The visual representation of this Entity, only loaded once we render.
+     * This is shared with every other Entity using the same image.
      */
     protected Image sprite;
     
+    /**
+     * The resource path the sprite was acquired for
+     */
+    protected String spritePath;
+    
+    /**
+     * The rotation of this Entity in degrees. The sprite is shared, so this
+     * is applied to it every time it is drawn.
+     */
+    protected float rotation = 0.0f;
+    
+    /**
+     * The rotation of this Entity when it was last saved, to be blended
+     * from when drawing between ticks, or NaN if it hasn't been saved
+     */
+    protected float previousRotation = Float.NaN;
+    
+    /**
+     * The simulation this Entity belongs to
+     */
+    protected Simulation simulation;
+    
+    /**
+     * The handle of this Entity in its EntityRegistry
+     */
+    protected int handle = EntityRegistry.NO_HANDLE;
+    
+    /**
+     * Whether this Entity is waiting to be removed from its EntityRegistry
+     */
+    protected boolean removalPending = false;
+    
+    /**
+     * Whether this Entity came from an EntityPool, and if it is in use
+     */
+    protected int poolState = EntityPool.NOT_POOLED;
+    
     /**
      * Creates a new Entity 
      */
     public Entity() {
         super();
-        this.position = new Vector2f(0.0f, 0.0f);
-        this.velocity = new Vector2f(0.0f, 0.0f);
-        this.mass = 0.0f;
+        this.ownKinematics = new KinematicStore(1);
+        this.ownKinematics.add(this);
     }
     
     /**
@@ -58,28 +119,64 @@ public class Entity {
     public Entity(Vector2f position, 
                   Vector2f velocity,
                   float mass) {
-        this.position = position;
-        this.velocity = velocity;
-        this.mass = mass;
+        this();
+        this.setPosition(position.x, position.y);
+        this.setVelocity(velocity.x, velocity.y);
+        this.setMass(mass);
     }
     
     /**
      * Creates a new Entity with a position, velocity, mass, and 
-     * an image.
+     * a sprite.
      * 
      * @param position the default position for this Entity
      * @param velocity the default velocity for this Entity
      * @param mass the mass of this Entity
-     * @param sprite the visual representation of this Entity
+     * @param spriteInfo the visual representation of this Entity
      */
     public Entity(Vector2f position,
                   Vector2f velocity,
                   float mass,
-                  Image sprite) {
+                  SpriteInfo spriteInfo) {
         this(position, velocity, mass);
-        this.sprite = sprite;
+        this.spriteInfo = spriteInfo;
     }    
     
+    /**
+     * Returns the sprite for this Entity, taking it from the TextureCache the
+     * first time it is needed. This must only be called from the rendering
+     * thread.
+     * 
+     * @return the sprite for this Entity, or null if we have none
+     * @throws SlickException
+     */
+    protected Image getSprite() throws SlickException {
+        if (this.sprite == null && this.spriteInfo != null) {
+            this.spritePath = this.spriteInfo.getPath();
+            this.sprite = TextureCache.getInstance().acquire(this.spritePath);
+        }
+        return this.sprite;
+    }
+    
+    /**
+     * Gives the sprite back to the TextureCache, if we have taken one
+     */
+    protected void releaseSprite() {
+        if (this.sprite != null) {
+            TextureCache.getInstance().release(this.spritePath);
+            this.sprite = null;
+            this.spritePath = null;
+        }
+    }
+    
+    /**
+     * Called by the EntityRegistry once this Entity has been removed from
+     * the simulation
+     */
+    public void onRemoved() {
+        this.releaseSprite();
+    }
+    
     /**
      * Render the Entity using the graphics context that is passed
      * 
@@ -91,17 +188,202 @@ public class Entity {
      * @throws SlickException
      */
     public void render(GameContainer gc, Graphics g) throws SlickException {
-        g.drawImage(this.sprite, this.position.x, this.position.y);
+        this.render(gc, g, 1.0f);
+    }
+    
+    /**
+     * Renders this Entity part of the way between where it was on the last
+     * tick and where it is now
+     * 
+     * @param gc the GameContainer we belong to
+     * @param g the graphics context to draw to
+     * @param alpha how far between the last tick and this one, from 0 to 1
+     * @throws SlickException
+     */
+    public void render(GameContainer gc, Graphics g, float alpha) throws SlickException {
+        Image sprite = this.getSprite();
+        sprite.setRotation(this.getInterpolatedRotation(alpha));
+        g.drawImage(sprite, this.getInterpolatedX(alpha), this.getInterpolatedY(alpha));
         if (McHammerGame.DEBUG_MODE) {
             Color oldColor = g.getColor();
             
-            g.setColor(new Color(0.5f, 0.5f, 0.0f, 0.5f));
+            g.setColor(DEBUG_COLOR);
             g.fill(this.collisionRectangle());
             
             g.setColor(oldColor);
         }
     }
     
+    /**
+     * Adds this Entity's sprite to a batch. Used instead of render() when
+     * the sprites are drawn out of an atlas.
+     * 
+     * @param batch the batch to draw into
+     */
+    public void draw(SpriteBatch batch) {
+        this.draw(batch, 1.0f);
+    }
+    
+    /**
+     * Adds this Entity's sprite to a batch, part of the way between where it
+     * was on the last tick and where it is now
+     * 
+     * @param batch the batch to draw into
+     * @param alpha how far between the last tick and this one, from 0 to 1
+     */
+    public void draw(SpriteBatch batch, float alpha) {
+        if (this.spriteInfo != null) {
+            batch.draw(this.spriteInfo,
+                       this.getInterpolatedX(alpha),
+                       this.getInterpolatedY(alpha),
+                       this.getInterpolatedRotation(alpha));
+        }
+    }
+    
+    @Override
+    public void setSlot(KinematicStore store, int slot) {
+        this.kinematics = store;
+        this.slot = slot;
+    }
+    
+    /**
+     * Moves our position, velocity and mass into a shared store
+     * 
+     * @param store the store to move into
+     */
+    public void attach(KinematicStore store) {
+        if (store == this.kinematics) {
+            return;
+        }
+        float x = this.getX();
+        float y = this.getY();
+        float vx = this.getVelocityX();
+        float vy = this.getVelocityY();
+        float mass = this.getMass();
+        
+        this.kinematics.remove(this.slot);
+        store.add(this);
+        
+        this.setPosition(x, y);
+        this.setVelocity(vx, vy);
+        this.setMass(mass);
+        
+        // we start this tick where we were put, so anything looking at how
+        // far we have moved sees us move from here
+        store.previousX[this.slot] = x;
+        store.previousY[this.slot] = y;
+    }
+    
+    /**
+     * Moves our position, velocity and mass out of whatever shared store
+     * they are in, back into our own store
+     */
+    public void detach() {
+        this.attach(this.ownKinematics);
+    }
+    
+    /**
+     * @return the handle of this Entity in its EntityRegistry, or
+     *         EntityRegistry.NO_HANDLE if it isn't in one
+     */
+    public int getHandle() {
+        return this.handle;
+    }
+    
+    /**
+     * @return whether this Entity is waiting to be removed from its
+     *         EntityRegistry
+     */
+    public boolean isRemovalPending() {
+        return this.removalPending;
+    }
+    
+    /**
+     * @return the x position of this Entity
+     */
+    public float getX() {
+        return this.kinematics.x[this.slot];
+    }
+    
+    /**
+     * @return the y position of this Entity
+     */
+    public float getY() {
+        return this.kinematics.y[this.slot];
+    }
+    
+    /**
+     * @param alpha how far between the last tick and this one, from 0 to 1
+     * @return the x position of this Entity that far between the two
+     */
+    public float getInterpolatedX(float alpha) {
+        return this.kinematics.interpolateX(this.slot, alpha);
+    }
+    
+    /**
+     * @param alpha how far between the last tick and this one, from 0 to 1
+     * @return the y position of this Entity that far between the two
+     */
+    public float getInterpolatedY(float alpha) {
+        return this.kinematics.interpolateY(this.slot, alpha);
+    }
+    
+    /**
+     * Works out the rotation of this Entity part of the way between the last
+     * tick and this one, turning the short way round, so a rotation that
+     * has wrapped past 360 degrees doesn't spin the wrong way
+     * 
+     * @param alpha how far between the last tick and this one, from 0 to 1
+     * @return the rotation in degrees
+     */
+    public float getInterpolatedRotation(float alpha) {
+        float previous = this.previousRotation;
+        if (previous != previous) {
+            return this.rotation;
+        }
+        float turn = (this.rotation - previous) % 360.0f;
+        if (turn > 180.0f) {
+            turn -= 360.0f;
+        } else if (turn < -180.0f) {
+            turn += 360.0f;
+        }
+        return previous + turn * alpha;
+    }
+    
+    /**
+     * Saves the rotation of this Entity, to be blended from until it is
+     * next saved. The position is saved along with the rest of its
+     * KinematicStore.
+     */
+    public void saveRotation() {
+        this.previousRotation = this.rotation;
+    }
+    
+    /**
+     * Sets the position of this Entity
+     * 
+     * @param x the x position
+     * @param y the y position
+     */
+    public void setPosition(float x, float y) {
+        this.kinematics.x[this.slot] = x;
+        this.kinematics.y[this.slot] = y;
+    }
+    
+    /**
+     * @return the x component of the velocity of this Entity
+     */
+    public float getVelocityX() {
+        return this.kinematics.vx[this.slot];
+    }
+    
+    /**
+     * @return the y component of the velocity of this Entity
+     */
+    public float getVelocityY() {
+        return this.kinematics.vy[this.slot];
+    }
+    
     /**
      * Sets the velocity of this Entity
      * 
@@ -109,37 +391,55 @@ public class Entity {
      * @param y the y component of the velocity
      */
     public void setVelocity(float x, float y) {
-        this.velocity = new Vector2f(x, y);
+        this.kinematics.vx[this.slot] = x;
+        this.kinematics.vy[this.slot] = y;
     }
-
+    
+    /**
+     * @return the mass of this Entity
+     */
+    public float getMass() {
+        return this.kinematics.mass[this.slot];
+    }
+    
+    /**
+     * Sets the mass of this Entity
+     * 
+     * @param mass the mass, used for physics calculations
+     */
+    public void setMass(float mass) {
+        this.kinematics.mass[this.slot] = mass;
+    }
+    
     /**
      * Update the Entity based on a timestep that has been passed
      * 
-     * @param gc the GameContainer we belong to
-     * @param delta the time in seconds since the last update
-     * @throws SlickException
+     * @param deltaSeconds the time in seconds since the last update
      */
-    public void update(GameContainer gc, float deltaSeconds) throws SlickException {
+    public void update(float deltaSeconds) {
         // should be overridden in subclass
     }
     
     /**
      * Calculates and returns the collision Rectangle for this Entity
      * 
+     * The same Rectangle is updated and returned on every call, so it
+     * shouldn't be held on to.
+     * 
      * @return the collision Rectangle for this Entity
      */
     public Rectangle collisionRectangle() {
-        if (this.sprite != null) {
-            Rectangle rect = new Rectangle(this.position.x,
-                    this.position.y,
-                    this.sprite.getWidth(),
-                    this.sprite.getHeight());
-            return rect;
-        } else {
-            return new Rectangle(this.position.x,
-                                 this.position.y,
-                                 0, 0);
+        float width = 0;
+        float height = 0;
+        if (this.spriteInfo != null) {
+            width = this.spriteInfo.getWidth();
+            height = this.spriteInfo.getHeight();
         }
+        this.collisionRect.setBounds(this.getX(),
+                                     this.getY(),
+                                     width,
+                                     height);
+        return this.collisionRect;
     }
-
+    
 }
@@ -0,0 +1,270 @@
+package uk.co.austinbirch;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * @author Austin Birch
+ *
+ * Keeps a stock of entities of one type so they can be reused rather than
+ * created for each throw or wave and left for the garbage collector.
+ *
+ * acquire() hands out an entity, which the caller resets before use, and
+ * release() takes it back. An EntityRegistry with a pool releases its
+ * entities into it when they are removed, so callers rarely release by
+ * hand.
+ *
+ * The pool keeps track of how many entities are out, so leaks can be found:
+ * releasing an entity that is already in the pool is counted (and ignored),
+ * and checkLeaks() compares the number out with the number that should be.
+ *
+ */
+public class EntityPool<T extends Entity> {
+
+    // Global variables
+    
+    /**
+     * The entity wasn't created by a pool
+     */
+    public static final int NOT_POOLED = 0;
+    
+    /**
+     * The entity has been acquired from its pool
+     */
+    public static final int IN_USE = 1;
+    
+    /**
+     * The entity is sitting in its pool
+     */
+    public static final int FREE = 2;
+    
+    // Member variables
+    
+    /**
+     * The name of the pool, for logging
+     */
+    protected String name;
+    
+    /**
+     * Creates the entities for the pool
+     */
+    protected Factory<T> factory;
+    
+    /**
+     * The entities in the pool, from 0 to freeCount - 1
+     */
+    protected Entity[] free;
+    
+    /**
+     * The number of entities in the pool
+     */
+    protected int freeCount = 0;
+    
+    /**
+     * The most entities that can be out at once, or 0 for no limit
+     */
+    protected int maxSize;
+    
+    /**
+     * The number of entities the pool has created
+     */
+    protected int created = 0;
+    
+    /**
+     * The number of entities currently acquired
+     */
+    protected int inUse = 0;
+    
+    /**
+     * The most entities that have been acquired at once
+     */
+    protected int highWaterMark = 0;
+    
+    /**
+     * The number of acquire() calls that had to create a new entity
+     */
+    protected int misses = 0;
+    
+    /**
+     * The number of release() calls for entities already in the pool
+     */
+    protected int doubleReleases = 0;
+    
+    /**
+     * Creates the entities for a pool
+     */
+    public interface Factory<T extends Entity> {
+        
+        /**
+         * @return a new entity, which will be reset before it is used
+         */
+        public T create();
+        
+    }
+    
+    /**
+     * Creates a pool
+     * 
+     * @param name the name of the pool, for logging
+     * @param factory creates the entities for the pool
+     * @param capacity the number of entities to create up front
+     * @param maxSize the most entities that can be out at once, or 0 for no
+     *                limit
+     */
+    public EntityPool(String name, Factory<T> factory, int capacity, int maxSize) {
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.free = new Entity[Math.max(1, capacity)];
+        for (int i = 0; i < capacity; i++) {
+            T entity = this.create();
+            this.free[this.freeCount++] = entity;
+        }
+    }
+    
+    /**
+     * Takes an entity out of the pool, creating one if the pool is empty
+     * 
+     * @return the entity, to be reset by the caller, or null if maxSize
+     *         entities are already out
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if (this.maxSize > 0 && this.inUse >= this.maxSize) {
+            return null;
+        }
+        
+        T entity;
+        if (this.freeCount > 0) {
+            entity = (T) this.free[--this.freeCount];
+            this.free[this.freeCount] = null;
+        } else {
+            this.misses++;
+            entity = this.create();
+        }
+        entity.poolState = IN_USE;
+        this.inUse++;
+        if (this.inUse > this.highWaterMark) {
+            this.highWaterMark = this.inUse;
+        }
+        return entity;
+    }
+    
+    /**
+     * Puts an entity back into the pool. Entities that didn't come from a
+     * pool are left alone.
+     * 
+     * @param entity the entity to put back
+     */
+    public void release(T entity) {
+        if (entity.poolState == NOT_POOLED) {
+            return;
+        }
+        if (entity.poolState == FREE) {
+            this.doubleReleases++;
+            Log.warn("Entity released into the " + this.name + " pool twice");
+            return;
+        }
+        
+        entity.poolState = FREE;
+        this.inUse--;
+        if (this.freeCount == this.free.length) {
+            Entity[] newFree = new Entity[this.freeCount * 2];
+            System.arraycopy(this.free, 0, newFree, 0, this.freeCount);
+            this.free = newFree;
+        }
+        this.free[this.freeCount++] = entity;
+    }
+    
+    /**
+     * Checks that the number of entities out of the pool is what it should
+     * be, logging a warning if it isn't
+     * 
+     * @param expectedInUse the number of entities that should be out, for
+     *                      example the number in the registry
+     * @return the number of entities out that shouldn't be (negative if
+     *         fewer are out than expected)
+     */
+    public int checkLeaks(int expectedInUse) {
+        int leaked = this.inUse - expectedInUse;
+        if (leaked != 0) {
+            Log.warn(this.name + " pool has " + this.inUse + " entities out, expected " + expectedInUse);
+        }
+        if (this.doubleReleases > 0) {
+            Log.warn(this.name + " pool has had " + this.doubleReleases + " double releases");
+        }
+        return leaked;
+    }
+    
+    /**
+     * Creates an entity belonging to the pool
+     * 
+     * @return the new entity
+     */
+    protected T create() {
+        T entity = this.factory.create();
+        entity.poolState = FREE;
+        this.created++;
+        return entity;
+    }
+    
+    /**
+     * @return the number of entities sitting in the pool
+     */
+    public int getFreeCount() {
+        return this.freeCount;
+    }
+    
+    /**
+     * @return the number of entities currently acquired
+     */
+    public int getInUse() {
+        return this.inUse;
+    }
+    
+    /**
+     * @return the most entities that have been acquired at once
+     */
+    public int getHighWaterMark() {
+        return this.highWaterMark;
+    }
+    
+    /**
+     * @return the number of entities the pool has created
+     */
+    public int getCreated() {
+        return this.created;
+    }
+    
+    /**
+     * @return the number of acquire() calls that had to create an entity
+     */
+    public int getMisses() {
+        return this.misses;
+    }
+    
+    /**
+     * @return the number of release() calls for entities already released
+     */
+    public int getDoubleReleases() {
+        return this.doubleReleases;
+    }
+    
+    /**
+     * @return the most entities that can be out at once, or 0 for no limit
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+    
+    @Override
+    public String toString() {
+        return this.name +
+               ": inUse=" + this.inUse +
+               " free=" + this.freeCount +
+               " highWater=" + this.highWaterMark +
+               " created=" + this.created +
+               " misses=" + this.misses +
+               " doubleReleases=" + this.doubleReleases;
+    }
+    
+}
@@ -0,0 +1,387 @@
+package uk.co.austinbirch;
+
+import uk.co.austinbirch.physics.KinematicStore;
+
+/**
+ * @author Austin Birch
+ *
+ * Holds every entity of one type in a dense array, lined up with the
+ * KinematicStore their positions and velocities live in, so entity i is
+ * always in slot i of the store.
+ *
+ * Adding and removing are queued, and only applied when flush() is called.
+ * This lets entities remove themselves (or add others) while the registry
+ * is being looped over, without copying anything. Removing moves the last
+ * entity into the gap, so the order of the entities isn't kept.
+ *
+ * Each entity is also given a handle when it is added. Handles stay valid
+ * while the entity moves around the dense array, and stop matching anything
+ * once it has been removed, even if the handle's id is reused.
+ *
+ */
+public class EntityRegistry<T extends Entity> {
+
+    // Global variables
+    
+    /**
+     * The number of bits of a handle used for the id, the rest is the
+     * generation
+     */
+    public static final int ID_BITS = 20;
+    
+    /**
+     * Masks the id out of a handle
+     */
+    public static final int ID_MASK = (1 << ID_BITS) - 1;
+    
+    /**
+     * A handle that never refers to anything
+     */
+    public static final int NO_HANDLE = -1;
+    
+    /**
+     * Masks the generation, keeping handles positive
+     */
+    protected static final int GENERATION_MASK = -1 >>> (ID_BITS + 1);
+    
+    // Member variables
+    
+    /**
+     * The store holding the kinematics of the entities
+     */
+    protected KinematicStore kinematics;
+    
+    /**
+     * The entities, with entity i in slot i of the kinematics
+     */
+    protected Entity[] entities;
+    
+    /**
+     * The number of entities
+     */
+    protected int size = 0;
+    
+    /**
+     * The entity each id refers to
+     */
+    protected Entity[] byId;
+    
+    /**
+     * The current generation of each id
+     */
+    protected int[] generations;
+    
+    /**
+     * The ids that are free to be reused
+     */
+    protected int[] freeIds;
+    
+    /**
+     * The number of ids in freeIds
+     */
+    protected int freeIdCount = 0;
+    
+    /**
+     * The next id that has never been used
+     */
+    protected int nextId = 0;
+    
+    /**
+     * The entities waiting to be added
+     */
+    protected Entity[] pendingAdds;
+    
+    /**
+     * The number of entities waiting to be added
+     */
+    protected int pendingAddCount = 0;
+    
+    /**
+     * The entities waiting to be removed
+     */
+    protected Entity[] pendingRemoves;
+    
+    /**
+     * The number of entities waiting to be removed
+     */
+    protected int pendingRemoveCount = 0;
+    
+    /**
+     * The pool removed entities are released into, if any
+     */
+    protected EntityPool<T> pool;
+    
+    /**
+     * Creates a registry
+     * 
+     * @param capacity the number of entities to make room for up front
+     */
+    public EntityRegistry(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.kinematics = new KinematicStore(capacity);
+        this.entities = new Entity[capacity];
+        this.byId = new Entity[capacity];
+        this.generations = new int[capacity];
+        this.freeIds = new int[capacity];
+        this.pendingAdds = new Entity[capacity];
+        this.pendingRemoves = new Entity[capacity];
+    }
+    
+    /**
+     * Queues an entity to be added at the next flush()
+     * 
+     * @param entity the entity to add
+     * @return the handle of the entity
+     */
+    public int add(T entity) {
+        if (entity.handle != NO_HANDLE) {
+            throw new IllegalStateException("Entity is already in a registry");
+        }
+        
+        int id;
+        if (this.freeIdCount > 0) {
+            id = this.freeIds[--this.freeIdCount];
+        } else {
+            if (this.nextId > ID_MASK) {
+                throw new IllegalStateException("Too many entities in the registry");
+            }
+            id = this.nextId++;
+            if (id == this.byId.length) {
+                int capacity = id * 2;
+                this.byId = EntityRegistry.grow(this.byId, capacity);
+                int[] newGenerations = new int[capacity];
+                System.arraycopy(this.generations, 0, newGenerations, 0, id);
+                this.generations = newGenerations;
+            }
+        }
+        this.byId[id] = entity;
+        entity.handle = (this.generations[id] << ID_BITS) | id;
+        entity.removalPending = false;
+        
+        if (this.pendingAddCount == this.pendingAdds.length) {
+            this.pendingAdds = EntityRegistry.grow(this.pendingAdds, this.pendingAddCount * 2);
+        }
+        this.pendingAdds[this.pendingAddCount++] = entity;
+        return entity.handle;
+    }
+    
+    /**
+     * Queues an entity to be removed at the next flush(). Removing an entity
+     * that isn't in the registry, or is already being removed, does nothing.
+     * 
+     * @param entity the entity to remove
+     * @return whether the entity will be removed
+     */
+    public boolean remove(T entity) {
+        if (entity.removalPending || this.lookup(entity.handle) != entity) {
+            return false;
+        }
+        entity.removalPending = true;
+        if (this.pendingRemoveCount == this.pendingRemoves.length) {
+            this.pendingRemoves = EntityRegistry.grow(this.pendingRemoves, this.pendingRemoveCount * 2);
+        }
+        this.pendingRemoves[this.pendingRemoveCount++] = entity;
+        return true;
+    }
+    
+    /**
+     * Applies the queued removes, then the queued adds
+     */
+    public void flush() {
+        for (int i = 0; i < this.pendingRemoveCount; i++) {
+            Entity entity = this.pendingRemoves[i];
+            this.pendingRemoves[i] = null;
+            
+            if (entity.kinematics == this.kinematics) {
+                // the store moves its last body into the gap, so do the same
+                int index = entity.slot;
+                int last = --this.size;
+                entity.detach();
+                this.entities[index] = this.entities[last];
+                this.entities[last] = null;
+            }
+            this.releaseHandle(entity);
+            this.onRemoved(entity);
+        }
+        this.pendingRemoveCount = 0;
+        
+        int needed = this.size + this.pendingAddCount;
+        if (needed > this.entities.length) {
+            int capacity = Math.max(needed, this.entities.length * 2);
+            this.entities = EntityRegistry.grow(this.entities, capacity);
+            this.kinematics.ensureCapacity(capacity);
+        }
+        for (int i = 0; i < this.pendingAddCount; i++) {
+            Entity entity = this.pendingAdds[i];
+            this.pendingAdds[i] = null;
+            
+            // skip anything that was removed before it was ever added
+            if (entity.handle == NO_HANDLE) {
+                continue;
+            }
+            entity.attach(this.kinematics);
+            this.entities[this.size++] = entity;
+        }
+        this.pendingAddCount = 0;
+    }
+    
+    /**
+     * Removes every entity straight away, including any queued ones
+     */
+    public void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.entities[i].detach();
+            this.entities[i].handle = NO_HANDLE;
+            this.entities[i].removalPending = false;
+            this.onRemoved(this.entities[i]);
+            this.entities[i] = null;
+        }
+        for (int i = 0; i < this.pendingAddCount; i++) {
+            // these have never been added, but still need to go back
+            if (this.pendingAdds[i].handle != NO_HANDLE) {
+                this.pendingAdds[i].handle = NO_HANDLE;
+                this.pendingAdds[i].removalPending = false;
+                this.onRemoved(this.pendingAdds[i]);
+            }
+            this.pendingAdds[i] = null;
+        }
+        for (int i = 0; i < this.pendingRemoveCount; i++) {
+            this.pendingRemoves[i] = null;
+        }
+        for (int i = 0; i < this.nextId; i++) {
+            if (this.byId[i] != null) {
+                this.byId[i] = null;
+                this.generations[i] = (this.generations[i] + 1) & GENERATION_MASK;
+            }
+        }
+        this.size = 0;
+        this.pendingAddCount = 0;
+        this.pendingRemoveCount = 0;
+        
+        // hand the ids out in order again
+        this.freeIdCount = 0;
+        if (this.freeIds.length < this.nextId) {
+            this.freeIds = new int[this.nextId];
+        }
+        for (int id = this.nextId - 1; id >= 0; id--) {
+            this.freeIds[this.freeIdCount++] = id;
+        }
+    }
+    
+    /**
+     * @return the number of entities, not counting queued adds
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * @return the number of entities waiting to be added
+     */
+    public int getPendingAddCount() {
+        return this.pendingAddCount;
+    }
+    
+    /**
+     * @param index the index of the queued add, from 0 to
+     *              getPendingAddCount() - 1
+     * @return the entity waiting to be added, or null if it was removed
+     *         before it ever was
+     */
+    @SuppressWarnings("unchecked")
+    public T getPendingAdd(int index) {
+        Entity entity = this.pendingAdds[index];
+        return entity.handle != NO_HANDLE ? (T) entity : null;
+    }
+    
+    /**
+     * @param index the index of the entity, from 0 to size() - 1
+     * @return the entity at the index
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) this.entities[index];
+    }
+    
+    /**
+     * Finds the entity a handle refers to
+     * 
+     * @param handle the handle of the entity
+     * @return the entity, or null if it has been removed
+     */
+    @SuppressWarnings("unchecked")
+    public T lookup(int handle) {
+        if (handle < 0) {
+            return null;
+        }
+        int id = handle & ID_MASK;
+        if (id >= this.nextId || this.generations[id] != (handle >>> ID_BITS)) {
+            return null;
+        }
+        return (T) this.byId[id];
+    }
+    
+    /**
+     * @param handle the handle of the entity
+     * @return whether the handle still refers to an entity in the registry
+     */
+    public boolean isAlive(int handle) {
+        return this.lookup(handle) != null;
+    }
+    
+    /**
+     * @return the store holding the kinematics of the entities, lined up
+     *         with get()
+     */
+    public KinematicStore getKinematics() {
+        return this.kinematics;
+    }
+    
+    /**
+     * Sets the pool that entities are released into once they are removed
+     * 
+     * @param pool the pool, or null to leave removed entities alone
+     */
+    public void setPool(EntityPool<T> pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Tells an entity it has been removed, and puts it back in the pool
+     * 
+     * @param entity the entity that was removed
+     */
+    @SuppressWarnings("unchecked")
+    protected void onRemoved(Entity entity) {
+        entity.onRemoved();
+        if (this.pool != null) {
+            this.pool.release((T) entity);
+        }
+    }
+    
+    /**
+     * Gives an entity's id back, so its handle stops matching
+     * 
+     * @param entity the entity being removed
+     */
+    protected void releaseHandle(Entity entity) {
+        int id = entity.handle & ID_MASK;
+        this.byId[id] = null;
+        this.generations[id] = (this.generations[id] + 1) & GENERATION_MASK;
+        if (this.freeIdCount == this.freeIds.length) {
+            int[] newFreeIds = new int[this.freeIdCount * 2];
+            System.arraycopy(this.freeIds, 0, newFreeIds, 0, this.freeIdCount);
+            this.freeIds = newFreeIds;
+        }
+        this.freeIds[this.freeIdCount++] = id;
+        entity.handle = NO_HANDLE;
+        entity.removalPending = false;
+    }
+    
+    private static Entity[] grow(Entity[] array, int capacity) {
+        Entity[] newArray = new Entity[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+}
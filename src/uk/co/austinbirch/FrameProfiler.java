@@ -0,0 +1,460 @@
+package uk.co.austinbirch;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * @author Austin Birch
+ *
+ * Times each phase of a frame with System.nanoTime, and keeps a
+ * LatencyHistogram of the times for every phase, so that we can see which
+ * part of the game the slow frames are spending their time in. It also
+ * keeps histograms of the number of hammers, aliens and buildings, and a
+ * copy of the phase times and entity counts of the slowest frame.
+ *
+ * Timing a phase is two calls to System.nanoTime and nothing is allocated,
+ * so the profiler is always on. Only the overlay text and the dumps build
+ * any Strings.
+ *
+ * Phases can be nested (the tick's phases all happen inside TICK), and a
+ * phase can happen more than once a frame, in which case the frame's time
+ * for it is the total. Everything has to be called from the one thread.
+ *
+ */
+public class FrameProfiler {
+
+    // Global variables
+    
+    /**
+     * The parts of a frame that are timed
+     */
+    public enum Phase {
+        FRAME("frame"),
+        UPDATE("update"),
+        TICK("tick"),
+        PLAYER("tick.player"),
+        HAMMERS("tick.hammers"),
+        ALIENS("tick.aliens"),
+        BUILDINGS("tick.buildings"),
+        INTEGRATE("tick.integrate"),
+        PHYSICS("tick.simulatePhysics"),
+        COLLISIONS("tick.detectCollisions"),
+        STREAMING("tick.streaming"),
+        BACKGROUND("background.update"),
+        RENDER("render"),
+        RENDER_BACKGROUND("render.background"),
+        RENDER_CULL("render.cull"),
+        RENDER_WORLDS("render.worlds"),
+        RENDER_HAMMERS("render.hammers"),
+        RENDER_ALIENS("render.aliens"),
+        RENDER_BUILDINGS("render.buildings"),
+        RENDER_PLAYER("render.player"),
+        RENDER_HUD("render.hud");
+        
+        /**
+         * The name the phase is shown and dumped with
+         */
+        protected final String label;
+        
+        private Phase(String label) {
+            this.label = label;
+        }
+        
+        /**
+         * @return the name the phase is shown and dumped with
+         */
+        public String getLabel() {
+            return this.label;
+        }
+    }
+    
+    /**
+     * The phases, indexed by ordinal
+     */
+    protected static final Phase[] PHASES = Phase.values();
+    
+    /**
+     * The names of the entity counts, in the order they are passed to
+     * countEntities()
+     */
+    protected static final String[] COUNT_NAMES = { "hammers", "aliens", "buildings" };
+    
+    /**
+     * How often the overlay text is rebuilt
+     */
+    protected static final long OVERLAY_REFRESH_NANOS = 500000000L;
+    
+    // Member variables
+    
+    /**
+     * Whether phases are being timed
+     */
+    protected boolean enabled = true;
+    
+    /**
+     * The time each phase was last started, or 0 if it isn't running
+     */
+    protected long[] startNanos = new long[PHASES.length];
+    
+    /**
+     * The durations of each phase, in nanoseconds
+     */
+    protected LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    
+    /**
+     * The time spent in each phase so far this frame
+     */
+    protected long[] frameNanos = new long[PHASES.length];
+    
+    /**
+     * The hammer, alien and building counts, recorded once per tick
+     */
+    protected LatencyHistogram[] countHistograms = new LatencyHistogram[COUNT_NAMES.length];
+    
+    /**
+     * The latest hammer, alien and building counts
+     */
+    protected int[] counts = new int[COUNT_NAMES.length];
+    
+    /**
+     * The number of frames finished
+     */
+    protected long frames = 0;
+    
+    /**
+     * The frame number of the slowest frame, or 0 if there hasn't been one
+     */
+    protected long worstFrame = 0;
+    
+    /**
+     * The time spent in each phase during the slowest frame
+     */
+    protected long[] worstFrameNanos = new long[PHASES.length];
+    
+    /**
+     * The entity counts at the end of the slowest frame
+     */
+    protected int[] worstFrameCounts = new int[COUNT_NAMES.length];
+    
+    /**
+     * The overlay text, and when it was built
+     */
+    protected String[] overlayLines;
+    protected long overlayBuiltNanos;
+    
+    /**
+     * Creates a profiler, with every phase empty
+     */
+    public FrameProfiler() {
+        for (int i = 0; i < PHASES.length; i++) {
+            this.histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < COUNT_NAMES.length; i++) {
+            this.countHistograms[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Starts timing a phase
+     * 
+     * @param phase the phase that is starting
+     */
+    public void begin(Phase phase) {
+        if (this.enabled) {
+            this.startNanos[phase.ordinal()] = System.nanoTime();
+        }
+    }
+    
+    /**
+     * Stops timing a phase, and records how long it took
+     * 
+     * @param phase the phase that has finished
+     */
+    public void end(Phase phase) {
+        int index = phase.ordinal();
+        long start = this.startNanos[index];
+        if (start == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        this.startNanos[index] = 0;
+        this.histograms[index].record(duration);
+        this.frameNanos[index] += duration;
+    }
+    
+    /**
+     * Starts a frame
+     */
+    public void beginFrame() {
+        this.begin(Phase.FRAME);
+    }
+    
+    /**
+     * Finishes a frame, keeping its phase times if it was the slowest yet
+     */
+    public void endFrame() {
+        this.end(Phase.FRAME);
+        if (!this.enabled) {
+            return;
+        }
+        this.frames++;
+        
+        int frame = Phase.FRAME.ordinal();
+        if (this.frameNanos[frame] > this.worstFrameNanos[frame]) {
+            System.arraycopy(this.frameNanos, 0, this.worstFrameNanos, 0, PHASES.length);
+            System.arraycopy(this.counts, 0, this.worstFrameCounts, 0, COUNT_NAMES.length);
+            this.worstFrame = this.frames;
+        }
+        Arrays.fill(this.frameNanos, 0);
+    }
+    
+    /**
+     * Records the number of entities in play, once per tick
+     * 
+     * @param hammers the number of hammers
+     * @param aliens the number of aliens
+     * @param buildings the number of buildings
+     */
+    public void countEntities(int hammers, int aliens, int buildings) {
+        if (!this.enabled) {
+            return;
+        }
+        this.counts[0] = hammers;
+        this.counts[1] = aliens;
+        this.counts[2] = buildings;
+        for (int i = 0; i < COUNT_NAMES.length; i++) {
+            this.countHistograms[i].record(this.counts[i]);
+        }
+    }
+    
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            this.histograms[i].reset();
+        }
+        for (int i = 0; i < COUNT_NAMES.length; i++) {
+            this.countHistograms[i].reset();
+        }
+        Arrays.fill(this.frameNanos, 0);
+        Arrays.fill(this.worstFrameNanos, 0);
+        Arrays.fill(this.worstFrameCounts, 0);
+        this.frames = 0;
+        this.worstFrame = 0;
+        this.overlayLines = null;
+    }
+    
+    /**
+     * Makes this profiler hold exactly what another one has recorded, so
+     * that a profiler written on one thread can be read on another. Nothing
+     * is allocated, and the overlay text is rebuilt from the copy the next
+     * time it is asked for.
+     * 
+     * @param other the profiler to copy, which mustn't be in use while this
+     *        runs
+     */
+    public void copy(FrameProfiler other) {
+        for (int i = 0; i < PHASES.length; i++) {
+            this.histograms[i].copy(other.histograms[i]);
+        }
+        for (int i = 0; i < COUNT_NAMES.length; i++) {
+            this.countHistograms[i].copy(other.countHistograms[i]);
+        }
+        System.arraycopy(other.counts, 0, this.counts, 0, COUNT_NAMES.length);
+        System.arraycopy(other.worstFrameNanos, 0, this.worstFrameNanos, 0, PHASES.length);
+        System.arraycopy(other.worstFrameCounts, 0, this.worstFrameCounts, 0, COUNT_NAMES.length);
+        this.frames = other.frames;
+        this.worstFrame = other.worstFrame;
+        this.overlayLines = null;
+    }
+    
+    /**
+     * Returns the lines of text for the in-game overlay: the p50, p99,
+     * p99.9 and max of every phase that has happened, in milliseconds. The
+     * text is only rebuilt every OVERLAY_REFRESH_NANOS, so that it can be
+     * read, and so that showing it doesn't allocate every frame.
+     * 
+     * @return the overlay text
+     */
+    public String[] getOverlayLines() {
+        long now = System.nanoTime();
+        if (this.overlayLines != null && now - this.overlayBuiltNanos < OVERLAY_REFRESH_NANOS) {
+            return this.overlayLines;
+        }
+        
+        String[] lines = new String[PHASES.length + 3];
+        int line = 0;
+        lines[line++] = "phase (ms)               p50     p99   p99.9     max";
+        for (int i = 0; i < PHASES.length; i++) {
+            LatencyHistogram histogram = this.histograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            lines[line++] = String.format(Locale.ROOT, "%-22s %7.2f %7.2f %7.2f %7.2f",
+                    PHASES[i].getLabel(),
+                    histogram.getValueAtPercentile(50.0) / 1.0e6,
+                    histogram.getValueAtPercentile(99.0) / 1.0e6,
+                    histogram.getValueAtPercentile(99.9) / 1.0e6,
+                    histogram.getMax() / 1.0e6);
+        }
+        lines[line++] = String.format(Locale.ROOT, "hammers %d, aliens %d, buildings %d",
+                this.counts[0], this.counts[1], this.counts[2]);
+        if (this.worstFrame > 0) {
+            lines[line++] = String.format(Locale.ROOT, "worst frame %d: %.2f ms",
+                    this.worstFrame, this.worstFrameNanos[Phase.FRAME.ordinal()] / 1.0e6);
+        }
+        
+        this.overlayLines = Arrays.copyOf(lines, line);
+        this.overlayBuiltNanos = now;
+        return this.overlayLines;
+    }
+    
+    /**
+     * Writes every phase and entity count as CSV, with a row per phase, a
+     * row per entity count, and the worst frame's time for each phase
+     * 
+     * @param path the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeCsv(String path) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(path));
+        try {
+            out.println("name,unit,count,mean,p50,p99,p99.9,max,worstFrame");
+            for (int i = 0; i < PHASES.length; i++) {
+                LatencyHistogram histogram = this.histograms[i];
+                out.println(String.format(Locale.ROOT, "%s,us,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                        PHASES[i].getLabel(),
+                        histogram.getCount(),
+                        histogram.getMean() / 1.0e3,
+                        histogram.getValueAtPercentile(50.0) / 1.0e3,
+                        histogram.getValueAtPercentile(99.0) / 1.0e3,
+                        histogram.getValueAtPercentile(99.9) / 1.0e3,
+                        histogram.getMax() / 1.0e3,
+                        this.worstFrameNanos[i] / 1.0e3));
+            }
+            for (int i = 0; i < COUNT_NAMES.length; i++) {
+                LatencyHistogram histogram = this.countHistograms[i];
+                out.println(String.format(Locale.ROOT, "%s,entities,%d,%.1f,%d,%d,%d,%d,%d",
+                        COUNT_NAMES[i],
+                        histogram.getCount(),
+                        histogram.getMean(),
+                        histogram.getValueAtPercentile(50.0),
+                        histogram.getValueAtPercentile(99.0),
+                        histogram.getValueAtPercentile(99.9),
+                        histogram.getMax(),
+                        this.worstFrameCounts[i]));
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Writes every phase and entity count as JSON, along with the worst
+     * frame's phase times and entity counts
+     * 
+     * @param path the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeJson(String path) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(path));
+        try {
+            out.println("{");
+            out.println("  \"frames\": " + this.frames + ",");
+            out.println("  \"phases\": {");
+            for (int i = 0; i < PHASES.length; i++) {
+                LatencyHistogram histogram = this.histograms[i];
+                out.println(String.format(Locale.ROOT,
+                        "    \"%s\": {\"count\": %d, \"meanUs\": %.3f, \"p50Us\": %.3f, " +
+                        "\"p99Us\": %.3f, \"p999Us\": %.3f, \"maxUs\": %.3f}%s",
+                        PHASES[i].getLabel(),
+                        histogram.getCount(),
+                        histogram.getMean() / 1.0e3,
+                        histogram.getValueAtPercentile(50.0) / 1.0e3,
+                        histogram.getValueAtPercentile(99.0) / 1.0e3,
+                        histogram.getValueAtPercentile(99.9) / 1.0e3,
+                        histogram.getMax() / 1.0e3,
+                        i < PHASES.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"entities\": {");
+            for (int i = 0; i < COUNT_NAMES.length; i++) {
+                LatencyHistogram histogram = this.countHistograms[i];
+                out.println(String.format(Locale.ROOT,
+                        "    \"%s\": {\"mean\": %.1f, \"p50\": %d, \"p99\": %d, \"max\": %d}%s",
+                        COUNT_NAMES[i],
+                        histogram.getMean(),
+                        histogram.getValueAtPercentile(50.0),
+                        histogram.getValueAtPercentile(99.0),
+                        histogram.getMax(),
+                        i < COUNT_NAMES.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"worstFrame\": {");
+            out.println("    \"frame\": " + this.worstFrame + ",");
+            for (int i = 0; i < COUNT_NAMES.length; i++) {
+                out.println("    \"" + COUNT_NAMES[i] + "\": " + this.worstFrameCounts[i] + ",");
+            }
+            out.println("    \"phasesUs\": {");
+            for (int i = 0; i < PHASES.length; i++) {
+                out.println(String.format(Locale.ROOT, "      \"%s\": %.3f%s",
+                        PHASES[i].getLabel(),
+                        this.worstFrameNanos[i] / 1.0e3,
+                        i < PHASES.length - 1 ? "," : ""));
+            }
+            out.println("    }");
+            out.println("  }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Writes the CSV and JSON dumps to path.csv and path.json
+     * 
+     * @param path the path to write to, without an extension
+     * @throws IOException if either file can't be written
+     */
+    public void dump(String path) throws IOException {
+        this.writeCsv(path + ".csv");
+        this.writeJson(path + ".json");
+    }
+    
+    /**
+     * @param phase the phase
+     * @return the histogram of the phase's durations, in nanoseconds
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return this.histograms[phase.ordinal()];
+    }
+    
+    /**
+     * @return the number of frames finished
+     */
+    public long getFrames() {
+        return this.frames;
+    }
+    
+    /**
+     * @return whether phases are being timed
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+    
+    /**
+     * @param enabled whether phases should be timed
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            Arrays.fill(this.startNanos, 0);
+        }
+    }
+    
+}
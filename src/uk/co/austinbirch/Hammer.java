@@ -1,9 +1,5 @@
 package uk.co.austinbirch;
 
-import org.newdawn.slick.GameContainer;
-import org.newdawn.slick.Graphics;
-import org.newdawn.slick.Image;
-import org.newdawn.slick.SlickException;
 import org.newdawn.slick.geom.Rectangle;
 import org.newdawn.slick.geom.Vector2f;
 
@@ -14,68 +10,71 @@ import org.newdawn.slick.geom.Vector2f;
  *
  */
 public class Hammer extends Entity implements CollisionListener {
-    
+
     /**
-     * The visual representation of the Hammer
+     * Speed of the hammer rotation
      */
-    protected Image sprite;
+    protected float rotationSpeed = 360.0f;
     
     /**
-     * The rotation of the Hammer, we will want it to spin around
+     * Creates a Hammer, ready to be reset() and thrown
+     * 
+     * @param simulation the simulation the hammer belongs to
      */
-    protected float rotation;
+    public Hammer(Simulation simulation) {
+        super();
+        this.simulation = simulation;
+        this.spriteInfo = SpriteInfo.HAMMER;
+        this.reset(0.0f, 0.0f, 0.0f, 0.0f);
+    }
     
     /**
-     * Speed of the hammer rotation
+     * Creates a Hammer to throw
+     * 
+     * @param simulation the simulation the hammer belongs to
+     * @param position the position to throw the hammer from
      */
-    protected float rotationSpeed = 360.0f;
+    public Hammer(Simulation simulation, Vector2f position) {
+        this(simulation);
+        this.setPosition(position.x, position.y);
+    }
     
     /**
-     * Creates a Hammer to throw
-     * @throws SlickException 
+     * Gets the hammer ready to be thrown again
+     * 
+     * @param x the x position to throw the hammer from
+     * @param y the y position to throw the hammer from
+     * @param velocityX the x velocity to throw the hammer at
+     * @param velocityY the y velocity to throw the hammer at
      */
-    public Hammer(Vector2f position) throws SlickException {
-        super();
-        this.sprite = new Image("res/images/hammer.png");
-        this.position = position;
+    public void reset(float x, float y, float velocityX, float velocityY) {
+        this.setPosition(x, y);
+        this.setVelocity(velocityX, velocityY);
         this.rotation = 0.0f;
-        this.mass = 1000;
+        this.previousRotation = Float.NaN;
+        this.setMass(1000);
     }
     
+    /**
+     * Spins the hammer. The hammer is moved by the simulation, along with
+     * all of the other hammers.
+     */
     @Override
-    public void update(GameContainer gc, float deltaSeconds) {
+    public void update(float deltaSeconds) {
         this.rotation += this.rotationSpeed * deltaSeconds;
-        
-        // update the position based on our velocity
-        this.position.x += this.velocity.x * deltaSeconds;
-        this.position.y += this.velocity.y * deltaSeconds;
     }
     
-    @Override
-    public void render(GameContainer gc, Graphics g) {
-        this.sprite.setRotation(this.rotation);
-        g.drawImage(this.sprite, this.position.x, this.position.y);
-    }
-
     @Override
     public void onCollision(Rectangle collisionRect) {
         // this will be us leaving the world. We just need to delete ourselves
-        try {
-            McHammerGame.getInstance().removeHammer(this);
-        } catch (SlickException e) {
-            e.printStackTrace();
-        }
+        this.simulation.removeHammer(this);
     }
-
+    
     @Override
     public void onCollision(Entity entity) {
         if (entity instanceof Building) {
-            try {
-                McHammerGame.getInstance().removeHammer(this);
-            } catch (SlickException e) {
-                e.printStackTrace();
-            }
+            this.simulation.removeHammer(this);
         }
     }
-
+    
 }
@@ -0,0 +1,105 @@
+package uk.co.austinbirch;
+
+/**
+ * @author Austin Birch
+ *
+ * Collects the control presses and releases that happened since the last
+ * tick, in the order they happened.
+ *
+ */
+public class InputQueue {
+
+    // Member variables
+    
+    /**
+     * The controls that changed
+     */
+    protected Control[] controls;
+    
+    /**
+     * Whether each control was pressed (true) or released (false)
+     */
+    protected boolean[] pressed;
+    
+    /**
+     * The number of events in the queue
+     */
+    protected int size = 0;
+    
+    /**
+     * Creates an empty input queue
+     */
+    public InputQueue() {
+        this.controls = new Control[16];
+        this.pressed = new boolean[16];
+    }
+    
+    /**
+     * Queues a control being pressed
+     * 
+     * @param control the control that was pressed
+     */
+    public void press(Control control) {
+        this.add(control, true);
+    }
+    
+    /**
+     * Queues a control being released
+     * 
+     * @param control the control that was released
+     */
+    public void release(Control control) {
+        this.add(control, false);
+    }
+    
+    /**
+     * Appends an event to the queue, growing it if required
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     */
+    public void add(Control control, boolean isPressed) {
+        if (this.size == this.controls.length) {
+            Control[] newControls = new Control[this.size * 2];
+            boolean[] newPressed = new boolean[this.size * 2];
+            System.arraycopy(this.controls, 0, newControls, 0, this.size);
+            System.arraycopy(this.pressed, 0, newPressed, 0, this.size);
+            this.controls = newControls;
+            this.pressed = newPressed;
+        }
+        this.controls[this.size] = control;
+        this.pressed[this.size] = isPressed;
+        this.size++;
+    }
+    
+    /**
+     * @return the number of queued events
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * @param index the index of the event
+     * @return the control for the event at index
+     */
+    public Control getControl(int index) {
+        return this.controls[index];
+    }
+    
+    /**
+     * @param index the index of the event
+     * @return whether the event at index was a press
+     */
+    public boolean isPressed(int index) {
+        return this.pressed[index];
+    }
+    
+    /**
+     * Empties the queue
+     */
+    public void clear() {
+        this.size = 0;
+    }
+    
+}
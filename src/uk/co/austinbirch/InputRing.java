@@ -0,0 +1,119 @@
+package uk.co.austinbirch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Austin Birch
+ *
+ * Passes control changes from the thread that reads the keyboard to the
+ * thread that ticks the simulation, without locks or allocation.
+ *
+ * It is a fixed size ring with one writer and one reader. The writer only
+ * moves the tail and the reader only moves the head, each publishing its
+ * move with an ordered write after touching the slots, so neither ever
+ * waits. If the simulation stops draining it, control changes past the
+ * size of the ring are dropped rather than blocking the writer.
+ *
+ */
+public class InputRing {
+
+    // Global variables
+    
+    /**
+     * The controls, indexed by ordinal
+     */
+    protected static final Control[] CONTROLS = Control.values();
+    
+    // Member variables
+    
+    /**
+     * The control changes, as the ordinal of the control shifted left by
+     * one, with the bottom bit set for a press
+     */
+    protected final int[] events;
+    
+    /**
+     * The size of the ring minus one, for wrapping the indices
+     */
+    protected final int mask;
+    
+    /**
+     * The number of events ever read, only moved by the reader
+     */
+    protected final AtomicLong head = new AtomicLong();
+    
+    /**
+     * The number of events ever written, only moved by the writer
+     */
+    protected final AtomicLong tail = new AtomicLong();
+    
+    /**
+     * The number of events dropped because the ring was full
+     */
+    protected volatile long dropped = 0;
+    
+    /**
+     * Creates a ring
+     * 
+     * @param capacity the number of events it can hold, rounded up to a
+     *                 power of two
+     */
+    public InputRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.events = new int[size];
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Queues a control change. Must only be called from the one writing
+     * thread.
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     * @return false if the ring was full and the change was dropped
+     */
+    public boolean offer(Control control, boolean isPressed) {
+        long tail = this.tail.get();
+        if (tail - this.head.get() == this.events.length) {
+            this.dropped++;
+            return false;
+        }
+        this.events[(int)tail & this.mask] = (control.ordinal() << 1) | (isPressed ? 1 : 0);
+        this.tail.lazySet(tail + 1);
+        return true;
+    }
+    
+    /**
+     * Moves every queued control change onto the end of an InputQueue, in
+     * order. Must only be called from the one reading thread.
+     * 
+     * @param queue the queue to move them onto
+     * @return the number of changes moved
+     */
+    public int drainTo(InputQueue queue) {
+        long head = this.head.get();
+        long tail = this.tail.get();
+        for (long i = head; i < tail; i++) {
+            int event = this.events[(int)i & this.mask];
+            queue.add(CONTROLS[event >>> 1], (event & 1) != 0);
+        }
+        this.head.lazySet(tail);
+        return (int)(tail - head);
+    }
+    
+    /**
+     * @return the number of control changes waiting to be drained
+     */
+    public int size() {
+        return (int)(this.tail.get() - this.head.get());
+    }
+    
+    /**
+     * @return the number of control changes dropped because the ring was
+     *         full
+     */
+    public long getDroppedCount() {
+        return this.dropped;
+    }
+    
+}
@@ -0,0 +1,183 @@
+package uk.co.austinbirch;
+
+import java.util.Arrays;
+
+/**
+ * @author Austin Birch
+ *
+ * Counts durations in log-linear buckets: every power of two is split into
+ * SUB_BUCKETS equal buckets, so any duration from a nanosecond up to a few
+ * centuries is held to within about 6%, in a fixed 7.5KB of counts.
+ * Recording is a few shifts and an increment, with no allocation, so the
+ * histograms can be left running all the time.
+ *
+ */
+public class LatencyHistogram {
+
+    // Global variables
+    
+    /**
+     * The number of bits of each value kept below its highest set bit
+     */
+    protected static final int SUB_BUCKET_BITS = 4;
+    
+    /**
+     * The number of buckets each power of two is split into
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    /**
+     * The number of buckets, enough for any positive long
+     */
+    protected static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    // Member variables
+    
+    /**
+     * The number of values recorded in each bucket
+     */
+    protected long[] counts = new long[BUCKET_COUNT];
+    
+    /**
+     * The number of values recorded
+     */
+    protected long count = 0;
+    
+    /**
+     * The sum of the values recorded
+     */
+    protected long total = 0;
+    
+    /**
+     * The smallest value recorded
+     */
+    protected long min = Long.MAX_VALUE;
+    
+    /**
+     * The largest value recorded
+     */
+    protected long max = 0;
+    
+    /**
+     * Records a value
+     * 
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts[LatencyHistogram.bucketFor(value)]++;
+        this.count++;
+        this.total += value;
+        if (value < this.min) {
+            this.min = value;
+        }
+        if (value > this.max) {
+            this.max = value;
+        }
+    }
+    
+    /**
+     * @param value a value that isn't negative
+     * @return the index of the bucket the value is counted in
+     */
+    protected static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    /**
+     * @param bucket the index of a bucket
+     * @return the largest value counted in the bucket
+     */
+    protected static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    
+    /**
+     * Works out the value that the given percentage of the recorded values
+     * are at or below, to within the size of its bucket
+     * 
+     * @param percentile the percentage, from 0 to 100
+     * @return the value, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(percentile / 100.0 * this.count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueIn(i), this.max);
+            }
+        }
+        return this.max;
+    }
+    
+    /**
+     * Makes this histogram hold exactly what another one holds
+     * 
+     * @param other the histogram to copy
+     */
+    public void copy(LatencyHistogram other) {
+        System.arraycopy(other.counts, 0, this.counts, 0, BUCKET_COUNT);
+        this.count = other.count;
+        this.total = other.total;
+        this.min = other.min;
+        this.max = other.max;
+    }
+    
+    /**
+     * Forgets every recorded value
+     */
+    public void reset() {
+        Arrays.fill(this.counts, 0);
+        this.count = 0;
+        this.total = 0;
+        this.min = Long.MAX_VALUE;
+        this.max = 0;
+    }
+    
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return this.count;
+    }
+    
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double getMean() {
+        return this.count == 0 ? 0.0 : (double)this.total / this.count;
+    }
+    
+    /**
+     * @return the smallest value recorded, or 0 if there are none
+     */
+    public long getMin() {
+        return this.count == 0 ? 0 : this.min;
+    }
+    
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax() {
+        return this.max;
+    }
+    
+}
@@ -1,8 +1,11 @@
 package uk.co.austinbirch;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
 
 import org.lwjgl.Sys;
 import org.newdawn.slick.AppGameContainer;
@@ -10,6 +13,7 @@ import org.newdawn.slick.BasicGame;
 import org.newdawn.slick.Color;
 import org.newdawn.slick.GameContainer;
 import org.newdawn.slick.Graphics;
+import org.newdawn.slick.Image;
 import org.newdawn.slick.Input;
 import org.newdawn.slick.KeyListener;
 import org.newdawn.slick.SlickException;
@@ -19,15 +23,12 @@ import org.newdawn.slick.util.Log;
 
 import es.darkhogg.util.OperatingSystem;
 
+import uk.co.austinbirch.replay.InputRecorder;
+
 public class McHammerGame extends BasicGame implements KeyListener {
-    
+
     // Global variables
     
-    protected final int GAME_OVER = 1;
-    protected final int GAME_RUNNING = 2;
-    protected final int GAME_PAUSED = 3;
-    protected final int GAME_MENU = 4;
-    
     /**
      *  Determines whether we are in debug mode or not.
      *  
@@ -41,27 +42,81 @@ public class McHammerGame extends BasicGame implements KeyListener {
      */
     private static McHammerGame _instance = null;
     
-    // Member variables
+    /**
+     * The color drawn behind the menu and the pause/game over messages
+     */
+    private static final Color OVERLAY_COLOR = new Color(1.0f, 0.0f, 1.0f, 0.5f);
+    
+    /**
+     * Where the menu is drawn
+     */
+    private static final Vector2f MENU_OFFSET = new Vector2f(40.0f, 40.0f);
+    
+    /**
+     * The number of fixed ticks a second, unless the mchammer.tickRate
+     * system property says otherwise
+     */
+    private static final int DEFAULT_TICK_RATE = 60;
+    
+    /**
+     * The most fixed ticks run in one update, unless the
+     * mchammer.maxTicksPerUpdate system property says otherwise. If we fall
+     * further behind than this, the rest of the time is dropped rather than
+     * making the next update even slower.
+     */
+    private static final int DEFAULT_MAX_TICKS_PER_UPDATE = 5;
+    
+    /**
+     * The frame rate aimed for, unless the mchammer.frameRate system
+     * property says otherwise. The entities are drawn between ticks, so
+     * this can be well above the tick rate.
+     */
+    private static final int DEFAULT_FRAME_RATE = 144;
     
     /**
-     * The total width of the space environment we can move in 
+     * The seconds of play kept to rewind through with F7, and the most
+     * memory to keep them in, in megabytes, unless the
+     * mchammer.rewindSeconds and mchammer.rewindMemory system properties
+     * say otherwise. No seconds turns rewinding off.
      */
-    protected int spaceWidth = 2000;
+    private static final float DEFAULT_REWIND_SECONDS = 10.0f;
+    private static final int DEFAULT_REWIND_MEMORY_MB = 64;
     
     /**
-     * The total width of the space environment we can move in
+     * The number of ticks moved through each tick while LEFT or RIGHT is
+     * held down while rewinding
      */
-    protected int spaceHeight = 1000;
+    private static final int REWIND_SCRUB_SPEED = 2;
     
     /**
-     * The rectangles that make up the boundaries of our "space"
+     * The color drawn behind the profiler overlay
      */
-    protected ArrayList<Rectangle> spaceBoundaries;
+    private static final Color PROFILER_COLOR = new Color(0.0f, 0.0f, 0.0f, 0.7f);
     
     /**
-     * Contains all of the worlds the player owns
+     * How often the simulation thread lines of the profiler overlay are
+     * rebuilt
      */
-    protected ArrayList<World> worlds;
+    private static final long SIMULATION_TEXT_REFRESH_NANOS = 500000000L;
+    
+    // Member variables
+    
+    /**
+     * The game state and logic we are drawing
+     */
+    protected Simulation simulation;
+    
+    /**
+     * Ticks the simulation, on its own thread unless the mchammer.simThread
+     * system property is false, and hands us snapshots of it to draw
+     */
+    protected SimulationLoop loop;
+    
+    /**
+     * The game state of the last snapshot rendered. The snapshot is only
+     * acquired once a frame, by render(), so update() goes by this.
+     */
+    protected int renderedGameState = Simulation.GAME_MENU;
     
     /**
      * The background image/animation for the game 
@@ -74,59 +129,63 @@ public class McHammerGame extends BasicGame implements KeyListener {
     protected Camera camera;
     
     /**
-     * The player's character
+     * Works out which entities the camera can see, so only they are drawn
      */
-    protected Player mcHammer;
+    protected VisibilityCuller visibilityCuller;
     
     /**
-     * The hammers that we might be throwing
+     * The drawn and culled counts text, and the counts it was built for
      */
-    protected CopyOnWriteArrayList<Hammer> hammerList;
-
-    /**
-     * The array that will contain any buildings
-     */
-    protected CopyOnWriteArrayList<Building> buildings;
+    protected String cullText;
+    protected int cullDrawnShown = -1;
+    protected int cullCulledShown = -1;
     
     /**
-     * The array that will contain any attacking aliens
+     * Draws the entity sprites out of one atlas, or null if the atlas
+     * couldn't be built and each entity draws its own sprite
      */
-    protected CopyOnWriteArrayList<Alien> aliens;
-
+    protected SpriteBatch spriteBatch;
+    
     /**
-     * How long we have been playing for
+     * The property value text, and the value it was built for
      */
-    protected float elapsedGameTime = 0.0f;
+    protected String propertyValueText;
+    protected int propertyValueShown = -1;
     
     /**
-     * Stores the amount since the last alien release 
+     * The elapsed time text, and the number of seconds it was built for
      */
-    protected float alienReleaseTimer = 0.0f;
+    protected String timeText;
+    protected int timeShown = -1;
     
     /**
-     * The amount of time to wait between alien releases, this will get lower
+     * The simulation thread text, and when it was built
      */
-    protected float alienReleaseLimit = 1000.0f;
+    protected String simulationText;
+    protected long simulationTextNanos;
     
     /**
-     * The amount of aliens to release each time
+     * The sprites drawn from snapshots when there is no sprite batch
      */
-    protected float alienReleaseCount = 0.0f;
+    protected HashMap<SpriteInfo, Image> snapshotImages = new HashMap<SpriteInfo, Image>();
     
     /**
-     * We don't want any more aliens than this
+     * Times each phase of the frame. This is shared with the simulation,
+     * unless it is ticking on its own thread, when it has its own.
      */
-    protected int alienCountLimit = 30;
+    protected FrameProfiler profiler;
     
     /**
-     * The current game state
+     * Whether the profiler overlay is shown, toggled with F3
      */
-    protected int gameState = 4;
+    protected boolean showProfiler = false;
     
     /**
-     * The player's score
+     * A copy of the simulation's profiler for the overlay, and when it was
+     * copied, or null if the simulation shares our profiler
      */
-    protected int propertyValue = 1000;
+    protected FrameProfiler simulationProfile;
+    protected long simulationProfileNanos;
     
     // Methods
     
@@ -160,7 +219,7 @@ public class McHammerGame extends BasicGame implements KeyListener {
         
         AppGameContainer app = new AppGameContainer(new McHammerGame());
         app.setDisplayMode(800, 600, false);
-        app.setTargetFrameRate(60);
+        app.setTargetFrameRate(Integer.getInteger("mchammer.frameRate", DEFAULT_FRAME_RATE));
         app.start();
     }
     
@@ -170,31 +229,31 @@ public class McHammerGame extends BasicGame implements KeyListener {
      */
     private static void setupLibraryPath () throws SecurityException, NoSuchFieldException, IllegalAccessException {
         OperatingSystem os = OperatingSystem.getCurrent();
-
+        
         // If the OS is supported by LWJGL (Linux, Mac, Windows, Solaris)
         if ( os == OperatingSystem.LINUX | os == OperatingSystem.MAC | os == OperatingSystem.SOLARIS
             | os == OperatingSystem.WINDOWS )
         {
             String dirname = "natives-" + os.getName().toLowerCase();
-
+            
             String pathsep = System.getProperty( "path.separator" );
             String dirsep = System.getProperty( "file.separator" );
             String oldlibpath = System.getProperty( "java.library.path" );
-
+            
             // <oldpath>;lib/natives-os
             String newlibpath = oldlibpath + pathsep + "lib" + dirsep + dirname;
             System.setProperty( "java.library.path", newlibpath );
-
+            
             // Propagate the change
             Field fieldSysPath = ClassLoader.class.getDeclaredField( "sys_paths" );
             fieldSysPath.setAccessible( true );
-
+            
             if ( fieldSysPath != null ) {
                 fieldSysPath.set( System.class.getClassLoader(), null );
             }
         }
     }
-
+    
     /**
      * Setup the Game
      */
@@ -203,129 +262,105 @@ public class McHammerGame extends BasicGame implements KeyListener {
         // link the _instance
         _instance = this;
         
-        // create a background
-        Rectangle screenRect = new Rectangle(0,
-                                             0,
-                                             this.spaceWidth,
-                                             this.spaceHeight);
-        this.background = new Background(screenRect);
+        // load the sprites up front, so nothing has to wait for them mid-game
+        TextureCache textures = TextureCache.getInstance();
+        textures.preload(SpriteInfo.PLAYER_JETPACK_OFF.getPath());
+        textures.preload(SpriteInfo.PLAYER_JETPACK_ON.getPath());
+        textures.preload(SpriteInfo.PLAYER_JETPACK_REVERSE.getPath());
+        textures.preload(SpriteInfo.ALIEN.getPath());
+        textures.preload(SpriteInfo.BUILDING_01.getPath());
+        textures.preload(SpriteInfo.BUILDING_02.getPath());
+        textures.preload(SpriteInfo.BUILDING_03.getPath());
+        textures.preload(SpriteInfo.HAMMER.getPath());
+        textures.preload(SpriteInfo.WORLD.getPath());
         
-        // create a camera object
-        this.camera = new Camera(this.spaceWidth,
-                                 this.spaceHeight,
-                                 800,
-                                 600);
+        // pack the sprites into one sheet, so they can be drawn in a batch
+        try {
+            this.spriteBatch = new SpriteBatch(new SpriteAtlas(SpriteAtlas.GAME_SPRITES, 2));
+        } catch (SlickException e) {
+            Log.error("Unable to build the sprite atlas, drawing sprites separately", e);
+            this.spriteBatch = null;
+        }
+        
+        // create the simulation
+        this.simulation = new Simulation();
         
-        // create the space boundaries
-        this.createSpaceBoundaries();
+        // tick in fixed steps, at a rate that can be tuned separately from
+        // the frame rate, on a thread of its own (debug mode draws the
+        // entities themselves, so needs them on this thread)
+        boolean threaded = !DEBUG_MODE && Boolean.parseBoolean(System.getProperty("mchammer.simThread", "true"));
+        boolean fixedStep = Boolean.parseBoolean(System.getProperty("mchammer.fixedStep", "true"));
+        int tickRate = Math.max(1, Integer.getInteger("mchammer.tickRate", DEFAULT_TICK_RATE));
+        float tickDeltaSeconds = 1.0f / tickRate;
+        int maxTicksPerUpdate = Integer.getInteger("mchammer.maxTicksPerUpdate", DEFAULT_MAX_TICKS_PER_UPDATE);
         
-        // create the worlds
-        this.worlds = new ArrayList<World>();
-        for (int x = 0; x < this.spaceWidth; x+=(this.spaceWidth/4)) {;
-            World world = new World(new Vector2f(x + 150.0f, (float)(this.spaceHeight - (this.spaceHeight/1.8))));
-            this.worlds.add(world);
+        // record the game if we have been asked to, which needs the same
+        // fixed ticks as the replay will use
+        InputRecorder recorder = null;
+        String recordPath = System.getProperty("mchammer.record");
+        if (recordPath != null) {
+            try {
+                recorder = new InputRecorder(new File(recordPath), this.simulation, tickDeltaSeconds);
+                fixedStep = true;
+                Log.info("Recording to " + recordPath + " with seed " + this.simulation.getSeed());
+            } catch (IOException e) {
+                Log.error("Unable to record to " + recordPath, e);
+            }
         }
         
-        // create the player
-        this.mcHammer = new Player(new Vector2f(100.0f, 400.0f));
+        this.loop = new SimulationLoop(this.simulation, fixedStep, tickDeltaSeconds, maxTicksPerUpdate);
+        this.loop.setRecorder(recorder);
         
-        // create the array for the hammers
-        this.hammerList = new CopyOnWriteArrayList<Hammer>();
+        // save and load with F5 and F9, and save every so often if we have
+        // been asked to, with the saves written on a thread of their own
+        AutoSaver saver = new AutoSaver();
+        saver.start();
+        this.loop.setSaver(saver, new File(System.getProperty("mchammer.saveFile", "quicksave.mchs")));
+        float autosaveSeconds = Float.parseFloat(System.getProperty("mchammer.autosave", "0"));
+        if (autosaveSeconds > 0.0f) {
+            String autosavePath = System.getProperty("mchammer.autosaveFile", "autosave.mchs");
+            this.loop.setAutosave(new File(autosavePath), Math.round(autosaveSeconds * tickRate));
+            Log.info("Saving to " + autosavePath + " every " + autosaveSeconds + " seconds");
+        }
         
-        // create an array list for the buildings
-        this.buildings = new CopyOnWriteArrayList<Building>();
+        // keep the last few seconds to rewind through with F7, which plays
+        // on from a tick by ticking again, so needs the same fixed ticks
+        float rewindSeconds = Float.parseFloat(System.getProperty("mchammer.rewindSeconds",
+                                                                  Float.toString(DEFAULT_REWIND_SECONDS)));
+        if (fixedStep && rewindSeconds > 0.0f) {
+            int rewindMemory = Integer.getInteger("mchammer.rewindMemory", DEFAULT_REWIND_MEMORY_MB);
+            this.loop.setRewind(new RewindBuffer(tickRate,
+                                                 Math.round(rewindSeconds * tickRate),
+                                                 rewindMemory * 1024L * 1024L));
+            Log.info("Keeping " + rewindSeconds + " seconds to rewind through, in at most " + rewindMemory + "MB");
+        }
         
-        // create the array list for the aliens
-        this.aliens = new CopyOnWriteArrayList<Alien>();
-    }
-    
-    /**
-     * Puts the game in a stable, restartable state
-     */
-    public void restartGame() {
-        this.hammerList.clear();
-        this.aliens.clear();
-        this.buildings.clear();
+        // the profiler can only be used from one thread
+        this.profiler = threaded ? new FrameProfiler() : this.simulation.getProfiler();
+        this.simulationProfile = threaded ? new FrameProfiler() : null;
+        
+        // create a background, with the same sky for the same seed
+        Rectangle screenRect = new Rectangle(0,
+                                             0,
+                                             this.simulation.spaceWidth,
+                                             this.simulation.spaceHeight);
+        this.background = new Background(screenRect, new Random(this.simulation.getSeed()));
         
-        this.propertyValue = 1000;
-        this.alienReleaseCount = 0;
-        this.alienReleaseTimer = 0.0f;
-        this.elapsedGameTime = 0.0f;
+        // create a camera object
+        this.camera = new Camera(this.simulation.spaceWidth,
+                                 this.simulation.spaceHeight,
+                                 800,
+                                 600);
         
-        this.mcHammer.position = new Vector2f(80.0f, 80.0f);
+        // and something to work out what it can see
+        this.visibilityCuller = new VisibilityCuller(32.0f);
         
-        // start the game 
-        this.gameState = this.GAME_RUNNING;
-    }
-    
-    protected void createSpaceBoundaries() {
-        int boundaryWidth = 20;
-        Rectangle leftBoundary = new Rectangle(0 - boundaryWidth,
-                                               0,
-                                               boundaryWidth,
-                                               this.spaceHeight);
-        Rectangle rightBoundary = new Rectangle(this.spaceWidth,
-                                                0,
-                                                boundaryWidth,
-                                                this.spaceHeight);
-        Rectangle bottomBoundary = new Rectangle(0,
-                                                 this.spaceHeight,
-                                                 this.spaceWidth,
-                                                 boundaryWidth);
-        Rectangle topBoundary = new Rectangle(0,
-                                              0 - boundaryWidth,
-                                              this.spaceWidth,
-                                              boundaryWidth);
-        this.spaceBoundaries = new ArrayList<Rectangle>();
-        this.spaceBoundaries.add(leftBoundary);
-        this.spaceBoundaries.add(rightBoundary);
-        this.spaceBoundaries.add(topBoundary);
-        this.spaceBoundaries.add(bottomBoundary);
-    }
-    
-    /**
-     * Adds a hammer to the hammer array list
-     * 
-     * @param hammer the hammer to add to the array
-     */
-    public void addHammer(Hammer hammer) {
-        this.hammerList.add(hammer);
-    }
-    
-    /**
-     * Finds the hammer in the hammer array list, and removes it
-     * 
-     * @param hammer the hammer to remove
-     */
-    public void removeHammer(Hammer hammer) {
-        this.hammerList.remove(hammer);
-    }
-    
-    /**
-     * Remove alien from the aliens array
-     * 
-     * @param alien the alien to remove
-     */
-    public void removeAlien(Alien alien) {
-        this.aliens.remove(alien);
-    }
-    
-    /**
-     * Adds a building to the building array 
-     * 
-     * @param building the building to add
-     */
-    public void addBuilding(Building building) {
-        this.buildings.add(building);
-    }
-    
-    /**
-     * Removes a building from the building array
-     * 
-     * @param building the building to remove
-     */
-    public void removeBuilding(Building building) {
-        this.buildings.remove(building);
+        // and set the simulation going, after which only its thread may
+        // touch it
+        if (threaded) {
+            this.loop.start();
+            Log.info("Ticking the simulation on its own thread at " + tickRate + " ticks a second");
+        }
     }
     
     /**
@@ -333,52 +368,88 @@ public class McHammerGame extends BasicGame implements KeyListener {
      */
     @Override
     public void render(GameContainer gc, Graphics g) throws SlickException {        
+        FrameProfiler profiler = this.profiler;
+        profiler.begin(FrameProfiler.Phase.RENDER);
+        
         // clear the screen
         g.setBackground(Color.magenta);
         
-        // move to the camera position
-        Vector2f cameraPosition = this.camera.getPosition();
-        g.translate(-1 * cameraPosition.x, -1 * cameraPosition.y);
-        
-        // render the background first
-        this.background.render(gc, g);
+        // take the latest tick, work out how far we are between it and the
+        // next one, and follow the player from where it is drawn
+        RenderSnapshot snapshot = this.loop.getSnapshots().acquire();
+        float alpha = this.loop.getAlpha(snapshot);
+        int gameState = snapshot.getGameState();
+        this.renderedGameState = gameState;
         
-        // render the worlds next
-        for (World world : this.worlds) {
-            world.render(gc, g);
+        // everything is positioned relative to the simulation's origin, so
+        // space starts wherever that puts it
+        int originX = snapshot.getOriginX();
+        int originY = snapshot.getOriginY();
+        this.camera.setViewableOrigin(-originX, -originY);
+        if (gameState == Simulation.GAME_RUNNING) {
+            RenderSnapshot.Layer player = snapshot.getPlayer();
+            SpriteInfo sprite = player.getSprite(0);
+            this.camera.setPosition(player.getInterpolatedX(0, alpha) + sprite.getWidth() / 2.0f,
+                                    player.getInterpolatedY(0, alpha) + sprite.getHeight() / 2.0f);
         }
         
-        // render any hammers
-        for (Hammer hammer : this.hammerList) {
-            hammer.render(gc, g);
-        }
+        // move to the camera position
+        float cameraX = this.camera.getX();
+        float cameraY = this.camera.getY();
+        g.translate(-1 * cameraX, -1 * cameraY);
         
-        // render any aliens
-        for (Alien alien : this.aliens) {
-            alien.render(gc, g);
-        }
+        // render the background first, in space rather than relative to the
+        // origin, so the stars don't jump when the origin moves
+        profiler.begin(FrameProfiler.Phase.RENDER_BACKGROUND);
+        g.translate(-originX, -originY);
+        this.background.render(gc,
+                               g,
+                               cameraX + originX,
+                               cameraY + originY,
+                               this.camera.getViewWidth(),
+                               this.camera.getViewHeight());
+        g.translate(originX, originY);
+        profiler.end(FrameProfiler.Phase.RENDER_BACKGROUND);
         
-        // render any buildings
-        for (Building building : this.buildings) {
-            building.render(gc, g);
+        // work out which entities are in view, and draw them from the
+        // snapshot (debug mode needs each entity to draw its own collision
+        // shapes, so draws the simulation itself)
+        profiler.begin(FrameProfiler.Phase.RENDER_CULL);
+        if (DEBUG_MODE) {
+            this.visibilityCuller.cull(this.simulation,
+                                       cameraX,
+                                       cameraY,
+                                       this.camera.getViewWidth(),
+                                       this.camera.getViewHeight());
+        } else {
+            this.visibilityCuller.cull(snapshot,
+                                       cameraX,
+                                       cameraY,
+                                       this.camera.getViewWidth(),
+                                       this.camera.getViewHeight());
         }
+        profiler.end(FrameProfiler.Phase.RENDER_CULL);
         
-        // render the player
-        this.mcHammer.render(gc, g);
+        if (DEBUG_MODE) {
+            this.renderEntities(gc, g, alpha);
+        } else {
+            this.drawSnapshot(g, snapshot, alpha);
+        }
         
         // render the score
+        profiler.begin(FrameProfiler.Phase.RENDER_HUD);
         g.setColor(Color.white);
 //        g.drawString("Score: "+ this.propertyValue, 650.0f, 10.0f);
 //        g.drawString("Time: " + this.elapsedGameTime, 650.0f, 30.0f);
-        g.drawString("Property Value: "+ this.propertyValue, this.camera.position.x + 600.0f, this.camera.position.y + 10.0f);
-        g.drawString("Time: " + Math.round(this.elapsedGameTime), this.camera.position.x + 600.0f, this.camera.position.y + 30.0f);
+        g.drawString(this.propertyValueText(snapshot.getPropertyValue()), cameraX + 600.0f, cameraY + 10.0f);
+        g.drawString(this.timeText(snapshot.getElapsedGameTime()), cameraX + 600.0f, cameraY + 30.0f);
         
-        if (this.gameState == this.GAME_MENU) {
+        if (gameState == Simulation.GAME_MENU) {
             // render the menu
             Color oldColor = g.getColor();
-            Vector2f menuOffset = new Vector2f(40.0f, 40.0f);
+            Vector2f menuOffset = MENU_OFFSET;
             
-            g.setColor(new Color(1.0f, 0.0f, 1.0f, 0.5f));
+            g.setColor(OVERLAY_COLOR);
             g.fillRect(menuOffset.x, menuOffset.y, 720.0f, 520.0f);
             
             g.setColor(Color.white);
@@ -395,263 +466,458 @@ public class McHammerGame extends BasicGame implements KeyListener {
             g.drawString("PRESS SPACEBAR TO START.", menuOffset.x + 40.0f, menuOffset.y + 320.0f);
             
             g.setColor(oldColor);
-        } else if (this.gameState == this.GAME_PAUSED) {
+        } else if (gameState == Simulation.GAME_PAUSED) {
             Color oldColor = g.getColor();
             
             Vector2f offset = this.camera.position;
             
-            g.setColor(new Color(1.0f, 0.0f, 1.0f, 0.5f));
+            g.setColor(OVERLAY_COLOR);
             g.fillRect(offset.x + 330.0f, offset.y + 250.0f, 80.0f, 55.0f);
             
             g.setColor(Color.white);
             g.drawString("PAUSED", offset.x + 300.0f + 40.0f, offset.y + 250.0f + 20.0f);
             
             g.setColor(oldColor);
-        } else if (this.gameState == this.GAME_OVER) {
+        } else if (gameState == Simulation.GAME_OVER) {
             Color oldColor = g.getColor();
             
             Vector2f offset = this.camera.position;
             
-            g.setColor(new Color(1.0f, 0.0f, 1.0f, 0.5f));
+            g.setColor(OVERLAY_COLOR);
             g.fillRect(offset.x + 230.0f, offset.y + 250.0f, 420.0f, 160.0f);
             
             g.setColor(Color.white);
             g.drawString("GAME OVER", offset.x + 200.0f + 40.0f, offset.y + 250.0f + 20.0f);
             g.drawString("Stop. Hammer time is over.", offset.x + 200.0f + 40.0f, offset.y + 250.0f + 40.0f);
-            g.drawString("You survived for " + Math.round(this.elapsedGameTime) + " seconds. Well done!", offset.x + 200.0f + 40.0f, offset.y + 250.0f + 80.0f);
+            g.drawString("You survived for " + Math.round(snapshot.getElapsedGameTime()) + " seconds. Well done!", offset.x + 200.0f + 40.0f, offset.y + 250.0f + 80.0f);
             g.drawString("Press R to Restart.", offset.x + 200.0f + 40.0f, offset.y + 250.0f + 120.0f);
             
             g.setColor(oldColor);
         }
+        
+        if (this.loop.isRewinding()) {
+            g.drawString("REWINDING. LEFT/RIGHT to scrub, F7 to play on from here.", cameraX + 10.0f, cameraY + 570.0f);
+        }
+        
+        if (this.showProfiler) {
+            this.renderProfiler(g, snapshot, cameraX + 10.0f, cameraY + 10.0f);
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_HUD);
+        
+        profiler.end(FrameProfiler.Phase.RENDER);
+        profiler.endFrame();
     }
     
     /**
-     * Updates the game by looping through all game objects that require
-     * logic updates, and calls update on that object.
+     * Draws the profiler's phase times over the game, followed by the
+     * simulation's if it is ticking on its own thread
+     * 
+     * @param g the graphics context to draw with
+     * @param snapshot the snapshot being drawn
+     * @param x the x position of the top left of the overlay
+     * @param y the y position of the top left of the overlay
+     */
+    protected void renderProfiler(Graphics g, RenderSnapshot snapshot, float x, float y) {
+        String[] lines = this.profiler.getOverlayLines();
+        String[] simulationLines = this.simulationProfileLines();
+        int rows = lines.length + 2 + (simulationLines != null ? simulationLines.length : 0);
+        Color oldColor = g.getColor();
+        
+        g.setColor(PROFILER_COLOR);
+        g.fillRect(x, y, 480.0f, rows * 16.0f + 10.0f);
+        
+        g.setColor(Color.white);
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], x + 5.0f, y + 5.0f + i * 16.0f);
+        }
+        g.drawString(this.cullText(), x + 5.0f, y + 5.0f + lines.length * 16.0f);
+        g.drawString(this.simulationText(snapshot), x + 5.0f, y + 5.0f + (lines.length + 1) * 16.0f);
+        if (simulationLines != null) {
+            for (int i = 0; i < simulationLines.length; i++) {
+                g.drawString(simulationLines[i], x + 5.0f, y + 5.0f + (lines.length + 2 + i) * 16.0f);
+            }
+        }
+        
+        g.setColor(oldColor);
+    }
+    
+    /**
+     * Draws every entity the camera can see from a snapshot, one layer
+     * after another, out of the sprite atlas with a single bind if we can
+     * 
+     * @param g the graphics context to draw with, if there is no atlas
+     * @param snapshot the snapshot to draw
+     * @param alpha how far between the snapshot's tick and the next one to
+     *              draw the entities
+     */
+    protected void drawSnapshot(Graphics g, RenderSnapshot snapshot, float alpha) throws SlickException {
+        SpriteBatch batch = this.spriteBatch;
+        if (batch != null) {
+            batch.resetCounters();
+            batch.begin();
+        }
+        
+        FrameProfiler profiler = this.profiler;
+        
+        // the worlds first
+        profiler.begin(FrameProfiler.Phase.RENDER_WORLDS);
+        this.drawLayer(g, snapshot, VisibilityCuller.WORLDS, alpha);
+        profiler.end(FrameProfiler.Phase.RENDER_WORLDS);
+        
+        // then any hammers
+        profiler.begin(FrameProfiler.Phase.RENDER_HAMMERS);
+        this.drawLayer(g, snapshot, VisibilityCuller.HAMMERS, alpha);
+        profiler.end(FrameProfiler.Phase.RENDER_HAMMERS);
+        
+        // then any aliens
+        profiler.begin(FrameProfiler.Phase.RENDER_ALIENS);
+        this.drawLayer(g, snapshot, VisibilityCuller.ALIENS, alpha);
+        profiler.end(FrameProfiler.Phase.RENDER_ALIENS);
+        
+        // then any buildings
+        profiler.begin(FrameProfiler.Phase.RENDER_BUILDINGS);
+        this.drawLayer(g, snapshot, VisibilityCuller.BUILDINGS, alpha);
+        profiler.end(FrameProfiler.Phase.RENDER_BUILDINGS);
+        
+        // and the player on top, with the batch's flush counted against it
+        profiler.begin(FrameProfiler.Phase.RENDER_PLAYER);
+        this.drawEntity(g, snapshot.getPlayer(), 0, alpha);
+        if (batch != null) {
+            batch.end();
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_PLAYER);
+    }
+    
+    /**
+     * Draws the entities in one of a snapshot's layers that the camera can
+     * see
+     * 
+     * @param g the graphics context to draw with, if there is no atlas
+     * @param snapshot the snapshot to draw
+     * @param layer the VisibilityCuller layer to draw
+     * @param alpha how far between the snapshot's tick and the next one to
+     *              draw the entities
+     */
+    protected void drawLayer(Graphics g, RenderSnapshot snapshot, int layer, float alpha) throws SlickException {
+        VisibilityCuller culler = this.visibilityCuller;
+        RenderSnapshot.Layer entities = snapshot.getLayer(layer);
+        for (int i = 0; i < culler.getVisibleCount(layer); i++) {
+            this.drawEntity(g, entities, culler.getVisibleIndex(layer, i), alpha);
+        }
+    }
+    
+    /**
+     * Draws one entity from a snapshot, into the sprite batch if there is
+     * one, otherwise with its own image
+     * 
+     * @param g the graphics context to draw with, if there is no atlas
+     * @param entities the layer the entity is in
+     * @param index the index of the entity in the layer
+     * @param alpha how far between the snapshot's tick and the next one to
+     *              draw the entity
+     */
+    protected void drawEntity(Graphics g, RenderSnapshot.Layer entities, int index, float alpha) throws SlickException {
+        SpriteInfo sprite = entities.getSprite(index);
+        if (sprite == null) {
+            return;
+        }
+        float x = entities.getInterpolatedX(index, alpha);
+        float y = entities.getInterpolatedY(index, alpha);
+        float rotation = entities.getInterpolatedRotation(index, alpha);
+        if (this.spriteBatch != null) {
+            this.spriteBatch.draw(sprite, x, y, rotation);
+        } else {
+            Image image = this.snapshotImages.get(sprite);
+            if (image == null) {
+                image = TextureCache.getInstance().acquire(sprite.getPath());
+                this.snapshotImages.put(sprite, image);
+            }
+            image.setRotation(rotation);
+            g.drawImage(image, x, y);
+        }
+    }
+    
+    /**
+     * Renders every entity the camera can see with its own render() method
+     * 
+     * @param alpha how far between the last tick and the next one to render
+     *              the entities
+     */
+    protected void renderEntities(GameContainer gc, Graphics g, float alpha) throws SlickException {
+        FrameProfiler profiler = this.profiler;
+        VisibilityCuller culler = this.visibilityCuller;
+        
+        // render the worlds next
+        profiler.begin(FrameProfiler.Phase.RENDER_WORLDS);
+        for (int i = 0; i < culler.getVisibleCount(VisibilityCuller.WORLDS); i++) {
+            culler.getVisible(VisibilityCuller.WORLDS, i).render(gc, g, alpha);
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_WORLDS);
+        
+        // render any hammers
+        profiler.begin(FrameProfiler.Phase.RENDER_HAMMERS);
+        for (int i = 0; i < culler.getVisibleCount(VisibilityCuller.HAMMERS); i++) {
+            culler.getVisible(VisibilityCuller.HAMMERS, i).render(gc, g, alpha);
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_HAMMERS);
+        
+        // render any aliens
+        profiler.begin(FrameProfiler.Phase.RENDER_ALIENS);
+        for (int i = 0; i < culler.getVisibleCount(VisibilityCuller.ALIENS); i++) {
+            culler.getVisible(VisibilityCuller.ALIENS, i).render(gc, g, alpha);
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_ALIENS);
+        
+        // render any buildings
+        profiler.begin(FrameProfiler.Phase.RENDER_BUILDINGS);
+        for (int i = 0; i < culler.getVisibleCount(VisibilityCuller.BUILDINGS); i++) {
+            culler.getVisible(VisibilityCuller.BUILDINGS, i).render(gc, g, alpha);
+        }
+        profiler.end(FrameProfiler.Phase.RENDER_BUILDINGS);
+        
+        // render the player
+        profiler.begin(FrameProfiler.Phase.RENDER_PLAYER);
+        this.simulation.mcHammer.render(gc, g, alpha);
+        profiler.end(FrameProfiler.Phase.RENDER_PLAYER);
+    }
+    
+    /**
+     * Updates the game by ticking the simulation with the input since the
+     * last update, if it isn't ticking on its own thread, and moving the
+     * background on. The camera follows the player when the game is
+     * rendered, as that is when we know where the player is drawn.
      */
     @Override
     public void update(GameContainer gc, int delta) throws SlickException {
-        if (this.gameState == this.GAME_RUNNING) {
-            // get the delta in seconds, we are actually sane.
-            float deltaSeconds = delta/1000.0f;
-
-            // increase the game time
-            this.elapsedGameTime += deltaSeconds;
-            // should we be generating aliens?
-            this.alienReleaseTimer += deltaSeconds;
-            if (this.alienReleaseTimer >= this.alienReleaseLimit/1000.0f) {
-                // reset the time
-                this.alienReleaseTimer = 0.0f;
-                // lower the limit
-                this.alienReleaseLimit -= 10.0f;
-
-                // release some aliens
-                this.alienReleaseCount += 0.5;
-                for (int i = 0; i < this.alienReleaseCount; i++) {
-                    if (this.aliens.size() < this.alienCountLimit) {
-                        this.aliens.add(new Alien());
-                    }
-                }
-            }
-
+        // the frame starts here, and ends once it has been rendered
+        FrameProfiler profiler = this.profiler;
+        profiler.beginFrame();
+        profiler.begin(FrameProfiler.Phase.UPDATE);
+        
+        // get the delta in seconds, we are actually sane.
+        float deltaSeconds = delta/1000.0f;
+        
+        // tick the simulation, unless it is ticking itself
+        this.loop.advance(deltaSeconds);
+        
+        if (this.renderedGameState == Simulation.GAME_RUNNING) {
             // update the background
-            this.background.update(gc, deltaSeconds);
-
-            // update the player
-            this.mcHammer.update(gc, deltaSeconds);
-
-            // update the hammers
-            for (Hammer hammer : this.hammerList) {
-                hammer.update(gc, deltaSeconds);
-            }
-
-            // update the aliens
-            for (Alien alien : this.aliens) {
-                alien.update(gc, deltaSeconds);
-            }
-
-            // update the buildings
-            for (Building building : this.buildings) {
-                building.update(gc, deltaSeconds);
-                
-                // update the player score
-                if (building.onPlanet) {
-                    this.propertyValue -= building.damageDone;
-                    building.damageDone = 0;
+            profiler.begin(FrameProfiler.Phase.BACKGROUND);
+            this.background.update(deltaSeconds);
+            profiler.end(FrameProfiler.Phase.BACKGROUND);
+        }
+        
+        profiler.end(FrameProfiler.Phase.UPDATE);
+    }
+    
+    /**
+     * Stops the simulation, waits for any save still being written,
+     * finishes the recording, if there is one, and dumps the profiler to
+     * the path in the mchammer.profileDump system property, if it is set,
+     * before the window closes. If the simulation had its own thread, its
+     * profiler is dumped to the path with "-simulation" added.
+     */
+    @Override
+    public boolean closeRequested() {
+        boolean threaded = this.loop.isThreaded();
+        this.loop.stop();
+        
+        // let the last save finish being written
+        if (this.loop.getSaver() != null) {
+            this.loop.getSaver().stop();
+        }
+        
+        String profilePath = System.getProperty("mchammer.profileDump");
+        if (profilePath != null) {
+            try {
+                this.profiler.dump(profilePath);
+                Log.info("Profile written to " + profilePath + ".csv and " + profilePath + ".json");
+                if (threaded) {
+                    this.simulation.getProfiler().dump(profilePath + "-simulation");
                 }
-                
+            } catch (IOException e) {
+                Log.error("Unable to write the profile to " + profilePath, e);
             }
-
-            // apply physics
-            this.simulatePhysics(deltaSeconds);
-
-            // run the collision detection
-            this.detectCollisions();
-            
-            // update the camera
-            this.camera.setPosition(new Vector2f(this.mcHammer.boundingRectangle().getCenter()));
-            
-            
-            if (this.propertyValue < 0) {
-                this.propertyValue = 0;
-                this.gameState = this.GAME_OVER;
+        }
+        
+        if (this.loop.isRecording()) {
+            try {
+                this.loop.finishRecording();
+                Log.info("Recorded " + this.simulation.getTickCount() + " ticks");
+            } catch (IOException e) {
+                Log.error("Unable to finish the recording", e);
             }
-            
-        } else if (this.gameState == GAME_MENU) {
-            
-        } else if (this.gameState == GAME_OVER) {
-            
-        } 
+        }
+        return true;
     }
     
-
     /**
-     * Runs the main physics simulation between interacting bodies
-     */
-    public void simulatePhysics(float deltaSeconds) {
-        // gravitation force = m1*m2/r^2 where r = distance between objects        
-        for (World world : this.worlds) {
-            float distance, f, a;
-            double theta, aX, aY, vX, vY;
-            
-            // calculate gravitation effects for the player
-            // calculate force
-            distance = this.mcHammer.position.distance(world.position);
-            f = (world.mass * this.mcHammer.mass) / distance;
-            // calculate acceleration
-            a = f / this.mcHammer.mass;
-            
-            // calculate components of acceleration
-            theta = Math.atan2(this.mcHammer.position.y - world.position.y,
-                                      this.mcHammer.position.x - world.position.x);
-            aX = a * Math.cos(theta);
-            aY = a * Math.sin(theta);
-            
-            // calculate resulting velocity
-            vX = this.mcHammer.velocity.x + (aX * deltaSeconds);
-            vY = this.mcHammer.velocity.y - (aY * deltaSeconds);
-            
-            this.mcHammer.setVelocity((float)vX, (float)vY);
-            
-            // calculate gravitational effects for the hammers
-            for (Hammer hammer : this.hammerList) {
-                // calculate force
-                distance = hammer.position.distance(world.position);
-                f = (world.mass * hammer.mass) / distance;
-                // calculate acceleration
-                a = f / hammer.mass;
-                
-                // calculate components of acceleration
-                theta = Math.atan2(hammer.position.y - world.position.y,
-                                   hammer.position.x - world.position.x);
-                aX = a * Math.cos(theta);
-                aY = a * Math.sin(theta);
-                
-                // calculate velocity
-                vX = hammer.velocity.x + (aX * deltaSeconds);
-                vY = hammer.velocity.y - (aY * deltaSeconds);
-                
-                hammer.setVelocity((float)vX, (float)vY);
-            }
+     * Returns the property value text, only building a new String when the
+     * value has changed
+     * 
+     * @param propertyValue the property value to show
+     * @return the text to show for the property value
+     */
+    protected String propertyValueText(int propertyValue) {
+        if (this.propertyValueText == null ||
+                this.propertyValueShown != propertyValue) {
+            this.propertyValueShown = propertyValue;
+            this.propertyValueText = "Property Value: " + this.propertyValueShown;
+        }
+        return this.propertyValueText;
+    }
+    
+    /**
+     * Returns the drawn and culled entity counts text, only building a new
+     * String when the counts have changed
+     * 
+     * @return the text to show for the culling counts
+     */
+    protected String cullText() {
+        int drawn = this.visibilityCuller.getDrawnCount();
+        int culled = this.visibilityCuller.getCulledCount();
+        if (this.cullText == null || this.cullDrawnShown != drawn || this.cullCulledShown != culled) {
+            this.cullDrawnShown = drawn;
+            this.cullCulledShown = culled;
+            this.cullText = "drawn " + drawn + ", culled " + culled;
         }
+        return this.cullText;
     }
     
     /**
-     * Detects collisions between collision objects in the world, and notifies
-     * them that a collision occurred.
+     * Returns the simulation thread text, only building a new String every
+     * SIMULATION_TEXT_REFRESH_NANOS
+     * 
+     * @param snapshot the snapshot being drawn
+     * @return the text to show for the simulation thread
+     */
+    protected String simulationText(RenderSnapshot snapshot) {
+        long now = System.nanoTime();
+        if (this.simulationText == null || now - this.simulationTextNanos >= SIMULATION_TEXT_REFRESH_NANOS) {
+            SnapshotBuffer snapshots = this.loop.getSnapshots();
+            this.simulationTextNanos = now;
+            this.simulationText = String.format(Locale.ROOT,
+                    "%s: tick %d took %.0f us, %d snapshots skipped",
+                    this.loop.isThreaded() ? "simulation thread" : "simulation",
+                    snapshot.getTickCount(),
+                    snapshot.getTickDurationNanos() / 1.0e3,
+                    snapshots.getPublishedCount() - snapshots.getAcquiredCount());
+        }
+        return this.simulationText;
+    }
+    
+    /**
+     * Returns the simulation thread's phase times, only copying its
+     * profiler every SIMULATION_TEXT_REFRESH_NANOS
+     * 
+     * @return the lines to show for the simulation thread, or null if the
+     *         simulation shares our profiler
      */
-    public void detectCollisions() {
-        for (Rectangle boundaryRect : this.spaceBoundaries) {
-            // first, make sure we are not moving out of our "space"
-            if (boundaryRect.intersects(this.mcHammer.collisionShape())) {
-                this.mcHammer.onCollision(boundaryRect);
-            }
-            
-            // collision detection for hammers
-            for (Hammer hammer : this.hammerList) {
-                // detect collisions with hammers and boundaries
-                if (boundaryRect.intersects(hammer.collisionRectangle())) {
-                    hammer.onCollision(boundaryRect);
-                }
-                
-                // collision between hammers and buildings
-                for (Building building : this.buildings) {
-                    if (hammer.collisionRectangle().intersects(building.collisionRectangle())) {
-                        hammer.onCollision(building);
-                        building.onCollision(hammer);
-                    }
-                }
-            }
+    protected String[] simulationProfileLines() {
+        if (this.simulationProfile == null) {
+            return null;
         }
-                
-        // world collisions
-        for (World world : this.worlds) {
-            // detect collisions between player and the worlds
-            if (world.collisionCircle().intersects(this.mcHammer.collisionShape())) {
-                this.mcHammer.onCollision(world);
-            }
-            
-            // detect collisions between buildings and the worlds
-            for (Building building : this.buildings) {
-                if (world.collisionCircle().intersects(building.collisionRectangle())) {
-                    building.onCollision(world);
-                }
-            }
+        long now = System.nanoTime();
+        if (now - this.simulationProfileNanos >= SIMULATION_TEXT_REFRESH_NANOS) {
+            this.simulationProfileNanos = now;
+            this.loop.copyProfile(this.simulationProfile);
         }
-        
+        return this.simulationProfile.getOverlayLines();
     }
     
-    public void keyPressed(int key, char c) {
+    /**
+     * Returns the elapsed time text, only building a new String when the
+     * number of whole seconds has changed
+     * 
+     * @param elapsedGameTime the game time to show
+     * @return the text to show for the elapsed time
+     */
+    protected String timeText(float elapsedGameTime) {
+        int seconds = Math.round(elapsedGameTime);
+        if (this.timeText == null || this.timeShown != seconds) {
+            this.timeShown = seconds;
+            this.timeText = "Time: " + seconds;
+        }
+        return this.timeText;
+    }
+    
+    /**
+     * Maps a keyboard key onto the Control it represents
+     * 
+     * @param key the Slick key code
+     * @return the matching Control, or null if the key isn't used
+     */
+    protected Control controlForKey(int key) {
         switch (key) {
             case Input.KEY_RIGHT:
-                this.mcHammer.setRotatingRight();
-                break;
+                return Control.ROTATE_RIGHT;
             case Input.KEY_LEFT:
-                this.mcHammer.setRotatingLeft();
-                break;
+                return Control.ROTATE_LEFT;
             case Input.KEY_DOWN:
-                this.mcHammer.setJetpackReverse();
-                break;
+                return Control.JETPACK_REVERSE;
             case Input.KEY_UP:
-                this.mcHammer.setJetpackOn();
-                break;
+                return Control.JETPACK_ON;
             case Input.KEY_SPACE:
-                if (this.gameState == GAME_MENU) {
-                    this.gameState = GAME_RUNNING;
-                } else {
-                    this.mcHammer.throwHammer();
-                }
-                break;
+                return Control.THROW;
             case Input.KEY_P:
-                if (this.gameState == this.GAME_RUNNING) {
-                    this.gameState = this.GAME_PAUSED;
-                } else if (this.gameState == this.GAME_PAUSED) {
-                    this.gameState = this.GAME_RUNNING;
-                }
-                break;
+                return Control.PAUSE;
             case Input.KEY_R:
-                if (this.gameState == this.GAME_OVER) {
-                    this.restartGame();
-                }
-                break;
-        }       
+                return Control.RESTART;
+        }
+        return null;
     }
-
+    
+    public void keyPressed(int key, char c) {
+        // the profiler keys are nothing to do with the game
+        if (key == Input.KEY_F3) {
+            this.showProfiler = !this.showProfiler;
+            return;
+        } else if (key == Input.KEY_F4) {
+            this.profiler.reset();
+            if (this.simulationProfile != null) {
+                this.loop.requestProfileReset();
+                this.simulationProfile.reset();
+            }
+            return;
+        } else if (key == Input.KEY_F5) {
+            this.loop.requestSave();
+            return;
+        } else if (key == Input.KEY_F9) {
+            this.loop.requestLoad();
+            return;
+        } else if (key == Input.KEY_F7) {
+            this.loop.requestRewind(!this.loop.isRewinding());
+            return;
+        }
+        
+        // while rewinding, the arrows scrub through the history, and the
+        // game gets nothing new until it plays on
+        if (this.loop.isRewinding()) {
+            if (key == Input.KEY_LEFT) {
+                this.loop.setRewindSpeed(-REWIND_SCRUB_SPEED);
+            } else if (key == Input.KEY_RIGHT) {
+                this.loop.setRewindSpeed(REWIND_SCRUB_SPEED);
+            }
+            return;
+        }
+        
+        Control control = this.controlForKey(key);
+        if (control != null) {
+            this.loop.queueInput(control, true);
+        }
+    }
+    
     public void keyReleased(int key, char c) {
-        switch (key) {
-            case Input.KEY_RIGHT:
-                this.mcHammer.setNotRotating();
-                break;
-            case Input.KEY_UP:
-                this.mcHammer.setJetpackOff();
-                break;
-            case Input.KEY_LEFT:
-                this.mcHammer.setNotRotating();
-                break;
-            case Input.KEY_DOWN:
-                this.mcHammer.setJetpackOff();
-                break;
-        }   
+        if (key == Input.KEY_LEFT || key == Input.KEY_RIGHT) {
+            this.loop.setRewindSpeed(0);
+        }
+        
+        // releases still go through while rewinding, so a key let go of
+        // then isn't held down once we play on
+        Control control = this.controlForKey(key);
+        if (control != null) {
+            this.loop.queueInput(control, false);
+        }
     }
-
+    
 }
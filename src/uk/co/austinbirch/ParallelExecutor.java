@@ -0,0 +1,224 @@
+package uk.co.austinbirch;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author Austin Birch
+ *
+ * Splits a range of work into chunks and runs them across a ForkJoinPool,
+ * returning once every chunk is done.
+ *
+ * Each chunk is handed its index as well as its range, so work that finds
+ * things (collisions, for example) can record them per chunk and play them
+ * back in chunk order afterwards. That gives the same order however many
+ * threads there are, which is what keeps a parallel tick bit-identical to
+ * a sequential one.
+ *
+ * With a parallelism of 1 there is no pool at all and every range is run
+ * on the calling thread as a single chunk. The chunk tasks are created up
+ * front and reused, so splitting work doesn't allocate. Because of that,
+ * forRange() must only be called by one thread at a time, and never from
+ * inside a task.
+ *
+ */
+public class ParallelExecutor {
+
+    // Global variables
+    
+    /**
+     * The number of chunks each thread's share of the work is split into,
+     * so a thread that finishes early can pick up another chunk
+     */
+    public static final int CHUNKS_PER_THREAD = 4;
+    
+    // Member variables
+    
+    /**
+     * The number of threads the work is spread across
+     */
+    protected int parallelism;
+    
+    /**
+     * The most chunks a range will be split into
+     */
+    protected int maxChunks;
+    
+    /**
+     * The pool the chunks run on, or null if everything runs on the caller
+     */
+    protected ForkJoinPool pool;
+    
+    /**
+     * The reusable task for each chunk
+     */
+    protected ChunkAction[] chunks;
+    
+    /**
+     * The reusable task that forks the chunks and waits for them
+     */
+    protected RootAction root;
+    
+    /**
+     * A piece of work that can be run over any part of a range
+     */
+    public interface RangeTask {
+        
+        /**
+         * Runs the work for one chunk of the range. Chunks run at the same
+         * time as each other, so this must only write to things owned by
+         * the slots in its range, or by its chunk.
+         * 
+         * @param from the first index in the chunk
+         * @param to one past the last index in the chunk
+         * @param chunk the index of the chunk, from 0 to getMaxChunks() - 1
+         */
+        public void run(int from, int to, int chunk);
+        
+    }
+    
+    /**
+     * Runs one chunk of a range
+     */
+    protected static class ChunkAction extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        protected RangeTask task;
+        protected int from;
+        protected int to;
+        protected int chunk;
+        
+        @Override
+        protected void compute() {
+            this.task.run(this.from, this.to, this.chunk);
+        }
+        
+    }
+    
+    /**
+     * Forks every chunk but the first, runs the first itself, and then waits
+     * for the rest
+     */
+    protected class RootAction extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        protected int chunkCount;
+        
+        @Override
+        protected void compute() {
+            ChunkAction[] chunks = ParallelExecutor.this.chunks;
+            for (int i = 1; i < this.chunkCount; i++) {
+                chunks[i].fork();
+            }
+            chunks[0].compute();
+            for (int i = this.chunkCount - 1; i > 0; i--) {
+                chunks[i].join();
+            }
+        }
+        
+    }
+    
+    /**
+     * Creates an executor
+     * 
+     * @param parallelism the number of threads to use, 1 to run everything on
+     *                    the calling thread, or 0 for one per processor
+     */
+    public ParallelExecutor(int parallelism) {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        this.parallelism = parallelism;
+        if (parallelism == 1) {
+            this.maxChunks = 1;
+            return;
+        }
+        
+        this.maxChunks = parallelism * CHUNKS_PER_THREAD;
+        this.pool = new ForkJoinPool(parallelism);
+        this.chunks = new ChunkAction[this.maxChunks];
+        for (int i = 0; i < this.maxChunks; i++) {
+            this.chunks[i] = new ChunkAction();
+        }
+        this.root = new RootAction();
+    }
+    
+    /**
+     * Creates an executor using the number of threads in the
+     * mchammer.threads system property, or 1 if it isn't set
+     * 
+     * @return the executor
+     */
+    public static ParallelExecutor fromSystemProperties() {
+        return new ParallelExecutor(Integer.getInteger("mchammer.threads", 1));
+    }
+    
+    /**
+     * Runs a task over the range 0 to count, split into chunks of at least
+     * minChunk, and waits for it to finish. Ranges too small to split are
+     * run on the calling thread.
+     * 
+     * @param count the size of the range
+     * @param minChunk the smallest chunk worth handing to another thread
+     * @param task the work to run
+     * @return the number of chunks the range was split into, which are
+     *         numbered from 0, or 0 if the range was empty
+     */
+    public int forRange(int count, int minChunk, RangeTask task) {
+        if (count <= 0) {
+            return 0;
+        }
+        
+        int chunkCount = Math.min(this.maxChunks, (count + minChunk - 1) / Math.max(1, minChunk));
+        if (chunkCount <= 1) {
+            task.run(0, count, 0);
+            return 1;
+        }
+        
+        for (int i = 0; i < chunkCount; i++) {
+            ChunkAction chunk = this.chunks[i];
+            chunk.reinitialize();
+            chunk.task = task;
+            chunk.from = (int)((long)count * i / chunkCount);
+            chunk.to = (int)((long)count * (i + 1) / chunkCount);
+            chunk.chunk = i;
+        }
+        this.root.reinitialize();
+        this.root.chunkCount = chunkCount;
+        try {
+            this.pool.invoke(this.root);
+        } finally {
+            for (int i = 0; i < chunkCount; i++) {
+                this.chunks[i].task = null;
+            }
+        }
+        return chunkCount;
+    }
+    
+    /**
+     * @return the number of threads the work is spread across
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+    
+    /**
+     * @return the most chunks a range will be split into, so callers can
+     *         make room for per chunk results
+     */
+    public int getMaxChunks() {
+        return this.maxChunks;
+    }
+    
+    /**
+     * Stops the pool's threads. The executor can't be used afterwards.
+     */
+    public void shutdown() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+    
+}
@@ -7,19 +7,15 @@ import org.newdawn.slick.Image;
 import org.newdawn.slick.SlickException;
 import org.newdawn.slick.geom.Rectangle;
 import org.newdawn.slick.geom.Shape;
-import org.newdawn.slick.geom.Transform;
 import org.newdawn.slick.geom.Vector2f;
 import org.newdawn.slick.util.Log;
 
-import uk.co.austinbirch.physics.ABPhysicsHelper;
+import uk.co.austinbirch.physics.MutableRectangle;
+import uk.co.austinbirch.physics.Narrowphase;
+import uk.co.austinbirch.physics.OrientedRectangle;
 
 public class Player extends Entity implements CollisionListener {
-    
-    /**
-     * The sprite for the base of McHammer's body
-     */
-    protected Image bodySprite;
-    
+
     /**
      * The image to use when the jetpack is on in normal mode
      */
@@ -45,11 +41,6 @@ public class Player extends Entity implements CollisionListener {
      */
     protected boolean rotatingLeft = false;
     
-    /**
-     * Our current amount of rotation
-     */
-    protected float rotation = 0.0f;
-    
     /**
      * The speed in which we should rotate (in degrees per second)
      */
@@ -75,31 +66,113 @@ public class Player extends Entity implements CollisionListener {
      */
     protected boolean jetpackReverse = false;
     
+    /**
+     * The rotated collision shape, reused every time it is asked for
+     */
+    protected OrientedRectangle collisionShape = new OrientedRectangle();
+    
+    /**
+     * The x position of the center of our rotated collision box
+     */
+    protected float boxCenterX;
+    
+    /**
+     * The y position of the center of our rotated collision box
+     */
+    protected float boxCenterY;
+    
+    /**
+     * The rotation that boxCos and boxSin were worked out for, NaN until
+     * they have been
+     */
+    protected float boxRotation = Float.NaN;
+    
+    /**
+     * The cosine of our rotation
+     */
+    protected float boxCos;
+    
+    /**
+     * The sine of our rotation
+     */
+    protected float boxSin;
+    
+    /**
+     * The bounding rectangle, reused every time it is asked for
+     */
+    protected MutableRectangle boundingRect;
+    
+    /**
+     * Somewhere to store the MTV when resolving collisions
+     */
+    protected Vector2f mtv = new Vector2f();
+    
+    /**
+     * The color used to draw the collision shape in debug mode
+     */
+    protected static final Color DEBUG_COLOR = new Color(0.9f, 0.0f, 0.0f, 0.6f);
+    
     /**
      * Creates a player object
+     * 
+     * @param simulation the simulation the player belongs to
      */
-    public Player() {
+    public Player(Simulation simulation) {
         super();
-        try {
-            this.jetpackOffSprite = new Image("res/images/McHammer.png");
-            this.jetpackOnSprite = new Image("res/images/McHammer_JetpackOn.png");
-            this.jetpackReverseSprite = new Image("res/images/McHammer_JetpackReverse.png");
-            this.bodySprite = this.jetpackOffSprite;
-            this.mass = 70.0f;
-            this.velocity = new Vector2f(0.0f, 0.0f);
-        } catch (SlickException e) {
-            e.printStackTrace();
-        }
+        this.simulation = simulation;
+        this.spriteInfo = SpriteInfo.PLAYER_JETPACK_OFF;
+        this.setMass(70.0f);
     }
     
     /**
      * Creates a player with a default position
      * 
+     * @param simulation the simulation the player belongs to
      * @param position the default position
      */
-    public Player(Vector2f position) {
-       this();
-       this.position = position;
+    public Player(Simulation simulation, Vector2f position) {
+       this(simulation);
+       this.setPosition(position.x, position.y);
+    }
+    
+    /**
+     * Returns the body sprite matching the current jetpack state, loading
+     * the sprites the first time they are needed.
+     * 
+     * @return the sprite for the base of McHammer's body
+     * @throws SlickException
+     */
+    protected Image getBodySprite() throws SlickException {
+        if (this.jetpackOffSprite == null) {
+            TextureCache cache = TextureCache.getInstance();
+            this.jetpackOffSprite = cache.acquire(SpriteInfo.PLAYER_JETPACK_OFF.getPath());
+            this.jetpackOnSprite = cache.acquire(SpriteInfo.PLAYER_JETPACK_ON.getPath());
+            this.jetpackReverseSprite = cache.acquire(SpriteInfo.PLAYER_JETPACK_REVERSE.getPath());
+        }
+        
+        if (this.jetpackActive) {
+            return this.jetpackOnSprite;
+        } else if (this.jetpackReverse) {
+            return this.jetpackReverseSprite;
+        }
+        return this.jetpackOffSprite;
+    }
+    
+    /**
+     * Gives the body sprites back to the TextureCache
+     */
+    @Override
+    protected void releaseSprite() {
+        if (this.jetpackOffSprite != null) {
+            TextureCache cache = TextureCache.getInstance();
+            cache.release(SpriteInfo.PLAYER_JETPACK_OFF.getPath());
+            cache.release(SpriteInfo.PLAYER_JETPACK_ON.getPath());
+            cache.release(SpriteInfo.PLAYER_JETPACK_REVERSE.getPath());
+            this.jetpackOffSprite = null;
+            this.jetpackOnSprite = null;
+            this.jetpackReverseSprite = null;
+        }
+        super.releaseSprite();
     }
     
     /** 
@@ -107,22 +180,24 @@ public class Player extends Entity implements CollisionListener {
      * separate sprites (body, arms, jetpack etc..)
      */
     @Override
-    public void render(GameContainer gc, Graphics g) {
+    public void render(GameContainer gc, Graphics g, float alpha) throws SlickException {
+        Image bodySprite = this.getBodySprite();
+        
         // rotate the sprites
-        this.bodySprite.setRotation(this.rotation);
+        bodySprite.setRotation(this.getInterpolatedRotation(alpha));
         
         // draw the bodySprite
-        g.drawImage(this.bodySprite, this.position.x, this.position.y);
+        g.drawImage(bodySprite, this.getInterpolatedX(alpha), this.getInterpolatedY(alpha));
         
         if (McHammerGame.DEBUG_MODE) {
             Color oldColor = g.getColor();
             
-            g.setColor(new Color(0.9f, 0.0f, 0.0f, 0.6f));
+            g.setColor(DEBUG_COLOR);
             g.fill(this.collisionShape());
             
             g.setColor(Color.green);
-            g.fillOval(this.position.x + this.bodySprite.getCenterOfRotationX(),
-                       this.position.y + this.bodySprite.getCenterOfRotationY(), 4, 4);
+            g.fillOval(this.getX() + this.spriteInfo.getCenterOfRotationX(),
+                       this.getY() + this.spriteInfo.getCenterOfRotationY(), 4, 4);
             
             g.setColor(oldColor);
         }
@@ -135,7 +210,7 @@ public class Player extends Entity implements CollisionListener {
     public void setJetpackOn() {
         this.jetpackActive = true;
         this.jetpackReverse = false;
-        this.bodySprite = this.jetpackOnSprite;
+        this.spriteInfo = SpriteInfo.PLAYER_JETPACK_ON;
     }
     
     /**
@@ -144,7 +219,7 @@ public class Player extends Entity implements CollisionListener {
     public void setJetpackOff() {
         this.jetpackActive = false;
         this.jetpackReverse = false;
-        this.bodySprite = this.jetpackOffSprite;
+        this.spriteInfo = SpriteInfo.PLAYER_JETPACK_OFF;
     }
     
     /**
@@ -153,11 +228,11 @@ public class Player extends Entity implements CollisionListener {
     public void setJetpackReverse() {
         this.jetpackActive = false;
         this.jetpackReverse = true;
-        this.bodySprite = this.jetpackReverseSprite;
+        this.spriteInfo = SpriteInfo.PLAYER_JETPACK_REVERSE;
     }
     
     @Override
-    public void update(GameContainer gc, float deltaSeconds) {
+    public void update(float deltaSeconds) {
         
         // update rotation
         if (this.rotatingRight) {
@@ -172,6 +247,9 @@ public class Player extends Entity implements CollisionListener {
             }
         }
         
+        float velocityX = this.getVelocityX();
+        float velocityY = this.getVelocityY();
+        
         if (this.jetpackActive || this.jetpackReverse) {
             // calculate the velocity components for x and y
             double theta = Math.toRadians(this.rotation + 90.0f);
@@ -179,66 +257,130 @@ public class Player extends Entity implements CollisionListener {
             double yVel = Math.sin(theta) * this.jetpackVelocity * deltaSeconds;
             
             if (this.jetpackActive) {
-                this.velocity.x += (float)xVel;
-                this.velocity.y -= (float)yVel;
+                velocityX += (float)xVel;
+                velocityY -= (float)yVel;
             } else if (this.jetpackReverse) {
-                this.velocity.x -= (float)xVel;
-                this.velocity.y += (float)yVel;
+                velocityX -= (float)xVel;
+                velocityY += (float)yVel;
             }
         }
         
         // make sure we are not traveling too fast
-        if (Math.abs(this.velocity.x) > this.maxVelocity) {
-            if (velocity.x < 0) {
-                this.velocity.x = -1 * this.maxVelocity;
+        if (Math.abs(velocityX) > this.maxVelocity) {
+            if (velocityX < 0) {
+                velocityX = -1 * this.maxVelocity;
             } else {
-                this.velocity.x = this.maxVelocity;
+                velocityX = this.maxVelocity;
             }
         } 
         
-        if (Math.abs(this.velocity.y) > this.maxVelocity) {
+        if (Math.abs(velocityY) > this.maxVelocity) {
             Log.info("MAX VEL!");
-            if (velocity.y < 0) {
-                this.velocity.y = -1 * this.maxVelocity;
+            if (velocityY < 0) {
+                velocityY = -1 * this.maxVelocity;
             } else {
-                this.velocity.y = this.maxVelocity;
+                velocityY = this.maxVelocity;
             }
         }
         
+        this.setVelocity(velocityX, velocityY);
+        
         // move the player
-        this.position.x -= this.velocity.x * deltaSeconds;
-        this.position.y += this.velocity.y * deltaSeconds;
+        this.setPosition(this.getX() - velocityX * deltaSeconds,
+                         this.getY() + velocityY * deltaSeconds);
     }
     
     /**
-     * Returns the collision Shape for this player object.
+     * Returns the collision Shape for this player object, for drawing.
+     * Collisions are worked out by updateCollisionBox() and touches().
+     * 
+     * The same Shape is updated and returned on every call.
      * 
      * @return the collision Shape for the player
      */
     public Shape collisionShape() {
-        Rectangle rect = new Rectangle(this.position.x,
-                                       this.position.y,
-                                       this.bodySprite.getWidth(),
-                                       this.bodySprite.getHeight());
-        return rect.transform(Transform.createRotateTransform(
-                (float) Math.toRadians(this.rotation), 
-                this.position.x + this.bodySprite.getCenterOfRotationX(),
-                this.position.y + this.bodySprite.getCenterOfRotationY()));
+        this.collisionShape.set(this.getX(),
+                                this.getY(),
+                                this.spriteInfo.getWidth(),
+                                this.spriteInfo.getHeight(),
+                                (float) Math.toRadians(this.rotation),
+                                this.getX() + this.spriteInfo.getCenterOfRotationX(),
+                                this.getY() + this.spriteInfo.getCenterOfRotationY());
+        return this.collisionShape;
+    }
+    
+    /**
+     * Works out where our collision box is, rotated about our center of
+     * rotation. The cosine and sine are only worked out again once we have
+     * turned.
+     */
+    protected void updateCollisionBox() {
+        if (this.rotation != this.boxRotation) {
+            double radians = Math.toRadians(this.rotation);
+            this.boxCos = (float)Math.cos(radians);
+            this.boxSin = (float)Math.sin(radians);
+            this.boxRotation = this.rotation;
+        }
+        
+        // rotate the middle of the sprite about the center of rotation
+        float offsetX = this.spriteInfo.getWidth() / 2 - this.spriteInfo.getCenterOfRotationX();
+        float offsetY = this.spriteInfo.getHeight() / 2 - this.spriteInfo.getCenterOfRotationY();
+        this.boxCenterX = this.getX() + this.spriteInfo.getCenterOfRotationX() +
+                offsetX * this.boxCos - offsetY * this.boxSin;
+        this.boxCenterY = this.getY() + this.spriteInfo.getCenterOfRotationY() +
+                offsetX * this.boxSin + offsetY * this.boxCos;
+    }
+    
+    /**
+     * @param rect the Rectangle to test
+     * @return whether our rotated collision box is touching rect
+     */
+    public boolean touches(Rectangle rect) {
+        this.updateCollisionBox();
+        return Narrowphase.orientedBoxIntersectsBox(this.boxCenterX, this.boxCenterY,
+                                                    this.spriteInfo.getWidth() / 2,
+                                                    this.spriteInfo.getHeight() / 2,
+                                                    this.boxCos, this.boxSin,
+                                                    rect.getX(), rect.getY(),
+                                                    rect.getWidth(), rect.getHeight());
+    }
+    
+    /**
+     * @param world the world to test
+     * @return whether our rotated collision box is touching world
+     */
+    public boolean touches(World world) {
+        this.updateCollisionBox();
+        return Narrowphase.orientedBoxIntersectsCircle(this.boxCenterX, this.boxCenterY,
+                                                       this.spriteInfo.getWidth() / 2,
+                                                       this.spriteInfo.getHeight() / 2,
+                                                       this.boxCos, this.boxSin,
+                                                       world.getCenterX(), world.getCenterY(),
+                                                       world.getRadius());
     }
     
     /**
      * Returns the rectangle that contains all of our parts
      * 
+     * The same Rectangle is updated and returned on every call.
+     * 
      * @return the bounding rectangle for the player
      */
     public Rectangle boundingRectangle() {
-        Rectangle rect = new Rectangle(this.position.x,
-                                       this.position.y,
-                                       this.bodySprite.getWidth(),
-                                       this.bodySprite.getHeight());
-        return rect;
+        if (this.boundingRect == null) {
+            this.boundingRect = new MutableRectangle(this.getX(),
+                                                     this.getY(),
+                                                     this.spriteInfo.getWidth(),
+                                                     this.spriteInfo.getHeight());
+        } else {
+            this.boundingRect.setBounds(this.getX(),
+                                        this.getY(),
+                                        this.spriteInfo.getWidth(),
+                                        this.spriteInfo.getHeight());
+        }
+        return this.boundingRect;
     }
-
+    
     /**
      * Sets this player to be rotating right, and disables rotatingLeft
      */
@@ -267,20 +409,15 @@ public class Player extends Entity implements CollisionListener {
      * Throws a hammer in our current direction 
      */
     public void throwHammer() {
-        Hammer hammer;
-        try {
-            hammer = new Hammer(new Vector2f(this.position.x + 10.0f, this.position.y + 24.0f));
-            
-            // calculate the velocity/direction for the hammer
-            double theta = Math.toRadians(this.rotation);
-            double xVel = Math.cos(theta) * 400.0f;
-            double yVel = Math.sin(theta) * 400.0f; 
-            hammer.velocity = new Vector2f((float)xVel, (float)yVel);
-            
-            McHammerGame.getInstance().addHammer(hammer);
-        } catch (SlickException e) {
-            e.printStackTrace();
-        }
+        // calculate the velocity/direction for the hammer
+        double theta = Math.toRadians(this.rotation);
+        double xVel = Math.cos(theta) * 400.0f;
+        double yVel = Math.sin(theta) * 400.0f; 
+        
+        this.simulation.spawnHammer(this.getX() + 10.0f,
+                                    this.getY() + 24.0f,
+                                    (float)xVel,
+                                    (float)yVel);
     }
     
     /**
@@ -294,21 +431,34 @@ public class Player extends Entity implements CollisionListener {
     @Override
     public void onCollision(Rectangle collisionRect) {
         // get the MTV and resolve
-        Vector2f mtv = ABPhysicsHelper.calculateMTV(this.boundingRectangle(),
-                                                    collisionRect);
-        this.position = this.position.add(mtv);
-        this.velocity = new Vector2f((float)(this.velocity.x * -0.5), (float)(this.velocity.y * -0.5));
+        this.updateCollisionBox();
+        Narrowphase.orientedBoxBoxMTV(this.boxCenterX, this.boxCenterY,
+                                      this.spriteInfo.getWidth() / 2,
+                                      this.spriteInfo.getHeight() / 2,
+                                      this.boxCos, this.boxSin,
+                                      collisionRect.getX(), collisionRect.getY(),
+                                      collisionRect.getWidth(), collisionRect.getHeight(),
+                                      this.mtv);
+        this.setPosition(this.getX() + this.mtv.x, this.getY() + this.mtv.y);
+        this.setVelocity((float)(this.getVelocityX() * -0.5), (float)(this.getVelocityY() * -0.5));
     }
-
+    
     @Override
     public void onCollision(Entity entity) {
         // get the MTV and resolve
         if (entity instanceof World) {
-            Vector2f mtv = ABPhysicsHelper.calculateMTV(this.boundingRectangle(),
-                                                        ((World) entity).collisionCircle());
-            this.position = this.position.add(mtv);
-            this.velocity = new Vector2f((float)(this.velocity.x * -1), (float)(this.velocity.y * -1));
+            World world = (World) entity;
+            this.updateCollisionBox();
+            Narrowphase.orientedBoxCircleMTV(this.boxCenterX, this.boxCenterY,
+                                             this.spriteInfo.getWidth() / 2,
+                                             this.spriteInfo.getHeight() / 2,
+                                             this.boxCos, this.boxSin,
+                                             world.getCenterX(), world.getCenterY(),
+                                             world.getRadius(),
+                                             this.mtv);
+            this.setPosition(this.getX() + this.mtv.x, this.getY() + this.mtv.y);
+            this.setVelocity((float)(this.getVelocityX() * -1), (float)(this.getVelocityY() * -1));
         }
     }
-
+    
 }
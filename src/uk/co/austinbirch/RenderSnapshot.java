@@ -0,0 +1,564 @@
+package uk.co.austinbirch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import uk.co.austinbirch.physics.KinematicStore;
+
+/**
+ * @author Austin Birch
+ *
+ * Everything needed to draw one tick of a Simulation, copied out of it at
+ * the end of the tick, so that it can be drawn on another thread while the
+ * simulation carries on with the next one.
+ *
+ * Each layer holds the position and rotation of its entities both from
+ * before the tick and after it, so they can be drawn part of the way
+ * between the two, and the sprite of each one. The arrays are only ever
+ * grown, so capturing a snapshot allocates nothing once the game has been
+ * running for a while. A snapshot is filled in by one thread and then
+ * handed over whole by a SnapshotBuffer, and isn't touched by the
+ * simulation again until the renderer has given it back.
+ *
+ * Each layer also sorts its entities into a grid of cells as it is
+ * filled, on the thread filling it, so that the renderer can find what is
+ * on screen by looking only at the cells the screen overlaps.
+ *
+ */
+public class RenderSnapshot {
+
+    // Global variables
+    
+    /**
+     * The smallest side of a cell of a layer's grid
+     */
+    protected static final float CELL_SIZE = 128.0f;
+    
+    /**
+     * The most cells a layer's grid has, when it has fewer entities than
+     * this
+     */
+    protected static final int MIN_CELLS = 64;
+    
+    // Member variables
+    
+    /**
+     * The layers of entities, indexed by the VisibilityCuller layers
+     */
+    protected Layer[] layers = new Layer[VisibilityCuller.LAYER_COUNT];
+    
+    /**
+     * The player, on its own
+     */
+    protected Layer player = new Layer();
+    
+    /**
+     * The game state, score and game time after the tick
+     */
+    protected int gameState;
+    protected int propertyValue;
+    protected float elapsedGameTime;
+    
+    /**
+     * The position in space of the origin everything in the snapshot is
+     * positioned relative to
+     */
+    protected int originX;
+    protected int originY;
+    
+    /**
+     * The number of ticks the simulation had run after the tick
+     */
+    protected long tickCount;
+    
+    /**
+     * The System.nanoTime the tick was due at, which rendering measures how
+     * far it is into the next tick from
+     */
+    protected long tickNanos;
+    
+    /**
+     * How long the tick took to run, in nanoseconds
+     */
+    protected long tickDurationNanos;
+    
+    /**
+     * The entities of one layer. Entity i of the layer is at index i of each
+     * array. Once filled, index() must be called before the layer is culled.
+     */
+    public static class Layer {
+        
+        /**
+         * The number of entities in the layer
+         */
+        protected int count = 0;
+        
+        /**
+         * The position of each entity after the tick
+         */
+        protected float[] x = new float[16];
+        protected float[] y = new float[16];
+        
+        /**
+         * The position of each entity before the tick, NaN for the ones
+         * added during it
+         */
+        protected float[] previousX = new float[16];
+        protected float[] previousY = new float[16];
+        
+        /**
+         * The rotation of each entity after and before the tick
+         */
+        protected float[] rotation = new float[16];
+        protected float[] previousRotation = new float[16];
+        
+        /**
+         * The sprite of each entity
+         */
+        protected SpriteInfo[] sprites = new SpriteInfo[16];
+        
+        /**
+         * The handle of each entity in its registry, or its index for the
+         * entities that aren't in one, which stays the same for as long as
+         * the entity is in the layer
+         */
+        protected int[] handles = new int[16];
+        
+        /**
+         * The grid the entities are sorted into by their position after the
+         * tick: the position of its top left corner, the side of a cell and
+         * one over it, and the number of cells across and down
+         */
+        protected float cellOriginX = 0.0f;
+        protected float cellOriginY = 0.0f;
+        protected float cellSize = CELL_SIZE;
+        protected float cellScale = 1.0f / CELL_SIZE;
+        protected int cellsX = 1;
+        protected int cellsY = 1;
+        
+        /**
+         * The entities in each cell, in layer order. Cell (cellX, cellY) is
+         * cellY * cellsX + cellX, and holds the entities at cellEntities
+         * from cellStarts[cell] up to cellStarts[cell + 1], so a run of
+         * cells along a row is one run of cellEntities.
+         */
+        protected int[] cellStarts = new int[2];
+        protected int[] cellEntities = new int[16];
+        
+        /**
+         * The cell of each entity, while the grid is being built
+         */
+        protected int[] entityCells = new int[16];
+        
+        /**
+         * Empties the layer, making sure it can hold a number of entities
+         * 
+         * @param capacity the number of entities about to be added
+         */
+        protected void reset(int capacity) {
+            if (this.x.length < capacity) {
+                int length = Math.max(capacity, this.x.length * 2);
+                this.x = new float[length];
+                this.y = new float[length];
+                this.previousX = new float[length];
+                this.previousY = new float[length];
+                this.rotation = new float[length];
+                this.previousRotation = new float[length];
+                this.sprites = new SpriteInfo[length];
+                this.handles = new int[length];
+            } else if (capacity < this.count) {
+                // let go of sprites that have gone
+                for (int i = capacity; i < this.count; i++) {
+                    this.sprites[i] = null;
+                }
+            }
+            this.count = capacity;
+        }
+        
+        /**
+         * Copies a registry's entities into the layer, with their positions
+         * coming straight out of its kinematic store
+         * 
+         * @param registry the registry to copy
+         */
+        protected void capture(EntityRegistry<? extends Entity> registry) {
+            KinematicStore store = registry.getKinematics();
+            int count = registry.size();
+            this.reset(count);
+            System.arraycopy(store.x, 0, this.x, 0, count);
+            System.arraycopy(store.y, 0, this.y, 0, count);
+            System.arraycopy(store.previousX, 0, this.previousX, 0, count);
+            System.arraycopy(store.previousY, 0, this.previousY, 0, count);
+            for (int i = 0; i < count; i++) {
+                Entity entity = registry.get(i);
+                this.rotation[i] = entity.rotation;
+                this.previousRotation[i] = entity.previousRotation;
+                this.sprites[i] = entity.spriteInfo;
+                this.handles[i] = entity.handle;
+            }
+            this.index();
+        }
+        
+        /**
+         * Sorts the entities into the grid by their position after the
+         * tick. The grid covers every entity, with cells no smaller than
+         * CELL_SIZE, and no more of them than there are entities (or
+         * MIN_CELLS), so building it is a counting sort over the entities
+         * and the cells, and costs no more than filling the layer.
+         */
+        protected void index() {
+            int count = this.count;
+            float[] x = this.x;
+            float[] y = this.y;
+            
+            // anything that isn't finite can never be seen, so is left out
+            // of the bounds, and clamped into a cell at the edge
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                float entityX = x[i];
+                float entityY = y[i];
+                if (entityX >= -Float.MAX_VALUE && entityX <= Float.MAX_VALUE &&
+                        entityY >= -Float.MAX_VALUE && entityY <= Float.MAX_VALUE) {
+                    minX = Math.min(minX, entityX);
+                    minY = Math.min(minY, entityY);
+                    maxX = Math.max(maxX, entityX);
+                    maxY = Math.max(maxY, entityY);
+                }
+            }
+            if (minX > maxX) {
+                minX = 0.0f;
+                minY = 0.0f;
+                maxX = 0.0f;
+                maxY = 0.0f;
+            }
+            
+            // double the cells until there are few enough of them
+            int maxCells = Math.max(MIN_CELLS, count);
+            double size = CELL_SIZE;
+            double across = Math.floor(((double)maxX - minX) / size) + 1.0;
+            double down = Math.floor(((double)maxY - minY) / size) + 1.0;
+            while (across * down > maxCells) {
+                size *= 2.0;
+                across = Math.floor(((double)maxX - minX) / size) + 1.0;
+                down = Math.floor(((double)maxY - minY) / size) + 1.0;
+            }
+            this.cellOriginX = minX;
+            this.cellOriginY = minY;
+            this.cellSize = (float)size;
+            this.cellScale = (float)(1.0 / size);
+            this.cellsX = (int)across;
+            this.cellsY = (int)down;
+            
+            int cells = this.cellsX * this.cellsY;
+            if (this.cellStarts.length < cells + 1) {
+                this.cellStarts = new int[Math.max(cells + 1, this.cellStarts.length * 2)];
+            }
+            if (this.cellEntities.length < count) {
+                int length = Math.max(count, this.cellEntities.length * 2);
+                this.cellEntities = new int[length];
+                this.entityCells = new int[length];
+            }
+            int[] starts = this.cellStarts;
+            int[] entities = this.cellEntities;
+            int[] entityCells = this.entityCells;
+            
+            // count the entities in each cell, turn the counts into where
+            // each cell ends, then fill each cell from its end back, which
+            // leaves where it starts, and its entities in layer order
+            Arrays.fill(starts, 0, cells + 1, 0);
+            for (int i = 0; i < count; i++) {
+                int cell = this.cellY(y[i]) * this.cellsX + this.cellX(x[i]);
+                entityCells[i] = cell;
+                starts[cell]++;
+            }
+            int end = 0;
+            for (int cell = 0; cell < cells; cell++) {
+                end += starts[cell];
+                starts[cell] = end;
+            }
+            starts[cells] = count;
+            for (int i = count - 1; i >= 0; i--) {
+                entities[--starts[entityCells[i]]] = i;
+            }
+        }
+        
+        /**
+         * Works out the column of the grid a position is in. This only ever
+         * goes up as x does, so every position between two others is in a
+         * column between theirs.
+         * 
+         * @param x the x position
+         * @return the column, clamped to the grid
+         */
+        public int cellX(float x) {
+            int cellX = (int)((x - this.cellOriginX) * this.cellScale);
+            return Math.max(0, Math.min(this.cellsX - 1, cellX));
+        }
+        
+        /**
+         * Works out the row of the grid a position is in. This only ever
+         * goes up as y does, so every position between two others is in a
+         * row between theirs.
+         * 
+         * @param y the y position
+         * @return the row, clamped to the grid
+         */
+        public int cellY(float y) {
+            int cellY = (int)((y - this.cellOriginY) * this.cellScale);
+            return Math.max(0, Math.min(this.cellsY - 1, cellY));
+        }
+        
+        /**
+         * Copies an entity into the layer, after the ones already in it
+         * 
+         * @param entity the entity to copy
+         * @param handle what to identify the entity by
+         */
+        protected void add(Entity entity, int handle) {
+            int i = this.count;
+            if (i == this.x.length) {
+                this.x = RenderSnapshot.grow(this.x);
+                this.y = RenderSnapshot.grow(this.y);
+                this.previousX = RenderSnapshot.grow(this.previousX);
+                this.previousY = RenderSnapshot.grow(this.previousY);
+                this.rotation = RenderSnapshot.grow(this.rotation);
+                this.previousRotation = RenderSnapshot.grow(this.previousRotation);
+                SpriteInfo[] sprites = new SpriteInfo[i * 2];
+                System.arraycopy(this.sprites, 0, sprites, 0, i);
+                this.sprites = sprites;
+                int[] handles = new int[i * 2];
+                System.arraycopy(this.handles, 0, handles, 0, i);
+                this.handles = handles;
+            }
+            this.x[i] = entity.getX();
+            this.y[i] = entity.getY();
+            this.previousX[i] = entity.kinematics.previousX[entity.slot];
+            this.previousY[i] = entity.kinematics.previousY[entity.slot];
+            this.rotation[i] = entity.rotation;
+            this.previousRotation[i] = entity.previousRotation;
+            this.sprites[i] = entity.spriteInfo;
+            this.handles[i] = handle;
+            this.count = i + 1;
+        }
+        
+        /**
+         * @return the number of entities in the layer
+         */
+        public int size() {
+            return this.count;
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @return the x position of the entity after the tick
+         */
+        public float getX(int index) {
+            return this.x[index];
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @return the y position of the entity after the tick
+         */
+        public float getY(int index) {
+            return this.y[index];
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @return the rotation of the entity after the tick
+         */
+        public float getRotation(int index) {
+            return this.rotation[index];
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @return the handle of the entity in its registry, or its index in
+         *         the simulation if it isn't in one
+         */
+        public int getHandle(int index) {
+            return this.handles[index];
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @param alpha how far between before the tick and after it, from 0
+         *              to 1
+         * @return the x position of the entity that far between the two
+         */
+        public float getInterpolatedX(int index, float alpha) {
+            float previous = this.previousX[index];
+            float current = this.x[index];
+            return previous != previous ? current : previous + (current - previous) * alpha;
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @param alpha how far between before the tick and after it, from 0
+         *              to 1
+         * @return the y position of the entity that far between the two
+         */
+        public float getInterpolatedY(int index, float alpha) {
+            float previous = this.previousY[index];
+            float current = this.y[index];
+            return previous != previous ? current : previous + (current - previous) * alpha;
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @param alpha how far between before the tick and after it, from 0
+         *              to 1
+         * @return the rotation of the entity that far between the two,
+         *         turning the short way round
+         */
+        public float getInterpolatedRotation(int index, float alpha) {
+            float previous = this.previousRotation[index];
+            float current = this.rotation[index];
+            if (previous != previous) {
+                return current;
+            }
+            float turn = (current - previous) % 360.0f;
+            if (turn > 180.0f) {
+                turn -= 360.0f;
+            } else if (turn < -180.0f) {
+                turn += 360.0f;
+            }
+            return previous + turn * alpha;
+        }
+        
+        /**
+         * @param index the index of the entity
+         * @return the sprite of the entity
+         */
+        public SpriteInfo getSprite(int index) {
+            return this.sprites[index];
+        }
+        
+    }
+    
+    /**
+     * Creates an empty snapshot
+     */
+    public RenderSnapshot() {
+        for (int i = 0; i < this.layers.length; i++) {
+            this.layers[i] = new Layer();
+        }
+    }
+    
+    /**
+     * Copies everything needed to draw a simulation into the snapshot. This
+     * must be called from the thread that ticks the simulation, between
+     * ticks.
+     * 
+     * @param simulation the simulation to copy
+     * @param tickNanos the System.nanoTime the last tick was due at
+     * @param tickDurationNanos how long the last tick took to run
+     */
+    public void capture(Simulation simulation, long tickNanos, long tickDurationNanos) {
+        ArrayList<World> worlds = simulation.worlds;
+        Layer worldLayer = this.layers[VisibilityCuller.WORLDS];
+        worldLayer.reset(0);
+        for (int i = 0; i < worlds.size(); i++) {
+            worldLayer.add(worlds.get(i), i);
+        }
+        worldLayer.index();
+        this.layers[VisibilityCuller.HAMMERS].capture(simulation.hammerList);
+        this.layers[VisibilityCuller.ALIENS].capture(simulation.aliens);
+        this.layers[VisibilityCuller.BUILDINGS].capture(simulation.buildings);
+        this.player.reset(0);
+        this.player.add(simulation.mcHammer, 0);
+        
+        this.gameState = simulation.gameState;
+        this.propertyValue = simulation.propertyValue;
+        this.elapsedGameTime = simulation.elapsedGameTime;
+        this.originX = simulation.originX;
+        this.originY = simulation.originY;
+        this.tickCount = simulation.getTickCount();
+        this.tickNanos = tickNanos;
+        this.tickDurationNanos = tickDurationNanos;
+    }
+    
+    private static float[] grow(float[] array) {
+        float[] newArray = new float[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    /**
+     * @param layer one of the VisibilityCuller layers
+     * @return the entities in the layer
+     */
+    public Layer getLayer(int layer) {
+        return this.layers[layer];
+    }
+    
+    /**
+     * @return the player, as a layer of one
+     */
+    public Layer getPlayer() {
+        return this.player;
+    }
+    
+    /**
+     * @return the game state after the tick
+     */
+    public int getGameState() {
+        return this.gameState;
+    }
+    
+    /**
+     * @return the property value after the tick
+     */
+    public int getPropertyValue() {
+        return this.propertyValue;
+    }
+    
+    /**
+     * @return the game time after the tick
+     */
+    public float getElapsedGameTime() {
+        return this.elapsedGameTime;
+    }
+    
+    /**
+     * @return the x position in space of the origin everything in the
+     *         snapshot is positioned relative to
+     */
+    public int getOriginX() {
+        return this.originX;
+    }
+    
+    /**
+     * @return the y position in space of the origin everything in the
+     *         snapshot is positioned relative to
+     */
+    public int getOriginY() {
+        return this.originY;
+    }
+    
+    /**
+     * @return the number of ticks the simulation had run
+     */
+    public long getTickCount() {
+        return this.tickCount;
+    }
+    
+    /**
+     * @return the System.nanoTime the tick was due at
+     */
+    public long getTickNanos() {
+        return this.tickNanos;
+    }
+    
+    /**
+     * @return how long the tick took to run, in nanoseconds
+     */
+    public long getTickDurationNanos() {
+        return this.tickDurationNanos;
+    }
+    
+}
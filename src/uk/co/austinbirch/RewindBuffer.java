@@ -0,0 +1,1041 @@
+package uk.co.austinbirch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.newdawn.slick.util.Log;
+
+import uk.co.austinbirch.net.NetBuffer;
+import uk.co.austinbirch.net.NetProtocol;
+
+/**
+ * @author Austin Birch
+ *
+ * Keeps the last few seconds of a game in memory, so they can be scrubbed
+ * back and forth through, and played on from any tick, without holding a
+ * copy of every tick.
+ *
+ * The history is cut into segments, each starting with a keyframe: a
+ * SaveGame of the whole simulation, for play to carry on from, and a record
+ * of everything drawn at that tick. Every tick after it only adds a record
+ * of what changed: the input, the game state, the entities removed and
+ * spawned, and how far each entity is from where its velocity would have
+ * taken it. Positions and rotations are quantized as NetProtocol sends
+ * them, so an entity drifting along or sitting still costs nothing but a
+ * place in a run of ones that didn't change.
+ *
+ * Every KEY_RECORD_TICKS records, starting with the keyframe's, a key
+ * record holds every entity whole, with its velocity, in place of what
+ * changed. A tick is put back together by reading its segment's records
+ * from the key record before it, and play carries on from it by restoring
+ * the keyframe and ticking the simulation again with the recorded input,
+ * which the simulation being deterministic leads back to the same tick. Whole
+ * segments are dropped, oldest first, once the rest cover the history
+ * asked for, or once they take more memory than allowed.
+ *
+ * Each record is laid out as varints (see NetBuffer):
+ *   the number of control changes, then each as a byte of
+ *     (control ordinal << 1) | pressed
+ *   the game state, then the change in the property value, the bits of
+ *     the game time and the origin
+ *   for each layer, then the player:
+ *     the entities removed, by one more than their distance from the last
+ *       one removed, ending with 0, each replaced by the last entity
+ *     the entities changed, by one more than the number unchanged before
+ *       them, then a byte of CHANGED_ flags and the change to each flagged
+ *       value, ending with 0
+ *     the number of entities spawned, then each one's handle, sprite,
+ *       position and rotation
+ *   or in a key record, the globals are changes from 0, and each layer is
+ *     the number of entities, then each one's handle, sprite (| SPAWNED),
+ *     position, rotation, velocity and spin
+ *
+ */
+public class RewindBuffer {
+
+    // Global variables
+    
+    /**
+     * What a changed entity has changed. The position and rotation are
+     * flagged when they are somewhere other than their velocity took them.
+     */
+    protected static final int CHANGED_X = 1;
+    protected static final int CHANGED_Y = 2;
+    protected static final int CHANGED_ROTATION = 4;
+    protected static final int CHANGED_SPRITE = 8;
+    
+    /**
+     * Marks the sprite of an entity in a key record that hasn't moved
+     * since it was spawned
+     */
+    protected static final int SPAWNED = 0x80;
+    
+    /**
+     * The number of records from one key record to the next. A key record
+     * holds every entity whole, velocity and all, so no more than this
+     * many are read to put any tick back together.
+     */
+    protected static final int KEY_RECORD_TICKS = 15;
+    
+    /**
+     * The number of tracks in a frame, one for each layer of a
+     * RenderSnapshot, and the last for the player
+     */
+    protected static final int TRACK_COUNT = VisibilityCuller.LAYER_COUNT + 1;
+    
+    /**
+     * The controls, indexed by the ordinal they are recorded with
+     */
+    protected static final Control[] CONTROLS = Control.values();
+    
+    // Member variables
+    
+    /**
+     * The number of ticks in each segment, the first of which is its
+     * keyframe
+     */
+    protected int keyframeTicks;
+    
+    /**
+     * The number of ticks of history to keep, and the most memory to keep
+     * them in, in bytes
+     */
+    protected long historyTicks;
+    protected long memoryLimit;
+    
+    /**
+     * The segments, oldest first
+     */
+    protected ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    
+    /**
+     * The last segment dropped, kept to record into next rather than
+     * creating another, or null
+     */
+    protected Segment spare;
+    
+    /**
+     * The input of the tick being recorded
+     */
+    protected InputQueue inputs = new InputQueue();
+    
+    /**
+     * What the last record left everything as, which the next record is
+     * written against
+     */
+    protected Frame recorded = new Frame();
+    
+    /**
+     * What the records read so far have put back together, the segment
+     * they were read from, and the index of the last one read
+     */
+    protected Frame played = new Frame();
+    protected Segment playedSegment;
+    protected int playedRecord = -1;
+    
+    /**
+     * The input of the last record read
+     */
+    protected InputQueue playedInputs = new InputQueue();
+    
+    /**
+     * Whether we have warned about a segment not fitting in the memory
+     */
+    protected boolean warnedMemory = false;
+    
+    /**
+     * One keyframe and the records of the ticks after it. Record i is of
+     * the tick firstTick + i, and record 0 is of the keyframe's tick.
+     */
+    protected static class Segment {
+        
+        /**
+         * The whole simulation at the first tick
+         */
+        protected SaveGame keyframe = new SaveGame();
+        
+        /**
+         * The tick the keyframe was captured at
+         */
+        protected long firstTick;
+        
+        /**
+         * The records, one after another
+         */
+        protected NetBuffer records = new NetBuffer(16 * 1024);
+        
+        /**
+         * Where each record starts in records
+         */
+        protected int[] offsets = new int[64];
+        
+        /**
+         * The number of records
+         */
+        protected int count = 0;
+        
+        /**
+         * @return the tick of the last record
+         */
+        protected long getLastTick() {
+            return this.firstTick + this.count - 1;
+        }
+        
+        /**
+         * @return the memory held by the segment, in bytes
+         */
+        protected long getMemory() {
+            return (long)this.keyframe.getCapacity() + this.records.capacity() + this.offsets.length * 4L;
+        }
+        
+    }
+    
+    /**
+     * Everything a record holds about one tick, put back together. Each
+     * track holds a layer's entities in the order they were first recorded,
+     * less the ones since removed.
+     */
+    protected static class Frame {
+        
+        /**
+         * The game state, property value, bits of the game time, and origin
+         */
+        protected int gameState;
+        protected int propertyValue;
+        protected int elapsedGameTimeBits;
+        protected int originX;
+        protected int originY;
+        
+        /**
+         * The tracks, indexed by the RenderSnapshot layers, with the player
+         * last
+         */
+        protected Track[] tracks = new Track[TRACK_COUNT];
+        
+        protected Frame() {
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i] = new Track();
+            }
+        }
+        
+        /**
+         * Empties the frame, so the next record is written against nothing
+         */
+        protected void clear() {
+            this.gameState = 0;
+            this.propertyValue = 0;
+            this.elapsedGameTimeBits = 0;
+            this.originX = 0;
+            this.originY = 0;
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i].count = 0;
+            }
+        }
+        
+        /**
+         * Makes the frame the same as another
+         * 
+         * @param frame the frame to copy
+         */
+        protected void copy(Frame frame) {
+            this.gameState = frame.gameState;
+            this.propertyValue = frame.propertyValue;
+            this.elapsedGameTimeBits = frame.elapsedGameTimeBits;
+            this.originX = frame.originX;
+            this.originY = frame.originY;
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i].copy(frame.tracks[i]);
+            }
+        }
+        
+        /**
+         * Writes a record of a tick against the frame, and moves the frame
+         * on to it
+         * 
+         * @param out the buffer to write to
+         * @param snapshot the snapshot of the tick
+         * @param inputs the input of the tick
+         * @param key whether to write a key record, which stands alone
+         */
+        protected void write(NetBuffer out, RenderSnapshot snapshot, InputQueue inputs, boolean key) {
+            out.writeVarInt(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                out.writeByte((inputs.getControl(i).ordinal() << 1) | (inputs.isPressed(i) ? 1 : 0));
+            }
+            
+            if (key) {
+                this.propertyValue = 0;
+                this.elapsedGameTimeBits = 0;
+                this.originX = 0;
+                this.originY = 0;
+            }
+            int elapsedGameTimeBits = Float.floatToIntBits(snapshot.elapsedGameTime);
+            out.writeVarInt(snapshot.gameState);
+            out.writeSignedVarInt(snapshot.propertyValue - this.propertyValue);
+            out.writeSignedVarInt(elapsedGameTimeBits - this.elapsedGameTimeBits);
+            out.writeSignedVarInt(snapshot.originX - this.originX);
+            out.writeSignedVarInt(snapshot.originY - this.originY);
+            this.gameState = snapshot.gameState;
+            this.propertyValue = snapshot.propertyValue;
+            this.elapsedGameTimeBits = elapsedGameTimeBits;
+            this.originX = snapshot.originX;
+            this.originY = snapshot.originY;
+            
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i].write(out, Frame.layer(snapshot, i), this.originX, this.originY, key);
+            }
+        }
+        
+        /**
+         * Reads the next record, moving the frame on to its tick
+         * 
+         * @param in the buffer to read from
+         * @param inputs filled with the input of the tick
+         * @param key whether it is a key record
+         * @throws IOException if the record is cut short
+         */
+        protected void read(NetBuffer in, InputQueue inputs, boolean key) throws IOException {
+            inputs.clear();
+            int count = in.readVarInt();
+            for (int i = 0; i < count; i++) {
+                int code = in.readByte();
+                if ((code >> 1) >= CONTROLS.length) {
+                    throw new IOException("Unknown control " + (code >> 1));
+                }
+                inputs.add(CONTROLS[code >> 1], (code & 1) != 0);
+            }
+            
+            if (key) {
+                this.clear();
+            }
+            this.gameState = in.readVarInt();
+            this.propertyValue += in.readSignedVarInt();
+            this.elapsedGameTimeBits += in.readSignedVarInt();
+            this.originX += in.readSignedVarInt();
+            this.originY += in.readSignedVarInt();
+            
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i].read(in, key);
+            }
+        }
+        
+        /**
+         * Fills a snapshot from the frame
+         * 
+         * @param snapshot the snapshot to fill
+         * @param step the number of ticks since the tick the snapshot should
+         *             be drawn from, which can be negative
+         */
+        protected void fill(RenderSnapshot snapshot, int step) {
+            snapshot.gameState = this.gameState;
+            snapshot.propertyValue = this.propertyValue;
+            snapshot.elapsedGameTime = Float.intBitsToFloat(this.elapsedGameTimeBits);
+            snapshot.originX = this.originX;
+            snapshot.originY = this.originY;
+            for (int i = 0; i < this.tracks.length; i++) {
+                this.tracks[i].fill(Frame.layer(snapshot, i), this.originX, this.originY, step);
+            }
+        }
+        
+        /**
+         * @return the layer of a snapshot for a track
+         */
+        protected static RenderSnapshot.Layer layer(RenderSnapshot snapshot, int track) {
+            return track < VisibilityCuller.LAYER_COUNT ? snapshot.layers[track] : snapshot.player;
+        }
+        
+    }
+    
+    /**
+     * The entities of one layer. Entity i of the track is at index i of
+     * each array, with its position in space and rotation quantized, and
+     * its velocity and spin the change in them over the last tick.
+     */
+    protected static class Track {
+        
+        /**
+         * The number of entities in the track
+         */
+        protected int count = 0;
+        
+        /**
+         * The handle each entity has in its layer
+         */
+        protected int[] handles = new int[16];
+        
+        /**
+         * The position, velocity, rotation and spin of each entity
+         */
+        protected int[] x = new int[16];
+        protected int[] y = new int[16];
+        protected int[] velocityX = new int[16];
+        protected int[] velocityY = new int[16];
+        protected int[] rotation = new int[16];
+        protected int[] spin = new int[16];
+        
+        /**
+         * The index of each entity's sprite in NetProtocol.SPRITES
+         */
+        protected byte[] sprites = new byte[16];
+        
+        /**
+         * Whether each entity was spawned in the last record, so has no
+         * velocity yet
+         */
+        protected boolean[] spawned = new boolean[16];
+        
+        /**
+         * Used while writing: the index in the layer of each entity kept,
+         * the stamp of the layer's entities that are already in the track,
+         * and the index in the layer and stamp of each id
+         */
+        protected int[] matches = new int[16];
+        protected int[] layerStamps = new int[16];
+        protected int[] slotById = new int[16];
+        protected int[] stampById = new int[16];
+        
+        /**
+         * Changes with every record written, so stamps from the last one
+         * don't match
+         */
+        protected int stamp = 0;
+        
+        /**
+         * Makes the track the same as another
+         * 
+         * @param track the track to copy
+         */
+        protected void copy(Track track) {
+            int count = track.count;
+            this.ensureCapacity(count);
+            System.arraycopy(track.handles, 0, this.handles, 0, count);
+            System.arraycopy(track.x, 0, this.x, 0, count);
+            System.arraycopy(track.y, 0, this.y, 0, count);
+            System.arraycopy(track.velocityX, 0, this.velocityX, 0, count);
+            System.arraycopy(track.velocityY, 0, this.velocityY, 0, count);
+            System.arraycopy(track.rotation, 0, this.rotation, 0, count);
+            System.arraycopy(track.spin, 0, this.spin, 0, count);
+            System.arraycopy(track.sprites, 0, this.sprites, 0, count);
+            System.arraycopy(track.spawned, 0, this.spawned, 0, count);
+            this.count = count;
+        }
+        
+        /**
+         * Moves the track on to a layer, writing how it differs from the
+         * track, or for a key record, writing the whole track once it has
+         * been moved on
+         * 
+         * @param out the buffer to write to
+         * @param layer the layer as it is now
+         * @param originX the x position in space of the layer's origin
+         * @param originY the y position in space of the layer's origin
+         * @param key whether this is a key record
+         */
+        protected void write(NetBuffer out, RenderSnapshot.Layer layer, int originX, int originY, boolean key) {
+            int size = layer.size();
+            int stamp = ++this.stamp;
+            if (this.layerStamps.length < size) {
+                this.layerStamps = new int[Math.max(size, this.layerStamps.length * 2)];
+            }
+            for (int i = 0; i < size; i++) {
+                int id = layer.handles[i] & EntityRegistry.ID_MASK;
+                if (id >= this.stampById.length) {
+                    int length = Math.max(id + 1, this.stampById.length * 2);
+                    this.slotById = Track.grow(this.slotById, length);
+                    this.stampById = Track.grow(this.stampById, length);
+                }
+                this.slotById[id] = i;
+                this.stampById[id] = stamp;
+            }
+            
+            // the entities that have gone from the layer, each replaced by
+            // the last entity in the track
+            int lastRemoved = 0;
+            for (int k = 0; k < this.count;) {
+                int handle = this.handles[k];
+                int id = handle & EntityRegistry.ID_MASK;
+                int slot = id < this.stampById.length && this.stampById[id] == stamp ? this.slotById[id] : -1;
+                if (slot >= 0 && layer.handles[slot] == handle) {
+                    this.layerStamps[slot] = stamp;
+                    this.matches[k++] = slot;
+                } else {
+                    if (!key) {
+                        out.writeVarInt(k - lastRemoved + 1);
+                    }
+                    lastRemoved = k;
+                    this.move(--this.count, k);
+                }
+            }
+            if (!key) {
+                out.writeVarInt(0);
+            }
+            int kept = this.count;
+            
+            // the ones that are somewhere their velocity didn't take them
+            int unchanged = 0;
+            for (int k = 0; k < kept; k++) {
+                int slot = this.matches[k];
+                int x = NetProtocol.quantizePosition(layer.x[slot] + originX);
+                int y = NetProtocol.quantizePosition(layer.y[slot] + originY);
+                int rotation = NetProtocol.quantizeRotation(layer.rotation[slot]);
+                int sprite = this.sprites[k];
+                if (NetProtocol.SPRITES[sprite] != layer.sprites[slot]) {
+                    sprite = NetProtocol.spriteIndex(layer.sprites[slot]);
+                }
+                
+                if (!key) {
+                    int changeX = x - this.x[k] - this.velocityX[k];
+                    int changeY = y - this.y[k] - this.velocityY[k];
+                    int changeRotation = Track.wrap(rotation - this.rotation[k] - this.spin[k]);
+                    int flags = (changeX != 0 ? CHANGED_X : 0) |
+                                (changeY != 0 ? CHANGED_Y : 0) |
+                                (changeRotation != 0 ? CHANGED_ROTATION : 0) |
+                                (sprite != this.sprites[k] ? CHANGED_SPRITE : 0);
+                    if (flags == 0) {
+                        unchanged++;
+                    } else {
+                        out.writeVarInt(unchanged + 1);
+                        out.writeByte(flags);
+                        if (changeX != 0) {
+                            out.writeSignedVarInt(changeX);
+                        }
+                        if (changeY != 0) {
+                            out.writeSignedVarInt(changeY);
+                        }
+                        if (changeRotation != 0) {
+                            out.writeSignedVarInt(changeRotation);
+                        }
+                        if (sprite != this.sprites[k]) {
+                            out.writeByte(sprite);
+                        }
+                        unchanged = 0;
+                    }
+                }
+                
+                this.velocityX[k] = x - this.x[k];
+                this.velocityY[k] = y - this.y[k];
+                this.spin[k] = Track.wrap(rotation - this.rotation[k]);
+                this.x[k] = x;
+                this.y[k] = y;
+                this.rotation[k] = rotation;
+                this.sprites[k] = (byte)sprite;
+                this.spawned[k] = false;
+            }
+            if (!key) {
+                out.writeVarInt(0);
+                out.writeVarInt(size - kept);
+            }
+            
+            // and the ones that are new
+            for (int i = 0; i < size; i++) {
+                if (this.layerStamps[i] != stamp) {
+                    int handle = layer.handles[i];
+                    int sprite = NetProtocol.spriteIndex(layer.sprites[i]);
+                    int x = NetProtocol.quantizePosition(layer.x[i] + originX);
+                    int y = NetProtocol.quantizePosition(layer.y[i] + originY);
+                    int rotation = NetProtocol.quantizeRotation(layer.rotation[i]);
+                    if (!key) {
+                        out.writeVarInt(handle);
+                        out.writeByte(sprite);
+                        out.writeSignedVarInt(x);
+                        out.writeSignedVarInt(y);
+                        out.writeVarInt(rotation);
+                    }
+                    this.spawn(handle, sprite, x, y, rotation);
+                }
+            }
+            
+            if (key) {
+                out.writeVarInt(this.count);
+                for (int k = 0; k < this.count; k++) {
+                    out.writeVarInt(this.handles[k]);
+                    out.writeByte(this.sprites[k] | (this.spawned[k] ? SPAWNED : 0));
+                    out.writeSignedVarInt(this.x[k]);
+                    out.writeSignedVarInt(this.y[k]);
+                    out.writeVarInt(this.rotation[k]);
+                    out.writeSignedVarInt(this.velocityX[k]);
+                    out.writeSignedVarInt(this.velocityY[k]);
+                    out.writeSignedVarInt(this.spin[k]);
+                }
+            }
+        }
+        
+        /**
+         * Reads how the layer changed, and moves the track on to it
+         * 
+         * @param in the buffer to read from
+         * @param key whether this is a key record, holding the whole track
+         * @throws IOException if the record is cut short
+         */
+        protected void read(NetBuffer in, boolean key) throws IOException {
+            if (key) {
+                int count = in.readVarInt();
+                this.count = 0;
+                for (int k = 0; k < count; k++) {
+                    int handle = in.readVarInt();
+                    int sprite = in.readByte();
+                    int x = in.readSignedVarInt();
+                    int y = in.readSignedVarInt();
+                    int rotation = in.readVarInt() & (NetProtocol.ROTATION_STEPS - 1);
+                    this.spawn(handle, Track.checkSprite(sprite & ~SPAWNED), x, y, rotation);
+                    this.spawned[k] = (sprite & SPAWNED) != 0;
+                    this.velocityX[k] = in.readSignedVarInt();
+                    this.velocityY[k] = in.readSignedVarInt();
+                    this.spin[k] = in.readSignedVarInt();
+                }
+                return;
+            }
+            
+            int gap = in.readVarInt();
+            int nextRemoved = gap - 1;
+            while (gap != 0) {
+                if (nextRemoved >= this.count) {
+                    throw new IOException("Entity " + nextRemoved + " of " + this.count + " removed");
+                }
+                this.move(--this.count, nextRemoved);
+                gap = in.readVarInt();
+                nextRemoved += gap - 1;
+            }
+            int kept = this.count;
+            
+            int k = 0;
+            for (int skip = in.readVarInt(); skip != 0; skip = in.readVarInt()) {
+                int next = k + skip - 1;
+                if (next >= kept) {
+                    throw new IOException("Entity " + next + " of " + kept + " changed");
+                }
+                for (; k < next; k++) {
+                    this.advance(k);
+                }
+                int flags = in.readByte();
+                int x = this.x[k] + this.velocityX[k];
+                int y = this.y[k] + this.velocityY[k];
+                int rotation = this.rotation[k] + this.spin[k];
+                if ((flags & CHANGED_X) != 0) {
+                    x += in.readSignedVarInt();
+                }
+                if ((flags & CHANGED_Y) != 0) {
+                    y += in.readSignedVarInt();
+                }
+                if ((flags & CHANGED_ROTATION) != 0) {
+                    rotation += in.readSignedVarInt();
+                }
+                if ((flags & CHANGED_SPRITE) != 0) {
+                    this.sprites[k] = (byte)Track.checkSprite(in.readByte());
+                }
+                rotation &= NetProtocol.ROTATION_STEPS - 1;
+                this.velocityX[k] = x - this.x[k];
+                this.velocityY[k] = y - this.y[k];
+                this.spin[k] = Track.wrap(rotation - this.rotation[k]);
+                this.x[k] = x;
+                this.y[k] = y;
+                this.rotation[k] = rotation;
+                this.spawned[k] = false;
+                k++;
+            }
+            for (; k < kept; k++) {
+                this.advance(k);
+            }
+            
+            int spawned = in.readVarInt();
+            for (int i = 0; i < spawned; i++) {
+                int handle = in.readVarInt();
+                int sprite = Track.checkSprite(in.readByte());
+                int x = in.readSignedVarInt();
+                int y = in.readSignedVarInt();
+                int rotation = in.readVarInt() & (NetProtocol.ROTATION_STEPS - 1);
+                this.spawn(handle, sprite, x, y, rotation);
+            }
+        }
+        
+        /**
+         * Fills a snapshot's layer from the track, and sorts it into its
+         * grid
+         * 
+         * @param layer the layer to fill
+         * @param originX the x position in space of the snapshot's origin
+         * @param originY the y position in space of the snapshot's origin
+         * @param step the number of ticks since the tick the layer should
+         *             be drawn from, which can be negative
+         */
+        protected void fill(RenderSnapshot.Layer layer, int originX, int originY, int step) {
+            int count = this.count;
+            layer.reset(count);
+            for (int k = 0; k < count; k++) {
+                layer.x[k] = NetProtocol.dequantizePosition(this.x[k]) - originX;
+                layer.y[k] = NetProtocol.dequantizePosition(this.y[k]) - originY;
+                layer.rotation[k] = NetProtocol.dequantizeRotation(this.rotation[k]);
+                if (this.spawned[k] && step != 0) {
+                    layer.previousX[k] = Float.NaN;
+                    layer.previousY[k] = Float.NaN;
+                    layer.previousRotation[k] = Float.NaN;
+                } else {
+                    layer.previousX[k] = NetProtocol.dequantizePosition(this.x[k] - this.velocityX[k] * step) - originX;
+                    layer.previousY[k] = NetProtocol.dequantizePosition(this.y[k] - this.velocityY[k] * step) - originY;
+                    layer.previousRotation[k] = NetProtocol.dequantizeRotation((this.rotation[k] - this.spin[k] * step) &
+                                                                               (NetProtocol.ROTATION_STEPS - 1));
+                }
+                layer.sprites[k] = NetProtocol.SPRITES[this.sprites[k]];
+                layer.handles[k] = this.handles[k];
+            }
+            layer.index();
+        }
+        
+        /**
+         * Moves an entity on by its velocity and spin
+         */
+        protected void advance(int k) {
+            this.x[k] += this.velocityX[k];
+            this.y[k] += this.velocityY[k];
+            this.rotation[k] = (this.rotation[k] + this.spin[k]) & (NetProtocol.ROTATION_STEPS - 1);
+            this.spawned[k] = false;
+        }
+        
+        /**
+         * Adds an entity to the end of the track, not moving yet
+         */
+        protected void spawn(int handle, int sprite, int x, int y, int rotation) {
+            int k = this.count;
+            this.ensureCapacity(k + 1);
+            this.handles[k] = handle;
+            this.x[k] = x;
+            this.y[k] = y;
+            this.velocityX[k] = 0;
+            this.velocityY[k] = 0;
+            this.rotation[k] = rotation;
+            this.spin[k] = 0;
+            this.sprites[k] = (byte)sprite;
+            this.spawned[k] = true;
+            this.count = k + 1;
+        }
+        
+        /**
+         * Moves an entity to an earlier index, over one that has gone
+         */
+        protected void move(int from, int to) {
+            if (from != to) {
+                this.handles[to] = this.handles[from];
+                this.x[to] = this.x[from];
+                this.y[to] = this.y[from];
+                this.velocityX[to] = this.velocityX[from];
+                this.velocityY[to] = this.velocityY[from];
+                this.rotation[to] = this.rotation[from];
+                this.spin[to] = this.spin[from];
+                this.sprites[to] = this.sprites[from];
+                this.spawned[to] = this.spawned[from];
+            }
+        }
+        
+        /**
+         * Makes sure the track can hold a number of entities
+         */
+        protected void ensureCapacity(int capacity) {
+            if (this.handles.length < capacity) {
+                int length = Math.max(capacity, this.handles.length * 2);
+                this.handles = Track.grow(this.handles, length);
+                this.x = Track.grow(this.x, length);
+                this.y = Track.grow(this.y, length);
+                this.velocityX = Track.grow(this.velocityX, length);
+                this.velocityY = Track.grow(this.velocityY, length);
+                this.rotation = Track.grow(this.rotation, length);
+                this.spin = Track.grow(this.spin, length);
+                this.matches = new int[length];
+                byte[] sprites = new byte[length];
+                System.arraycopy(this.sprites, 0, sprites, 0, this.sprites.length);
+                this.sprites = sprites;
+                boolean[] spawned = new boolean[length];
+                System.arraycopy(this.spawned, 0, spawned, 0, this.spawned.length);
+                this.spawned = spawned;
+            }
+        }
+        
+        /**
+         * @return a change in rotation, the short way round
+         */
+        protected static int wrap(int rotation) {
+            return (short)rotation;
+        }
+        
+        /**
+         * @return a sprite index that has been read
+         * @throws IOException if there is no sprite with that index
+         */
+        protected static int checkSprite(int sprite) throws IOException {
+            if (sprite >= NetProtocol.SPRITES.length) {
+                throw new IOException("Unknown sprite " + sprite);
+            }
+            return sprite;
+        }
+        
+        private static int[] grow(int[] array, int length) {
+            int[] newArray = new int[length];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+        
+    }
+    
+    /**
+     * Creates an empty buffer
+     * 
+     * @param keyframeTicks the number of ticks between keyframes
+     * @param historyTicks the number of ticks to keep
+     * @param memoryLimit the most memory to keep them in, in bytes
+     */
+    public RewindBuffer(int keyframeTicks, long historyTicks, long memoryLimit) {
+        this.keyframeTicks = Math.max(1, keyframeTicks);
+        this.historyTicks = Math.max(1, historyTicks);
+        this.memoryLimit = memoryLimit;
+    }
+    
+    /**
+     * Keeps the input of the tick about to be run, to be recorded along
+     * with it. This must be called before each tick that is recorded, as
+     * the tick empties the queue.
+     * 
+     * @param inputs the input of the tick
+     */
+    public void recordInputs(InputQueue inputs) {
+        this.inputs.clear();
+        for (int i = 0; i < inputs.size(); i++) {
+            this.inputs.add(inputs.getControl(i), inputs.isPressed(i));
+        }
+    }
+    
+    /**
+     * Records the tick the simulation has just run. This must be called
+     * after each tick, between ticks, on the thread that ticks it. A tick
+     * that doesn't follow the last one recorded starts the history again.
+     * 
+     * @param simulation the simulation
+     * @param snapshot the snapshot just captured from it
+     */
+    public void record(Simulation simulation, RenderSnapshot snapshot) {
+        long tick = simulation.getTickCount();
+        Segment segment = this.segments.peekLast();
+        if (segment != null && tick != segment.firstTick + segment.count) {
+            this.clear();
+            segment = null;
+        }
+        if (segment == null || segment.count == this.keyframeTicks) {
+            segment = this.startSegment(simulation, tick);
+        }
+        
+        if (segment.count == segment.offsets.length) {
+            int[] offsets = new int[segment.count * 2];
+            System.arraycopy(segment.offsets, 0, offsets, 0, segment.count);
+            segment.offsets = offsets;
+        }
+        segment.offsets[segment.count] = segment.records.size();
+        this.recorded.write(segment.records, snapshot, this.inputs, segment.count % KEY_RECORD_TICKS == 0);
+        segment.count++;
+        this.inputs.clear();
+        
+        this.trim();
+    }
+    
+    /**
+     * Starts a segment with a keyframe of the simulation as it is
+     */
+    protected Segment startSegment(Simulation simulation, long tick) {
+        Segment segment = this.spare != null ? this.spare : new Segment();
+        this.spare = null;
+        if (segment == this.playedSegment) {
+            this.playedSegment = null;
+        }
+        segment.keyframe.capture(simulation);
+        segment.firstTick = tick;
+        segment.records.clear();
+        segment.count = 0;
+        this.segments.addLast(segment);
+        return segment;
+    }
+    
+    /**
+     * Drops the oldest segments while the rest still cover the history, or
+     * while there is more than the memory allows
+     */
+    protected void trim() {
+        long newestTick = this.segments.peekLast().getLastTick();
+        while (this.segments.size() > 1) {
+            Iterator<Segment> iterator = this.segments.iterator();
+            iterator.next();
+            if (newestTick - iterator.next().firstTick < this.historyTicks) {
+                break;
+            }
+            this.drop(this.segments.pollFirst());
+        }
+        
+        if (this.getMemoryUsed() > this.memoryLimit) {
+            this.spare = null;
+            while (this.segments.size() > 1 && this.getMemoryUsed() > this.memoryLimit) {
+                this.drop(this.segments.pollFirst());
+                this.spare = null;
+            }
+            if (this.getMemoryUsed() > this.memoryLimit) {
+                // one segment is too big, so start again at the next tick
+                if (!this.warnedMemory) {
+                    this.warnedMemory = true;
+                    Log.warn("A segment of rewind history takes more than " + this.memoryLimit + " bytes");
+                }
+                this.clear();
+                this.spare = null;
+            }
+        }
+    }
+    
+    /**
+     * Keeps a dropped segment to be reused
+     */
+    protected void drop(Segment segment) {
+        if (segment == this.playedSegment) {
+            this.playedSegment = null;
+        }
+        this.spare = segment;
+    }
+    
+    /**
+     * Forgets the whole history
+     */
+    public void clear() {
+        while (!this.segments.isEmpty()) {
+            this.drop(this.segments.pollFirst());
+        }
+        this.recorded.clear();
+    }
+    
+    /**
+     * Puts a tick back together, for drawing. This must be done on the
+     * thread that records the ticks, and reading ticks one after another
+     * only reads the records between them.
+     * 
+     * @param tick the tick, from getOldestTick() to getNewestTick()
+     * @param step the number of ticks since the tick last drawn, which the
+     *             snapshot's entities are drawn moving on from
+     * @param snapshot the snapshot to fill
+     * @param tickNanos the System.nanoTime to draw it as due at
+     * @throws IOException if the tick isn't in the history, or can't be
+     *                     read
+     */
+    public void reconstruct(long tick, int step, RenderSnapshot snapshot, long tickNanos) throws IOException {
+        long start = System.nanoTime();
+        Segment segment = this.find(tick);
+        this.readTo(segment, (int)(tick - segment.firstTick));
+        this.played.fill(snapshot, step);
+        snapshot.tickCount = tick;
+        snapshot.tickNanos = tickNanos;
+        snapshot.tickDurationNanos = System.nanoTime() - start;
+    }
+    
+    /**
+     * Puts the simulation back to a tick, to play on from there. The
+     * keyframe before it is restored and ticked on with the recorded input,
+     * and everything recorded after the tick is forgotten. This must be
+     * done between ticks, on the thread that ticks the simulation.
+     * 
+     * @param simulation the simulation the history was recorded from
+     * @param tick the tick, from getOldestTick() to getNewestTick()
+     * @param deltaSeconds the length of the ticks that were recorded
+     * @throws IOException if the tick isn't in the history, or can't be
+     *                     read
+     */
+    public void resume(Simulation simulation, long tick, float deltaSeconds) throws IOException {
+        Segment segment = this.find(tick);
+        int record = (int)(tick - segment.firstTick);
+        segment.keyframe.restore(simulation);
+        this.playedSegment = null;
+        this.readTo(segment, 0);
+        for (int i = 1; i <= record; i++) {
+            this.readTo(segment, i);
+            simulation.tick(this.playedInputs, deltaSeconds);
+        }
+        if (simulation.getTickCount() != tick) {
+            throw new IOException("Played on to tick " + simulation.getTickCount() + ", not " + tick);
+        }
+        
+        // forget what came after, and record on from here
+        while (this.segments.peekLast() != segment) {
+            this.drop(this.segments.pollLast());
+        }
+        if (record + 1 < segment.count) {
+            segment.records.truncate(segment.offsets[record + 1]);
+            segment.count = record + 1;
+        }
+        this.recorded.copy(this.played);
+    }
+    
+    /**
+     * Reads a segment's records up to one, from the key record before it,
+     * or carrying on from the last one read if that is closer
+     */
+    protected void readTo(Segment segment, int record) throws IOException {
+        int key = record - record % KEY_RECORD_TICKS;
+        if (segment != this.playedSegment || record < this.playedRecord || key > this.playedRecord) {
+            this.playedSegment = segment;
+            this.playedRecord = key - 1;
+            segment.records.seek(segment.offsets[key]);
+        }
+        while (this.playedRecord < record) {
+            this.playedRecord++;
+            this.played.read(segment.records, this.playedInputs, this.playedRecord % KEY_RECORD_TICKS == 0);
+        }
+    }
+    
+    /**
+     * @return the segment holding a tick
+     * @throws IOException if the tick isn't in the history
+     */
+    protected Segment find(long tick) throws IOException {
+        for (Segment segment : this.segments) {
+            if (tick >= segment.firstTick && tick <= segment.getLastTick()) {
+                return segment;
+            }
+        }
+        throw new IOException("Tick " + tick + " isn't in the rewind history");
+    }
+    
+    /**
+     * @return whether there is no history
+     */
+    public boolean isEmpty() {
+        return this.segments.isEmpty();
+    }
+    
+    /**
+     * @return the oldest tick in the history, which must not be empty
+     */
+    public long getOldestTick() {
+        return this.segments.peekFirst().firstTick;
+    }
+    
+    /**
+     * @return the newest tick in the history, which must not be empty
+     */
+    public long getNewestTick() {
+        return this.segments.peekLast().getLastTick();
+    }
+    
+    /**
+     * @return the memory the history is kept in, in bytes
+     */
+    public long getMemoryUsed() {
+        long memory = this.spare != null ? this.spare.getMemory() : 0;
+        for (Segment segment : this.segments) {
+            memory += segment.getMemory();
+        }
+        return memory;
+    }
+    
+    /**
+     * @return the number of bytes of records, not counting the keyframes
+     */
+    public long getRecordedBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.records.size();
+        }
+        return bytes;
+    }
+    
+}
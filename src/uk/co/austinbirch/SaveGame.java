@@ -0,0 +1,769 @@
+package uk.co.austinbirch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import uk.co.austinbirch.physics.KinematicStore;
+
+/**
+ * @author Austin Birch
+ *
+ * Everything a Simulation needs to carry on exactly where it was, as one
+ * block of bytes that can be put straight into a file and mapped straight
+ * back out of it. A game saved between two ticks and restored plays out
+ * just as it would have, with the same random numbers, so it ends up with
+ * the same state hash.
+ *
+ * Only what decides how the game plays out is saved. What is worked out
+ * afresh each tick (the broadphase, the gravity trees) isn't, and neither
+ * is where things were drawn last tick, so everything is drawn where it is
+ * until the next tick.
+ *
+ * The bytes are little endian, and are laid out as
+ *   int      MAGIC
+ *   short    VERSION
+ *   short    0, for now
+ *   int      the number of bytes after the header
+ *   int      the CRC32 of the bytes after the header
+ *   long     the simulation's seed
+ *   int      the simulation's hammer cap
+ *   short    the length of the scenario's name, then the name in UTF-8
+ *   int      the number of worlds
+ *   int      the width and height of space
+ *   int      the most aliens there can be
+ *   float    the time before the first alien release, in milliseconds
+ *   float    the number of aliens in the first release, less a half
+ *   int      how far apart the worlds are spread across a row
+ *   int      the size of each chunk of space, 0 if space is one chunk
+ *   int      how many chunks out from the player are simulated in full
+ *   byte     whether the hammers pull on each other and on the buildings
+ *   long     the state of the random number generator
+ *   long     the number of ticks run
+ *   int      the game state and the property value
+ *   float    the elapsed game time, the alien release timer, the alien
+ *            release limit and the alien release count
+ *   universe the window and everything paged out, see Universe.write()
+ *   float    the player's position, velocity, mass and rotation
+ *   byte     the player's controls, from the PLAYER bits
+ *   then the hammers, the aliens and the buildings, each as
+ *     int    the number of entities, and the number of those queued to be
+ *            added at the next flush
+ *     float  the position, velocity and mass of every entity that isn't
+ *            queued, each a column of its own in the order the entities
+ *            are in, just as their KinematicStore holds them
+ *            then the rest of each of those entities, as in put*() below
+ *     float  the position, velocity and mass of each queued entity, then
+ *            the rest of it
+ *
+ * A save game is only ever touched by one thread at a time. The buffer is
+ * reused from one capture() to the next, so saving as often as the game
+ * likes costs nothing once it has grown to fit.
+ *
+ */
+public class SaveGame {
+
+    // Global variables
+    
+    /**
+     * The first four bytes of a save, "MCHS"
+     */
+    public static final int MAGIC = 0x4d434853;
+    
+    /**
+     * The version of the layout
+     */
+    public static final short VERSION = 1;
+    
+    /**
+     * The number of bytes before the body, and where the body's length and
+     * CRC32 are in them
+     */
+    public static final int HEADER_BYTES = 16;
+    protected static final int LENGTH_OFFSET = 8;
+    protected static final int CRC_OFFSET = 12;
+    
+    /**
+     * More than enough bytes for everything that doesn't depend on how
+     * much there is in the game
+     */
+    protected static final int FIXED_BYTES = 256;
+    
+    /**
+     * The bytes each entity takes: its kinematics, then the rest of a
+     * hammer, an alien and a building
+     */
+    protected static final int BODY_BYTES = 20;
+    protected static final int HAMMER_BYTES = 4;
+    protected static final int ALIEN_BYTES = 17;
+    protected static final int BUILDING_BYTES = 10;
+    
+    /**
+     * The player's controls
+     */
+    protected static final int PLAYER_ROTATING_LEFT = 1;
+    protected static final int PLAYER_ROTATING_RIGHT = 2;
+    protected static final int PLAYER_JETPACK_ON = 4;
+    protected static final int PLAYER_JETPACK_REVERSE = 8;
+    
+    /**
+     * A building's flags
+     */
+    protected static final int BUILDING_ON_PLANET = 1;
+    protected static final int BUILDING_DEAD = 2;
+    
+    // Member variables
+    
+    /**
+     * The whole save, header and all, from 0 to its limit
+     */
+    protected ByteBuffer buffer;
+    
+    /**
+     * Works out the CRC32 of the body
+     */
+    protected CRC32 crc = new CRC32();
+    
+    /**
+     * Creates an empty save, to be filled in by capture()
+     */
+    public SaveGame() {
+        this(ByteBuffer.allocateDirect(64 * 1024));
+        this.buffer.limit(0);
+    }
+    
+    /**
+     * Creates a save over some bytes
+     * 
+     * @param buffer the bytes, from 0 to their limit
+     */
+    protected SaveGame(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Saves a simulation as it is. This must be done between ticks, on the
+     * thread that ticks it.
+     * 
+     * @param simulation the simulation to save
+     */
+    public void capture(Simulation simulation) {
+        Scenario scenario = simulation.scenario;
+        byte[] name = scenario.getName().getBytes(StandardCharsets.UTF_8);
+        int hammersQueued = SaveGame.queuedCount(simulation.hammerList);
+        int aliensQueued = SaveGame.queuedCount(simulation.aliens);
+        int buildingsQueued = SaveGame.queuedCount(simulation.buildings);
+        this.ensureCapacity(HEADER_BYTES + FIXED_BYTES + name.length +
+                            simulation.universe.getSavedSize() +
+                            (simulation.hammerList.size() + hammersQueued) * (BODY_BYTES + HAMMER_BYTES) +
+                            (simulation.aliens.size() + aliensQueued) * (BODY_BYTES + ALIEN_BYTES) +
+                            (simulation.buildings.size() + buildingsQueued) * (BODY_BYTES + BUILDING_BYTES));
+        
+        ByteBuffer out = this.buffer;
+        out.clear();
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort((short)0);
+        out.putInt(0);
+        out.putInt(0);
+        
+        out.putLong(simulation.seed);
+        out.putInt(simulation.hammerCap);
+        out.putShort((short)name.length);
+        out.put(name);
+        out.putInt(scenario.getWorldCount());
+        out.putInt(scenario.getSpaceWidth());
+        out.putInt(scenario.getSpaceHeight());
+        out.putInt(scenario.getAlienCountLimit());
+        out.putFloat(scenario.getAlienReleaseLimit());
+        out.putFloat(scenario.getAlienReleaseCount());
+        out.putInt(scenario.getWorldSpacing());
+        out.putInt(scenario.getChunkSize());
+        out.putInt(scenario.getActiveRadius());
+        out.put(scenario.hasMutualGravity() ? (byte)1 : (byte)0);
+        
+        out.putLong(simulation.random.getState());
+        out.putLong(simulation.tickCount);
+        out.putInt(simulation.gameState);
+        out.putInt(simulation.propertyValue);
+        out.putFloat(simulation.elapsedGameTime);
+        out.putFloat(simulation.alienReleaseTimer);
+        out.putFloat(simulation.alienReleaseLimit);
+        out.putFloat(simulation.alienReleaseCount);
+        
+        simulation.universe.write(out);
+        
+        Player player = simulation.mcHammer;
+        this.putBody(player);
+        out.putFloat(player.rotation);
+        out.put((byte)((player.rotatingLeft ? PLAYER_ROTATING_LEFT : 0) |
+                       (player.rotatingRight ? PLAYER_ROTATING_RIGHT : 0) |
+                       (player.jetpackActive ? PLAYER_JETPACK_ON : 0) |
+                       (player.jetpackReverse ? PLAYER_JETPACK_REVERSE : 0)));
+        
+        EntityRegistry<Hammer> hammers = simulation.hammerList;
+        this.putKinematics(hammers, hammersQueued);
+        for (int i = 0; i < hammers.size(); i++) {
+            this.putHammer(hammers.get(i));
+        }
+        for (int i = 0; i < hammers.getPendingAddCount(); i++) {
+            Hammer hammer = hammers.getPendingAdd(i);
+            if (hammer != null) {
+                this.putBody(hammer);
+                this.putHammer(hammer);
+            }
+        }
+        
+        EntityRegistry<Alien> aliens = simulation.aliens;
+        this.putKinematics(aliens, aliensQueued);
+        for (int i = 0; i < aliens.size(); i++) {
+            this.putAlien(aliens.get(i));
+        }
+        for (int i = 0; i < aliens.getPendingAddCount(); i++) {
+            Alien alien = aliens.getPendingAdd(i);
+            if (alien != null) {
+                this.putBody(alien);
+                this.putAlien(alien);
+            }
+        }
+        
+        EntityRegistry<Building> buildings = simulation.buildings;
+        this.putKinematics(buildings, buildingsQueued);
+        for (int i = 0; i < buildings.size(); i++) {
+            this.putBuilding(buildings.get(i));
+        }
+        for (int i = 0; i < buildings.getPendingAddCount(); i++) {
+            Building building = buildings.getPendingAdd(i);
+            if (building != null) {
+                this.putBody(building);
+                this.putBuilding(building);
+            }
+        }
+        
+        out.putInt(LENGTH_OFFSET, out.position() - HEADER_BYTES);
+        out.flip();
+    }
+    
+    /**
+     * Puts a simulation back as it was when this was captured. The entities
+     * in it now are reused, with any more than the save holds going back to
+     * the pools, so restoring over a simulation much like the saved one
+     * creates nothing. This must be done between ticks, on the thread that
+     * ticks it.
+     * 
+     * @param simulation the simulation to restore, which must have been
+     *                   created with the same scenario as the saved one
+     * @throws IOException if the save is of another scenario, in which case
+     *                     the simulation is left as it was, or can't be read
+     */
+    public void restore(Simulation simulation) throws IOException {
+        ByteBuffer in = this.body();
+        try {
+            long seed = in.getLong();
+            int hammerCap = in.getInt();
+            Scenario scenario = SaveGame.getScenario(in, hammerCap);
+            if (!SaveGame.isSameScenario(scenario, simulation.scenario)) {
+                throw new IOException("The save is of the " + scenario + " scenario, not " + simulation.scenario);
+            }
+            
+            // settle anything queued, so each registry can be trimmed or
+            // topped up to the saved count and what is in it reused
+            simulation.flushEntities();
+            
+            simulation.seed = seed;
+            simulation.random.setState(in.getLong());
+            simulation.tickCount = in.getLong();
+            simulation.gameState = in.getInt();
+            simulation.propertyValue = in.getInt();
+            simulation.elapsedGameTime = in.getFloat();
+            simulation.alienReleaseTimer = in.getFloat();
+            simulation.alienReleaseLimit = in.getFloat();
+            simulation.alienReleaseCount = in.getFloat();
+            
+            // this moves the simulation's frame, so must come before anything
+            // is put into it
+            simulation.universe.read(in);
+            
+            Player player = simulation.mcHammer;
+            this.getBody(in, player);
+            player.rotation = in.getFloat();
+            player.previousRotation = Float.NaN;
+            int controls = in.get();
+            if ((controls & PLAYER_JETPACK_ON) != 0) {
+                player.setJetpackOn();
+            } else if ((controls & PLAYER_JETPACK_REVERSE) != 0) {
+                player.setJetpackReverse();
+            } else {
+                player.setJetpackOff();
+            }
+            if ((controls & PLAYER_ROTATING_RIGHT) != 0) {
+                player.setRotatingRight();
+            } else if ((controls & PLAYER_ROTATING_LEFT) != 0) {
+                player.setRotatingLeft();
+            } else {
+                player.setNotRotating();
+            }
+            KinematicStore playerStore = player.kinematics;
+            playerStore.previousX[player.slot] = player.getX();
+            playerStore.previousY[player.slot] = player.getY();
+            
+            this.getHammers(in, simulation);
+            this.getAliens(in, simulation);
+            this.getBuildings(in, simulation);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The save is cut short", e);
+        }
+    }
+    
+    /**
+     * Creates a simulation with the saved scenario and seed, and restores
+     * it
+     * 
+     * @return the simulation, as it was when this was captured
+     * @throws IOException if the save can't be read
+     */
+    public Simulation createSimulation() throws IOException {
+        ByteBuffer in = this.body();
+        Simulation simulation;
+        try {
+            long seed = in.getLong();
+            int hammerCap = in.getInt();
+            simulation = new Simulation(SaveGame.getScenario(in, hammerCap), seed);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The save is cut short", e);
+        }
+        this.restore(simulation);
+        return simulation;
+    }
+    
+    /**
+     * Writes the save to a file, through a file alongside it that is moved
+     * into place once it has all been written, so the file is never left
+     * half written
+     * 
+     * @param file the file to write to
+     * @throws IOException if it can't be written
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer body = this.body();
+        this.crc.reset();
+        this.crc.update(body);
+        this.buffer.putInt(CRC_OFFSET, (int)this.crc.getValue());
+        
+        File temporary = new File(file.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(temporary.toPath(),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer out = this.buffer.duplicate();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        
+        try {
+            Files.move(temporary.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Maps a save in from a file. Nothing is copied out of the file; the
+     * save is restored straight from the mapping.
+     * 
+     * @param file the file written by write()
+     * @return the save
+     * @throws IOException if the file can't be read or isn't a whole save
+     */
+    public static SaveGame read(File file) throws IOException {
+        MappedByteBuffer mapped;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a McHammer save");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // the mapping lasts after the channel is closed
+            channel.close();
+        }
+        
+        SaveGame save = new SaveGame(mapped);
+        if (mapped.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a McHammer save");
+        }
+        short version = mapped.getShort(4);
+        if (version != VERSION) {
+            throw new IOException(file + " is a version " + version + " save, expected version " + VERSION);
+        }
+        int length = mapped.getInt(LENGTH_OFFSET);
+        if (length < 0 || length > mapped.capacity() - HEADER_BYTES) {
+            throw new IOException(file + " is cut short");
+        }
+        mapped.limit(HEADER_BYTES + length);
+        save.crc.update(save.body());
+        if ((int)save.crc.getValue() != mapped.getInt(CRC_OFFSET)) {
+            throw new IOException(file + " is corrupt");
+        }
+        return save;
+    }
+    
+    /**
+     * @return the size of the save, header and all, in bytes
+     */
+    public int getSize() {
+        return this.buffer.limit();
+    }
+    
+    /**
+     * @return the number of bytes held for the save, which is at least its
+     *         size
+     */
+    public int getCapacity() {
+        return this.buffer.capacity();
+    }
+    
+    /**
+     * @return the body of the save, ready to be read from the start
+     */
+    protected ByteBuffer body() {
+        ByteBuffer body = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        body.position(HEADER_BYTES);
+        return body;
+    }
+    
+    /**
+     * Makes sure the buffer can hold a save of a given size, replacing it
+     * if it can't, or if it is a file mapped by read()
+     * 
+     * @param bytes the size of the save
+     */
+    protected void ensureCapacity(int bytes) {
+        if (this.buffer.capacity() < bytes || this.buffer.isReadOnly()) {
+            int capacity = Math.max(bytes, this.buffer.capacity() * 2);
+            this.buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    
+    /**
+     * @return the number of entities queued to be added to a registry that
+     *         still will be
+     */
+    protected static int queuedCount(EntityRegistry<?> registry) {
+        int queued = 0;
+        for (int i = 0; i < registry.getPendingAddCount(); i++) {
+            if (registry.getPendingAdd(i) != null) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+    
+    /**
+     * Writes the counts of a registry's entities, then the kinematics of
+     * the ones that aren't queued, a column at a time straight from their
+     * store
+     * 
+     * @param registry the registry
+     * @param queued the number of entities queued to be added to it
+     */
+    protected void putKinematics(EntityRegistry<?> registry, int queued) {
+        int count = registry.size();
+        KinematicStore store = registry.getKinematics();
+        this.buffer.putInt(count + queued);
+        this.buffer.putInt(queued);
+        this.putColumn(store.x, count);
+        this.putColumn(store.y, count);
+        this.putColumn(store.vx, count);
+        this.putColumn(store.vy, count);
+        this.putColumn(store.mass, count);
+    }
+    
+    /**
+     * Reads the kinematics written by putKinematics() straight into the
+     * store of a registry that holds that many entities. They start this
+     * tick where they are put.
+     * 
+     * @param in the buffer to read from
+     * @param registry the registry
+     * @param count the number of entities that aren't queued
+     */
+    protected void getKinematics(ByteBuffer in, EntityRegistry<?> registry, int count) {
+        KinematicStore store = registry.getKinematics();
+        SaveGame.getColumn(in, store.x, count);
+        SaveGame.getColumn(in, store.y, count);
+        SaveGame.getColumn(in, store.vx, count);
+        SaveGame.getColumn(in, store.vy, count);
+        SaveGame.getColumn(in, store.mass, count);
+        System.arraycopy(store.x, 0, store.previousX, 0, count);
+        System.arraycopy(store.y, 0, store.previousY, 0, count);
+    }
+    
+    protected void putColumn(float[] values, int count) {
+        this.buffer.asFloatBuffer().put(values, 0, count);
+        this.buffer.position(this.buffer.position() + count * 4);
+    }
+    
+    protected static void getColumn(ByteBuffer in, float[] values, int count) {
+        in.asFloatBuffer().get(values, 0, count);
+        in.position(in.position() + count * 4);
+    }
+    
+    /**
+     * Writes the position, velocity and mass of one entity
+     */
+    protected void putBody(Entity entity) {
+        this.buffer.putFloat(entity.getX());
+        this.buffer.putFloat(entity.getY());
+        this.buffer.putFloat(entity.getVelocityX());
+        this.buffer.putFloat(entity.getVelocityY());
+        this.buffer.putFloat(entity.getMass());
+    }
+    
+    protected void getBody(ByteBuffer in, Entity entity) {
+        entity.setPosition(in.getFloat(), in.getFloat());
+        entity.setVelocity(in.getFloat(), in.getFloat());
+        entity.setMass(in.getFloat());
+    }
+    
+    /**
+     * Writes the rest of a hammer, its rotation
+     */
+    protected void putHammer(Hammer hammer) {
+        this.buffer.putFloat(hammer.rotation);
+    }
+    
+    protected void getHammer(ByteBuffer in, Hammer hammer) {
+        hammer.rotation = in.getFloat();
+        hammer.previousRotation = Float.NaN;
+    }
+    
+    /**
+     * Writes the rest of an alien, where it is heading for and started
+     * from, and whether it is on the way out. Its payload is only used to
+     * launch it, so isn't saved.
+     */
+    protected void putAlien(Alien alien) {
+        this.buffer.putFloat(alien.destinationPosition.x);
+        this.buffer.putFloat(alien.destinationPosition.y);
+        this.buffer.putFloat(alien.startingPosition.x);
+        this.buffer.putFloat(alien.startingPosition.y);
+        this.buffer.put(alien.leavingStage ? (byte)1 : (byte)0);
+    }
+    
+    protected void getAlien(ByteBuffer in, Alien alien) {
+        alien.destinationPosition.set(in.getFloat(), in.getFloat());
+        alien.startingPosition.set(in.getFloat(), in.getFloat());
+        alien.leavingStage = in.get() != 0;
+        alien.payload = null;
+    }
+    
+    /**
+     * Writes the rest of a building, its sprite, whether it has landed or
+     * been hit, the damage it has done that hasn't been taken off the
+     * property value yet, and how long since it last did damage
+     */
+    protected void putBuilding(Building building) {
+        this.buffer.put((byte)Universe.spriteIndex(building.spriteInfo));
+        this.buffer.put((byte)((building.onPlanet ? BUILDING_ON_PLANET : 0) |
+                               (building.isDead ? BUILDING_DEAD : 0)));
+        this.buffer.putInt(building.damageDone);
+        this.buffer.putFloat(building.damageTimeAccumulator);
+    }
+    
+    protected void getBuilding(ByteBuffer in, Building building) throws IOException {
+        int sprite = in.get();
+        if (sprite < 0 || sprite >= Universe.BUILDING_SPRITES.length) {
+            throw new IOException("Unknown building sprite " + sprite);
+        }
+        int flags = in.get();
+        if (building.spriteInfo != Universe.BUILDING_SPRITES[sprite]) {
+            // a reused building may have taken the sprite it had
+            building.releaseSprite();
+        }
+        building.spriteInfo = Universe.BUILDING_SPRITES[sprite];
+        building.onPlanet = (flags & BUILDING_ON_PLANET) != 0;
+        building.isDead = (flags & BUILDING_DEAD) != 0;
+        building.damageDone = in.getInt();
+        building.damageTimeAccumulator = in.getFloat();
+    }
+    
+    /**
+     * Removes the entities past a count from a registry with nothing
+     * queued, leaving the rest where they are
+     * 
+     * @param registry the registry
+     * @param count the number of entities to keep
+     * @return the number of entities kept, which is less than count if the
+     *         registry didn't have that many
+     */
+    protected static <T extends Entity> int trim(EntityRegistry<T> registry, int count) {
+        if (registry.size() > count) {
+            for (int i = count; i < registry.size(); i++) {
+                registry.remove(registry.get(i));
+            }
+            registry.flush();
+        }
+        return registry.size();
+    }
+    
+    /**
+     * Reads the hammers back into the simulation, reusing the ones it has
+     * and taking any more it needs from the pool. A save can hold more than
+     * the pool will hand out (the benchmarks fill a simulation with hammers
+     * of their own), so any past that are created.
+     */
+    protected void getHammers(ByteBuffer in, Simulation simulation) throws IOException {
+        EntityRegistry<Hammer> hammers = simulation.hammerList;
+        int total = SaveGame.getCount(in);
+        int queued = SaveGame.getCount(in);
+        int count = total - queued;
+        for (int i = SaveGame.trim(hammers, count); i < count; i++) {
+            simulation.addHammer(SaveGame.acquireHammer(simulation));
+        }
+        hammers.flush();
+        this.getKinematics(in, hammers, count);
+        for (int i = 0; i < count; i++) {
+            this.getHammer(in, hammers.get(i));
+        }
+        for (int i = 0; i < queued; i++) {
+            Hammer hammer = SaveGame.acquireHammer(simulation);
+            this.getBody(in, hammer);
+            this.getHammer(in, hammer);
+            simulation.addHammer(hammer);
+        }
+    }
+    
+    protected static Hammer acquireHammer(Simulation simulation) {
+        Hammer hammer = simulation.hammerPool.acquire();
+        return hammer != null ? hammer : new Hammer(simulation);
+    }
+    
+    /**
+     * Reads the aliens back into the simulation, reusing the ones it has
+     * and taking any more it needs from the pool
+     */
+    protected void getAliens(ByteBuffer in, Simulation simulation) throws IOException {
+        EntityRegistry<Alien> aliens = simulation.aliens;
+        int total = SaveGame.getCount(in);
+        int queued = SaveGame.getCount(in);
+        int count = total - queued;
+        for (int i = SaveGame.trim(aliens, count); i < count; i++) {
+            simulation.addAlien(simulation.alienPool.acquire());
+        }
+        aliens.flush();
+        this.getKinematics(in, aliens, count);
+        for (int i = 0; i < count; i++) {
+            this.getAlien(in, aliens.get(i));
+        }
+        for (int i = 0; i < queued; i++) {
+            Alien alien = simulation.alienPool.acquire();
+            this.getBody(in, alien);
+            this.getAlien(in, alien);
+            simulation.addAlien(alien);
+        }
+    }
+    
+    /**
+     * Reads the buildings back into the simulation, reusing the ones it has
+     * and taking any more it needs from the pool
+     */
+    protected void getBuildings(ByteBuffer in, Simulation simulation) throws IOException {
+        EntityRegistry<Building> buildings = simulation.buildings;
+        int total = SaveGame.getCount(in);
+        int queued = SaveGame.getCount(in);
+        int count = total - queued;
+        for (int i = SaveGame.trim(buildings, count); i < count; i++) {
+            simulation.addBuilding(simulation.buildingPool.acquire());
+        }
+        buildings.flush();
+        this.getKinematics(in, buildings, count);
+        for (int i = 0; i < count; i++) {
+            this.getBuilding(in, buildings.get(i));
+        }
+        for (int i = 0; i < queued; i++) {
+            Building building = simulation.buildingPool.acquire();
+            this.getBody(in, building);
+            this.getBuilding(in, building);
+            simulation.addBuilding(building);
+        }
+    }
+    
+    /**
+     * Reads a count, making sure there could be that many of anything left
+     * 
+     * @param in the buffer to read from
+     * @return the count
+     * @throws IOException if the count can't be right
+     */
+    protected static int getCount(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("The save holds " + count + " entities in " + in.remaining() + " bytes");
+        }
+        return count;
+    }
+    
+    /**
+     * Reads the scenario the save was made with
+     * 
+     * @param in the buffer, positioned at the scenario's name
+     * @param hammerCap the simulation's hammer cap
+     * @return the scenario
+     */
+    protected static Scenario getScenario(ByteBuffer in, int hammerCap) {
+        byte[] name = new byte[in.getShort() & 0xffff];
+        in.get(name);
+        Scenario scenario = new Scenario(new String(name, StandardCharsets.UTF_8));
+        scenario.setWorldCount(in.getInt());
+        int spaceWidth = in.getInt();
+        scenario.setSpaceSize(spaceWidth, in.getInt());
+        scenario.setAlienCountLimit(in.getInt());
+        scenario.setAlienReleaseLimit(in.getFloat());
+        scenario.setAlienReleaseCount(in.getFloat());
+        scenario.setWorldSpacing(in.getInt());
+        scenario.setChunkSize(in.getInt());
+        scenario.setActiveRadius(in.getInt());
+        scenario.setMutualGravity(in.get() != 0);
+        scenario.setHammerCap(hammerCap);
+        return scenario;
+    }
+    
+    /**
+     * @return whether two scenarios create the same space, and the same
+     *         limits on what is in it
+     */
+    protected static boolean isSameScenario(Scenario a, Scenario b) {
+        return a.getWorldCount() == b.getWorldCount() &&
+               a.getSpaceWidth() == b.getSpaceWidth() &&
+               a.getSpaceHeight() == b.getSpaceHeight() &&
+               a.getAlienCountLimit() == b.getAlienCountLimit() &&
+               a.getAlienReleaseLimit() == b.getAlienReleaseLimit() &&
+               a.getAlienReleaseCount() == b.getAlienReleaseCount() &&
+               a.getWorldSpacing() == b.getWorldSpacing() &&
+               a.getChunkSize() == b.getChunkSize() &&
+               a.getActiveRadius() == b.getActiveRadius() &&
+               a.hasMutualGravity() == b.hasMutualGravity() &&
+               a.getHammerCap() == b.getHammerCap();
+    }
+    
+}
@@ -0,0 +1,391 @@
+package uk.co.austinbirch;
+
+/**
+ * @author Austin Birch
+ *
+ * The settings a Simulation is started with: how many worlds there are and
+ * how much space they are in, and how hard the aliens come at them. A
+ * scenario also says how fast hammers should be thrown when the game is
+ * being played by a script rather than a person.
+ *
+ * Space can be split into square chunks, of which only those around the
+ * player are simulated in full, so that it can be far larger than the
+ * player could ever fill. The rest of space is kept in Universe.
+ *
+ * The hammers can also be made to pull on each other and on the buildings
+ * as hard as the worlds do, rather than only being pulled by the worlds.
+ *
+ * The game plays the "default" scenario unless the mchammer.scenario system
+ * property names another one.
+ *
+ */
+public class Scenario {
+
+    // Global variables
+    
+    /**
+     * The names of the built in scenarios, from lightest to heaviest
+     */
+    public static final String[] NAMES = { "default", "crowded", "large", "huge", "galaxy", "debris" };
+    
+    // Member variables
+    
+    /**
+     * The name of the scenario
+     */
+    protected String name;
+    
+    /**
+     * The number of worlds
+     */
+    protected int worldCount = 4;
+    
+    /**
+     * The total width of the space environment
+     */
+    protected int spaceWidth = 2000;
+    
+    /**
+     * The total height of the space environment
+     */
+    protected int spaceHeight = 1000;
+    
+    /**
+     * How far apart the worlds are spread across a row
+     */
+    protected int worldSpacing = 500;
+    
+    /**
+     * The width and height of each chunk of space, or 0 to keep the whole of
+     * space in one chunk
+     */
+    protected int chunkSize = 0;
+    
+    /**
+     * How many chunks out from the player's chunk are simulated in full
+     */
+    protected int activeRadius = 1;
+    
+    /**
+     * Whether the hammers pull on each other and on the buildings
+     */
+    protected boolean mutualGravity = false;
+    
+    /**
+     * We don't want any more aliens than this
+     */
+    protected int alienCountLimit = 30;
+    
+    /**
+     * The time in milliseconds to wait before the first alien release. This
+     * gets 10ms shorter after every release.
+     */
+    protected float alienReleaseLimit = 1000.0f;
+    
+    /**
+     * The number of aliens released the first time, less a half. This goes
+     * up by a half on every release.
+     */
+    protected float alienReleaseCount = 0.0f;
+    
+    /**
+     * The most hammers that can be in flight at once
+     */
+    protected int hammerCap = 64;
+    
+    /**
+     * The number of hammers a scripted player throws each second
+     */
+    protected float hammerThrowRate = 2.0f;
+    
+    /**
+     * Creates a scenario with the default settings
+     * 
+     * @param name the name of the scenario
+     */
+    public Scenario(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Creates one of the built in scenarios. Each call makes a new one, so it
+     * can be changed without affecting anyone else.
+     * 
+     * @param name the name of the scenario, one of NAMES
+     * @return the scenario
+     * @throws IllegalArgumentException if there is no scenario called name
+     */
+    public static Scenario named(String name) {
+        Scenario scenario = new Scenario(name);
+        if (name.equals("default")) {
+            // the game as it has always been played
+        } else if (name.equals("crowded")) {
+            // the usual space, filled up quickly
+            scenario.alienCountLimit = 1000;
+            scenario.alienReleaseLimit = 200.0f;
+            scenario.alienReleaseCount = 10.0f;
+            scenario.hammerCap = 512;
+            scenario.hammerThrowRate = 30.0f;
+        } else if (name.equals("large")) {
+            scenario.worldCount = 32;
+            scenario.spaceWidth = 8000;
+            scenario.spaceHeight = 4000;
+            scenario.alienCountLimit = 5000;
+            scenario.alienReleaseLimit = 100.0f;
+            scenario.alienReleaseCount = 50.0f;
+            scenario.hammerCap = 4096;
+            scenario.hammerThrowRate = 120.0f;
+        } else if (name.equals("huge")) {
+            scenario.worldCount = 128;
+            scenario.spaceWidth = 16000;
+            scenario.spaceHeight = 8000;
+            scenario.alienCountLimit = 50000;
+            scenario.alienReleaseLimit = 100.0f;
+            scenario.alienReleaseCount = 500.0f;
+            scenario.hammerCap = 16384;
+            scenario.hammerThrowRate = 600.0f;
+        } else if (name.equals("galaxy")) {
+            // far more space than the player can see, streamed in around
+            // them a chunk at a time
+            scenario.worldCount = 400;
+            scenario.spaceWidth = 40000;
+            scenario.spaceHeight = 20000;
+            scenario.worldSpacing = 2000;
+            scenario.chunkSize = 2000;
+            scenario.alienCountLimit = 5000;
+            scenario.alienReleaseLimit = 200.0f;
+            scenario.alienReleaseCount = 20.0f;
+            scenario.hammerCap = 512;
+            scenario.hammerThrowRate = 10.0f;
+        } else if (name.equals("debris")) {
+            // thousands of hammers in flight, all pulling on each other
+            scenario.worldCount = 16;
+            scenario.spaceWidth = 4000;
+            scenario.spaceHeight = 2000;
+            scenario.mutualGravity = true;
+            scenario.alienCountLimit = 2000;
+            scenario.alienReleaseLimit = 200.0f;
+            scenario.alienReleaseCount = 20.0f;
+            scenario.hammerCap = 8192;
+            scenario.hammerThrowRate = 1000.0f;
+        } else {
+            throw new IllegalArgumentException("Unknown scenario: " + name);
+        }
+        return scenario;
+    }
+    
+    /**
+     * @return the scenario named by the mchammer.scenario system property,
+     *         or the default one if it isn't set, with as many hammers as
+     *         the mchammer.hammerCap system property asks for if it is set
+     */
+    public static Scenario fromSystemProperties() {
+        Scenario scenario = Scenario.named(System.getProperty("mchammer.scenario", "default"));
+        scenario.hammerCap = Integer.getInteger("mchammer.hammerCap", scenario.hammerCap);
+        return scenario;
+    }
+    
+    /**
+     * @return the number of worlds placed in each row
+     */
+    public int getWorldsPerRow() {
+        return Math.max(1, Math.min(this.worldCount, this.spaceWidth / Math.max(1, this.worldSpacing)));
+    }
+    
+    /**
+     * @return the number of rows the worlds are placed in
+     */
+    public int getWorldRows() {
+        int perRow = this.getWorldsPerRow();
+        return (this.worldCount + perRow - 1) / perRow;
+    }
+    
+    /**
+     * @return the name of the scenario
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * @return the number of worlds
+     */
+    public int getWorldCount() {
+        return this.worldCount;
+    }
+    
+    /**
+     * @param worldCount the number of worlds
+     */
+    public void setWorldCount(int worldCount) {
+        this.worldCount = worldCount;
+    }
+    
+    /**
+     * @return the total width of the space environment
+     */
+    public int getSpaceWidth() {
+        return this.spaceWidth;
+    }
+    
+    /**
+     * @return the total height of the space environment
+     */
+    public int getSpaceHeight() {
+        return this.spaceHeight;
+    }
+    
+    /**
+     * @param spaceWidth the total width of the space environment
+     * @param spaceHeight the total height of the space environment
+     */
+    public void setSpaceSize(int spaceWidth, int spaceHeight) {
+        this.spaceWidth = spaceWidth;
+        this.spaceHeight = spaceHeight;
+    }
+    
+    /**
+     * @return how far apart the worlds are spread across a row
+     */
+    public int getWorldSpacing() {
+        return this.worldSpacing;
+    }
+    
+    /**
+     * @param worldSpacing how far apart the worlds are spread across a row
+     */
+    public void setWorldSpacing(int worldSpacing) {
+        this.worldSpacing = worldSpacing;
+    }
+    
+    /**
+     * @return the width and height of each chunk of space, or 0 if the
+     *         whole of space is one chunk
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+    
+    /**
+     * @param chunkSize the width and height of each chunk of space, or 0 to
+     *                  keep the whole of space in one chunk
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * @return how many chunks out from the player's chunk are simulated in
+     *         full
+     */
+    public int getActiveRadius() {
+        return this.activeRadius;
+    }
+    
+    /**
+     * @param activeRadius how many chunks out from the player's chunk are
+     *                     simulated in full
+     */
+    public void setActiveRadius(int activeRadius) {
+        this.activeRadius = activeRadius;
+    }
+    
+    /**
+     * @return whether the hammers pull on each other and on the buildings
+     */
+    public boolean hasMutualGravity() {
+        return this.mutualGravity;
+    }
+    
+    /**
+     * @param mutualGravity whether the hammers pull on each other and on
+     *                      the buildings
+     */
+    public void setMutualGravity(boolean mutualGravity) {
+        this.mutualGravity = mutualGravity;
+    }
+    
+    /**
+     * @return the most aliens there can be at once
+     */
+    public int getAlienCountLimit() {
+        return this.alienCountLimit;
+    }
+    
+    /**
+     * @param alienCountLimit the most aliens there can be at once
+     */
+    public void setAlienCountLimit(int alienCountLimit) {
+        this.alienCountLimit = alienCountLimit;
+    }
+    
+    /**
+     * @return the time in milliseconds before the first alien release
+     */
+    public float getAlienReleaseLimit() {
+        return this.alienReleaseLimit;
+    }
+    
+    /**
+     * @param alienReleaseLimit the time in milliseconds before the first
+     *                          alien release
+     */
+    public void setAlienReleaseLimit(float alienReleaseLimit) {
+        this.alienReleaseLimit = alienReleaseLimit;
+    }
+    
+    /**
+     * @return the number of aliens released the first time, less a half
+     */
+    public float getAlienReleaseCount() {
+        return this.alienReleaseCount;
+    }
+    
+    /**
+     * @param alienReleaseCount the number of aliens released the first
+     *                          time, less a half
+     */
+    public void setAlienReleaseCount(float alienReleaseCount) {
+        this.alienReleaseCount = alienReleaseCount;
+    }
+    
+    /**
+     * @return the most hammers that can be in flight at once
+     */
+    public int getHammerCap() {
+        return this.hammerCap;
+    }
+    
+    /**
+     * @param hammerCap the most hammers that can be in flight at once
+     */
+    public void setHammerCap(int hammerCap) {
+        this.hammerCap = hammerCap;
+    }
+    
+    /**
+     * @return the number of hammers a scripted player throws each second
+     */
+    public float getHammerThrowRate() {
+        return this.hammerThrowRate;
+    }
+    
+    /**
+     * @param hammerThrowRate the number of hammers a scripted player throws
+     *                        each second
+     */
+    public void setHammerThrowRate(float hammerThrowRate) {
+        this.hammerThrowRate = hammerThrowRate;
+    }
+    
+    @Override
+    public String toString() {
+        return this.name + " (" + this.worldCount + " worlds in " +
+                this.spaceWidth + "x" + this.spaceHeight + ", " +
+                this.alienCountLimit + " aliens, " +
+                this.hammerCap + " hammers" +
+                (this.chunkSize > 0 ? ", " + this.chunkSize + " chunks" : "") +
+                (this.mutualGravity ? ", mutual gravity" : "") + ")";
+    }
+    
+}
@@ -0,0 +1,72 @@
+package uk.co.austinbirch;
+
+import java.util.Random;
+
+/**
+ * @author Austin Birch
+ *
+ * A Random whose state can be read and put back, so a saved game carries on
+ * with the same numbers it would have had. It is the same generator as
+ * java.util.Random, so it gives the same numbers for the same seed, but
+ * isn't safe to share between threads.
+ *
+ */
+public class SeededRandom extends Random {
+
+    // Global variables
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The generator's multiplier, addend and mask, as in java.util.Random
+     */
+    protected static final long MULTIPLIER = 0x5DEECE66DL;
+    protected static final long ADDEND = 0xBL;
+    protected static final long MASK = (1L << 48) - 1;
+    
+    // Member variables
+    
+    /**
+     * The generator's state. This is set by the Random constructor through
+     * setSeed(), so mustn't be given a value here.
+     */
+    protected long state;
+    
+    /**
+     * Creates a generator
+     * 
+     * @param seed the seed, as for java.util.Random
+     */
+    public SeededRandom(long seed) {
+        super(seed);
+    }
+    
+    @Override
+    public void setSeed(long seed) {
+        super.setSeed(seed);
+        this.state = (seed ^ MULTIPLIER) & MASK;
+    }
+    
+    @Override
+    protected int next(int bits) {
+        this.state = (this.state * MULTIPLIER + ADDEND) & MASK;
+        return (int)(this.state >>> (48 - bits));
+    }
+    
+    /**
+     * @return the generator's state, to be put back with setState()
+     */
+    public long getState() {
+        return this.state;
+    }
+    
+    /**
+     * Puts the generator back to a state read with getState()
+     * 
+     * @param state the state
+     */
+    public void setState(long state) {
+        this.state = state & MASK;
+    }
+    
+}
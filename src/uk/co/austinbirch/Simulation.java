@@ -0,0 +1,1734 @@
+package uk.co.austinbirch;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.newdawn.slick.geom.Rectangle;
+import org.newdawn.slick.geom.Vector2f;
+
+import uk.co.austinbirch.physics.ABPhysicsHelper;
+import uk.co.austinbirch.physics.CollisionEventBuffer;
+import uk.co.austinbirch.physics.GravityField;
+import uk.co.austinbirch.physics.GravityTree;
+import uk.co.austinbirch.physics.KinematicKernel;
+import uk.co.austinbirch.physics.KinematicStore;
+import uk.co.austinbirch.physics.Kinematics;
+import uk.co.austinbirch.physics.Narrowphase;
+import uk.co.austinbirch.physics.UniformGrid;
+
+/**
+ * @author Austin Birch
+ *
+ * The state of a game of McHammer, and the logic that advances it. Nothing
+ * in here needs a display, so the game can be ticked headless; McHammerGame
+ * just feeds it input and draws what it contains.
+ *
+ * Gravity, integration and the collision narrowphase can be spread across
+ * several threads by a ParallelExecutor. The threads only ever work out
+ * results; every callback, add and remove is still made on the calling
+ * thread, in the same order as a single threaded tick, so a game plays out
+ * exactly the same however many threads it runs on.
+ *
+ * Space is kept in a Universe, which can split it into chunks and only
+ * have the simulation work on those around the player. Everything in the
+ * simulation is then positioned relative to the top left corner of those
+ * chunks (the origin), rather than to the top left corner of space.
+ *
+ */
+public class Simulation {
+
+    // Global variables
+    
+    public static final int GAME_OVER = 1;
+    public static final int GAME_RUNNING = 2;
+    public static final int GAME_PAUSED = 3;
+    public static final int GAME_MENU = 4;
+    
+    /**
+     * The fewest bodies worth handing to another thread for gravity and
+     * integration
+     */
+    public static final int PHYSICS_MIN_CHUNK = 2048;
+    
+    /**
+     * The fewest hammers or buildings worth handing to another thread for
+     * collision detection
+     */
+    public static final int COLLISION_MIN_CHUNK = 256;
+    
+    /**
+     * The length of a tick when the game needs to play out the same way
+     * every time, such as when it is being recorded or replayed
+     */
+    public static final float FIXED_DELTA_SECONDS = 1.0f / 60.0f;
+    
+    /**
+     * Where stateHash() starts from
+     */
+    protected static final long HASH_SEED = 0xcbf29ce484222325L;
+    
+    // Member variables
+    
+    /**
+     * The settings the simulation was started with
+     */
+    protected Scenario scenario;
+    
+    /**
+     * The total width of the space environment we can move in
+     */
+    protected int spaceWidth;
+    
+    /**
+     * The total width of the space environment we can move in
+     */
+    protected int spaceHeight;
+    
+    /**
+     * The position in space of the simulation's origin, which everything in
+     * the simulation is positioned relative to
+     */
+    protected int originX = 0;
+    protected int originY = 0;
+    
+    /**
+     * The whole of space, split into chunks, holding everything that is
+     * away from the player
+     */
+    protected Universe universe;
+    
+    /**
+     * The rectangles that make up the boundaries of our "space"
+     */
+    protected ArrayList<Rectangle> spaceBoundaries;
+    
+    /**
+     * Contains all of the worlds the player owns
+     */
+    protected ArrayList<World> worlds;
+    
+    /**
+     * The player's character
+     */
+    protected Player mcHammer;
+    
+    /**
+     * The hammers that we might be throwing
+     */
+    protected EntityRegistry<Hammer> hammerList;
+    
+    /**
+     * The registry that will contain any buildings
+     */
+    protected EntityRegistry<Building> buildings;
+    
+    /**
+     * The registry that will contain any attacking aliens
+     */
+    protected EntityRegistry<Alien> aliens;
+    
+    /**
+     * How long we have been playing for
+     */
+    protected float elapsedGameTime = 0.0f;
+    
+    /**
+     * Stores the amount since the last alien release
+     */
+    protected float alienReleaseTimer = 0.0f;
+    
+    /**
+     * The amount of time to wait between alien releases, this will get lower
+     */
+    protected float alienReleaseLimit;
+    
+    /**
+     * The amount of aliens to release each time
+     */
+    protected float alienReleaseCount;
+    
+    /**
+     * We don't want any more aliens than this
+     */
+    protected int alienCountLimit;
+    
+    /**
+     * The most hammers that can be in flight at once
+     */
+    protected int hammerCap;
+    
+    /**
+     * The current game state
+     */
+    protected int gameState = GAME_MENU;
+    
+    /**
+     * The player's score
+     */
+    protected int propertyValue = 1000;
+    
+    /**
+     * The hammers that aren't in flight
+     */
+    protected EntityPool<Hammer> hammerPool;
+    
+    /**
+     * The aliens that aren't attacking
+     */
+    protected EntityPool<Alien> alienPool;
+    
+    /**
+     * The buildings that aren't in play
+     */
+    protected EntityPool<Building> buildingPool;
+    
+    /**
+     * The positions, velocities and masses of the hammers
+     */
+    protected KinematicStore hammerKinematics;
+    
+    /**
+     * The positions, velocities and masses of the aliens
+     */
+    protected KinematicStore alienKinematics;
+    
+    /**
+     * The positions, velocities and masses of the buildings
+     */
+    protected KinematicStore buildingKinematics;
+    
+    /**
+     * The kernel used to move and accelerate the kinematic stores
+     */
+    protected KinematicKernel kernel;
+    
+    /**
+     * The gravity from the worlds, baked over our space, or null to sum the
+     * gravity from every world for every body
+     */
+    protected GravityField gravityField;
+    
+    /**
+     * The fewest worlds for which the gravity field is used. Summing a few
+     * worlds exactly with the kernel is quicker than sampling the field, so
+     * the field only takes over once there are enough worlds to pay for it.
+     */
+    protected int gravityFieldMinWorlds;
+    
+    /**
+     * The gravity from the worlds and the rest of space, summed through a
+     * Barnes-Hut tree when there are enough of them and the field isn't
+     * baked, or null to always sum it attractor by attractor
+     */
+    protected GravityTree gravityTree;
+    
+    /**
+     * The fewest worlds, counting each chunk of space that isn't being
+     * simulated as one, for which the gravity tree is used. The kernel
+     * sums each world for many bodies at once, so it stays quicker than
+     * walking the tree one body at a time until there are around a
+     * thousand of them.
+     */
+    protected int gravityTreeMinWorlds;
+    
+    /**
+     * The gravity from the hammers, built again every tick, or null if the
+     * hammers don't pull on anything
+     */
+    protected GravityTree hammerTree;
+    
+    /**
+     * The x position of each world, as given to the gravity field or tree
+     */
+    protected float[] worldX = new float[8];
+    
+    /**
+     * The y position of each world, as given to the gravity field or tree
+     */
+    protected float[] worldY = new float[8];
+    
+    /**
+     * The mass of each world, as given to the gravity field or tree
+     */
+    protected float[] worldMass = new float[8];
+    
+    /**
+     * The size of the cells in the collision broadphase
+     */
+    protected float broadphaseCellSize = 64.0f;
+    
+    /**
+     * The broadphase used to find buildings near hammers and worlds
+     */
+    protected UniformGrid broadphase;
+    
+    /**
+     * The buildings in the broadphase, indexed by their id in the grid
+     */
+    protected Building[] broadphaseBuildings = new Building[64];
+    
+    /**
+     * The furthest any building has moved this tick, along either axis,
+     * which the hammers' broadphase queries are grown by so that they find
+     * buildings that have moved into their path
+     */
+    protected float maxBuildingStep = 0.0f;
+    
+    /**
+     * The query scratch space for each chunk of collision work
+     */
+    protected UniformGrid.Query[] broadphaseQueries;
+    
+    /**
+     * The hammer collisions found by each chunk of collision work, as
+     * (hammer index, building index) pairs, with boundaries stored as
+     * -1 - boundary index. Each hammer only has the things it touched
+     * first during the tick.
+     */
+    protected CollisionEventBuffer[] hammerEvents;
+    
+    /**
+     * Whether each building found near the current world is touching it
+     */
+    protected boolean[] worldHits = new boolean[64];
+    
+    /**
+     * Spreads the physics and collision work across threads
+     */
+    protected ParallelExecutor executor;
+    
+    /**
+     * The reusable task that moves the bodies in a store
+     */
+    protected IntegrateTask integrateTask = new IntegrateTask();
+    
+    /**
+     * The reusable task that accelerates the hammers towards the worlds
+     */
+    protected GravityTask gravityTask = new GravityTask();
+    
+    /**
+     * The reusable task that accelerates the buildings towards the hammers
+     */
+    protected BuildingGravityTask buildingGravityTask = new BuildingGravityTask();
+    
+    /**
+     * The reusable task that finds what the hammers have hit
+     */
+    protected HammerCollisionTask hammerCollisionTask = new HammerCollisionTask();
+    
+    /**
+     * The reusable task that finds the buildings touching a world
+     */
+    protected WorldCollisionTask worldCollisionTask = new WorldCollisionTask();
+    
+    /**
+     * The random number generator shared by everything in the simulation.
+     * Nothing in the simulation may use any other source of randomness, so
+     * that the same seed and the same inputs always give the same game.
+     */
+    protected SeededRandom random;
+    
+    /**
+     * The seed the random number generator was created with
+     */
+    protected long seed;
+    
+    /**
+     * The number of ticks run so far, whatever state the game was in
+     */
+    protected long tickCount = 0;
+    
+    /**
+     * The number of times the game has been restarted
+     */
+    protected int restartCount = 0;
+    
+    /**
+     * Measures the allocations made by each tick, if set
+     */
+    protected AllocationMonitor allocationMonitor;
+    
+    /**
+     * Times each phase of the tick
+     */
+    protected FrameProfiler profiler = new FrameProfiler();
+    
+    /**
+     * Creates a new simulation, with the worlds and player in place and
+     * the game waiting at the menu, seeded from the mchammer.seed system
+     * property if it is set, and set up from the scenario the
+     * mchammer.scenario system property names
+     */
+    public Simulation() {
+        this(Scenario.fromSystemProperties(),
+             Long.getLong("mchammer.seed", new Random().nextLong()));
+    }
+    
+    /**
+     * Creates a new simulation, with the worlds and player in place and
+     * the game waiting at the menu
+     * 
+     * @param hammerCap the most hammers that can be in flight at once
+     */
+    public Simulation(int hammerCap) {
+        this(hammerCap, new Random().nextLong());
+    }
+    
+    /**
+     * Creates a new simulation, with the worlds and player in place and
+     * the game waiting at the menu. Two simulations created with the same
+     * seed and ticked with the same inputs and deltas play out identically.
+     * 
+     * @param hammerCap the most hammers that can be in flight at once
+     * @param seed the seed for the simulation's random number generator
+     */
+    public Simulation(int hammerCap, long seed) {
+        this(Simulation.defaultScenario(hammerCap), seed);
+    }
+    
+    /**
+     * Creates a new simulation, with the worlds and player in place and
+     * the game waiting at the menu. Two simulations created with the same
+     * scenario and seed and ticked with the same inputs and deltas play out
+     * identically.
+     * 
+     * @param scenario the settings to start with, which shouldn't be
+     *                 changed once the simulation has been created
+     * @param seed the seed for the simulation's random number generator
+     */
+    public Simulation(Scenario scenario, long seed) {
+        this.scenario = scenario;
+        this.spaceWidth = scenario.getSpaceWidth();
+        this.spaceHeight = scenario.getSpaceHeight();
+        this.alienCountLimit = scenario.getAlienCountLimit();
+        this.alienReleaseLimit = scenario.getAlienReleaseLimit();
+        this.alienReleaseCount = scenario.getAlienReleaseCount();
+        this.hammerCap = scenario.getHammerCap();
+        this.seed = seed;
+        this.random = new SeededRandom(seed);
+        
+        // create the space boundaries
+        this.createSpaceBoundaries();
+        
+        // create the worlds, in rows across the space, each row placed in
+        // its own band of the space as the worlds always were in the whole
+        this.worlds = new ArrayList<World>();
+        int worldsPerRow = scenario.getWorldsPerRow();
+        float rowHeight = (float)this.spaceHeight / scenario.getWorldRows();
+        for (int i = 0; i < scenario.getWorldCount(); i++) {
+            int column = i % worldsPerRow;
+            int row = i / worldsPerRow;
+            World world = new World(new Vector2f(column * (this.spaceWidth / worldsPerRow) + 150.0f,
+                                                 row * rowHeight + (float)(rowHeight - (rowHeight/1.8))));
+            this.worlds.add(world);
+        }
+        
+        // create the player
+        this.mcHammer = new Player(this, new Vector2f(100.0f, 400.0f));
+        
+        // create the registry for the hammers
+        this.hammerList = new EntityRegistry<Hammer>(this.hammerCap);
+        
+        // create a registry for the buildings
+        this.buildings = new EntityRegistry<Building>(this.alienCountLimit * 2);
+        
+        // create the registry for the aliens
+        this.aliens = new EntityRegistry<Alien>(this.alienCountLimit);
+        
+        // create the pools the entities are reused from, with enough for a
+        // full wave of aliens and their payloads
+        final Simulation simulation = this;
+        this.hammerPool = new EntityPool<Hammer>("hammer", new EntityPool.Factory<Hammer>() {
+            public Hammer create() {
+                return new Hammer(simulation);
+            }
+        }, this.hammerCap, this.hammerCap);
+        this.alienPool = new EntityPool<Alien>("alien", new EntityPool.Factory<Alien>() {
+            public Alien create() {
+                return new Alien(simulation);
+            }
+        }, this.alienCountLimit, 0);
+        this.buildingPool = new EntityPool<Building>("building", new EntityPool.Factory<Building>() {
+            public Building create() {
+                return new Building(simulation);
+            }
+        }, this.alienCountLimit * 2, 0);
+        this.hammerList.setPool(this.hammerPool);
+        this.aliens.setPool(this.alienPool);
+        this.buildings.setPool(this.buildingPool);
+        
+        // each registry keeps its entities' kinematics in its own store
+        this.kernel = Kinematics.getKernel();
+        this.hammerKinematics = this.hammerList.getKinematics();
+        this.alienKinematics = this.aliens.getKinematics();
+        this.buildingKinematics = this.buildings.getKinematics();
+        
+        // split space into chunks, and simulate the ones around the player
+        this.universe = new Universe(this, scenario, this.worlds);
+        this.universe.reset();
+        int activeWidth = this.universe.getActiveWidth();
+        int activeHeight = this.universe.getActiveHeight();
+        
+        // create the collision broadphase over the space being simulated
+        this.broadphase = new UniformGrid(0.0f,
+                                          0.0f,
+                                          activeWidth,
+                                          activeHeight,
+                                          this.broadphaseCellSize);
+        
+        // bake the gravity from the worlds once there are enough of them,
+        // unless we have been asked to always sum it with a cell size of 0.
+        // It would have to be baked again every time the chunks being
+        // simulated changed, so it is only used if they never do.
+        this.gravityFieldMinWorlds = Integer.getInteger("mchammer.gravityFieldWorlds", 16);
+        float gravityCellSize = Float.parseFloat(System.getProperty("mchammer.gravityCellSize", "8"));
+        if (gravityCellSize > 0.0f && this.universe.isWholeSpaceActive()) {
+            float gravityError = Float.parseFloat(System.getProperty("mchammer.gravityError", "0.01"));
+            this.gravityField = new GravityField(0.0f,
+                                                 0.0f,
+                                                 activeWidth,
+                                                 activeHeight,
+                                                 gravityCellSize,
+                                                 gravityError);
+            if (this.usesGravityField()) {
+                this.updateGravityField();
+            }
+        }
+        
+        // otherwise sum the gravity from a great many worlds through a tree,
+        // unless we have been asked to always sum it exactly with a theta
+        // of 0
+        this.gravityTreeMinWorlds = Integer.getInteger("mchammer.gravityTreeWorlds", 1024);
+        float gravityTheta = Float.parseFloat(System.getProperty("mchammer.gravityTheta", "0.5"));
+        if (gravityTheta > 0.0f) {
+            this.gravityTree = new GravityTree(gravityTheta, 0.0f);
+        }
+        
+        // and have the hammers pull on everything else that flies, if the
+        // scenario asks for it
+        if (scenario.hasMutualGravity()) {
+            float softening = Float.parseFloat(System.getProperty("mchammer.gravitySoftening", "16"));
+            this.hammerTree = new GravityTree(Math.max(gravityTheta, 0.0f), softening);
+        }
+        
+        // run single threaded unless we have been asked not to
+        this.setExecutor(ParallelExecutor.fromSystemProperties());
+        
+        // watch the tick's allocations, if we have been asked to
+        this.allocationMonitor = AllocationMonitor.fromSystemProperties();
+    }
+    
+    /**
+     * @param hammerCap the most hammers that can be in flight at once
+     * @return the default scenario, with the given number of hammers
+     */
+    protected static Scenario defaultScenario(int hammerCap) {
+        Scenario scenario = Scenario.named("default");
+        scenario.setHammerCap(hammerCap);
+        return scenario;
+    }
+    
+    /**
+     * Puts the game in a stable, restartable state
+     */
+    public void restartGame() {
+        this.hammerList.clear();
+        this.aliens.clear();
+        this.buildings.clear();
+        
+        // everything should be back in the pools now
+        this.hammerPool.checkLeaks(0);
+        this.alienPool.checkLeaks(0);
+        this.buildingPool.checkLeaks(0);
+        
+        this.propertyValue = 1000;
+        this.alienReleaseCount = this.scenario.getAlienReleaseCount();
+        this.alienReleaseTimer = 0.0f;
+        this.elapsedGameTime = 0.0f;
+        
+        // put the player back at the start, and space back around them
+        this.mcHammer.setPosition(80.0f - this.originX, 80.0f - this.originY);
+        this.universe.reset();
+        
+        // start the game
+        this.gameState = GAME_RUNNING;
+        this.restartCount++;
+    }
+    
+    /**
+     * Creates the boundaries around space, relative to the origin. This is
+     * done again whenever the origin moves.
+     */
+    protected void createSpaceBoundaries() {
+        int boundaryWidth = 20;
+        int left = -this.originX;
+        int top = -this.originY;
+        Rectangle leftBoundary = new Rectangle(left - boundaryWidth,
+                                               top,
+                                               boundaryWidth,
+                                               this.spaceHeight);
+        Rectangle rightBoundary = new Rectangle(left + this.spaceWidth,
+                                                top,
+                                                boundaryWidth,
+                                                this.spaceHeight);
+        Rectangle bottomBoundary = new Rectangle(left,
+                                                 top + this.spaceHeight,
+                                                 this.spaceWidth,
+                                                 boundaryWidth);
+        Rectangle topBoundary = new Rectangle(left,
+                                              top - boundaryWidth,
+                                              this.spaceWidth,
+                                              boundaryWidth);
+        this.spaceBoundaries = new ArrayList<Rectangle>();
+        this.spaceBoundaries.add(leftBoundary);
+        this.spaceBoundaries.add(rightBoundary);
+        this.spaceBoundaries.add(topBoundary);
+        this.spaceBoundaries.add(bottomBoundary);
+    }
+    
+    /**
+     * Takes a hammer from the pool and throws it
+     * 
+     * @param x the x position to throw the hammer from
+     * @param y the y position to throw the hammer from
+     * @param velocityX the x velocity to throw the hammer at
+     * @param velocityY the y velocity to throw the hammer at
+     * @return the hammer, or null if too many are already in flight
+     */
+    public Hammer spawnHammer(float x, float y, float velocityX, float velocityY) {
+        Hammer hammer = this.hammerPool.acquire();
+        if (hammer != null) {
+            hammer.reset(x, y, velocityX, velocityY);
+            this.addHammer(hammer);
+        }
+        return hammer;
+    }
+    
+    /**
+     * Takes an alien from the pool and sends it in, along with its payload
+     * 
+     * @return the alien
+     */
+    public Alien spawnAlien() {
+        Alien alien = this.alienPool.acquire();
+        alien.reset();
+        this.addAlien(alien);
+        return alien;
+    }
+    
+    /**
+     * Takes a building from the pool and launches it
+     * 
+     * @param x the starting x position of the building
+     * @param y the starting y position of the building
+     * @param velocityX the starting x velocity of the building
+     * @param velocityY the starting y velocity of the building
+     * @return the building
+     */
+    public Building spawnBuilding(float x, float y, float velocityX, float velocityY) {
+        Building building = this.buildingPool.acquire();
+        building.reset(x, y, velocityX, velocityY);
+        this.addBuilding(building);
+        return building;
+    }
+    
+    /**
+     * Adds a hammer to the hammer registry. Like all adds and removes, this
+     * takes effect at the next flushEntities().
+     * 
+     * @param hammer the hammer to add to the registry
+     */
+    public void addHammer(Hammer hammer) {
+        this.hammerList.add(hammer);
+    }
+    
+    /**
+     * Removes a hammer from the hammer registry
+     * 
+     * @param hammer the hammer to remove
+     */
+    public void removeHammer(Hammer hammer) {
+        this.hammerList.remove(hammer);
+    }
+    
+    /**
+     * Adds an alien to the aliens registry
+     * 
+     * @param alien the alien to add
+     */
+    public void addAlien(Alien alien) {
+        this.aliens.add(alien);
+    }
+    
+    /**
+     * Remove alien from the aliens registry
+     * 
+     * @param alien the alien to remove
+     */
+    public void removeAlien(Alien alien) {
+        this.aliens.remove(alien);
+    }
+    
+    /**
+     * Adds a building to the building registry
+     * 
+     * @param building the building to add
+     */
+    public void addBuilding(Building building) {
+        this.buildings.add(building);
+    }
+    
+    /**
+     * Removes a building from the building registry
+     * 
+     * @param building the building to remove
+     */
+    public void removeBuilding(Building building) {
+        this.buildings.remove(building);
+    }
+    
+    /**
+     * Applies every queued add and remove. The tick does this once the
+     * entities have been updated, so physics and collisions see who is
+     * still around, and again at the end so the next tick starts clean.
+     * Anything adding entities outside of a tick needs to call it too.
+     */
+    public void flushEntities() {
+        this.hammerList.flush();
+        this.aliens.flush();
+        this.buildings.flush();
+    }
+    
+    /**
+     * @return the total width of the space environment
+     */
+    public int getSpaceWidth() {
+        return this.spaceWidth;
+    }
+    
+    /**
+     * @return the total height of the space environment
+     */
+    public int getSpaceHeight() {
+        return this.spaceHeight;
+    }
+    
+    /**
+     * @return the x position in space of the origin everything in the
+     *         simulation is positioned relative to
+     */
+    public int getOriginX() {
+        return this.originX;
+    }
+    
+    /**
+     * @return the y position in space of the origin everything in the
+     *         simulation is positioned relative to
+     */
+    public int getOriginY() {
+        return this.originY;
+    }
+    
+    /**
+     * @return the whole of space, split into chunks
+     */
+    public Universe getUniverse() {
+        return this.universe;
+    }
+    
+    /**
+     * @return the settings the simulation was started with
+     */
+    public Scenario getScenario() {
+        return this.scenario;
+    }
+    
+    /**
+     * @return the number of hammers in flight
+     */
+    public int getHammerCount() {
+        return this.hammerList.size();
+    }
+    
+    /**
+     * @return the number of aliens
+     */
+    public int getAlienCount() {
+        return this.aliens.size();
+    }
+    
+    /**
+     * @return the number of buildings, carried or not
+     */
+    public int getBuildingCount() {
+        return this.buildings.size();
+    }
+    
+    /**
+     * @return the current game state
+     */
+    public int getGameState() {
+        return this.gameState;
+    }
+    
+    /**
+     * @return the seed the simulation's random number generator started from
+     */
+    public long getSeed() {
+        return this.seed;
+    }
+    
+    /**
+     * @return the number of ticks run so far
+     */
+    public long getTickCount() {
+        return this.tickCount;
+    }
+    
+    /**
+     * @return the number of times the game has been restarted
+     */
+    public int getRestartCount() {
+        return this.restartCount;
+    }
+    
+    /**
+     * @return the most hammers that can be in flight at once
+     */
+    public int getHammerCap() {
+        return this.hammerCap;
+    }
+    
+    /**
+     * @return the player's character
+     */
+    public Player getPlayer() {
+        return this.mcHammer;
+    }
+    
+    /**
+     * @return the allocation monitor, or null if allocations aren't being
+     *         measured
+     */
+    public AllocationMonitor getAllocationMonitor() {
+        return this.allocationMonitor;
+    }
+    
+    /**
+     * Sets the monitor used to measure the allocations made by each tick
+     * 
+     * @param allocationMonitor the monitor, or null to stop measuring
+     */
+    public void setAllocationMonitor(AllocationMonitor allocationMonitor) {
+        this.allocationMonitor = allocationMonitor;
+    }
+    
+    /**
+     * @return the profiler timing each phase of the tick
+     */
+    public FrameProfiler getProfiler() {
+        return this.profiler;
+    }
+    
+    /**
+     * Sets the profiler to time each phase of the tick with, so that it
+     * can be shared with whatever is drawing the simulation
+     * 
+     * @param profiler the profiler
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+    
+    /**
+     * @return the baked gravity from the worlds, or null if it is always
+     *         summed world by world
+     */
+    public GravityField getGravityField() {
+        return this.gravityField;
+    }
+    
+    /**
+     * Sets the baked gravity used for the worlds. It is given the worlds and
+     * rebuilt as needed at the start of the next simulatePhysics().
+     * 
+     * @param gravityField the gravity field, or null to sum the gravity
+     *                     from every world exactly
+     */
+    public void setGravityField(GravityField gravityField) {
+        this.gravityField = gravityField;
+    }
+    
+    /**
+     * @return the tree the gravity from the worlds is summed through when
+     *         the field isn't used, or null if it is summed world by world
+     */
+    public GravityTree getGravityTree() {
+        return this.gravityTree;
+    }
+    
+    /**
+     * Sets the tree used for the worlds when the field isn't. It is given
+     * the worlds at the start of every simulatePhysics().
+     * 
+     * @param gravityTree the gravity tree, or null to sum the gravity from
+     *                    every world exactly
+     */
+    public void setGravityTree(GravityTree gravityTree) {
+        this.gravityTree = gravityTree;
+    }
+    
+    /**
+     * Sets the fewest worlds for which the gravity tree is used
+     * 
+     * @param gravityTreeMinWorlds the fewest worlds, counting each chunk of
+     *                             space that isn't being simulated as one,
+     *                             or 0 to always use the tree
+     */
+    public void setGravityTreeMinWorlds(int gravityTreeMinWorlds) {
+        this.gravityTreeMinWorlds = gravityTreeMinWorlds;
+    }
+    
+    /**
+     * @return the tree of the hammers' gravity, or null if the hammers
+     *         don't pull on anything
+     */
+    public GravityTree getHammerTree() {
+        return this.hammerTree;
+    }
+    
+    /**
+     * Sets the fewest worlds for which the gravity field is used
+     * 
+     * @param gravityFieldMinWorlds the fewest worlds, or 0 to always use
+     *                              the field
+     */
+    public void setGravityFieldMinWorlds(int gravityFieldMinWorlds) {
+        this.gravityFieldMinWorlds = gravityFieldMinWorlds;
+    }
+    
+    /**
+     * @return the executor the physics and collision work is spread over
+     */
+    public ParallelExecutor getExecutor() {
+        return this.executor;
+    }
+    
+    /**
+     * Sets the executor the physics and collision work is spread over. The
+     * simulation doesn't shut down executors it is given.
+     * 
+     * @param executor the executor to use
+     */
+    public void setExecutor(ParallelExecutor executor) {
+        this.executor = executor;
+        int chunks = executor.getMaxChunks();
+        this.broadphaseQueries = new UniformGrid.Query[chunks];
+        this.hammerEvents = new CollisionEventBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+            this.broadphaseQueries[i] = new UniformGrid.Query();
+            this.hammerEvents[i] = new CollisionEventBuffer(16);
+        }
+    }
+    
+    /**
+     * Advances the game by one step. The queued inputs are applied first,
+     * then, if the game is running, everything is updated by deltaSeconds.
+     * 
+     * @param inputs the control changes since the last tick, cleared once
+     *               they have been applied
+     * @param deltaSeconds the time in seconds to advance by
+     */
+    public void tick(InputQueue inputs, float deltaSeconds) {
+        if (this.allocationMonitor != null) {
+            this.allocationMonitor.beginTick();
+        }
+        FrameProfiler profiler = this.profiler;
+        profiler.begin(FrameProfiler.Phase.TICK);
+        
+        if (inputs != null) {
+            for (int i = 0; i < inputs.size(); i++) {
+                if (inputs.isPressed(i)) {
+                    this.controlPressed(inputs.getControl(i));
+                } else {
+                    this.controlReleased(inputs.getControl(i));
+                }
+            }
+            inputs.clear();
+        }
+        
+        // remember where everything was, so it can be drawn between here
+        // and where this tick takes it
+        this.savePreviousState();
+        
+        if (this.gameState == GAME_RUNNING) {
+            // increase the game time
+            this.elapsedGameTime += deltaSeconds;
+            // should we be generating aliens?
+            this.alienReleaseTimer += deltaSeconds;
+            if (this.alienReleaseTimer >= this.alienReleaseLimit/1000.0f) {
+                // reset the time
+                this.alienReleaseTimer = 0.0f;
+                // lower the limit
+                this.alienReleaseLimit -= 10.0f;
+                
+                // release some aliens
+                this.alienReleaseCount += 0.5;
+                for (int i = 0; i < this.alienReleaseCount; i++) {
+                    if (this.aliens.size() + this.aliens.getPendingAddCount() +
+                            this.universe.getPagedAlienCount() < this.alienCountLimit) {
+                        this.spawnAlien();
+                    }
+                }
+            }
+            
+            // update the player
+            profiler.begin(FrameProfiler.Phase.PLAYER);
+            this.mcHammer.update(deltaSeconds);
+            profiler.end(FrameProfiler.Phase.PLAYER);
+            
+            // update the hammers
+            profiler.begin(FrameProfiler.Phase.HAMMERS);
+            for (int i = 0; i < this.hammerList.size(); i++) {
+                this.hammerList.get(i).update(deltaSeconds);
+            }
+            profiler.end(FrameProfiler.Phase.HAMMERS);
+            
+            // update the aliens
+            profiler.begin(FrameProfiler.Phase.ALIENS);
+            for (int i = 0; i < this.aliens.size(); i++) {
+                this.aliens.get(i).update(deltaSeconds);
+            }
+            profiler.end(FrameProfiler.Phase.ALIENS);
+            
+            // update the buildings
+            profiler.begin(FrameProfiler.Phase.BUILDINGS);
+            for (int i = 0; i < this.buildings.size(); i++) {
+                Building building = this.buildings.get(i);
+                building.update(deltaSeconds);
+                
+                // update the player score
+                if (building.onPlanet) {
+                    this.propertyValue -= building.damageDone;
+                    building.damageDone = 0;
+                }
+                
+            }
+            profiler.end(FrameProfiler.Phase.BUILDINGS);
+            
+            // bring in the new entities and drop the dead ones, then move
+            // everything that is left
+            profiler.begin(FrameProfiler.Phase.INTEGRATE);
+            this.flushEntities();
+            this.integrate(this.hammerKinematics, deltaSeconds);
+            this.integrate(this.alienKinematics, deltaSeconds);
+            this.integrate(this.buildingKinematics, deltaSeconds);
+            profiler.end(FrameProfiler.Phase.INTEGRATE);
+            
+            // apply physics
+            profiler.begin(FrameProfiler.Phase.PHYSICS);
+            this.simulatePhysics(deltaSeconds);
+            profiler.end(FrameProfiler.Phase.PHYSICS);
+            
+            // run the collision detection, and apply what it removed
+            profiler.begin(FrameProfiler.Phase.COLLISIONS);
+            this.detectCollisions();
+            this.flushEntities();
+            profiler.end(FrameProfiler.Phase.COLLISIONS);
+            
+            // follow the player through space, paging in and out whatever
+            // that brings near them or leaves behind
+            profiler.begin(FrameProfiler.Phase.STREAMING);
+            this.universe.update();
+            profiler.end(FrameProfiler.Phase.STREAMING);
+            
+            if (this.propertyValue < 0) {
+                this.propertyValue = 0;
+                this.gameState = GAME_OVER;
+            }
+        }
+        
+        this.tickCount++;
+        profiler.countEntities(this.hammerList.size(), this.aliens.size(), this.buildings.size());
+        profiler.end(FrameProfiler.Phase.TICK);
+        
+        if (this.allocationMonitor != null) {
+            this.allocationMonitor.endTick();
+        }
+    }
+    
+    /**
+     * Saves the position and rotation of everything that moves, for
+     * rendering to blend from while the next tick is in progress. The
+     * positions are each saved in one copy of their store, and only the
+     * player and the hammers ever rotate.
+     */
+    protected void savePreviousState() {
+        this.mcHammer.kinematics.savePositions();
+        this.hammerKinematics.savePositions();
+        this.alienKinematics.savePositions();
+        this.buildingKinematics.savePositions();
+        
+        this.mcHammer.saveRotation();
+        for (int i = 0; i < this.hammerList.size(); i++) {
+            this.hammerList.get(i).saveRotation();
+        }
+    }
+    
+    /**
+     * Works out a hash of everything that decides how the game plays out
+     * from here: the game state, score and timers, the position,
+     * velocity and rotation of every entity, and whatever the universe has
+     * paged out. Floats are hashed by their
+     * bits, so two simulations only match if they agree exactly, which is
+     * what a replay checks to know it ended up where the recording did.
+     * 
+     * @return the hash of the current state
+     */
+    public long stateHash() {
+        long hash = HASH_SEED;
+        hash = Simulation.hash(hash, this.tickCount);
+        hash = Simulation.hash(hash, this.gameState);
+        hash = Simulation.hash(hash, this.propertyValue);
+        hash = Simulation.hash(hash, Float.floatToIntBits(this.elapsedGameTime));
+        hash = Simulation.hash(hash, Float.floatToIntBits(this.alienReleaseTimer));
+        hash = Simulation.hash(hash, Float.floatToIntBits(this.alienReleaseLimit));
+        hash = Simulation.hash(hash, Float.floatToIntBits(this.alienReleaseCount));
+        
+        Player player = this.mcHammer;
+        hash = Simulation.hashEntity(hash, player);
+        hash = Simulation.hash(hash, (player.rotatingLeft ? 1 : 0) |
+                                     (player.rotatingRight ? 2 : 0) |
+                                     (player.jetpackActive ? 4 : 0) |
+                                     (player.jetpackReverse ? 8 : 0));
+        
+        hash = Simulation.hash(hash, this.hammerList.size());
+        for (int i = 0; i < this.hammerList.size(); i++) {
+            hash = Simulation.hashEntity(hash, this.hammerList.get(i));
+        }
+        
+        hash = Simulation.hash(hash, this.aliens.size());
+        for (int i = 0; i < this.aliens.size(); i++) {
+            hash = Simulation.hashEntity(hash, this.aliens.get(i));
+        }
+        
+        hash = Simulation.hash(hash, this.buildings.size());
+        for (int i = 0; i < this.buildings.size(); i++) {
+            Building building = this.buildings.get(i);
+            hash = Simulation.hashEntity(hash, building);
+            hash = Simulation.hash(hash, building.onPlanet ? 1 : 0);
+            hash = Simulation.hash(hash, building.damageDone);
+            hash = Simulation.hash(hash, Float.floatToIntBits(building.damageTimeAccumulator));
+        }
+        
+        // and everything paged out, if anything ever is
+        if (!this.universe.isWholeSpaceActive()) {
+            hash = this.universe.hash(hash);
+        }
+        return hash;
+    }
+    
+    /**
+     * Mixes an entity's position, velocity and rotation into a hash
+     * 
+     * @param hash the hash so far
+     * @param entity the entity to mix in
+     * @return the new hash
+     */
+    protected static long hashEntity(long hash, Entity entity) {
+        hash = Simulation.hash(hash, Float.floatToIntBits(entity.getX()));
+        hash = Simulation.hash(hash, Float.floatToIntBits(entity.getY()));
+        hash = Simulation.hash(hash, Float.floatToIntBits(entity.getVelocityX()));
+        hash = Simulation.hash(hash, Float.floatToIntBits(entity.getVelocityY()));
+        hash = Simulation.hash(hash, Float.floatToIntBits(entity.rotation));
+        return hash;
+    }
+    
+    /**
+     * Mixes a value into a hash, FNV-1a style but a word at a time
+     * 
+     * @param hash the hash so far
+     * @param value the value to mix in
+     * @return the new hash
+     */
+    protected static long hash(long hash, long value) {
+        hash ^= value;
+        hash *= 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+    
+    /**
+     * Applies a control being pressed
+     * 
+     * @param control the control that was pressed
+     */
+    protected void controlPressed(Control control) {
+        switch (control) {
+            case ROTATE_RIGHT:
+                this.mcHammer.setRotatingRight();
+                break;
+            case ROTATE_LEFT:
+                this.mcHammer.setRotatingLeft();
+                break;
+            case JETPACK_REVERSE:
+                this.mcHammer.setJetpackReverse();
+                break;
+            case JETPACK_ON:
+                this.mcHammer.setJetpackOn();
+                break;
+            case THROW:
+                if (this.gameState == GAME_MENU) {
+                    this.gameState = GAME_RUNNING;
+                } else {
+                    this.mcHammer.throwHammer();
+                }
+                break;
+            case PAUSE:
+                if (this.gameState == GAME_RUNNING) {
+                    this.gameState = GAME_PAUSED;
+                } else if (this.gameState == GAME_PAUSED) {
+                    this.gameState = GAME_RUNNING;
+                }
+                break;
+            case RESTART:
+                if (this.gameState == GAME_OVER) {
+                    this.restartGame();
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Applies a control being released
+     * 
+     * @param control the control that was released
+     */
+    protected void controlReleased(Control control) {
+        switch (control) {
+            case ROTATE_RIGHT:
+            case ROTATE_LEFT:
+                this.mcHammer.setNotRotating();
+                break;
+            case JETPACK_ON:
+            case JETPACK_REVERSE:
+                this.mcHammer.setJetpackOff();
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Moves every body in a store by its velocity, spread across the
+     * executor's threads
+     * 
+     * @param store the bodies to move
+     * @param deltaSeconds the timestep
+     */
+    protected void integrate(KinematicStore store, float deltaSeconds) {
+        this.integrateTask.store = store;
+        this.integrateTask.deltaSeconds = deltaSeconds;
+        this.executor.forRange(store.size(), PHYSICS_MIN_CHUNK, this.integrateTask);
+        this.integrateTask.store = null;
+    }
+    
+    /**
+     * Runs the main physics simulation between interacting bodies
+     * 
+     * Once there are enough worlds, their gravity is looked up in the
+     * gravity field, which costs the same however many worlds there are.
+     * If the field can't be used, as when space is streamed in chunks, a
+     * great many worlds are summed through a Barnes-Hut tree along with the
+     * chunks of space that aren't being simulated. Otherwise, the gravity
+     * from each world is accumulated into the velocities of the player and
+     * the hammers as one batch per world, followed by one batch for each
+     * chunk of space that isn't being simulated.
+     * 
+     * If the scenario has mutual gravity, the hammers are put in a tree of
+     * their own every tick, which pulls on the hammers and on the buildings
+     * that haven't landed.
+     * 
+     * The hammers are split into chunks across the executor's threads, with
+     * each chunk taking the worlds in the same order, so every hammer ends
+     * up with the same velocity as it would on one thread.
+     */
+    public void simulatePhysics(float deltaSeconds) {
+        KinematicStore playerKinematics = this.mcHammer.kinematics;
+        boolean useField = this.usesGravityField();
+        boolean useTree = !useField && this.usesGravityTree();
+        if (useField) {
+            // the worlds don't normally move, so this is only rebuilt when
+            // they do
+            this.updateGravityField();
+            this.gravityField.accumulate(playerKinematics, 0, playerKinematics.size(), deltaSeconds);
+        } else if (useTree) {
+            this.updateGravityTree();
+            this.gravityTree.accumulate(playerKinematics, 0, playerKinematics.size(), deltaSeconds);
+        } else {
+            // gravitation force = m1*m2/r^2 where r = distance between objects        
+            for (int w = 0; w < this.worlds.size(); w++) {
+                World world = this.worlds.get(w);
+                
+                // calculate gravitation effects for the player
+                this.kernel.accumulateGravity(playerKinematics,
+                                              world.getX(), world.getY(), world.getMass(),
+                                              deltaSeconds);
+            }
+            
+            // and from the worlds in the rest of space
+            Universe universe = this.universe;
+            for (int s = 0; s < universe.summaryCount; s++) {
+                this.kernel.accumulateGravity(playerKinematics,
+                                              universe.summaryX[s], universe.summaryY[s], universe.summaryMass[s],
+                                              deltaSeconds);
+            }
+        }
+        
+        // the hammers have moved since the last tick, so their tree is
+        // always built again
+        if (this.hammerTree != null) {
+            this.hammerTree.build(this.hammerKinematics);
+        }
+        
+        // calculate gravitational effects for the hammers
+        this.gravityTask.gravityField = useField ? this.gravityField : null;
+        this.gravityTask.gravityTree = useTree ? this.gravityTree : null;
+        this.gravityTask.deltaSeconds = deltaSeconds;
+        this.executor.forRange(this.hammerKinematics.size(), PHYSICS_MIN_CHUNK, this.gravityTask);
+        
+        // and for the buildings, which only the hammers pull on
+        if (this.hammerTree != null) {
+            this.buildingGravityTask.deltaSeconds = deltaSeconds;
+            this.executor.forRange(this.buildingKinematics.size(), PHYSICS_MIN_CHUNK, this.buildingGravityTask);
+        }
+    }
+    
+    /**
+     * @return whether the gravity from the worlds comes from the gravity
+     *         field, rather than being summed world by world
+     */
+    protected boolean usesGravityField() {
+        return this.gravityField != null && this.worlds.size() >= this.gravityFieldMinWorlds;
+    }
+    
+    /**
+     * @return whether the gravity from the worlds is summed through the
+     *         gravity tree, if it doesn't come from the gravity field
+     */
+    protected boolean usesGravityTree() {
+        return this.gravityTree != null &&
+               this.worlds.size() + this.universe.summaryCount >= this.gravityTreeMinWorlds;
+    }
+    
+    /**
+     * Gives the worlds to the gravity field, which rebuilds itself if any of
+     * them have moved, changed mass, or been added or removed
+     */
+    protected void updateGravityField() {
+        int count = this.collectAttractors();
+        this.gravityField.update(this.worldX, this.worldY, this.worldMass, count);
+    }
+    
+    /**
+     * Builds the gravity tree from the worlds and the rest of space. It is
+     * cheap next to walking it for every body, so it is built every tick.
+     */
+    protected void updateGravityTree() {
+        int count = this.collectAttractors();
+        this.gravityTree.build(this.worldX, this.worldY, this.worldMass, count);
+    }
+    
+    /**
+     * Copies the position and mass of each world, and then of each chunk
+     * of space that isn't being simulated, into worldX, worldY and
+     * worldMass
+     * 
+     * @return the number of attractors copied
+     */
+    protected int collectAttractors() {
+        Universe universe = this.universe;
+        int worldCount = this.worlds.size();
+        int count = worldCount + universe.summaryCount;
+        if (this.worldX.length < count) {
+            this.worldX = new float[count * 2];
+            this.worldY = new float[count * 2];
+            this.worldMass = new float[count * 2];
+        }
+        for (int w = 0; w < worldCount; w++) {
+            World world = this.worlds.get(w);
+            this.worldX[w] = world.getX();
+            this.worldY[w] = world.getY();
+            this.worldMass[w] = world.getMass();
+        }
+        System.arraycopy(universe.summaryX, 0, this.worldX, worldCount, universe.summaryCount);
+        System.arraycopy(universe.summaryY, 0, this.worldY, worldCount, universe.summaryCount);
+        System.arraycopy(universe.summaryMass, 0, this.worldMass, worldCount, universe.summaryCount);
+        return count;
+    }
+    
+    /**
+     * Detects collisions between collision objects in the world, and notifies
+     * them that a collision occurred.
+     * 
+     * The buildings are put into a uniform grid first, so each hammer and
+     * world only runs the narrowphase against the buildings near it.
+     * 
+     * The hammers are swept along the whole of their movement this tick,
+     * rather than tested where they ended up, so a fast hammer or a long
+     * tick can't carry one through a building or out through a boundary
+     * without touching it. Only what each hammer touches first counts (all
+     * of it, if it touches several things at once), as the hammer is gone
+     * after that, so the same things get hit at any tick rate.
+     * 
+     * The narrowphase is spread across the executor's threads, which only
+     * record what touched. The callbacks are then made here, in the same
+     * order as if every test had been run one after another.
+     */
+    public void detectCollisions() {
+        // build the broadphase from the buildings
+        int buildingCount = this.buildings.size();
+        if (this.broadphaseBuildings.length < buildingCount) {
+            this.broadphaseBuildings = new Building[Math.max(buildingCount, this.broadphaseBuildings.length * 2)];
+        }
+        this.broadphase.clear();
+        KinematicStore buildingKinematics = this.buildingKinematics;
+        float maxBuildingStep = 0.0f;
+        for (int index = 0; index < buildingCount; index++) {
+            Building building = this.buildings.get(index);
+            this.broadphaseBuildings[index] = building;
+            float stepX = Math.abs(buildingKinematics.x[index] - buildingKinematics.previousX[index]);
+            float stepY = Math.abs(buildingKinematics.y[index] - buildingKinematics.previousY[index]);
+            // NaN (a building with no saved position) fails the comparison
+            if (stepX > maxBuildingStep) {
+                maxBuildingStep = stepX;
+            }
+            if (stepY > maxBuildingStep) {
+                maxBuildingStep = stepY;
+            }
+            // the hammer chunks share the buildings' rectangles, so bring
+            // them up to date before any of them start
+            Rectangle buildingRect = building.collisionRectangle();
+            this.broadphase.insert(index,
+                                   buildingRect.getX(),
+                                   buildingRect.getY(),
+                                   buildingRect.getWidth(),
+                                   buildingRect.getHeight());
+        }
+        this.broadphase.build();
+        this.maxBuildingStep = maxBuildingStep;
+        
+        // first, make sure we are not moving out of our "space"
+        for (int b = 0; b < this.spaceBoundaries.size(); b++) {
+            Rectangle boundaryRect = this.spaceBoundaries.get(b);
+            if (this.mcHammer.touches(boundaryRect)) {
+                this.mcHammer.onCollision(boundaryRect);
+            }
+        }
+        
+        // collision detection for hammers, then the callbacks for what was
+        // found, chunk by chunk
+        int chunks = this.executor.forRange(this.hammerList.size(),
+                                            COLLISION_MIN_CHUNK,
+                                            this.hammerCollisionTask);
+        for (int c = 0; c < chunks; c++) {
+            CollisionEventBuffer events = this.hammerEvents[c];
+            for (int e = 0; e < events.size(); e++) {
+                Hammer hammer = this.hammerList.get(events.getA(e));
+                int target = events.getB(e);
+                if (target < 0) {
+                    hammer.onCollision(this.spaceBoundaries.get(-1 - target));
+                } else {
+                    Building building = this.broadphaseBuildings[target];
+                    hammer.onCollision(building);
+                    building.onCollision(hammer);
+                }
+            }
+        }
+        
+        // world collisions
+        for (int w = 0; w < this.worlds.size(); w++) {
+            World world = this.worlds.get(w);
+            float worldSize = world.radius * 2.0f;
+            
+            // detect collisions between player and the worlds
+            if (this.mcHammer.touches(world)) {
+                this.mcHammer.onCollision(world);
+            }
+            
+            // detect collisions between nearby buildings and the worlds. A
+            // building pushed off one world can then be touching the next,
+            // so each world is finished before the next one is tested.
+            int candidates = this.broadphase.query(world.getX(),
+                                                   world.getY(),
+                                                   worldSize,
+                                                   worldSize);
+            if (this.worldHits.length < candidates) {
+                this.worldHits = new boolean[Math.max(candidates, this.worldHits.length * 2)];
+            }
+            this.worldCollisionTask.world = world;
+            this.executor.forRange(candidates, COLLISION_MIN_CHUNK, this.worldCollisionTask);
+            this.worldCollisionTask.world = null;
+            for (int i = 0; i < candidates; i++) {
+                if (this.worldHits[i]) {
+                    Building building = this.broadphaseBuildings[this.broadphase.getResult(i)];
+                    building.onCollision(world);
+                }
+            }
+        }
+        
+        // don't hold on to buildings that have since been removed
+        for (int i = 0; i < buildingCount; i++) {
+            this.broadphaseBuildings[i] = null;
+        }
+    }
+    
+    /**
+     * Moves one chunk of a store's bodies
+     */
+    protected class IntegrateTask implements ParallelExecutor.RangeTask {
+        
+        protected KinematicStore store;
+        protected float deltaSeconds;
+        
+        public void run(int from, int to, int chunk) {
+            Simulation.this.kernel.integrate(this.store, from, to, this.deltaSeconds);
+        }
+        
+    }
+    
+    /**
+     * Accumulates the gravity from every world, and from the other hammers
+     * if they pull on each other, into one chunk of hammers
+     */
+    protected class GravityTask implements ParallelExecutor.RangeTask {
+        
+        protected GravityField gravityField;
+        protected GravityTree gravityTree;
+        protected float deltaSeconds;
+        
+        public void run(int from, int to, int chunk) {
+            if (this.gravityField != null) {
+                this.gravityField.accumulate(Simulation.this.hammerKinematics, from, to, this.deltaSeconds);
+            } else if (this.gravityTree != null) {
+                this.gravityTree.accumulate(Simulation.this.hammerKinematics, from, to, this.deltaSeconds);
+            } else {
+                this.sumWorlds(from, to);
+            }
+            
+            if (Simulation.this.hammerTree != null) {
+                Simulation.this.hammerTree.accumulate(Simulation.this.hammerKinematics, from, to, this.deltaSeconds);
+            }
+        }
+        
+        /**
+         * Accumulates the gravity from each world, and then from each chunk
+         * of space that isn't being simulated, into a range of hammers
+         */
+        protected void sumWorlds(int from, int to) {
+            ArrayList<World> worlds = Simulation.this.worlds;
+            for (int w = 0; w < worlds.size(); w++) {
+                World world = worlds.get(w);
+                Simulation.this.kernel.accumulateGravity(Simulation.this.hammerKinematics,
+                                                         from, to,
+                                                         world.getX(), world.getY(), world.getMass(),
+                                                         this.deltaSeconds);
+            }
+            
+            Universe universe = Simulation.this.universe;
+            for (int s = 0; s < universe.summaryCount; s++) {
+                Simulation.this.kernel.accumulateGravity(Simulation.this.hammerKinematics,
+                                                         from, to,
+                                                         universe.summaryX[s], universe.summaryY[s],
+                                                         universe.summaryMass[s],
+                                                         this.deltaSeconds);
+            }
+        }
+        
+    }
+    
+    /**
+     * Accumulates the gravity from the hammers into the buildings in one
+     * chunk that haven't landed
+     */
+    protected class BuildingGravityTask implements ParallelExecutor.RangeTask {
+        
+        protected float deltaSeconds;
+        
+        public void run(int from, int to, int chunk) {
+            EntityRegistry<Building> buildings = Simulation.this.buildings;
+            for (int i = from; i < to; i++) {
+                // building i is in slot i of the store
+                if (!buildings.get(i).onPlanet) {
+                    Simulation.this.hammerTree.accumulate(Simulation.this.buildingKinematics,
+                                                          i, i + 1,
+                                                          this.deltaSeconds);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * Finds the first boundary or building touched by each of one chunk of
+     * hammers, recording them into the chunk's event buffer
+     */
+    protected class HammerCollisionTask implements ParallelExecutor.RangeTask {
+        
+        public void run(int from, int to, int chunk) {
+            Simulation simulation = Simulation.this;
+            CollisionEventBuffer events = simulation.hammerEvents[chunk];
+            UniformGrid.Query query = simulation.broadphaseQueries[chunk];
+            KinematicStore hammers = simulation.hammerKinematics;
+            events.clear();
+            
+            for (int h = from; h < to; h++) {
+                // each hammer belongs to one chunk, so its rectangle is ours
+                Rectangle hammerRect = simulation.hammerList.get(h).collisionRectangle();
+                float width = hammerRect.getWidth();
+                float height = hammerRect.getHeight();
+                
+                // how far the hammer moved this tick, and where it started
+                float stepX = Simulation.step(hammers.x[h], hammers.previousX[h]);
+                float stepY = Simulation.step(hammers.y[h], hammers.previousY[h]);
+                float startX = hammerRect.getX() - stepX;
+                float startY = hammerRect.getY() - stepY;
+                
+                // the box the hammer swept through
+                float minX = Math.min(startX, hammerRect.getX());
+                float minY = Math.min(startY, hammerRect.getY());
+                float maxX = Math.max(startX, hammerRect.getX()) + width;
+                float maxY = Math.max(startY, hammerRect.getY()) + height;
+                
+                // find when the hammer first touched anything, then
+                // everything it touched at that moment
+                float first = this.findContacts(h, startX, startY, width, height, stepX, stepY,
+                                                minX, minY, maxX, maxY, Float.POSITIVE_INFINITY, events, query);
+                if (first <= 1.0f) {
+                    this.findContacts(h, startX, startY, width, height, stepX, stepY,
+                                      minX, minY, maxX, maxY, first, events, query);
+                }
+            }
+        }
+        
+        /**
+         * Sweeps a hammer against the boundaries and the buildings near its
+         * path. With no contact time given, this finds the earliest time it
+         * touches any of them. With one, it records everything it touches
+         * at exactly that time, boundaries first and then buildings in the
+         * order the grid finds them.
+         * 
+         * @param h the index of the hammer
+         * @param startX the left edge of the hammer at the start of the tick
+         * @param startY the top edge of the hammer at the start of the tick
+         * @param width the width of the hammer
+         * @param height the height of the hammer
+         * @param stepX how far the hammer moved in x this tick
+         * @param stepY how far the hammer moved in y this tick
+         * @param minX the left edge of the box the hammer swept through
+         * @param minY the top edge of the box the hammer swept through
+         * @param maxX the right edge of the box the hammer swept through
+         * @param maxY the bottom edge of the box the hammer swept through
+         * @param contact the time to record the contacts at, or
+         *                Float.POSITIVE_INFINITY to find the earliest
+         * @param events where to record the contacts
+         * @param query the chunk's query scratch space
+         * @return the earliest time the hammer touched anything, as a
+         *         fraction of the tick, or Float.POSITIVE_INFINITY if it
+         *         touched nothing
+         */
+        protected float findContacts(int h,
+                                     float startX, float startY, float width, float height,
+                                     float stepX, float stepY,
+                                     float minX, float minY, float maxX, float maxY,
+                                     float contact,
+                                     CollisionEventBuffer events,
+                                     UniformGrid.Query query) {
+            Simulation simulation = Simulation.this;
+            ArrayList<Rectangle> boundaries = simulation.spaceBoundaries;
+            KinematicStore buildings = simulation.buildingKinematics;
+            boolean recording = contact != Float.POSITIVE_INFINITY;
+            float first = Float.POSITIVE_INFINITY;
+            
+            // detect collisions with boundaries, which we can only be
+            // touching if we have been at the edge of space
+            if (minX <= -simulation.originX ||
+                    minY <= -simulation.originY ||
+                    maxX >= simulation.spaceWidth - simulation.originX ||
+                    maxY >= simulation.spaceHeight - simulation.originY) {
+                for (int b = 0; b < boundaries.size(); b++) {
+                    Rectangle boundary = boundaries.get(b);
+                    float time = ABPhysicsHelper.timeOfImpact(startX, startY, width, height,
+                                                              stepX, stepY,
+                                                              boundary.getX(), boundary.getY(),
+                                                              boundary.getWidth(), boundary.getHeight());
+                    if (recording && time == contact) {
+                        events.add(h, -1 - b);
+                    }
+                    first = Math.min(first, time);
+                }
+            }
+            
+            // collision between hammers and nearby buildings, which may have
+            // been moving too
+            float grow = simulation.maxBuildingStep;
+            int candidates = simulation.broadphase.query(minX - grow,
+                                                         minY - grow,
+                                                         maxX - minX + grow * 2.0f,
+                                                         maxY - minY + grow * 2.0f,
+                                                         query);
+            for (int i = 0; i < candidates; i++) {
+                int index = query.getResult(i);
+                Rectangle buildingRect = simulation.broadphaseBuildings[index].collisionRect;
+                float buildingStepX = Simulation.step(buildings.x[index], buildings.previousX[index]);
+                float buildingStepY = Simulation.step(buildings.y[index], buildings.previousY[index]);
+                float time = ABPhysicsHelper.timeOfImpact(startX, startY, width, height,
+                                                          stepX - buildingStepX, stepY - buildingStepY,
+                                                          buildingRect.getX() - buildingStepX,
+                                                          buildingRect.getY() - buildingStepY,
+                                                          buildingRect.getWidth(),
+                                                          buildingRect.getHeight());
+                if (recording && time == contact) {
+                    events.add(h, index);
+                }
+                first = Math.min(first, time);
+            }
+            return first;
+        }
+        
+    }
+    
+    /**
+     * @param position a body's position now
+     * @param previous its saved position, NaN if it hasn't got one
+     * @return how far it has moved since, or 0 if it hasn't got one
+     */
+    protected static float step(float position, float previous) {
+        return previous != previous ? 0.0f : position - previous;
+    }
+    
+    /**
+     * Tests one chunk of the buildings found near a world against it
+     */
+    protected class WorldCollisionTask implements ParallelExecutor.RangeTask {
+        
+        protected World world;
+        
+        public void run(int from, int to, int chunk) {
+            Simulation simulation = Simulation.this;
+            float centerX = this.world.getCenterX();
+            float centerY = this.world.getCenterY();
+            float radius = this.world.getRadius();
+            for (int i = from; i < to; i++) {
+                // each candidate is only found once, so its rectangle is ours
+                Building building = simulation.broadphaseBuildings[simulation.broadphase.getResult(i)];
+                Rectangle rect = building.collisionRectangle();
+                simulation.worldHits[i] = Narrowphase.circleIntersectsBox(centerX, centerY, radius,
+                                                                          rect.getX(), rect.getY(),
+                                                                          rect.getWidth(), rect.getHeight());
+            }
+        }
+        
+    }
+    
+}
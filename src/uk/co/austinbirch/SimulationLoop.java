@@ -0,0 +1,672 @@
+package uk.co.austinbirch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import org.newdawn.slick.util.Log;
+
+import uk.co.austinbirch.replay.InputRecorder;
+
+/**
+ * @author Austin Birch
+ *
+ * Ticks a Simulation and publishes a RenderSnapshot of it after every tick,
+ * either when the game's update advances it, or on a thread of its own so
+ * that a slow tick never holds up rendering and the game can use two cores.
+ *
+ * Control changes come in through an InputRing and the snapshots go out
+ * through a SnapshotBuffer, so whichever way it is run the renderer only
+ * ever looks at snapshots, and never at the simulation itself. On its own
+ * thread it always ticks in fixed steps, sleeping until each one is due,
+ * and running up to maxTicksPerUpdate at once to catch up if it has fallen
+ * behind before giving up on the rest of the time.
+ *
+ * The game is saved and loaded between ticks, on whichever thread ticks
+ * it, with the saves written by an AutoSaver so that saving never holds up
+ * a tick.
+ *
+ * Every tick can also be recorded into a RewindBuffer. While rewinding,
+ * the simulation is left alone, and each tick publishes a tick put back
+ * together from the history instead, moving through it at the speed
+ * asked for, until play carries on from whichever tick is showing.
+ *
+ * On its own thread, a copy of the simulation's profiler is published
+ * every PROFILE_PUBLISH_TICKS ticks, as the profiler can only be used by
+ * the thread ticking it.
+ *
+ */
+public class SimulationLoop implements Runnable {
+
+    // Global variables
+    
+    /**
+     * How often a copy of the simulation's profiler is published, when
+     * ticking on its own thread
+     */
+    protected static final int PROFILE_PUBLISH_TICKS = 30;
+    
+    // Member variables
+    
+    /**
+     * The simulation being ticked
+     */
+    protected Simulation simulation;
+    
+    /**
+     * The control changes waiting for the next tick, from whichever thread
+     * reads the keyboard
+     */
+    protected InputRing inputRing = new InputRing(256);
+    
+    /**
+     * The control changes handed to the simulation each tick
+     */
+    protected InputQueue inputs = new InputQueue();
+    
+    /**
+     * The snapshots handed to the renderer
+     */
+    protected SnapshotBuffer snapshots = new SnapshotBuffer();
+    
+    /**
+     * Whether the simulation is ticked in fixed steps of tickDeltaSeconds,
+     * rather than by however much time each advance() is given
+     */
+    protected boolean fixedStep;
+    
+    /**
+     * The length of a fixed tick
+     */
+    protected float tickDeltaSeconds;
+    protected long tickLengthNanos;
+    
+    /**
+     * The most fixed ticks run at once
+     */
+    protected int maxTicksPerUpdate;
+    
+    /**
+     * The time that has passed but not been ticked yet, when advanced by
+     * the game's update
+     */
+    protected float tickAccumulator = 0.0f;
+    
+    /**
+     * Writes the input to a file as it is ticked, or null if the game isn't
+     * being recorded
+     */
+    protected InputRecorder recorder;
+    
+    /**
+     * Writes the saves, or null if the game can't be saved
+     */
+    protected AutoSaver saver;
+    
+    /**
+     * The file saved to and loaded from when asked to
+     */
+    protected File saveFile;
+    
+    /**
+     * The file saved to every autosaveTicks ticks while the game is
+     * running, or null if it isn't saved automatically
+     */
+    protected File autosaveFile;
+    protected long autosaveTicks;
+    
+    /**
+     * Whether we have been asked to save or load before the next tick
+     */
+    protected volatile boolean saveRequested = false;
+    protected volatile boolean loadRequested = false;
+    
+    /**
+     * Keeps the last few ticks to rewind through, or null if they aren't
+     * kept
+     */
+    protected RewindBuffer rewind;
+    
+    /**
+     * Whether we have been asked to rewind, and whether we are
+     */
+    protected volatile boolean rewindRequested = false;
+    protected boolean rewinding = false;
+    
+    /**
+     * The number of ticks to move through the history each tick while
+     * rewinding, negative to go back
+     */
+    protected volatile int rewindSpeed = 0;
+    
+    /**
+     * The tick being shown while rewinding
+     */
+    protected long rewindTick;
+    
+    /**
+     * The number of times the game had been restarted when the last tick
+     * was recorded, as a restart starts the history again
+     */
+    protected int restartCount = 0;
+    
+    /**
+     * The thread ticking the simulation, or null if it is advanced by the
+     * game's update
+     */
+    protected Thread thread;
+    
+    /**
+     * Whether the thread should keep ticking
+     */
+    protected volatile boolean running = false;
+    
+    /**
+     * What stopped the thread, if something went wrong in a tick, or null
+     */
+    protected volatile Throwable failure;
+    
+    /**
+     * The copy of the simulation's profiler being written by the thread,
+     * and the one last published, swapped under profileLock
+     */
+    protected FrameProfiler profileCopy = new FrameProfiler();
+    protected FrameProfiler publishedProfile = new FrameProfiler();
+    protected final Object profileLock = new Object();
+    
+    /**
+     * Whether we have been asked to reset the simulation's profiler before
+     * the next tick
+     */
+    protected volatile boolean profileResetRequested = false;
+    
+    /**
+     * Creates a loop, publishing a snapshot of the simulation as it is so
+     * there is something to draw before the first tick
+     * 
+     * @param simulation the simulation to tick
+     * @param fixedStep whether to tick in fixed steps
+     * @param tickDeltaSeconds the length of a fixed tick
+     * @param maxTicksPerUpdate the most fixed ticks to run at once
+     */
+    public SimulationLoop(Simulation simulation,
+                          boolean fixedStep,
+                          float tickDeltaSeconds,
+                          int maxTicksPerUpdate) {
+        this.simulation = simulation;
+        this.fixedStep = fixedStep;
+        this.tickDeltaSeconds = tickDeltaSeconds;
+        this.tickLengthNanos = (long)(tickDeltaSeconds * 1.0e9);
+        this.maxTicksPerUpdate = Math.max(1, maxTicksPerUpdate);
+        
+        this.snapshots.getWriteSnapshot().capture(simulation, System.nanoTime(), 0);
+        this.snapshots.publish();
+    }
+    
+    /**
+     * Starts ticking the simulation on a thread of its own, in fixed steps.
+     * After this, the simulation must only be touched by that thread until
+     * stop() has returned.
+     */
+    public void start() {
+        if (this.thread != null) {
+            return;
+        }
+        this.fixedStep = true;
+        this.running = true;
+        this.thread = new Thread(this, "McHammer simulation");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Stops the simulation thread, if it is running, and waits for it to
+     * finish its tick
+     */
+    public void stop() {
+        Thread thread = this.thread;
+        if (thread == null) {
+            return;
+        }
+        this.running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.thread = null;
+    }
+    
+    /**
+     * Ticks the simulation whenever a tick is due, until stopped
+     */
+    @Override
+    public void run() {
+        long tickLength = this.tickLengthNanos;
+        long nextTick = System.nanoTime();
+        try {
+            while (this.running) {
+                int ticks = 0;
+                while (System.nanoTime() - nextTick >= 0 && ticks < this.maxTicksPerUpdate) {
+                    this.tick(this.tickDeltaSeconds, nextTick);
+                    nextTick += tickLength;
+                    ticks++;
+                }
+                
+                // if we still haven't caught up, drop the time we are
+                // behind by rather than falling further and further behind
+                long now = System.nanoTime();
+                if (now - nextTick >= 0) {
+                    nextTick = now;
+                } else {
+                    LockSupport.parkNanos(nextTick - now);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            Log.error("The simulation thread has stopped", e);
+            this.failure = e;
+            this.running = false;
+        }
+    }
+    
+    /**
+     * Advances the simulation by the time since the last update, when it
+     * isn't running on its own thread. In fixed steps, this runs as many
+     * ticks as fit in the time that has passed, leaving the input queued if
+     * none do.
+     * 
+     * @param deltaSeconds the time since the last update
+     * @throws IllegalStateException if the simulation's own thread has
+     *                               stopped because a tick failed, so the
+     *                               game stops as it would without it
+     */
+    public void advance(float deltaSeconds) {
+        if (this.failure != null) {
+            throw new IllegalStateException("The simulation thread has stopped", this.failure);
+        }
+        if (this.thread != null) {
+            return;
+        }
+        if (!this.fixedStep) {
+            this.tick(deltaSeconds, System.nanoTime());
+            return;
+        }
+        
+        this.tickAccumulator += deltaSeconds;
+        int ticks = 0;
+        while (this.tickAccumulator >= this.tickDeltaSeconds) {
+            this.tick(this.tickDeltaSeconds, System.nanoTime());
+            this.tickAccumulator -= this.tickDeltaSeconds;
+            if (++ticks == this.maxTicksPerUpdate) {
+                this.tickAccumulator = 0.0f;
+            }
+        }
+    }
+    
+    /**
+     * Ticks the simulation once with the control changes since the last
+     * tick, recording them first if the game is being recorded, then
+     * publishes a snapshot of it. Any save or load asked for is done before
+     * the tick, and the game is saved automatically after it if one is due.
+     * While rewinding, a tick from the history is published instead.
+     * On its own thread, a copy of the profiler is published every
+     * PROFILE_PUBLISH_TICKS ticks.
+     * 
+     * @param deltaSeconds the length of the tick
+     * @param dueNanos the System.nanoTime the tick was due at
+     */
+    protected void tick(float deltaSeconds, long dueNanos) {
+        if (this.profileResetRequested) {
+            this.profileResetRequested = false;
+            this.simulation.getProfiler().reset();
+            if (this.thread != null) {
+                this.publishProfile();
+            }
+        }
+        if (this.rewindRequested != this.rewinding) {
+            if (this.rewindRequested) {
+                this.startRewinding();
+            } else {
+                this.stopRewinding();
+            }
+        }
+        if (this.rewinding) {
+            this.showRewind(dueNanos);
+            return;
+        }
+        
+        if (this.loadRequested) {
+            this.loadRequested = false;
+            this.load();
+        }
+        if (this.saveRequested) {
+            this.saveRequested = false;
+            this.saver.save(this.simulation, this.saveFile);
+            Log.info("Saved tick " + this.simulation.getTickCount() + " to " + this.saveFile);
+        }
+        
+        this.inputRing.drainTo(this.inputs);
+        if (this.recorder != null) {
+            try {
+                this.recorder.record(this.simulation.getTickCount(), this.inputs);
+            } catch (IOException e) {
+                Log.error("Unable to record the input, recording stopped", e);
+                this.recorder.close();
+                this.recorder = null;
+            }
+        }
+        if (this.rewind != null) {
+            this.rewind.recordInputs(this.inputs);
+        }
+        
+        long start = System.nanoTime();
+        this.simulation.tick(this.inputs, deltaSeconds);
+        long duration = System.nanoTime() - start;
+        
+        RenderSnapshot snapshot = this.snapshots.getWriteSnapshot();
+        snapshot.capture(this.simulation, dueNanos, duration);
+        if (this.rewind != null) {
+            if (this.restartCount != this.simulation.getRestartCount()) {
+                this.restartCount = this.simulation.getRestartCount();
+                this.rewind.clear();
+            }
+            this.rewind.record(this.simulation, snapshot);
+        }
+        this.snapshots.publish();
+        
+        if (this.autosaveFile != null &&
+                this.simulation.getGameState() == Simulation.GAME_RUNNING &&
+                this.simulation.getTickCount() % this.autosaveTicks == 0) {
+            this.saver.save(this.simulation, this.autosaveFile);
+        }
+        
+        if (this.thread != null && this.simulation.getTickCount() % PROFILE_PUBLISH_TICKS == 0) {
+            this.publishProfile();
+        }
+    }
+    
+    /**
+     * Copies the simulation's profiler and publishes the copy, only holding
+     * the lock to swap it with the last one published
+     */
+    protected void publishProfile() {
+        FrameProfiler copy = this.profileCopy;
+        copy.copy(this.simulation.getProfiler());
+        synchronized (this.profileLock) {
+            this.profileCopy = this.publishedProfile;
+            this.publishedProfile = copy;
+        }
+    }
+    
+    /**
+     * Puts the simulation back as it was in the save file. The input
+     * recorded so far wouldn't lead to the loaded game, so nothing is
+     * loaded while the game is being recorded.
+     */
+    protected void load() {
+        if (this.recorder != null) {
+            Log.warn("Unable to load " + this.saveFile + " while recording");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            SaveGame.read(this.saveFile).restore(this.simulation);
+            if (this.rewind != null) {
+                this.rewind.clear();
+            }
+            Log.info(String.format(Locale.ROOT, "Loaded tick %d from %s in %.0f us",
+                                   this.simulation.getTickCount(),
+                                   this.saveFile,
+                                   (System.nanoTime() - start) / 1.0e3));
+        } catch (IOException e) {
+            Log.error("Unable to load " + this.saveFile, e);
+        }
+    }
+    
+    /**
+     * Starts showing the history from its newest tick, if there is any, and
+     * the game isn't being recorded
+     */
+    protected void startRewinding() {
+        if (this.rewind == null || this.rewind.isEmpty() || this.recorder != null) {
+            this.rewindRequested = false;
+            return;
+        }
+        this.rewinding = true;
+        this.rewindTick = this.rewind.getNewestTick();
+        Log.info("Rewinding from tick " + this.rewindTick + ", back to tick " + this.rewind.getOldestTick());
+    }
+    
+    /**
+     * Puts the simulation back to the tick being shown, to play on from
+     */
+    protected void stopRewinding() {
+        this.rewinding = false;
+        try {
+            long start = System.nanoTime();
+            this.rewind.resume(this.simulation, this.rewindTick, this.tickDeltaSeconds);
+            this.restartCount = this.simulation.getRestartCount();
+            Log.info(String.format(Locale.ROOT, "Playing on from tick %d, rewound in %.0f us",
+                                   this.rewindTick,
+                                   (System.nanoTime() - start) / 1.0e3));
+        } catch (IOException e) {
+            Log.error("Unable to play on from tick " + this.rewindTick, e);
+            this.rewind.clear();
+        }
+    }
+    
+    /**
+     * Moves through the history at the speed asked for, and publishes the
+     * tick it gets to
+     * 
+     * @param dueNanos the System.nanoTime the tick was due at
+     */
+    protected void showRewind(long dueNanos) {
+        RewindBuffer rewind = this.rewind;
+        long tick = Math.max(rewind.getOldestTick(),
+                             Math.min(rewind.getNewestTick(), this.rewindTick + this.rewindSpeed));
+        try {
+            rewind.reconstruct(tick, (int)(tick - this.rewindTick), this.snapshots.getWriteSnapshot(), dueNanos);
+            this.rewindTick = tick;
+            this.snapshots.publish();
+        } catch (IOException e) {
+            Log.error("Unable to rewind to tick " + tick, e);
+            this.rewindRequested = false;
+        }
+    }
+    
+    /**
+     * Works out how far the renderer is between a snapshot's tick and the
+     * next one
+     * 
+     * @param snapshot the snapshot being drawn
+     * @return the fraction of a tick, from 0 to 1, or 1 if the simulation
+     *         isn't ticked in fixed steps
+     */
+    public float getAlpha(RenderSnapshot snapshot) {
+        if (this.thread != null) {
+            float alpha = (System.nanoTime() - snapshot.getTickNanos()) / (float)this.tickLengthNanos;
+            return Math.max(0.0f, Math.min(1.0f, alpha));
+        }
+        if (!this.fixedStep) {
+            return 1.0f;
+        }
+        return Math.min(1.0f, this.tickAccumulator / this.tickDeltaSeconds);
+    }
+    
+    /**
+     * Queues a control change for the next tick. Must only be called from
+     * the one thread that reads the keyboard.
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     */
+    public void queueInput(Control control, boolean isPressed) {
+        if (!this.inputRing.offer(control, isPressed)) {
+            Log.warn("Input queue full, dropped " + control);
+        }
+    }
+    
+    /**
+     * Copies the simulation's profiler, as it was when it was last
+     * published if the simulation is ticking on its own thread. Can be
+     * called from any thread.
+     * 
+     * @param profiler the profiler to copy into
+     */
+    public void copyProfile(FrameProfiler profiler) {
+        if (this.thread == null) {
+            profiler.copy(this.simulation.getProfiler());
+            return;
+        }
+        synchronized (this.profileLock) {
+            profiler.copy(this.publishedProfile);
+        }
+    }
+    
+    /**
+     * Resets the simulation's profiler before the next tick. Can be called
+     * from any thread.
+     */
+    public void requestProfileReset() {
+        this.profileResetRequested = true;
+    }
+    
+    /**
+     * Finishes the recording, if there is one. The simulation must have
+     * been stopped first if it was running on its own thread.
+     * 
+     * @throws IOException if the recording can't be finished
+     */
+    public void finishRecording() throws IOException {
+        if (this.recorder != null) {
+            InputRecorder recorder = this.recorder;
+            this.recorder = null;
+            recorder.finish(this.simulation);
+        }
+    }
+    
+    /**
+     * @param recorder the recorder to write the input to as it is ticked,
+     *                 set before the loop is started
+     */
+    public void setRecorder(InputRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
+    /**
+     * @param saver writes the saves, started before the loop is
+     * @param saveFile the file to save to and load from when asked to
+     */
+    public void setSaver(AutoSaver saver, File saveFile) {
+        this.saver = saver;
+        this.saveFile = saveFile;
+    }
+    
+    /**
+     * Saves the game automatically while it is running. setSaver() must
+     * have been called first.
+     * 
+     * @param autosaveFile the file to save to
+     * @param autosaveTicks the number of ticks between each save
+     */
+    public void setAutosave(File autosaveFile, long autosaveTicks) {
+        this.autosaveFile = autosaveFile;
+        this.autosaveTicks = Math.max(1, autosaveTicks);
+    }
+    
+    /**
+     * Saves the game before the next tick, if it can be saved. Can be
+     * called from any thread.
+     */
+    public void requestSave() {
+        if (this.saver != null) {
+            this.saveRequested = true;
+        }
+    }
+    
+    /**
+     * Loads the game saved by requestSave() before the next tick, if it can
+     * be saved. Can be called from any thread.
+     */
+    public void requestLoad() {
+        if (this.saver != null) {
+            this.loadRequested = true;
+        }
+    }
+    
+    /**
+     * Records every tick to rewind through. The simulation must be ticked
+     * in fixed steps, as the history is played on from by ticking it again.
+     * 
+     * @param rewind the history to record into, set before the loop is
+     *               started
+     */
+    public void setRewind(RewindBuffer rewind) {
+        this.rewind = rewind;
+        this.restartCount = this.simulation.getRestartCount();
+    }
+    
+    /**
+     * Starts rewinding, or plays on from the tick being shown, from the
+     * next tick. Rewinding only starts if there is some history, and the
+     * game isn't being recorded. Can be called from any thread.
+     * 
+     * @param rewinding whether to rewind
+     */
+    public void requestRewind(boolean rewinding) {
+        if (this.rewind != null) {
+            this.rewindRequested = rewinding;
+        }
+    }
+    
+    /**
+     * Sets how fast to move through the history while rewinding. Can be
+     * called from any thread.
+     * 
+     * @param rewindSpeed the number of ticks to move each tick, negative to
+     *                    go back
+     */
+    public void setRewindSpeed(int rewindSpeed) {
+        this.rewindSpeed = rewindSpeed;
+    }
+    
+    /**
+     * @return whether we are rewinding, or have been asked to
+     */
+    public boolean isRewinding() {
+        return this.rewindRequested;
+    }
+    
+    /**
+     * @return the saver writing the saves, or null if the game can't be
+     *         saved
+     */
+    public AutoSaver getSaver() {
+        return this.saver;
+    }
+    
+    /**
+     * @return whether the simulation is being recorded
+     */
+    public boolean isRecording() {
+        return this.recorder != null;
+    }
+    
+    /**
+     * @return the buffer the snapshots are published to
+     */
+    public SnapshotBuffer getSnapshots() {
+        return this.snapshots;
+    }
+    
+    /**
+     * @return whether the simulation is ticking on its own thread
+     */
+    public boolean isThreaded() {
+        return this.thread != null;
+    }
+    
+}
@@ -0,0 +1,125 @@
+package uk.co.austinbirch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Austin Birch
+ *
+ * Hands RenderSnapshots from the thread that ticks the simulation to the
+ * thread that renders it, without either ever waiting for the other.
+ *
+ * There are three snapshots. The simulation fills in its own one and
+ * swaps it with the shared one when it publishes it, and the renderer
+ * swaps its own one with the shared one whenever a new one has been
+ * published. The swaps are a single atomic exchange, so each side always
+ * has a snapshot that the other won't touch, the renderer always draws the
+ * latest finished tick, and if the renderer falls behind the snapshots it
+ * missed are simply written over.
+ *
+ * Only one thread may publish and only one thread may acquire, although
+ * they can be the same thread.
+ *
+ */
+public class SnapshotBuffer {
+
+    // Global variables
+    
+    /**
+     * Set in the shared index when the shared snapshot is one the renderer
+     * hasn't seen
+     */
+    protected static final int FRESH = 4;
+    
+    /**
+     * The bits of the shared index that say which snapshot it is
+     */
+    protected static final int INDEX_MASK = 3;
+    
+    // Member variables
+    
+    /**
+     * The three snapshots
+     */
+    protected final RenderSnapshot[] snapshots = new RenderSnapshot[3];
+    
+    /**
+     * The snapshot the simulation is filling in, only touched by it
+     */
+    protected int writeIndex = 0;
+    
+    /**
+     * The snapshot the renderer is drawing, only touched by it
+     */
+    protected int readIndex = 1;
+    
+    /**
+     * The snapshot in between, and whether it is fresh
+     */
+    protected final AtomicInteger sharedIndex = new AtomicInteger(2);
+    
+    /**
+     * The number of snapshots published, and the number the renderer has
+     * picked up
+     */
+    protected volatile long published = 0;
+    protected long acquired = 0;
+    
+    /**
+     * Creates a buffer of three empty snapshots
+     */
+    public SnapshotBuffer() {
+        for (int i = 0; i < this.snapshots.length; i++) {
+            this.snapshots[i] = new RenderSnapshot();
+        }
+    }
+    
+    /**
+     * @return the snapshot to fill in before the next publish(), which only
+     *         the publishing thread may touch
+     */
+    public RenderSnapshot getWriteSnapshot() {
+        return this.snapshots[this.writeIndex];
+    }
+    
+    /**
+     * Makes the snapshot that has been filled in the latest one, and takes
+     * the shared one to fill in next
+     */
+    public void publish() {
+        int previous = this.sharedIndex.getAndSet(this.writeIndex | FRESH);
+        this.writeIndex = previous & INDEX_MASK;
+        this.published++;
+    }
+    
+    /**
+     * Returns the latest published snapshot, which stays the renderer's
+     * until the next call
+     * 
+     * @return the latest snapshot, or an empty one if none has been
+     *         published yet
+     */
+    public RenderSnapshot acquire() {
+        if ((this.sharedIndex.get() & FRESH) != 0) {
+            int previous = this.sharedIndex.getAndSet(this.readIndex);
+            this.readIndex = previous & INDEX_MASK;
+            this.acquired++;
+        }
+        return this.snapshots[this.readIndex];
+    }
+    
+    /**
+     * @return the number of snapshots that have been published
+     */
+    public long getPublishedCount() {
+        return this.published;
+    }
+    
+    /**
+     * @return the number of snapshots the renderer has picked up, which is
+     *         fewer than were published if it has skipped any
+     */
+    public long getAcquiredCount() {
+        return this.acquired;
+    }
+    
+}
@@ -0,0 +1,274 @@
+package uk.co.austinbirch;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.imageio.ImageIO;
+
+import org.newdawn.slick.Image;
+import org.newdawn.slick.ImageBuffer;
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.util.ResourceLoader;
+
+/**
+ * @author Austin Birch
+ *
+ * Packs a set of sprite images into one sheet, so everything can be drawn
+ * with a single texture bind.
+ *
+ * Sprites are packed into shelves, tallest first, with transparent padding
+ * between them so filtering doesn't bleed one sprite into the next. The
+ * sheet is kept to a power of two in each direction, so the texture isn't
+ * padded and the texture coordinates are exact.
+ *
+ * Packing only needs the image files, the texture isn't created until
+ * getImage() is called from the rendering thread.
+ *
+ */
+public class SpriteAtlas {
+
+    // Global variables
+    
+    /**
+     * Every sprite the game draws
+     */
+    public static final SpriteInfo[] GAME_SPRITES = {
+        SpriteInfo.PLAYER_JETPACK_OFF,
+        SpriteInfo.PLAYER_JETPACK_ON,
+        SpriteInfo.PLAYER_JETPACK_REVERSE,
+        SpriteInfo.ALIEN,
+        SpriteInfo.BUILDING_01,
+        SpriteInfo.BUILDING_02,
+        SpriteInfo.BUILDING_03,
+        SpriteInfo.HAMMER,
+        SpriteInfo.WORLD
+    };
+    
+    /**
+     * The largest sheet we will make, in either direction
+     */
+    public static final int MAX_SIZE = 2048;
+    
+    // Member variables
+    
+    /**
+     * The pixels of the sheet, before it becomes a texture
+     */
+    protected ImageBuffer buffer;
+    
+    /**
+     * The sheet as a texture, created the first time it is asked for
+     */
+    protected Image image;
+    
+    /**
+     * The region of each sprite, keyed by resource path
+     */
+    protected HashMap<String, Region> regions;
+    
+    /**
+     * The width of the sheet
+     */
+    protected int width;
+    
+    /**
+     * The height of the sheet
+     */
+    protected int height;
+    
+    /**
+     * Where one sprite lives in the sheet
+     */
+    public static class Region {
+        
+        /**
+         * The position and size of the sprite in the sheet, in pixels
+         */
+        public final int x, y, width, height;
+        
+        /**
+         * The texture coordinates of the sprite's corners
+         */
+        public final float u0, v0, u1, v1;
+        
+        protected Region(int x, int y, int width, int height, int sheetWidth, int sheetHeight) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.u0 = x / (float) sheetWidth;
+            this.v0 = y / (float) sheetHeight;
+            this.u1 = (x + width) / (float) sheetWidth;
+            this.v1 = (y + height) / (float) sheetHeight;
+        }
+        
+    }
+    
+    /**
+     * Packs the given sprites into a sheet
+     * 
+     * @param sprites the sprites to pack
+     * @param padding the transparent pixels to leave around each sprite
+     * @throws SlickException if a sprite can't be read, or they don't fit
+     */
+    public SpriteAtlas(SpriteInfo[] sprites, int padding) throws SlickException {
+        this.regions = new HashMap<String, Region>();
+        
+        // tallest first packs the shelves tightest
+        SpriteInfo[] sorted = sprites.clone();
+        Arrays.sort(sorted, new Comparator<SpriteInfo>() {
+            public int compare(SpriteInfo a, SpriteInfo b) {
+                return b.getHeight() - a.getHeight();
+            }
+        });
+        
+        // find the smallest square-ish sheet everything fits on
+        int[] positions = new int[sorted.length * 2];
+        this.width = 64;
+        this.height = 64;
+        while (!SpriteAtlas.layout(sorted, padding, this.width, this.height, positions)) {
+            if (this.width <= this.height) {
+                this.width *= 2;
+            } else {
+                this.height *= 2;
+            }
+            if (this.width > MAX_SIZE || this.height > MAX_SIZE) {
+                throw new SlickException("Sprites don't fit in a " + MAX_SIZE + " square atlas");
+            }
+        }
+        
+        // copy each sprite onto the sheet
+        this.buffer = new ImageBuffer(this.width, this.height);
+        for (int i = 0; i < sorted.length; i++) {
+            SpriteInfo sprite = sorted[i];
+            int x = positions[i * 2];
+            int y = positions[i * 2 + 1];
+            this.copy(sprite.getPath(), x, y);
+            this.regions.put(sprite.getPath(),
+                             new Region(x, y, sprite.getWidth(), sprite.getHeight(), this.width, this.height));
+        }
+    }
+    
+    /**
+     * Works out where each sprite goes on a sheet of the given size
+     * 
+     * @param sprites the sprites, tallest first
+     * @param padding the space to leave around each sprite
+     * @param width the width of the sheet
+     * @param height the height of the sheet
+     * @param positions filled in with the x and y of each sprite
+     * @return whether everything fits
+     */
+    protected static boolean layout(SpriteInfo[] sprites,
+                                     int padding,
+                                     int width,
+                                     int height,
+                                     int[] positions) {
+        int x = padding;
+        int y = padding;
+        int shelfHeight = 0;
+        for (int i = 0; i < sprites.length; i++) {
+            int spriteWidth = sprites[i].getWidth();
+            int spriteHeight = sprites[i].getHeight();
+            if (x + spriteWidth + padding > width) {
+                // start a new shelf
+                x = padding;
+                y += shelfHeight + padding;
+                shelfHeight = 0;
+            }
+            if (x + spriteWidth + padding > width || y + spriteHeight + padding > height) {
+                return false;
+            }
+            positions[i * 2] = x;
+            positions[i * 2 + 1] = y;
+            x += spriteWidth + padding;
+            shelfHeight = Math.max(shelfHeight, spriteHeight);
+        }
+        return true;
+    }
+    
+    /**
+     * Copies the pixels of a sprite onto the sheet
+     * 
+     * @param path the resource path of the sprite
+     * @param x where to put the left edge of the sprite
+     * @param y where to put the top edge of the sprite
+     * @throws SlickException if the sprite can't be read
+     */
+    protected void copy(String path, int x, int y) throws SlickException {
+        InputStream in = null;
+        try {
+            in = ResourceLoader.getResourceAsStream(path);
+            BufferedImage source = ImageIO.read(in);
+            for (int sy = 0; sy < source.getHeight(); sy++) {
+                for (int sx = 0; sx < source.getWidth(); sx++) {
+                    int argb = source.getRGB(sx, sy);
+                    this.buffer.setRGBA(x + sx,
+                                        y + sy,
+                                        (argb >> 16) & 0xff,
+                                        (argb >> 8) & 0xff,
+                                        argb & 0xff,
+                                        (argb >>> 24));
+                }
+            }
+        } catch (IOException e) {
+            throw new SlickException("Unable to read " + path + " into the atlas", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the sheet as an Image, creating the texture the first time.
+     * This must only be called from the rendering thread.
+     * 
+     * @return the sheet
+     */
+    public Image getImage() {
+        if (this.image == null) {
+            this.image = this.buffer.getImage();
+        }
+        return this.image;
+    }
+    
+    /**
+     * @param path the resource path of a sprite
+     * @return where the sprite is on the sheet, or null if it isn't
+     */
+    public Region getRegion(String path) {
+        return this.regions.get(path);
+    }
+    
+    /**
+     * @param sprite a sprite
+     * @return where the sprite is on the sheet, or null if it isn't
+     */
+    public Region getRegion(SpriteInfo sprite) {
+        return this.regions.get(sprite.getPath());
+    }
+    
+    /**
+     * @return the width of the sheet
+     */
+    public int getWidth() {
+        return this.width;
+    }
+    
+    /**
+     * @return the height of the sheet
+     */
+    public int getHeight() {
+        return this.height;
+    }
+    
+}
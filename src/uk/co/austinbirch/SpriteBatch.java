@@ -0,0 +1,162 @@
+package uk.co.austinbirch;
+
+import org.newdawn.slick.Image;
+import org.newdawn.slick.opengl.renderer.Renderer;
+import org.newdawn.slick.opengl.renderer.SGL;
+
+/**
+ * @author Austin Birch
+ *
+ * Draws sprites out of a SpriteAtlas, binding the atlas once and sending
+ * every sprite as a quad between begin() and end(), rather than one bind
+ * and one draw call per sprite.
+ *
+ * Rotation is applied to the corners of each quad as it is sent, so sprites
+ * can be rotated without touching the matrix (which would end the batch).
+ * Nothing else can be drawn between begin() and end().
+ *
+ */
+public class SpriteBatch {
+
+    // Member variables
+    
+    /**
+     * The atlas we are drawing out of
+     */
+    protected SpriteAtlas atlas;
+    
+    /**
+     * The atlas texture, while a batch is in progress
+     */
+    protected Image sheet;
+    
+    /**
+     * The number of sprites drawn since the counters were reset
+     */
+    protected int spriteCount = 0;
+    
+    /**
+     * The number of times the atlas was bound since the counters were reset
+     */
+    protected int bindCount = 0;
+    
+    /**
+     * Creates a batch that draws out of an atlas
+     * 
+     * @param atlas the atlas holding every sprite we will draw
+     */
+    public SpriteBatch(SpriteAtlas atlas) {
+        this.atlas = atlas;
+    }
+    
+    /**
+     * Binds the atlas and starts sending quads. Must be called from the
+     * rendering thread.
+     */
+    public void begin() {
+        this.sheet = this.atlas.getImage();
+        this.sheet.startUse();
+        this.bindCount++;
+    }
+    
+    /**
+     * Draws a sprite at its natural size, rotated about its center the same
+     * way Slick rotates an Image
+     * 
+     * @param sprite the sprite to draw
+     * @param x the left edge before rotation
+     * @param y the top edge before rotation
+     * @param rotation the rotation in degrees, clockwise
+     */
+    public void draw(SpriteInfo sprite, float x, float y, float rotation) {
+        SpriteAtlas.Region region = this.atlas.getRegion(sprite);
+        if (region == null) {
+            return;
+        }
+        
+        float x1 = x + region.width;
+        float y1 = y + region.height;
+        SGL gl = Renderer.get();
+        
+        if (rotation == 0.0f) {
+            gl.glTexCoord2f(region.u0, region.v0);
+            gl.glVertex3f(x, y, 0.0f);
+            gl.glTexCoord2f(region.u0, region.v1);
+            gl.glVertex3f(x, y1, 0.0f);
+            gl.glTexCoord2f(region.u1, region.v1);
+            gl.glVertex3f(x1, y1, 0.0f);
+            gl.glTexCoord2f(region.u1, region.v0);
+            gl.glVertex3f(x1, y, 0.0f);
+        } else {
+            float centerX = x + sprite.getCenterOfRotationX();
+            float centerY = y + sprite.getCenterOfRotationY();
+            double radians = Math.toRadians(rotation);
+            float cos = (float) Math.cos(radians);
+            float sin = (float) Math.sin(radians);
+            
+            gl.glTexCoord2f(region.u0, region.v0);
+            this.vertex(gl, x, y, centerX, centerY, cos, sin);
+            gl.glTexCoord2f(region.u0, region.v1);
+            this.vertex(gl, x, y1, centerX, centerY, cos, sin);
+            gl.glTexCoord2f(region.u1, region.v1);
+            this.vertex(gl, x1, y1, centerX, centerY, cos, sin);
+            gl.glTexCoord2f(region.u1, region.v0);
+            this.vertex(gl, x1, y, centerX, centerY, cos, sin);
+        }
+        this.spriteCount++;
+    }
+    
+    private void vertex(SGL gl,
+                        float x,
+                        float y,
+                        float centerX,
+                        float centerY,
+                        float cos,
+                        float sin) {
+        float dx = x - centerX;
+        float dy = y - centerY;
+        gl.glVertex3f(centerX + dx * cos - dy * sin,
+                      centerY + dx * sin + dy * cos,
+                      0.0f);
+    }
+    
+    /**
+     * Finishes sending quads
+     */
+    public void end() {
+        if (this.sheet != null) {
+            this.sheet.endUse();
+            this.sheet = null;
+        }
+    }
+    
+    /**
+     * @return the atlas we are drawing out of
+     */
+    public SpriteAtlas getAtlas() {
+        return this.atlas;
+    }
+    
+    /**
+     * @return the number of sprites drawn since the counters were reset
+     */
+    public int getSpriteCount() {
+        return this.spriteCount;
+    }
+    
+    /**
+     * @return the number of atlas binds since the counters were reset
+     */
+    public int getBindCount() {
+        return this.bindCount;
+    }
+    
+    /**
+     * Resets the sprite and bind counters, normally once a frame
+     */
+    public void resetCounters() {
+        this.spriteCount = 0;
+        this.bindCount = 0;
+    }
+    
+}
@@ -0,0 +1,156 @@
+package uk.co.austinbirch;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import org.newdawn.slick.util.Log;
+import org.newdawn.slick.util.ResourceLoader;
+
+/**
+ * @author Austin Birch
+ *
+ * Describes a sprite without loading it as a texture. The width and height
+ * are read straight out of the PNG header, so the simulation can size its
+ * collision shapes without an OpenGL context.
+ *
+ */
+public class SpriteInfo {
+
+    // Known sprites
+    
+    public static final SpriteInfo PLAYER_JETPACK_OFF = SpriteInfo.get("res/images/McHammer.png");
+    public static final SpriteInfo PLAYER_JETPACK_ON = SpriteInfo.get("res/images/McHammer_JetpackOn.png");
+    public static final SpriteInfo PLAYER_JETPACK_REVERSE = SpriteInfo.get("res/images/McHammer_JetpackReverse.png");
+    public static final SpriteInfo ALIEN = SpriteInfo.get("res/images/alien.png");
+    public static final SpriteInfo BUILDING_01 = SpriteInfo.get("res/images/building_01.png");
+    public static final SpriteInfo BUILDING_02 = SpriteInfo.get("res/images/building_02.png");
+    public static final SpriteInfo BUILDING_03 = SpriteInfo.get("res/images/building_03.png");
+    public static final SpriteInfo HAMMER = SpriteInfo.get("res/images/hammer.png");
+    public static final SpriteInfo WORLD = SpriteInfo.get("res/images/world_1.png");
+    
+    /**
+     * All of the sprite infos we have read, keyed by resource path
+     */
+    private static HashMap<String, SpriteInfo> _cache;
+    
+    // Member variables
+    
+    /**
+     * The resource path of the image
+     */
+    protected final String path;
+    
+    /**
+     * The width of the image in pixels
+     */
+    protected final int width;
+    
+    /**
+     * The height of the image in pixels
+     */
+    protected final int height;
+    
+    /**
+     * Creates a sprite info
+     * 
+     * @param path the resource path of the image
+     * @param width the width of the image
+     * @param height the height of the image
+     */
+    protected SpriteInfo(String path, int width, int height) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+    }
+    
+    /**
+     * Returns the sprite info for the image at the given path, reading the
+     * PNG header the first time the path is seen.
+     * 
+     * @param path the resource path of the image
+     * @return the sprite info for the image
+     */
+    public static synchronized SpriteInfo get(String path) {
+        if (_cache == null) {
+            _cache = new HashMap<String, SpriteInfo>();
+        }
+        SpriteInfo info = _cache.get(path);
+        if (info == null) {
+            info = SpriteInfo.read(path);
+            _cache.put(path, info);
+        }
+        return info;
+    }
+    
+    /**
+     * Reads the dimensions out of the IHDR chunk of a PNG file
+     * 
+     * @param path the resource path of the image
+     * @return the sprite info, with a zero size if the file could not be read
+     */
+    protected static SpriteInfo read(String path) {
+        InputStream in = null;
+        try {
+            in = ResourceLoader.getResourceAsStream(path);
+            DataInputStream data = new DataInputStream(in);
+            // skip the 8 byte signature, and the IHDR chunk length and type
+            data.skipBytes(16);
+            int width = data.readInt();
+            int height = data.readInt();
+            return new SpriteInfo(path, width, height);
+        } catch (Exception e) {
+            Log.error("Unable to read sprite header for " + path, e);
+            return new SpriteInfo(path, 0, 0);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the resource path of the image
+     */
+    public String getPath() {
+        return this.path;
+    }
+    
+    /**
+     * @return the width of the image in pixels
+     */
+    public int getWidth() {
+        return this.width;
+    }
+    
+    /**
+     * @return the height of the image in pixels
+     */
+    public int getHeight() {
+        return this.height;
+    }
+    
+    /**
+     * Returns the x center of rotation, matching Slick's default for an Image
+     * 
+     * @return the x center of rotation
+     */
+    public float getCenterOfRotationX() {
+        return this.width / 2.0f;
+    }
+    
+    /**
+     * Returns the y center of rotation, matching Slick's default for an Image
+     * 
+     * @return the y center of rotation
+     */
+    public float getCenterOfRotationY() {
+        return this.height / 2.0f;
+    }
+    
+}
@@ -0,0 +1,239 @@
+package uk.co.austinbirch;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.newdawn.slick.Image;
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.opengl.Texture;
+import org.newdawn.slick.util.Log;
+
+/**
+ * @author Austin Birch
+ *
+ * Loads each sprite image once and shares it between every entity that
+ * uses it, rather than every entity decoding its own copy of the PNG and
+ * uploading another texture.
+ *
+ * Entities acquire() the image for a path, and release() it when they are
+ * done. Images aren't destroyed as soon as nothing is using them, as the
+ * next wave of aliens would only load them again; evictUnused() destroys
+ * the ones with no references left.
+ *
+ * Because the Image is shared, anything that draws it rotated has to set
+ * the rotation right before drawing. Entities keep their own rotation for
+ * this.
+ *
+ * Images must only be loaded and destroyed on the thread that owns the
+ * OpenGL context, but references can be released from anywhere.
+ *
+ */
+public class TextureCache {
+
+    // Global variables
+    
+    /**
+     * The TextureCache instance (TextureCache is a Singleton)
+     */
+    private static TextureCache _instance = null;
+    
+    // Member variables
+    
+    /**
+     * The cached images, keyed by resource path
+     */
+    protected HashMap<String, Entry> entries;
+    
+    /**
+     * The number of acquire() calls that found the image already loaded
+     */
+    protected long hits = 0;
+    
+    /**
+     * The number of acquire() calls that had to load the image
+     */
+    protected long misses = 0;
+    
+    /**
+     * The approximate number of bytes of texture memory the cached images
+     * are using
+     */
+    protected long residentBytes = 0;
+    
+    /**
+     * A cached image and the number of references to it
+     */
+    protected static class Entry {
+        
+        /**
+         * The shared image
+         */
+        protected Image image;
+        
+        /**
+         * The number of acquire() calls without a matching release()
+         */
+        protected int references = 0;
+        
+        /**
+         * The approximate size of the image's texture in bytes
+         */
+        protected long bytes;
+        
+    }
+    
+    /**
+     * Gets the current instance of the TextureCache
+     * 
+     * @return the current instance of the TextureCache
+     */
+    public static synchronized TextureCache getInstance() {
+        if (_instance == null) {
+            _instance = new TextureCache();
+        }
+        return _instance;
+    }
+    
+    /**
+     * Creates an empty cache
+     */
+    public TextureCache() {
+        this.entries = new HashMap<String, Entry>();
+    }
+    
+    /**
+     * Returns the shared image for a path, loading it the first time, and
+     * adds a reference to it
+     * 
+     * @param path the resource path of the image
+     * @return the shared image
+     * @throws SlickException if the image can't be loaded
+     */
+    public synchronized Image acquire(String path) throws SlickException {
+        Entry entry = this.load(path);
+        entry.references++;
+        return entry.image;
+    }
+    
+    /**
+     * Removes a reference to the image for a path
+     * 
+     * @param path the resource path of the image
+     */
+    public synchronized void release(String path) {
+        Entry entry = this.entries.get(path);
+        if (entry == null || entry.references == 0) {
+            Log.warn("Released " + path + " more times than it was acquired");
+            return;
+        }
+        entry.references--;
+    }
+    
+    /**
+     * Loads an image into the cache without adding a reference, so that the
+     * first entity to use it doesn't have to wait for it to load
+     * 
+     * @param path the resource path of the image
+     * @throws SlickException if the image can't be loaded
+     */
+    public synchronized void preload(String path) throws SlickException {
+        this.load(path);
+    }
+    
+    /**
+     * Destroys every image that nothing holds a reference to
+     * 
+     * @return the number of images destroyed
+     */
+    public synchronized int evictUnused() {
+        int evicted = 0;
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.references == 0) {
+                try {
+                    entry.image.destroy();
+                } catch (SlickException e) {
+                    Log.error("Unable to destroy " + entry.image.getResourceReference(), e);
+                }
+                this.residentBytes -= entry.bytes;
+                iterator.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+    
+    /**
+     * Finds or loads the entry for a path
+     * 
+     * @param path the resource path of the image
+     * @return the entry for the image
+     * @throws SlickException if the image can't be loaded
+     */
+    protected Entry load(String path) throws SlickException {
+        Entry entry = this.entries.get(path);
+        if (entry != null) {
+            this.hits++;
+            return entry;
+        }
+        
+        this.misses++;
+        entry = new Entry();
+        entry.image = new Image(path);
+        Texture texture = entry.image.getTexture();
+        if (texture != null) {
+            // textures are padded up to a power of two, at four bytes a pixel
+            entry.bytes = (long) texture.getTextureWidth() * texture.getTextureHeight() * 4;
+        }
+        this.residentBytes += entry.bytes;
+        this.entries.put(path, entry);
+        return entry;
+    }
+    
+    /**
+     * @return the number of acquire() calls that found the image loaded
+     */
+    public long getHits() {
+        return this.hits;
+    }
+    
+    /**
+     * @return the number of acquire() calls that had to load the image
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+    
+    /**
+     * @return the approximate bytes of texture memory the cache is using
+     */
+    public long getResidentBytes() {
+        return this.residentBytes;
+    }
+    
+    /**
+     * @return the number of images in the cache
+     */
+    public int getResidentCount() {
+        return this.entries.size();
+    }
+    
+    /**
+     * @param path the resource path of the image
+     * @return the number of references to the image for a path
+     */
+    public synchronized int getReferenceCount(String path) {
+        Entry entry = this.entries.get(path);
+        return entry == null ? 0 : entry.references;
+    }
+    
+    @Override
+    public String toString() {
+        return "textures=" + this.entries.size() +
+               " hits=" + this.hits +
+               " misses=" + this.misses +
+               " residentBytes=" + this.residentBytes;
+    }
+    
+}
@@ -0,0 +1,1106 @@
+package uk.co.austinbirch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * @author Austin Birch
+ *
+ * The whole of a simulation's space, split into square chunks. Only the
+ * chunks around the player (the window) are simulated in full. The aliens
+ * and buildings anywhere else are paged out of the simulation into their
+ * chunks, where they are kept as plain numbers and brought up to date
+ * every so often, so a tick only costs as much as the window holds however
+ * big space is.
+ *
+ * The simulation works in a frame whose origin is the top left corner of
+ * the window, so the numbers it works with stay small and precise. When
+ * the player gets far enough into another chunk the window follows them,
+ * and everything in the simulation is moved by the whole chunks the origin
+ * moved by.
+ *
+ * Paged aliens fly straight to their destination and back, as they do in
+ * the simulation, so they can be moved on any amount of time at once.
+ * Paged buildings fly straight until they reach a world, then go on doing
+ * damage. The worlds of an inactive chunk still pull on the player and the
+ * hammers, as one body at the chunk's center of mass.
+ *
+ * With a single chunk the whole of space is the window, the origin never
+ * moves and nothing is ever paged, so the game plays as it always has.
+ *
+ */
+public class Universe {
+
+    // Global variables
+    
+    /**
+     * How often the aliens and buildings paged into a chunk are brought up
+     * to date, in seconds of game time
+     */
+    public static final float PAGED_UPDATE_INTERVAL = 0.5f;
+    
+    /**
+     * How far into the next chunk the player has to go, as a fraction of a
+     * chunk, before the window follows them, so that flying along the edge
+     * of a chunk doesn't page the same chunks in and out
+     */
+    public static final float HYSTERESIS = 0.25f;
+    
+    /**
+     * How far outside space an alien on its way out is let go, as in
+     * Alien.update()
+     */
+    protected static final float ALIEN_EXIT_MARGIN = 100.0f;
+    
+    /**
+     * The sprites a building can have, in the order they are recorded in
+     */
+    protected static final SpriteInfo[] BUILDING_SPRITES = { SpriteInfo.BUILDING_01,
+                                                             SpriteInfo.BUILDING_02,
+                                                             SpriteInfo.BUILDING_03 };
+    
+    /**
+     * The bytes write() takes for each paged alien and building
+     */
+    protected static final int PAGED_ALIEN_BYTES = 37;
+    protected static final int PAGED_BUILDING_BYTES = 26;
+    
+    // Member variables
+    
+    /**
+     * The simulation this is the space of
+     */
+    protected Simulation simulation;
+    
+    /**
+     * The width and height of each chunk
+     */
+    protected int chunkSize;
+    
+    /**
+     * The number of columns and rows of chunks
+     */
+    protected int columns;
+    protected int rows;
+    
+    /**
+     * The chunks, row by row
+     */
+    protected Chunk[] chunks;
+    
+    /**
+     * How many chunks out from the player's chunk the window reaches
+     */
+    protected int activeRadius;
+    
+    /**
+     * The column and row of the window's top left chunk, or -1 before the
+     * window has been placed
+     */
+    protected int windowColumn = -1;
+    protected int windowRow = -1;
+    
+    /**
+     * The number of columns and rows of chunks in the window
+     */
+    protected int windowColumns;
+    protected int windowRows;
+    
+    /**
+     * The inactive chunks with aliens or buildings paged into them, in the
+     * order they are due to be brought up to date
+     */
+    protected ArrayDeque<Chunk> schedule = new ArrayDeque<Chunk>();
+    
+    /**
+     * The number of aliens and buildings paged out of the simulation
+     */
+    protected int pagedAlienCount = 0;
+    protected int pagedBuildingCount = 0;
+    
+    /**
+     * The position, in the simulation's frame, and mass of each inactive
+     * chunk that has any worlds
+     */
+    protected float[] summaryX = new float[8];
+    protected float[] summaryY = new float[8];
+    protected float[] summaryMass = new float[8];
+    protected int summaryCount = 0;
+    
+    /**
+     * Splits a simulation's space into chunks, and shares its worlds out
+     * between them. The window isn't placed until reset() is called.
+     * 
+     * @param simulation the simulation this is the space of
+     * @param scenario the simulation's settings
+     * @param worlds every world, positioned in space
+     */
+    public Universe(Simulation simulation, Scenario scenario, ArrayList<World> worlds) {
+        this.simulation = simulation;
+        int spaceWidth = scenario.getSpaceWidth();
+        int spaceHeight = scenario.getSpaceHeight();
+        this.chunkSize = scenario.getChunkSize() > 0 ? scenario.getChunkSize() : Math.max(spaceWidth, spaceHeight);
+        this.columns = Math.max(1, (spaceWidth + this.chunkSize - 1) / this.chunkSize);
+        this.rows = Math.max(1, (spaceHeight + this.chunkSize - 1) / this.chunkSize);
+        this.activeRadius = Math.max(0, scenario.getActiveRadius());
+        this.windowColumns = Math.min(this.activeRadius * 2 + 1, this.columns);
+        this.windowRows = Math.min(this.activeRadius * 2 + 1, this.rows);
+        
+        this.chunks = new Chunk[this.columns * this.rows];
+        for (int row = 0; row < this.rows; row++) {
+            for (int column = 0; column < this.columns; column++) {
+                this.chunks[row * this.columns + column] = new Chunk(column, row, this.chunkSize);
+            }
+        }
+        for (int i = 0; i < worlds.size(); i++) {
+            World world = worlds.get(i);
+            this.getChunkAt(world.getX(), world.getY()).addWorld(world, world.getX(), world.getY());
+        }
+    }
+    
+    /**
+     * Drops everything paged out of the simulation, and places the window
+     * around the player wherever they are
+     */
+    public void reset() {
+        for (int i = 0; i < this.chunks.length; i++) {
+            this.chunks[i].clear();
+            this.chunks[i].scheduled = false;
+        }
+        this.schedule.clear();
+        this.pagedAlienCount = 0;
+        this.pagedBuildingCount = 0;
+        this.followPlayer(false);
+    }
+    
+    /**
+     * Moves the window to follow the player, pages out the aliens and
+     * buildings that are no longer in it, drops the hammers that have left
+     * it, and brings the chunks that are due up to date. This is done at the
+     * end of each tick, and does nothing if the window is the whole of
+     * space.
+     */
+    public void update() {
+        if (this.isWholeSpaceActive()) {
+            return;
+        }
+        this.followPlayer(true);
+        this.pageOut();
+        this.updateScheduled();
+        this.simulation.flushEntities();
+    }
+    
+    /**
+     * Places the window around the player, if it isn't already
+     * 
+     * @param hysteresis whether to leave the window where it is until the
+     *                   player is well into another chunk
+     */
+    protected void followPlayer(boolean hysteresis) {
+        Simulation simulation = this.simulation;
+        Player player = simulation.mcHammer;
+        float x = player.getX() + simulation.originX;
+        float y = player.getY() + simulation.originY;
+        int column = this.windowStart(x, this.windowColumn, this.columns, this.windowColumns, hysteresis);
+        int row = this.windowStart(y, this.windowRow, this.rows, this.windowRows, hysteresis);
+        if (column != this.windowColumn || row != this.windowRow) {
+            this.moveWindow(column, row);
+        }
+    }
+    
+    /**
+     * Works out where the window should start along one axis
+     * 
+     * @param position the player's position in space along the axis
+     * @param current where the window starts now
+     * @param count the number of chunks along the axis
+     * @param size the number of chunks the window spans along the axis
+     * @param hysteresis whether to stay where we are until the player is
+     *                   well into another chunk
+     * @return the first chunk of the window along the axis
+     */
+    protected int windowStart(float position, int current, int count, int size, boolean hysteresis) {
+        int start = this.windowStart(position, count, size);
+        if (!hysteresis || start == current || current < 0) {
+            return start;
+        }
+        float margin = this.chunkSize * HYSTERESIS;
+        int held = this.windowStart(start > current ? position - margin : position + margin, count, size);
+        return held == current ? current : start;
+    }
+    
+    /**
+     * @return the first chunk of a window centered on the chunk at position
+     *         along an axis, kept inside space
+     */
+    protected int windowStart(float position, int count, int size) {
+        int start = (int)Math.floor(position / this.chunkSize) - this.activeRadius;
+        return Math.max(0, Math.min(start, count - size));
+    }
+    
+    /**
+     * Moves the window, and the simulation's frame with it. Everything in
+     * the simulation is moved into the new frame, the worlds of the window
+     * are handed to the simulation, and the chunks that have just come into
+     * the window are paged in. Anything left in a chunk that has just left
+     * the window is paged out by the next pageOut().
+     * 
+     * @param column the column of the window's new top left chunk
+     * @param row the row of the window's new top left chunk
+     */
+    protected void moveWindow(int column, int row) {
+        Simulation simulation = this.simulation;
+        int oldColumn = this.windowColumn;
+        int oldRow = this.windowRow;
+        this.windowColumn = column;
+        this.windowRow = row;
+        
+        // move everything into the new frame
+        int originX = column * this.chunkSize;
+        int originY = row * this.chunkSize;
+        float dx = simulation.originX - originX;
+        float dy = simulation.originY - originY;
+        simulation.originX = originX;
+        simulation.originY = originY;
+        if (dx != 0.0f || dy != 0.0f) {
+            simulation.mcHammer.kinematics.translate(dx, dy);
+            simulation.hammerKinematics.translate(dx, dy);
+            simulation.alienKinematics.translate(dx, dy);
+            simulation.buildingKinematics.translate(dx, dy);
+            for (int i = 0; i < simulation.aliens.size(); i++) {
+                simulation.aliens.get(i).translate(dx, dy);
+            }
+            simulation.createSpaceBoundaries();
+        }
+        
+        // the chunks that have left the window, and the worlds of the ones
+        // in it, in the order the chunks are in
+        if (oldColumn >= 0) {
+            for (int r = oldRow; r < oldRow + this.windowRows; r++) {
+                for (int c = oldColumn; c < oldColumn + this.windowColumns; c++) {
+                    this.getChunk(c, r).active = this.isInWindow(c, r);
+                }
+            }
+        }
+        simulation.worlds.clear();
+        for (int r = row; r < row + this.windowRows; r++) {
+            for (int c = column; c < column + this.windowColumns; c++) {
+                Chunk chunk = this.getChunk(c, r);
+                chunk.active = true;
+                for (int w = 0; w < chunk.worlds.size(); w++) {
+                    chunk.worlds.get(w).setPosition(chunk.originX - originX + chunk.worldX[w],
+                                                    chunk.originY - originY + chunk.worldY[w]);
+                    simulation.worlds.add(chunk.worlds.get(w));
+                }
+            }
+        }
+        
+        // the inactive chunks pull on the window as single bodies
+        this.summaryCount = 0;
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk chunk = this.chunks[i];
+            if (!chunk.active && chunk.mass > 0.0f) {
+                if (this.summaryCount == this.summaryX.length) {
+                    this.summaryX = Universe.grow(this.summaryX);
+                    this.summaryY = Universe.grow(this.summaryY);
+                    this.summaryMass = Universe.grow(this.summaryMass);
+                }
+                this.summaryX[this.summaryCount] = chunk.originX - originX + chunk.massX;
+                this.summaryY[this.summaryCount] = chunk.originY - originY + chunk.massY;
+                this.summaryMass[this.summaryCount] = chunk.mass;
+                this.summaryCount++;
+            }
+        }
+        
+        // and bring in what the new chunks were holding
+        for (int r = row; r < row + this.windowRows; r++) {
+            for (int c = column; c < column + this.windowColumns; c++) {
+                Chunk chunk = this.getChunk(c, r);
+                if (chunk.hasPaged()) {
+                    this.pageIn(chunk);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Brings a chunk that has just become active up to date, and hands
+     * everything in it back to the simulation
+     * 
+     * @param chunk the chunk
+     */
+    protected void pageIn(Chunk chunk) {
+        this.updateChunk(chunk, this.simulation.elapsedGameTime);
+        while (chunk.alienCount > 0) {
+            this.restoreAlien(chunk, chunk.alienCount - 1);
+        }
+        while (chunk.buildingCount > 0) {
+            this.restoreBuilding(chunk, chunk.buildingCount - 1);
+        }
+    }
+    
+    /**
+     * Pages the aliens and buildings outside the window out of the
+     * simulation, into their chunks, and drops the hammers that have left
+     * it. The hammers would only go on through space that isn't being
+     * simulated, and there is nothing paged out for them to hit.
+     */
+    protected void pageOut() {
+        Simulation simulation = this.simulation;
+        int windowColumn = this.windowColumn;
+        int windowRow = this.windowRow;
+        float now = simulation.elapsedGameTime;
+        
+        // the simulation's frame is the window's top left chunk, so
+        // everything is found a chunk by its position in that frame
+        EntityRegistry<Hammer> hammers = simulation.hammerList;
+        for (int i = 0; i < hammers.size(); i++) {
+            Hammer hammer = hammers.get(i);
+            if (!this.isInWindow(this.columnOf(windowColumn, hammer.getX()), this.rowOf(windowRow, hammer.getY()))) {
+                simulation.removeHammer(hammer);
+            }
+        }
+        
+        EntityRegistry<Alien> aliens = simulation.aliens;
+        for (int i = 0; i < aliens.size(); i++) {
+            Alien alien = aliens.get(i);
+            float x = alien.getX();
+            float y = alien.getY();
+            int column = this.columnOf(windowColumn, x);
+            int row = this.rowOf(windowRow, y);
+            if (alien.isRemovalPending() || this.isInWindow(column, row)) {
+                continue;
+            }
+            Chunk chunk = this.getChunk(column, row);
+            float offsetX = simulation.originX - chunk.originX;
+            float offsetY = simulation.originY - chunk.originY;
+            chunk.addAlien(x + offsetX, y + offsetY,
+                           alien.getVelocityX(), alien.getVelocityY(),
+                           alien.destinationPosition.x + offsetX, alien.destinationPosition.y + offsetY,
+                           alien.startingPosition.x + offsetX, alien.startingPosition.y + offsetY,
+                           alien.leavingStage,
+                           now);
+            this.pagedAlienCount++;
+            this.scheduleChunk(chunk, now);
+            simulation.removeAlien(alien);
+        }
+        
+        EntityRegistry<Building> buildings = simulation.buildings;
+        for (int i = 0; i < buildings.size(); i++) {
+            Building building = buildings.get(i);
+            float x = building.getX();
+            float y = building.getY();
+            int column = this.columnOf(windowColumn, x);
+            int row = this.rowOf(windowRow, y);
+            if (building.isRemovalPending() || this.isInWindow(column, row)) {
+                continue;
+            }
+            if (!building.isDead) {
+                Chunk chunk = this.getChunk(column, row);
+                chunk.addBuilding(x + (simulation.originX - chunk.originX), y + (simulation.originY - chunk.originY),
+                                  building.getVelocityX(), building.getVelocityY(),
+                                  Universe.spriteIndex(building.spriteInfo),
+                                  building.onPlanet,
+                                  building.damageTimeAccumulator,
+                                  now);
+                this.pagedBuildingCount++;
+                this.scheduleChunk(chunk, now);
+            }
+            simulation.removeBuilding(building);
+        }
+    }
+    
+    /**
+     * Brings the chunks that are due up to date, in the order they became
+     * due
+     */
+    protected void updateScheduled() {
+        float now = this.simulation.elapsedGameTime;
+        while (!this.schedule.isEmpty() && this.schedule.peekFirst().dueTime <= now) {
+            Chunk chunk = this.schedule.pollFirst();
+            chunk.scheduled = false;
+            if (!chunk.active) {
+                this.updateChunk(chunk, now);
+                this.scheduleChunk(chunk, now);
+            }
+        }
+    }
+    
+    /**
+     * Puts an inactive chunk with anything paged into it on the end of the
+     * schedule, unless it is already waiting
+     * 
+     * @param chunk the chunk
+     * @param now the game time now
+     */
+    protected void scheduleChunk(Chunk chunk, float now) {
+        if (!chunk.active && !chunk.scheduled && chunk.hasPaged()) {
+            chunk.dueTime = now + PAGED_UPDATE_INTERVAL;
+            chunk.scheduled = true;
+            this.schedule.addLast(chunk);
+        }
+    }
+    
+    /**
+     * Brings everything paged into a chunk up to a game time. Anything that
+     * leaves space is dropped, and anything that has moved into another
+     * chunk is moved into it, or back into the simulation if that chunk is
+     * active.
+     * 
+     * @param chunk the chunk
+     * @param now the game time to bring it up to
+     */
+    protected void updateChunk(Chunk chunk, float now) {
+        int i = 0;
+        while (i < chunk.alienCount) {
+            float deltaSeconds = now - chunk.alienTime[i];
+            chunk.alienTime[i] = now;
+            if (!this.updateAlien(chunk, i, deltaSeconds)) {
+                chunk.removeAlien(i);
+                this.pagedAlienCount--;
+            } else if (!this.keepAlien(chunk, i, now)) {
+                i++;
+            }
+        }
+        
+        i = 0;
+        while (i < chunk.buildingCount) {
+            float deltaSeconds = now - chunk.buildingTime[i];
+            chunk.buildingTime[i] = now;
+            if (!this.updateBuilding(chunk, i, deltaSeconds)) {
+                chunk.removeBuilding(i);
+                this.pagedBuildingCount--;
+            } else if (!this.keepBuilding(chunk, i, now)) {
+                i++;
+            }
+        }
+    }
+    
+    /**
+     * Moves a paged alien on. It flies straight to its destination, turns
+     * round there and flies straight back, as it would in the simulation.
+     * 
+     * @param chunk the alien's chunk
+     * @param index the alien's index in the chunk
+     * @param deltaSeconds how long to move it on by
+     * @return false if the alien has left space, and should be dropped
+     */
+    protected boolean updateAlien(Chunk chunk, int index, float deltaSeconds) {
+        float x = chunk.alienX[index];
+        float y = chunk.alienY[index];
+        float velocityX = chunk.alienVelocityX[index];
+        float velocityY = chunk.alienVelocityY[index];
+        if (!chunk.alienLeaving[index]) {
+            // aliens fly diagonally, so either axis says when they arrive
+            float arrival = velocityX != 0.0f ? (chunk.alienDestinationX[index] - x) / velocityX
+                                              : (chunk.alienDestinationY[index] - y) / velocityY;
+            if (arrival <= deltaSeconds) {
+                x = chunk.alienDestinationX[index];
+                y = chunk.alienDestinationY[index];
+                deltaSeconds -= Math.max(0.0f, arrival);
+                velocityX = -velocityX;
+                velocityY = -velocityY;
+                chunk.alienDestinationX[index] = chunk.alienStartX[index];
+                chunk.alienDestinationY[index] = chunk.alienStartY[index];
+                chunk.alienVelocityX[index] = velocityX;
+                chunk.alienVelocityY[index] = velocityY;
+                chunk.alienLeaving[index] = true;
+            }
+        }
+        x += velocityX * deltaSeconds;
+        y += velocityY * deltaSeconds;
+        chunk.alienX[index] = x;
+        chunk.alienY[index] = y;
+        
+        if (chunk.alienLeaving[index]) {
+            // the edges of space in the chunk's frame, so that the alien's
+            // position keeps its precision however far out the chunk is
+            Simulation simulation = this.simulation;
+            return x >= -chunk.originX - ALIEN_EXIT_MARGIN &&
+                    x <= simulation.spaceWidth - chunk.originX + ALIEN_EXIT_MARGIN &&
+                    y >= -chunk.originY - ALIEN_EXIT_MARGIN &&
+                    y <= simulation.spaceHeight - chunk.originY + ALIEN_EXIT_MARGIN;
+        }
+        return true;
+    }
+    
+    /**
+     * Moves a paged building on. A building that has landed does damage as
+     * it would in the simulation. One that hasn't flies straight until it
+     * reaches a world in its chunk or the chunks around it, and lands there.
+     * 
+     * @param chunk the building's chunk
+     * @param index the building's index in the chunk
+     * @param deltaSeconds how long to move it on by
+     * @return false if the building is flying away from space, never to
+     *         land, and should be dropped
+     */
+    protected boolean updateBuilding(Chunk chunk, int index, float deltaSeconds) {
+        Simulation simulation = this.simulation;
+        if (!chunk.buildingOnPlanet[index]) {
+            float velocityX = chunk.buildingVelocityX[index];
+            float velocityY = chunk.buildingVelocityY[index];
+            float landing = this.timeToLand(chunk, index, deltaSeconds);
+            float flight = Math.min(landing, deltaSeconds);
+            chunk.buildingX[index] += velocityX * flight;
+            chunk.buildingY[index] += velocityY * flight;
+            if (landing > deltaSeconds) {
+                // the edges of space in the chunk's frame, as for aliens
+                float x = chunk.buildingX[index];
+                float y = chunk.buildingY[index];
+                return !((x < -chunk.originX - ALIEN_EXIT_MARGIN && velocityX <= 0.0f) ||
+                         (x > simulation.spaceWidth - chunk.originX + ALIEN_EXIT_MARGIN && velocityX >= 0.0f) ||
+                         (y < -chunk.originY - ALIEN_EXIT_MARGIN && velocityY <= 0.0f) ||
+                         (y > simulation.spaceHeight - chunk.originY + ALIEN_EXIT_MARGIN && velocityY >= 0.0f));
+            }
+            chunk.buildingVelocityX[index] = 0.0f;
+            chunk.buildingVelocityY[index] = 0.0f;
+            chunk.buildingOnPlanet[index] = true;
+            chunk.buildingDamageTime[index] = 0.0f;
+            deltaSeconds -= flight;
+        }
+        
+        chunk.buildingDamageTime[index] += deltaSeconds;
+        while (chunk.buildingDamageTime[index] >= Building.DAMAGE_INTERVAL) {
+            simulation.propertyValue -= 20 + simulation.random.nextInt(9);
+            chunk.buildingDamageTime[index] -= Building.DAMAGE_INTERVAL;
+        }
+        return true;
+    }
+    
+    /**
+     * Works out when a flying paged building will first touch a world in
+     * its chunk or the chunks around it, treating the building as the
+     * largest circle that fits inside it. Everything is worked out in the
+     * building's chunk's frame, with the worlds of the chunks around it
+     * moved into it by the whole number of units between the chunks.
+     * 
+     * @param chunk the building's chunk
+     * @param index the building's index in the chunk
+     * @param deltaSeconds how far ahead to look
+     * @return the time until it lands, or Float.POSITIVE_INFINITY if it
+     *         doesn't within deltaSeconds
+     */
+    protected float timeToLand(Chunk chunk, int index, float deltaSeconds) {
+        SpriteInfo sprite = BUILDING_SPRITES[chunk.buildingSprite[index]];
+        float halfWidth = sprite.getWidth() / 2.0f;
+        float halfHeight = sprite.getHeight() / 2.0f;
+        float centerX = chunk.buildingX[index] + halfWidth;
+        float centerY = chunk.buildingY[index] + halfHeight;
+        float velocityX = chunk.buildingVelocityX[index];
+        float velocityY = chunk.buildingVelocityY[index];
+        float speedSquared = velocityX * velocityX + velocityY * velocityY;
+        
+        float first = Float.POSITIVE_INFINITY;
+        for (int r = Math.max(0, chunk.row - 1); r <= Math.min(this.rows - 1, chunk.row + 1); r++) {
+            for (int c = Math.max(0, chunk.column - 1); c <= Math.min(this.columns - 1, chunk.column + 1); c++) {
+                Chunk near = this.getChunk(c, r);
+                float nearX = near.originX - chunk.originX;
+                float nearY = near.originY - chunk.originY;
+                for (int w = 0; w < near.worlds.size(); w++) {
+                    float radius = near.worlds.get(w).getRadius();
+                    float reach = radius + Math.min(halfWidth, halfHeight);
+                    float offsetX = centerX - (nearX + near.worldX[w] + radius);
+                    float offsetY = centerY - (nearY + near.worldY[w] + radius);
+                    float distance = offsetX * offsetX + offsetY * offsetY - reach * reach;
+                    if (distance <= 0.0f) {
+                        return 0.0f;
+                    }
+                    
+                    // solve |offset + velocity * t| = reach for the first t
+                    float closing = offsetX * velocityX + offsetY * velocityY;
+                    if (closing >= 0.0f || speedSquared == 0.0f) {
+                        continue;
+                    }
+                    float discriminant = closing * closing - speedSquared * distance;
+                    if (discriminant < 0.0f) {
+                        continue;
+                    }
+                    float time = (-closing - (float)Math.sqrt(discriminant)) / speedSquared;
+                    if (time <= deltaSeconds && time < first) {
+                        first = time;
+                    }
+                }
+            }
+        }
+        return first;
+    }
+    
+    /**
+     * Leaves a paged alien where it is if it is still in its chunk, and
+     * otherwise moves it into the chunk it is now in
+     * 
+     * @param chunk the alien's chunk
+     * @param index the alien's index in the chunk
+     * @param now the game time now
+     * @return whether the alien was moved out of the chunk, leaving another
+     *         in its place
+     */
+    protected boolean keepAlien(Chunk chunk, int index, float now) {
+        Chunk target = this.getChunk(this.columnOf(chunk.column, chunk.alienX[index]),
+                                     this.rowOf(chunk.row, chunk.alienY[index]));
+        if (target == chunk) {
+            return false;
+        }
+        if (target.active) {
+            this.restoreAlien(chunk, index);
+            return true;
+        }
+        float offsetX = chunk.originX - target.originX;
+        float offsetY = chunk.originY - target.originY;
+        target.addAlien(chunk.alienX[index] + offsetX, chunk.alienY[index] + offsetY,
+                        chunk.alienVelocityX[index], chunk.alienVelocityY[index],
+                        chunk.alienDestinationX[index] + offsetX, chunk.alienDestinationY[index] + offsetY,
+                        chunk.alienStartX[index] + offsetX, chunk.alienStartY[index] + offsetY,
+                        chunk.alienLeaving[index],
+                        now);
+        chunk.removeAlien(index);
+        this.scheduleChunk(target, now);
+        return true;
+    }
+    
+    /**
+     * Leaves a paged building where it is if it is still in its chunk, and
+     * otherwise moves it into the chunk it is now in
+     * 
+     * @param chunk the building's chunk
+     * @param index the building's index in the chunk
+     * @param now the game time now
+     * @return whether the building was moved out of the chunk, leaving
+     *         another in its place
+     */
+    protected boolean keepBuilding(Chunk chunk, int index, float now) {
+        Chunk target = this.getChunk(this.columnOf(chunk.column, chunk.buildingX[index]),
+                                     this.rowOf(chunk.row, chunk.buildingY[index]));
+        if (target == chunk) {
+            return false;
+        }
+        if (target.active) {
+            this.restoreBuilding(chunk, index);
+            return true;
+        }
+        float offsetX = chunk.originX - target.originX;
+        float offsetY = chunk.originY - target.originY;
+        target.addBuilding(chunk.buildingX[index] + offsetX, chunk.buildingY[index] + offsetY,
+                           chunk.buildingVelocityX[index], chunk.buildingVelocityY[index],
+                           chunk.buildingSprite[index],
+                           chunk.buildingOnPlanet[index],
+                           chunk.buildingDamageTime[index],
+                           now);
+        chunk.removeBuilding(index);
+        this.scheduleChunk(target, now);
+        return true;
+    }
+    
+    /**
+     * Hands a paged alien back to the simulation, in the simulation's frame
+     * 
+     * @param chunk the alien's chunk
+     * @param index the alien's index in the chunk
+     */
+    protected void restoreAlien(Chunk chunk, int index) {
+        Simulation simulation = this.simulation;
+        float offsetX = chunk.originX - simulation.originX;
+        float offsetY = chunk.originY - simulation.originY;
+        Alien alien = simulation.alienPool.acquire();
+        alien.restore(chunk.alienX[index] + offsetX, chunk.alienY[index] + offsetY,
+                      chunk.alienVelocityX[index], chunk.alienVelocityY[index],
+                      chunk.alienDestinationX[index] + offsetX, chunk.alienDestinationY[index] + offsetY,
+                      chunk.alienStartX[index] + offsetX, chunk.alienStartY[index] + offsetY,
+                      chunk.alienLeaving[index]);
+        simulation.addAlien(alien);
+        chunk.removeAlien(index);
+        this.pagedAlienCount--;
+    }
+    
+    /**
+     * Hands a paged building back to the simulation, in the simulation's
+     * frame
+     * 
+     * @param chunk the building's chunk
+     * @param index the building's index in the chunk
+     */
+    protected void restoreBuilding(Chunk chunk, int index) {
+        Simulation simulation = this.simulation;
+        Building building = simulation.buildingPool.acquire();
+        building.restore(chunk.originX - simulation.originX + chunk.buildingX[index],
+                         chunk.originY - simulation.originY + chunk.buildingY[index],
+                         chunk.buildingVelocityX[index], chunk.buildingVelocityY[index],
+                         BUILDING_SPRITES[chunk.buildingSprite[index]],
+                         chunk.buildingOnPlanet[index],
+                         chunk.buildingDamageTime[index]);
+        simulation.addBuilding(building);
+        chunk.removeBuilding(index);
+        this.pagedBuildingCount--;
+    }
+    
+    /**
+     * Mixes where the window is and everything paged out into a hash, for
+     * Simulation.stateHash()
+     * 
+     * @param hash the hash so far
+     * @return the new hash
+     */
+    public long hash(long hash) {
+        hash = Simulation.hash(hash, this.windowColumn);
+        hash = Simulation.hash(hash, this.windowRow);
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk chunk = this.chunks[i];
+            if (!chunk.hasPaged()) {
+                continue;
+            }
+            hash = Simulation.hash(hash, i);
+            hash = Simulation.hash(hash, chunk.alienCount);
+            for (int a = 0; a < chunk.alienCount; a++) {
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.alienX[a]));
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.alienY[a]));
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.alienVelocityX[a]));
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.alienVelocityY[a]));
+                hash = Simulation.hash(hash, chunk.alienLeaving[a] ? 1 : 0);
+            }
+            hash = Simulation.hash(hash, chunk.buildingCount);
+            for (int b = 0; b < chunk.buildingCount; b++) {
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.buildingX[b]));
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.buildingY[b]));
+                hash = Simulation.hash(hash, chunk.buildingOnPlanet[b] ? 1 : 0);
+                hash = Simulation.hash(hash, Float.floatToIntBits(chunk.buildingDamageTime[b]));
+            }
+        }
+        return hash;
+    }
+    
+    /**
+     * @return the number of bytes write() needs
+     */
+    public int getSavedSize() {
+        int bytes = 16 + this.schedule.size() * 8;
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk chunk = this.chunks[i];
+            if (chunk.hasPaged()) {
+                bytes += 12 + chunk.alienCount * PAGED_ALIEN_BYTES + chunk.buildingCount * PAGED_BUILDING_BYTES;
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Writes where the window is and everything paged out, for a SaveGame.
+     * This is
+     *   int      the column and row of the window's top left chunk
+     *   int      the number of chunks with anything paged into them, then
+     *            for each
+     *     int    the index of the chunk
+     *     int    the number of aliens, then each alien's position,
+     *            velocity, destination and start as floats, whether it is
+     *            leaving as a byte, and the game time it is up to date at
+     *     int    the number of buildings, then each building's position
+     *            and velocity as floats, its sprite and whether it has
+     *            landed as bytes, and how long since it last did damage and
+     *            the game time it is up to date at as floats
+     *   int      the number of chunks waiting to be brought up to date, then
+     *            the index of each, in the order they are due, and the game
+     *            time it is due at
+     * 
+     * @param out the buffer to write to, with getSavedSize() bytes left
+     */
+    public void write(ByteBuffer out) {
+        out.putInt(this.windowColumn);
+        out.putInt(this.windowRow);
+        
+        int paged = 0;
+        for (int i = 0; i < this.chunks.length; i++) {
+            if (this.chunks[i].hasPaged()) {
+                paged++;
+            }
+        }
+        out.putInt(paged);
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk chunk = this.chunks[i];
+            if (!chunk.hasPaged()) {
+                continue;
+            }
+            out.putInt(i);
+            out.putInt(chunk.alienCount);
+            for (int a = 0; a < chunk.alienCount; a++) {
+                out.putFloat(chunk.alienX[a]);
+                out.putFloat(chunk.alienY[a]);
+                out.putFloat(chunk.alienVelocityX[a]);
+                out.putFloat(chunk.alienVelocityY[a]);
+                out.putFloat(chunk.alienDestinationX[a]);
+                out.putFloat(chunk.alienDestinationY[a]);
+                out.putFloat(chunk.alienStartX[a]);
+                out.putFloat(chunk.alienStartY[a]);
+                out.put(chunk.alienLeaving[a] ? (byte)1 : (byte)0);
+                out.putFloat(chunk.alienTime[a]);
+            }
+            out.putInt(chunk.buildingCount);
+            for (int b = 0; b < chunk.buildingCount; b++) {
+                out.putFloat(chunk.buildingX[b]);
+                out.putFloat(chunk.buildingY[b]);
+                out.putFloat(chunk.buildingVelocityX[b]);
+                out.putFloat(chunk.buildingVelocityY[b]);
+                out.put(chunk.buildingSprite[b]);
+                out.put(chunk.buildingOnPlanet[b] ? (byte)1 : (byte)0);
+                out.putFloat(chunk.buildingDamageTime[b]);
+                out.putFloat(chunk.buildingTime[b]);
+            }
+        }
+        
+        out.putInt(this.schedule.size());
+        for (Chunk chunk : this.schedule) {
+            out.putInt(chunk.row * this.columns + chunk.column);
+            out.putFloat(chunk.dueTime);
+        }
+    }
+    
+    /**
+     * Puts the window and everything paged out back as write() wrote them.
+     * Everything paged out now is dropped, and the simulation's frame, with
+     * whatever is in it, is moved to the window's, so this must be done
+     * before anything in the simulation is put back.
+     * 
+     * @param in the buffer to read from
+     * @throws IOException if what is read doesn't fit this space
+     */
+    public void read(ByteBuffer in) throws IOException {
+        int column = in.getInt();
+        int row = in.getInt();
+        if (column < 0 || column > this.columns - this.windowColumns ||
+                row < 0 || row > this.rows - this.windowRows) {
+            throw new IOException("Window at " + column + ", " + row + " is outside space");
+        }
+        
+        // drop everything, and place the window afresh
+        for (int i = 0; i < this.chunks.length; i++) {
+            this.chunks[i].clear();
+            this.chunks[i].scheduled = false;
+            this.chunks[i].active = false;
+        }
+        this.schedule.clear();
+        this.pagedAlienCount = 0;
+        this.pagedBuildingCount = 0;
+        this.windowColumn = -1;
+        this.windowRow = -1;
+        this.moveWindow(column, row);
+        
+        int paged = in.getInt();
+        for (int c = 0; c < paged; c++) {
+            Chunk chunk = this.readChunk(in);
+            int aliens = in.getInt();
+            for (int a = 0; a < aliens; a++) {
+                chunk.addAlien(in.getFloat(), in.getFloat(),
+                               in.getFloat(), in.getFloat(),
+                               in.getFloat(), in.getFloat(),
+                               in.getFloat(), in.getFloat(),
+                               in.get() != 0,
+                               in.getFloat());
+            }
+            int buildings = in.getInt();
+            for (int b = 0; b < buildings; b++) {
+                float x = in.getFloat();
+                float y = in.getFloat();
+                float velocityX = in.getFloat();
+                float velocityY = in.getFloat();
+                int sprite = in.get();
+                if (sprite < 0 || sprite >= BUILDING_SPRITES.length) {
+                    throw new IOException("Unknown building sprite " + sprite);
+                }
+                chunk.addBuilding(x, y,
+                                  velocityX, velocityY,
+                                  sprite,
+                                  in.get() != 0,
+                                  in.getFloat(),
+                                  in.getFloat());
+            }
+            this.pagedAlienCount += aliens;
+            this.pagedBuildingCount += buildings;
+        }
+        
+        int scheduled = in.getInt();
+        for (int s = 0; s < scheduled; s++) {
+            Chunk chunk = this.readChunk(in);
+            chunk.dueTime = in.getFloat();
+            chunk.scheduled = true;
+            this.schedule.addLast(chunk);
+        }
+    }
+    
+    /**
+     * Reads the index of a chunk
+     * 
+     * @param in the buffer to read from
+     * @return the chunk
+     * @throws IOException if there is no chunk with that index
+     */
+    protected Chunk readChunk(ByteBuffer in) throws IOException {
+        int index = in.getInt();
+        if (index < 0 || index >= this.chunks.length) {
+            throw new IOException("No chunk " + index);
+        }
+        return this.chunks[index];
+    }
+    
+    /**
+     * @param sprite a building's sprite
+     * @return the index of the sprite in BUILDING_SPRITES
+     */
+    protected static int spriteIndex(SpriteInfo sprite) {
+        for (int i = 0; i < BUILDING_SPRITES.length; i++) {
+            if (BUILDING_SPRITES[i] == sprite) {
+                return i;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * @return whether the point in space is in one of the window's chunks
+     */
+    protected boolean isInWindow(float x, float y) {
+        return this.isInWindow(this.columnOf(x), this.rowOf(y));
+    }
+    
+    /**
+     * @return whether the chunk at a column and row is in the window
+     */
+    protected boolean isInWindow(int column, int row) {
+        return column >= this.windowColumn &&
+                column < this.windowColumn + this.windowColumns &&
+                row >= this.windowRow &&
+                row < this.windowRow + this.windowRows;
+    }
+    
+    /**
+     * @param x an x position in space
+     * @return the column of the chunk it is in, taking anything outside
+     *         space to be in the nearest chunk
+     */
+    protected int columnOf(float x) {
+        return Math.max(0, Math.min((int)Math.floor(x / this.chunkSize), this.columns - 1));
+    }
+    
+    /**
+     * @param y a y position in space
+     * @return the row of the chunk it is in, taking anything outside space
+     *         to be in the nearest chunk
+     */
+    protected int rowOf(float y) {
+        return Math.max(0, Math.min((int)Math.floor(y / this.chunkSize), this.rows - 1));
+    }
+    
+    /**
+     * @param column the column of a chunk
+     * @param x an x position relative to that chunk's origin
+     * @return the column of the chunk it is in, taking anything outside
+     *         space to be in the nearest chunk
+     */
+    protected int columnOf(int column, float x) {
+        return (int)Math.max(0.0, Math.min(column + Math.floor(x / this.chunkSize), this.columns - 1));
+    }
+    
+    /**
+     * @param row the row of a chunk
+     * @param y a y position relative to that chunk's origin
+     * @return the row of the chunk it is in, taking anything outside space
+     *         to be in the nearest chunk
+     */
+    protected int rowOf(int row, float y) {
+        return (int)Math.max(0.0, Math.min(row + Math.floor(y / this.chunkSize), this.rows - 1));
+    }
+    
+    /**
+     * @return the chunk a point in space is in, taking anything outside
+     *         space to be in the nearest chunk
+     */
+    public Chunk getChunkAt(float x, float y) {
+        return this.getChunk(this.columnOf(x), this.rowOf(y));
+    }
+    
+    /**
+     * @return the chunk at a column and row
+     */
+    public Chunk getChunk(int column, int row) {
+        return this.chunks[row * this.columns + column];
+    }
+    
+    /**
+     * @return whether the window is the whole of space, so nothing is ever
+     *         paged out
+     */
+    public boolean isWholeSpaceActive() {
+        return this.windowColumns == this.columns && this.windowRows == this.rows;
+    }
+    
+    /**
+     * @return the most space the window can cover across, which is where
+     *         everything being simulated is, give or take what is leaving it
+     */
+    public int getActiveWidth() {
+        return Math.min(this.windowColumns * this.chunkSize, this.simulation.spaceWidth);
+    }
+    
+    /**
+     * @return the most space the window can cover down
+     */
+    public int getActiveHeight() {
+        return Math.min(this.windowRows * this.chunkSize, this.simulation.spaceHeight);
+    }
+    
+    /**
+     * @return the width and height of each chunk
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+    
+    /**
+     * @return the number of columns of chunks
+     */
+    public int getColumns() {
+        return this.columns;
+    }
+    
+    /**
+     * @return the number of rows of chunks
+     */
+    public int getRows() {
+        return this.rows;
+    }
+    
+    /**
+     * @return the number of aliens paged out of the simulation
+     */
+    public int getPagedAlienCount() {
+        return this.pagedAlienCount;
+    }
+    
+    /**
+     * @return the number of buildings paged out of the simulation
+     */
+    public int getPagedBuildingCount() {
+        return this.pagedBuildingCount;
+    }
+    
+    /**
+     * @return the number of inactive chunks waiting to be brought up to date
+     */
+    public int getScheduledCount() {
+        return this.schedule.size();
+    }
+    
+    /**
+     * @return the number of inactive chunks pulling on the window
+     */
+    public int getSummaryCount() {
+        return this.summaryCount;
+    }
+    
+    private static float[] grow(float[] array) {
+        float[] newArray = new float[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+}
@@ -0,0 +1,485 @@
+package uk.co.austinbirch;
+
+import java.util.ArrayList;
+
+import uk.co.austinbirch.physics.KinematicStore;
+
+/**
+ * @author Austin Birch
+ *
+ * Works out which entities the camera can see, layer by layer, so that
+ * rendering only has to touch what is on screen.
+ *
+ * Each layer has a box that covers any of its sprites at any rotation, and
+ * an entity is visible if its box overlaps the camera's view, grown by a
+ * margin. That is the same as its position being inside the view grown by
+ * the box as well, so a snapshot's layers are culled by looking only in
+ * the cells of their grids that the grown view overlaps. The grids are
+ * built by whichever thread fills the snapshot, so culling costs what is
+ * on screen, however big the world. Culling a simulation itself, which
+ * only debug mode does, is one pass over the positions in the
+ * registries' kinematic stores instead. Either way the visible entities
+ * are found in their registry order, so they draw in the same order as
+ * without culling.
+ *
+ */
+public class VisibilityCuller {
+
+    // Global variables
+    
+    public static final int WORLDS = 0;
+    public static final int HAMMERS = 1;
+    public static final int ALIENS = 2;
+    public static final int BUILDINGS = 3;
+    
+    /**
+     * The number of layers culled
+     */
+    public static final int LAYER_COUNT = 4;
+    
+    /**
+     * The most of a layer, as a fraction, that can be in the cells a view
+     * overlaps for them to be searched. Past that, a pass over the whole
+     * layer is cheaper than putting what was found back in layer order.
+     */
+    protected static final float MAX_CELL_FRACTION = 0.25f;
+    
+    // Member variables
+    
+    /**
+     * How far past the camera's view an entity still counts as visible
+     */
+    protected float margin;
+    
+    /**
+     * For each layer, the box that covers any of its sprites at any
+     * rotation, relative to an entity's position, as left, top, right and
+     * bottom
+     */
+    protected float[][] layerBounds = new float[LAYER_COUNT][];
+    
+    /**
+     * The simulation the last cull was of, whose entities the visible ids
+     * refer to, or null if it was of a snapshot
+     */
+    protected Simulation simulation;
+    
+    /**
+     * The x and y positions of the worlds, which aren't in a store
+     */
+    protected float[] worldX = new float[8];
+    protected float[] worldY = new float[8];
+    
+    /**
+     * The number of entities in each layer
+     */
+    protected int[] entityCounts = new int[LAYER_COUNT];
+    
+    /**
+     * The ids of the visible entities in each layer, in registry order
+     */
+    protected int[][] visible = new int[LAYER_COUNT][];
+    
+    /**
+     * The number of visible entities in each layer
+     */
+    protected int[] visibleCounts = new int[LAYER_COUNT];
+    
+    /**
+     * Where the visible entities from each cell start, followed by where
+     * the last ones end, and somewhere to merge them, while a layer is
+     * culled from its grid
+     */
+    protected int[] runStarts = new int[16];
+    protected int[] mergeBuffer = new int[64];
+    
+    /**
+     * The number of entities drawn and culled over every layer by the
+     * last cull
+     */
+    protected int drawnCount = 0;
+    protected int culledCount = 0;
+    
+    /**
+     * Creates a culler
+     * 
+     * @param margin how far past the camera's view an entity still counts
+     *               as visible
+     */
+    public VisibilityCuller(float margin) {
+        this.margin = margin;
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            this.visible[layer] = new int[64];
+        }
+        
+        this.layerBounds[WORLDS] = VisibilityCuller.boundsOf(SpriteInfo.WORLD);
+        this.layerBounds[HAMMERS] = VisibilityCuller.boundsOf(SpriteInfo.HAMMER);
+        this.layerBounds[ALIENS] = VisibilityCuller.boundsOf(SpriteInfo.ALIEN);
+        this.layerBounds[BUILDINGS] = VisibilityCuller.boundsOf(SpriteInfo.BUILDING_01,
+                                                                SpriteInfo.BUILDING_02,
+                                                                SpriteInfo.BUILDING_03);
+    }
+    
+    /**
+     * Works out the box that covers any of the given sprites at any
+     * rotation. A sprite is drawn from an entity's position and turns about
+     * its centre, so it stays inside the circle through its corners.
+     * 
+     * @param sprites the sprites an entity in a layer can have
+     * @return the box, relative to the entity's position, as left, top,
+     *         right and bottom
+     */
+    protected static float[] boundsOf(SpriteInfo... sprites) {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (SpriteInfo sprite : sprites) {
+            float halfWidth = sprite.getWidth() / 2.0f;
+            float halfHeight = sprite.getHeight() / 2.0f;
+            float radius = (float)Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight);
+            bounds[0] = Math.min(bounds[0], halfWidth - radius);
+            bounds[1] = Math.min(bounds[1], halfHeight - radius);
+            bounds[2] = Math.max(bounds[2], halfWidth + radius);
+            bounds[3] = Math.max(bounds[3], halfHeight + radius);
+        }
+        return bounds;
+    }
+    
+    /**
+     * Works out which of a simulation's worlds, hammers, aliens and
+     * buildings a view can see
+     * 
+     * @param simulation the simulation to cull
+     * @param viewX the left edge of the view
+     * @param viewY the top edge of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    public void cull(Simulation simulation, float viewX, float viewY, float viewWidth, float viewHeight) {
+        this.simulation = simulation;
+        this.drawnCount = 0;
+        this.culledCount = 0;
+        
+        // there are only ever a few worlds, and they aren't in a registry
+        ArrayList<World> worlds = simulation.worlds;
+        if (this.worldX.length < worlds.size()) {
+            this.worldX = new float[worlds.size()];
+            this.worldY = new float[worlds.size()];
+        }
+        for (int i = 0; i < worlds.size(); i++) {
+            World world = worlds.get(i);
+            this.worldX[i] = world.getX();
+            this.worldY[i] = world.getY();
+        }
+        this.cullLayer(WORLDS, this.worldX, this.worldY, worlds.size(), viewX, viewY, viewWidth, viewHeight);
+        
+        this.cullStore(HAMMERS, simulation.hammerList.getKinematics(), viewX, viewY, viewWidth, viewHeight);
+        this.cullStore(ALIENS, simulation.aliens.getKinematics(), viewX, viewY, viewWidth, viewHeight);
+        this.cullStore(BUILDINGS, simulation.buildings.getKinematics(), viewX, viewY, viewWidth, viewHeight);
+    }
+    
+    /**
+     * Works out which of the entities in a snapshot a view can see, by
+     * where they were at the end of its tick, from the cells of each
+     * layer's grid the view overlaps. The visible entities are then found
+     * with getVisibleIndex() rather than getVisible().
+     * 
+     * @param snapshot the snapshot to cull
+     * @param viewX the left edge of the view
+     * @param viewY the top edge of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    public void cull(RenderSnapshot snapshot, float viewX, float viewY, float viewWidth, float viewHeight) {
+        this.simulation = null;
+        this.drawnCount = 0;
+        this.culledCount = 0;
+        
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            this.cullCells(layer, snapshot.getLayer(layer), viewX, viewY, viewWidth, viewHeight);
+        }
+    }
+    
+    /**
+     * Works out which of a snapshot layer's entities a view can see, from
+     * the entities in the cells of its grid that the view overlaps, or
+     * from all of them if those cells hold more than MAX_CELL_FRACTION of
+     * the layer
+     * 
+     * @param layer the layer
+     * @param entities the snapshot's layer, sorted into its grid
+     * @param viewX the left edge of the view
+     * @param viewY the top edge of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    protected void cullCells(int layer,
+                             RenderSnapshot.Layer entities,
+                             float viewX,
+                             float viewY,
+                             float viewWidth,
+                             float viewHeight) {
+        float[] bounds = this.layerBounds[layer];
+        float left = viewX - this.margin - bounds[2];
+        float top = viewY - this.margin - bounds[3];
+        float right = viewX + viewWidth + this.margin - bounds[0];
+        float bottom = viewY + viewHeight + this.margin - bounds[1];
+        
+        // every position inside the grown view is in a cell between the
+        // cells of its corners, and the cells along a row are one run
+        int[] starts = entities.cellStarts;
+        int firstX = entities.cellX(left);
+        int lastX = entities.cellX(right);
+        int firstY = entities.cellY(top);
+        int lastY = entities.cellY(bottom);
+        int count = entities.size();
+        int candidates = 0;
+        for (int cellY = firstY; cellY <= lastY; cellY++) {
+            int row = cellY * entities.cellsX;
+            candidates += starts[row + lastX + 1] - starts[row + firstX];
+        }
+        if (candidates > count * MAX_CELL_FRACTION) {
+            this.cullLayer(layer, entities.x, entities.y, count, viewX, viewY, viewWidth, viewHeight);
+            return;
+        }
+        
+        if (this.visible[layer].length < count) {
+            this.visible[layer] = new int[Math.max(count, this.visible[layer].length * 2)];
+        }
+        int[] visible = this.visible[layer];
+        int visibleCount = 0;
+        int runs = 0;
+        float[] x = entities.x;
+        float[] y = entities.y;
+        int[] cellEntities = entities.cellEntities;
+        for (int cellY = firstY; cellY <= lastY; cellY++) {
+            int row = cellY * entities.cellsX;
+            for (int cell = row + firstX; cell <= row + lastX; cell++) {
+                int runStart = visibleCount;
+                int end = starts[cell + 1];
+                for (int k = starts[cell]; k < end; k++) {
+                    int i = cellEntities[k];
+                    float entityX = x[i];
+                    float entityY = y[i];
+                    if (entityX >= left && entityX <= right && entityY >= top && entityY <= bottom) {
+                        visible[visibleCount++] = i;
+                    }
+                }
+                if (visibleCount > runStart) {
+                    if (runs + 1 == this.runStarts.length) {
+                        int[] runStarts = new int[this.runStarts.length * 2];
+                        System.arraycopy(this.runStarts, 0, runStarts, 0, runs);
+                        this.runStarts = runStarts;
+                    }
+                    this.runStarts[runs++] = runStart;
+                }
+            }
+        }
+        this.runStarts[runs] = visibleCount;
+        this.mergeRuns(visible, visibleCount, runs);
+        
+        this.entityCounts[layer] = count;
+        this.visibleCounts[layer] = visibleCount;
+        this.drawnCount += visibleCount;
+        this.culledCount += count - visibleCount;
+    }
+    
+    /**
+     * Works out which of a registry's entities a view can see, from the
+     * positions in its kinematic store, where entity i is in slot i
+     * 
+     * @param layer the layer the registry is drawn in
+     * @param store the registry's kinematic store
+     * @param viewX the left edge of the view
+     * @param viewY the top edge of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    protected void cullStore(int layer,
+                             KinematicStore store,
+                             float viewX,
+                             float viewY,
+                             float viewWidth,
+                             float viewHeight) {
+        this.cullLayer(layer, store.x, store.y, store.size(), viewX, viewY, viewWidth, viewHeight);
+    }
+    
+    /**
+     * Merges runs of entity ids, each of which is in layer order, into one
+     * run in layer order, a pair of runs at a time
+     * 
+     * @param ids the ids, which end up in order
+     * @param count the number of ids
+     * @param runs the number of runs, which start at runStarts
+     */
+    protected void mergeRuns(int[] ids, int count, int runs) {
+        if (runs < 2) {
+            return;
+        }
+        if (this.mergeBuffer.length < count) {
+            this.mergeBuffer = new int[Math.max(count, this.mergeBuffer.length * 2)];
+        }
+        int[] runStarts = this.runStarts;
+        int[] from = ids;
+        int[] to = this.mergeBuffer;
+        while (runs > 1) {
+            int merged = 0;
+            for (int run = 0; run < runs; run += 2) {
+                int i = runStarts[run];
+                int middle = runStarts[Math.min(run + 1, runs)];
+                int end = runStarts[Math.min(run + 2, runs)];
+                int j = middle;
+                int k = i;
+                while (i < middle && j < end) {
+                    to[k++] = from[i] <= from[j] ? from[i++] : from[j++];
+                }
+                System.arraycopy(from, i, to, k, middle - i);
+                System.arraycopy(from, j, to, k + middle - i, end - j);
+                runStarts[merged++] = runStarts[run];
+            }
+            runStarts[merged] = count;
+            runs = merged;
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != ids) {
+            System.arraycopy(from, 0, ids, 0, count);
+        }
+    }
+    
+    /**
+     * Works out which of a layer's entities a view can see, in one pass
+     * over their positions
+     * 
+     * @param layer the layer
+     * @param x the x position of each entity
+     * @param y the y position of each entity
+     * @param count the number of entities in the layer
+     * @param viewX the left edge of the view
+     * @param viewY the top edge of the view
+     * @param viewWidth the width of the view
+     * @param viewHeight the height of the view
+     */
+    protected void cullLayer(int layer,
+                             float[] x,
+                             float[] y,
+                             int count,
+                             float viewX,
+                             float viewY,
+                             float viewWidth,
+                             float viewHeight) {
+        // an entity is visible if its box overlaps the view, i.e. if its
+        // position is inside the view grown by the box
+        float[] bounds = this.layerBounds[layer];
+        float left = viewX - this.margin - bounds[2];
+        float top = viewY - this.margin - bounds[3];
+        float right = viewX + viewWidth + this.margin - bounds[0];
+        float bottom = viewY + viewHeight + this.margin - bounds[1];
+        
+        if (this.visible[layer].length < count) {
+            this.visible[layer] = new int[Math.max(count, this.visible[layer].length * 2)];
+        }
+        int[] visible = this.visible[layer];
+        int visibleCount = 0;
+        for (int i = 0; i < count; i++) {
+            float entityX = x[i];
+            float entityY = y[i];
+            if (entityX >= left && entityX <= right && entityY >= top && entityY <= bottom) {
+                visible[visibleCount++] = i;
+            }
+        }
+        this.entityCounts[layer] = count;
+        this.visibleCounts[layer] = visibleCount;
+        this.drawnCount += visibleCount;
+        this.culledCount += count - visibleCount;
+    }
+    
+    /**
+     * Forgets the last cull, so its simulation can be collected
+     */
+    public void clear() {
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            this.entityCounts[layer] = 0;
+            this.visibleCounts[layer] = 0;
+        }
+        this.simulation = null;
+        this.drawnCount = 0;
+        this.culledCount = 0;
+    }
+    
+    /**
+     * @param layer the layer
+     * @return the number of entities in the layer the view can see
+     */
+    public int getVisibleCount(int layer) {
+        return this.visibleCounts[layer];
+    }
+    
+    /**
+     * @param layer the layer
+     * @param index the index of the visible entity, from 0 to
+     *              getVisibleCount(layer) - 1
+     * @return the visible entity, from the simulation that was culled
+     */
+    public Entity getVisible(int layer, int index) {
+        int id = this.visible[layer][index];
+        switch (layer) {
+            case HAMMERS:
+                return this.simulation.hammerList.get(id);
+            case ALIENS:
+                return this.simulation.aliens.get(id);
+            case BUILDINGS:
+                return this.simulation.buildings.get(id);
+            default:
+                return this.simulation.worlds.get(id);
+        }
+    }
+    
+    /**
+     * @param layer the layer
+     * @param index the index of the visible entity, from 0 to
+     *              getVisibleCount(layer) - 1
+     * @return the index of the visible entity in its layer
+     */
+    public int getVisibleIndex(int layer, int index) {
+        return this.visible[layer][index];
+    }
+    
+    /**
+     * @param layer the layer
+     * @return the number of entities in the layer the view can't see
+     */
+    public int getCulledCount(int layer) {
+        return this.entityCounts[layer] - this.visibleCounts[layer];
+    }
+    
+    /**
+     * @return the number of entities the last cull left to be drawn
+     */
+    public int getDrawnCount() {
+        return this.drawnCount;
+    }
+    
+    /**
+     * @return the number of entities the last cull skipped
+     */
+    public int getCulledCount() {
+        return this.culledCount;
+    }
+    
+    /**
+     * @return how far past the camera's view an entity still counts as
+     *         visible
+     */
+    public float getMargin() {
+        return this.margin;
+    }
+    
+    /**
+     * @param margin how far past the camera's view an entity should still
+     *               count as visible
+     */
+    public void setMargin(float margin) {
+        this.margin = margin;
+    }
+    
+}
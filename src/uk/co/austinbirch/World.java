@@ -15,7 +15,7 @@ import org.newdawn.slick.geom.Vector2f;
  *
  */
 public class World extends Entity {
-    
+
     // Member variables
     
     /**
@@ -23,19 +23,24 @@ public class World extends Entity {
      */
     protected float radius;
     
+    /**
+     * The collision Ellipse, rebuilt only if the world moves
+     */
+    protected Ellipse collisionEllipse;
+    
+    /**
+     * The color used to draw the collision Ellipse in debug mode
+     */
+    protected static final Color DEBUG_COLOR = new Color(0.8f, 0.0f, 0.0f, 0.5f);
+    
     /**
      * Creates a world entity 
      */
     public World() {
         super();
-        // try and load the world sprite
-        try {
-            this.sprite = new Image("res/images/world_1.png");
-            this.radius = this.sprite.getWidth() / 2;
-            this.mass = 2500.0f;
-        } catch (SlickException e) {
-            e.printStackTrace();
-        }
+        this.spriteInfo = SpriteInfo.WORLD;
+        this.radius = this.spriteInfo.getWidth() / 2;
+        this.setMass(2500.0f);
     }
     
     /**
@@ -45,33 +50,66 @@ public class World extends Entity {
      */
     public World(Vector2f position) {
         this();
-        this.position = position;
+        this.setPosition(position.x, position.y);
+    }
+    
+    /**
+     * @return the x position of the center of the world
+     */
+    public float getCenterX() {
+        return this.getX() + this.radius;
     }
     
     /**
-     * Return the collision Ellipse for this world
+     * @return the y position of the center of the world
+     */
+    public float getCenterY() {
+        return this.getY() + this.radius;
+    }
+    
+    /**
+     * @return the radius of the world
+     */
+    public float getRadius() {
+        return this.radius;
+    }
+    
+    /**
+     * Return the collision Ellipse for this world, for drawing. Collisions
+     * are worked out from the center and radius.
      * 
      * We use an Ellipse because the implementation for Circle is buggy in
      * Slick2D
      * 
+     * Building an Ellipse's points is expensive, and worlds don't move, so
+     * the same Ellipse is returned until the world's position changes.
+     * 
      * @return
      */
     public Ellipse collisionCircle() {
         // TODO: Locate bug in Slick2D Circle 
-        Ellipse e = new Ellipse(this.position.x + this.radius,
-                                this.position.y + this.radius,
-                                this.radius,
-                                this.radius);
-        return e;
+        float centerX = this.getCenterX();
+        float centerY = this.getCenterY();
+        if (this.collisionEllipse == null ||
+                this.collisionEllipse.getCenterX() != centerX ||
+                this.collisionEllipse.getCenterY() != centerY) {
+            this.collisionEllipse = new Ellipse(centerX,
+                                                centerY,
+                                                this.radius,
+                                                this.radius);
+        }
+        return this.collisionEllipse;
     }
-
+    
     @Override
-    public void render(GameContainer gc, Graphics g) {
-        g.drawImage(this.sprite, this.position.x, this.position.y);
+    public void render(GameContainer gc, Graphics g, float alpha) throws SlickException {
+        Image sprite = this.getSprite();
+        sprite.setRotation(this.getInterpolatedRotation(alpha));
+        g.drawImage(sprite, this.getInterpolatedX(alpha), this.getInterpolatedY(alpha));
         if (McHammerGame.DEBUG_MODE) {
             Color oldColor = g.getColor();
             
-            g.setColor(new Color(0.8f, 0.0f, 0.0f, 0.5f));
+            g.setColor(DEBUG_COLOR);
             g.fill(this.collisionCircle());
             
             g.setColor(oldColor);
@@ -0,0 +1,425 @@
+package uk.co.austinbirch.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.newdawn.slick.util.Log;
+
+import uk.co.austinbirch.Camera;
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.RenderSnapshot;
+import uk.co.austinbirch.SpriteInfo;
+
+/**
+ * @author Austin Birch
+ *
+ * The server's end of one client. The server's broadcast thread encodes
+ * each snapshot for the client, against the last one the client has
+ * acknowledged, and with only what is in or near the client's view. A
+ * thread of the connection's own sends it, and another reads the client's
+ * input, view and acknowledgements.
+ *
+ * A client that can't keep up is sent only the latest snapshot: one that
+ * is encoded before the last has gone out replaces it. That is always
+ * safe, because a snapshot is only ever encoded against one the client
+ * has acknowledged receiving.
+ *
+ */
+public class ClientConnection {
+
+    // Global variables
+    
+    /**
+     * The number of frames sent that are kept as possible baselines
+     */
+    public static final int HISTORY_FRAMES = 32;
+    
+    /**
+     * How far outside its view the client is sent entities, so that
+     * anything coming into view is already there
+     */
+    public static final float VIEW_MARGIN = 128.0f;
+    
+    /**
+     * How long a new client has to say hello before it is turned away, as
+     * every client is greeted on the server's one accept thread
+     */
+    public static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    
+    // Member variables
+    
+    /**
+     * The server the client is connected to
+     */
+    protected GameServer server;
+    
+    /**
+     * The socket to the client, and the streams over it
+     */
+    protected Socket socket;
+    protected DataInputStream in;
+    protected DataOutputStream out;
+    
+    /**
+     * A name for the client in the log
+     */
+    protected String name;
+    
+    /**
+     * The client's view, which follows the player unless the client has
+     * asked to look somewhere else
+     */
+    protected Camera camera;
+    
+    /**
+     * The point in space the client has asked to look at, or NaN to follow
+     * the player
+     */
+    protected volatile float viewX = Float.NaN;
+    protected volatile float viewY = Float.NaN;
+    
+    /**
+     * The frames sent to the client, and the sequence number of the last
+     */
+    protected FrameHistory history = new FrameHistory(HISTORY_FRAMES);
+    protected int sequence = 0;
+    
+    /**
+     * The sequence number of the latest snapshot the client has
+     * acknowledged, or 0 if it hasn't acknowledged any
+     */
+    protected volatile int acknowledged = 0;
+    
+    /**
+     * Encodes the frames for the client
+     */
+    protected DeltaCodec codec = new DeltaCodec();
+    
+    /**
+     * The buffer being encoded into by the broadcast thread, the one
+     * waiting to be sent, and the one being sent by the send thread. The
+     * pending one is only touched while holding the lock of this connection.
+     */
+    protected NetBuffer encodeBuffer = new NetBuffer(4096);
+    protected NetBuffer pendingBuffer = new NetBuffer(4096);
+    protected NetBuffer sendBuffer = new NetBuffer(4096);
+    
+    /**
+     * Whether there is a snapshot waiting to be sent
+     */
+    protected boolean pending = false;
+    
+    /**
+     * Whether the connection is still open
+     */
+    protected volatile boolean open = true;
+    
+    /**
+     * The threads reading from and sending to the client
+     */
+    protected Thread readThread;
+    protected Thread sendThread;
+    
+    /**
+     * What has been sent to the client: the bytes, and the snapshots sent
+     * whole, sent as a difference and replaced before they could be sent
+     */
+    protected volatile long bytesSent = 0;
+    protected volatile long snapshotsSent = 0;
+    protected long fullSnapshots = 0;
+    protected long deltaSnapshots = 0;
+    protected volatile long snapshotsDropped = 0;
+    
+    /**
+     * Takes over a socket whose client has said hello
+     * 
+     * @param server the server the client has connected to
+     * @param socket the socket to the client
+     * @param in the stream from the client, with the hello read
+     * @param out the stream to the client, with the welcome written
+     * @param viewWidth the width of the client's view
+     * @param viewHeight the height of the client's view
+     */
+    public ClientConnection(GameServer server,
+                            Socket socket,
+                            DataInputStream in,
+                            DataOutputStream out,
+                            int viewWidth,
+                            int viewHeight) {
+        this.server = server;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.name = String.valueOf(socket.getRemoteSocketAddress());
+        this.camera = new Camera(server.getSimulation().getSpaceWidth(),
+                                 server.getSimulation().getSpaceHeight(),
+                                 viewWidth,
+                                 viewHeight);
+    }
+    
+    /**
+     * Reads the hello from a new socket and answers it, giving up if the
+     * hello doesn't arrive within HANDSHAKE_TIMEOUT_MILLIS
+     * 
+     * @param server the server the client has connected to
+     * @param socket the socket to the client
+     * @return the connection to the client, not yet started
+     * @throws IOException if the client doesn't say hello properly, or in
+     *                     time
+     */
+    public static ClientConnection accept(GameServer server, Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        
+        if (in.readUnsignedByte() != NetProtocol.CLIENT_HELLO || in.readInt() != NetProtocol.MAGIC) {
+            throw new IOException("Not a McHammer client");
+        }
+        short version = in.readShort();
+        if (version != NetProtocol.VERSION) {
+            throw new IOException("Client is version " + version + ", not " + NetProtocol.VERSION);
+        }
+        int viewWidth = in.readShort();
+        int viewHeight = in.readShort();
+        socket.setSoTimeout(0);
+        
+        out.writeByte(NetProtocol.SERVER_WELCOME);
+        out.writeInt(server.getSimulation().getSpaceWidth());
+        out.writeInt(server.getSimulation().getSpaceHeight());
+        out.writeFloat(server.getTickDeltaSeconds());
+        out.writeInt(server.getSnapshotInterval());
+        out.writeUTF(server.getSimulation().getScenario().getName());
+        out.flush();
+        
+        return new ClientConnection(server, socket, in, out, viewWidth, viewHeight);
+    }
+    
+    /**
+     * Starts reading from and sending to the client
+     */
+    public void start() {
+        this.readThread = new Thread(new Runnable() {
+            public void run() {
+                ClientConnection.this.readLoop();
+            }
+        }, "McHammer client reader " + this.name);
+        this.sendThread = new Thread(new Runnable() {
+            public void run() {
+                ClientConnection.this.sendLoop();
+            }
+        }, "McHammer client sender " + this.name);
+        this.readThread.setDaemon(true);
+        this.sendThread.setDaemon(true);
+        this.readThread.start();
+        this.sendThread.start();
+    }
+    
+    /**
+     * Encodes a snapshot for the client and queues it to be sent, in
+     * place of any that hasn't gone yet. Must only be called from the
+     * server's broadcast thread.
+     * 
+     * @param snapshot the snapshot to send
+     * @return whether it was sent whole, rather than as a difference
+     */
+    public boolean queueSnapshot(RenderSnapshot snapshot) {
+        // move the view along with the origin, then onto the player or
+        // wherever the client is looking
+        int originX = snapshot.getOriginX();
+        int originY = snapshot.getOriginY();
+        this.camera.setViewableOrigin(-originX, -originY);
+        float viewX = this.viewX;
+        float viewY = this.viewY;
+        if (Float.isNaN(viewX) || Float.isNaN(viewY)) {
+            RenderSnapshot.Layer player = snapshot.getPlayer();
+            SpriteInfo sprite = player.getSprite(0);
+            this.camera.setPosition(player.getX(0) + sprite.getWidth() / 2.0f,
+                                    player.getY(0) + sprite.getHeight() / 2.0f);
+        } else {
+            this.camera.setPosition(viewX - originX, viewY - originY);
+        }
+        
+        int sequence = ++this.sequence;
+        StateFrame frame = this.history.next(sequence);
+        frame.capture(snapshot,
+                      sequence,
+                      this.camera.getX() - VIEW_MARGIN,
+                      this.camera.getY() - VIEW_MARGIN,
+                      this.camera.getX() + this.camera.getViewWidth() + VIEW_MARGIN,
+                      this.camera.getY() + this.camera.getViewHeight() + VIEW_MARGIN);
+        StateFrame baseline = this.history.get(this.acknowledged);
+        this.codec.encode(frame, baseline, this.encodeBuffer);
+        if (baseline == null) {
+            this.fullSnapshots++;
+        } else {
+            this.deltaSnapshots++;
+        }
+        
+        synchronized (this) {
+            NetBuffer encoded = this.encodeBuffer;
+            this.encodeBuffer = this.pendingBuffer;
+            this.pendingBuffer = encoded;
+            if (this.pending) {
+                this.snapshotsDropped++;
+            }
+            this.pending = true;
+            this.notifyAll();
+        }
+        return baseline == null;
+    }
+    
+    /**
+     * Sends each snapshot as it is queued, until the connection closes
+     */
+    protected void sendLoop() {
+        try {
+            while (this.open) {
+                synchronized (this) {
+                    while (!this.pending && this.open) {
+                        this.wait();
+                    }
+                    if (!this.open) {
+                        break;
+                    }
+                    NetBuffer queued = this.pendingBuffer;
+                    this.pendingBuffer = this.sendBuffer;
+                    this.sendBuffer = queued;
+                    this.pending = false;
+                }
+                this.out.writeByte(NetProtocol.SERVER_SNAPSHOT);
+                this.out.writeInt(this.sendBuffer.size());
+                this.sendBuffer.writeTo(this.out);
+                this.out.flush();
+                this.bytesSent += 5 + this.sendBuffer.size();
+                this.snapshotsSent++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (this.open) {
+                Log.info("Lost client " + this.name + ": " + e.getMessage());
+            }
+        }
+        this.close();
+    }
+    
+    /**
+     * Reads what the client sends, until the connection closes
+     */
+    protected void readLoop() {
+        Control[] controls = Control.values();
+        try {
+            while (this.open) {
+                int type = this.in.readUnsignedByte();
+                switch (type) {
+                    case NetProtocol.CLIENT_INPUT:
+                        int input = this.in.readUnsignedByte();
+                        if ((input >> 1) >= controls.length) {
+                            throw new IOException("Unknown control " + (input >> 1));
+                        }
+                        this.server.queueInput(controls[input >> 1], (input & 1) != 0);
+                        break;
+                    case NetProtocol.CLIENT_VIEW:
+                        float x = this.in.readFloat();
+                        float y = this.in.readFloat();
+                        this.viewX = x;
+                        this.viewY = y;
+                        break;
+                    case NetProtocol.CLIENT_ACK:
+                        int acknowledged = this.in.readInt();
+                        if (acknowledged > this.acknowledged) {
+                            this.acknowledged = acknowledged;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown message " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // the client has gone
+        } catch (IOException e) {
+            if (this.open) {
+                Log.info("Lost client " + this.name + ": " + e.getMessage());
+            }
+        }
+        this.close();
+    }
+    
+    /**
+     * Closes the connection, letting both its threads finish
+     */
+    public void close() {
+        synchronized (this) {
+            if (!this.open) {
+                return;
+            }
+            this.open = false;
+            this.notifyAll();
+        }
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // it is closed either way
+        }
+        this.server.removeClient(this);
+    }
+    
+    /**
+     * @return whether the connection is still open
+     */
+    public boolean isOpen() {
+        return this.open;
+    }
+    
+    /**
+     * @return the name of the client in the log
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * @return the number of bytes sent to the client
+     */
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+    
+    /**
+     * @return the number of snapshots sent to the client
+     */
+    public long getSnapshotsSent() {
+        return this.snapshotsSent;
+    }
+    
+    /**
+     * @return the number of snapshots replaced by a later one before they
+     *         could be sent
+     */
+    public long getSnapshotsDropped() {
+        return this.snapshotsDropped;
+    }
+    
+    /**
+     * @return the number of snapshots encoded whole, which only the
+     *         broadcast thread can rely on
+     */
+    public long getFullSnapshots() {
+        return this.fullSnapshots;
+    }
+    
+    /**
+     * @return the number of snapshots encoded as a difference, which only
+     *         the broadcast thread can rely on
+     */
+    public long getDeltaSnapshots() {
+        return this.deltaSnapshots;
+    }
+    
+}
@@ -0,0 +1,316 @@
+package uk.co.austinbirch.net;
+
+import java.io.IOException;
+
+/**
+ * @author Austin Birch
+ *
+ * Writes a StateFrame as the difference from an earlier frame the client
+ * has acknowledged, and reads it back again. A snapshot is
+ *   varint      the sequence number of the frame
+ *   varint      the sequence number of the baseline, or 0 if the frame is
+ *               sent whole
+ *   varlong     the tick
+ *   byte        the game state
+ *   zigzag      the property value
+ *   varint      the number of entities that have gone since the baseline,
+ *               then the key of each, as the difference from the last one
+ *   varint      the number of entities that are new or have changed, then
+ *               for each
+ *     varlong   the key, as the difference from the last one
+ *     byte      which parts follow, from the FLAG bits
+ *     zigzag    the x and y positions, and
+ *     zigzag    the rotation, whole if the entity is new and otherwise as
+ *               the difference from the baseline, rotation the short way
+ *               round
+ *     byte      the sprite
+ *
+ * Both frames are in key order, so the difference is worked out and put
+ * back together in a single pass over each. Entities that haven't moved
+ * cost nothing, and most that have cost a few bytes.
+ *
+ * A codec keeps some scratch space, so each thread needs its own.
+ *
+ */
+public class DeltaCodec {
+
+    // Global variables
+    
+    /**
+     * The entity wasn't in the baseline, so its parts are sent whole
+     */
+    public static final int FLAG_NEW = 1;
+    
+    /**
+     * Which parts of the entity are sent
+     */
+    public static final int FLAG_X = 2;
+    public static final int FLAG_Y = 4;
+    public static final int FLAG_ROTATION = 8;
+    public static final int FLAG_SPRITE = 16;
+    
+    /**
+     * Every part of the entity
+     */
+    protected static final int ALL_PARTS = FLAG_X | FLAG_Y | FLAG_ROTATION | FLAG_SPRITE;
+    
+    // Member variables
+    
+    /**
+     * The keys of the entities that have gone, while a snapshot is read
+     */
+    protected long[] removedKeys = new long[64];
+    
+    /**
+     * Writes a frame
+     * 
+     * @param frame the frame to write
+     * @param baseline the frame the client is known to have, or null to
+     *                 send the frame whole
+     * @param out the buffer to write to, which is cleared first
+     */
+    public void encode(StateFrame frame, StateFrame baseline, NetBuffer out) {
+        out.clear();
+        out.writeVarInt(frame.sequence);
+        out.writeVarInt(baseline != null ? baseline.sequence : 0);
+        out.writeVarLong(frame.tick);
+        out.writeByte(frame.gameState);
+        out.writeSignedVarInt(frame.propertyValue);
+        
+        int count = frame.count;
+        long[] keys = frame.keys;
+        int baseCount = baseline != null ? baseline.count : 0;
+        long[] baseKeys = baseline != null ? baseline.keys : null;
+        
+        // the entities in the baseline that aren't in the frame
+        int removed = 0;
+        for (int i = 0, b = 0; b < baseCount; b++) {
+            while (i < count && keys[i] < baseKeys[b]) {
+                i++;
+            }
+            if (i == count || keys[i] != baseKeys[b]) {
+                removed++;
+            }
+        }
+        out.writeVarInt(removed);
+        long lastKey = 0;
+        for (int i = 0, b = 0; b < baseCount; b++) {
+            while (i < count && keys[i] < baseKeys[b]) {
+                i++;
+            }
+            if (i == count || keys[i] != baseKeys[b]) {
+                out.writeVarLong(baseKeys[b] - lastKey);
+                lastKey = baseKeys[b];
+            }
+        }
+        
+        // the entities that are new or have changed
+        int changed = 0;
+        for (int i = 0, b = 0; i < count; i++) {
+            while (b < baseCount && baseKeys[b] < keys[i]) {
+                b++;
+            }
+            if (DeltaCodec.parts(frame, i, baseline, b, baseCount) != 0) {
+                changed++;
+            }
+        }
+        out.writeVarInt(changed);
+        lastKey = 0;
+        for (int i = 0, b = 0; i < count; i++) {
+            while (b < baseCount && baseKeys[b] < keys[i]) {
+                b++;
+            }
+            int flags = DeltaCodec.parts(frame, i, baseline, b, baseCount);
+            if (flags == 0) {
+                continue;
+            }
+            out.writeVarLong(keys[i] - lastKey);
+            lastKey = keys[i];
+            out.writeByte(flags);
+            if ((flags & FLAG_NEW) != 0) {
+                out.writeSignedVarInt(frame.x[i]);
+                out.writeSignedVarInt(frame.y[i]);
+                out.writeSignedVarInt(frame.rotation[i]);
+                out.writeByte(frame.sprite[i]);
+            } else {
+                if ((flags & FLAG_X) != 0) {
+                    out.writeSignedVarInt(frame.x[i] - baseline.x[b]);
+                }
+                if ((flags & FLAG_Y) != 0) {
+                    out.writeSignedVarInt(frame.y[i] - baseline.y[b]);
+                }
+                if ((flags & FLAG_ROTATION) != 0) {
+                    out.writeSignedVarInt((short)(frame.rotation[i] - baseline.rotation[b]));
+                }
+                if ((flags & FLAG_SPRITE) != 0) {
+                    out.writeByte(frame.sprite[i]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Works out which parts of an entity need sending
+     * 
+     * @return FLAG_NEW and every part if the entity isn't in the baseline,
+     *         otherwise the parts that have changed, or 0 if none have
+     */
+    protected static int parts(StateFrame frame, int i, StateFrame baseline, int b, int baseCount) {
+        if (b == baseCount || baseline.keys[b] != frame.keys[i]) {
+            return FLAG_NEW | ALL_PARTS;
+        }
+        int flags = 0;
+        if (frame.x[i] != baseline.x[b]) {
+            flags |= FLAG_X;
+        }
+        if (frame.y[i] != baseline.y[b]) {
+            flags |= FLAG_Y;
+        }
+        if (frame.rotation[i] != baseline.rotation[b]) {
+            flags |= FLAG_ROTATION;
+        }
+        if (frame.sprite[i] != baseline.sprite[b]) {
+            flags |= FLAG_SPRITE;
+        }
+        return flags;
+    }
+    
+    /**
+     * Reads the sequence number of a snapshot, without reading the rest of
+     * it
+     * 
+     * @param in the snapshot, which is left unread
+     * @return the sequence number of the frame
+     * @throws IOException if the snapshot is cut short
+     */
+    public static int readSequence(NetBuffer in) throws IOException {
+        int position = in.position;
+        int sequence = in.readVarInt();
+        in.position = position;
+        return sequence;
+    }
+    
+    /**
+     * Reads the sequence number of the baseline a snapshot was written
+     * against, without reading the rest of it
+     * 
+     * @param in the snapshot, which is left unread
+     * @return the sequence number of the baseline, or 0 if there isn't one
+     * @throws IOException if the snapshot is cut short
+     */
+    public static int readBaselineSequence(NetBuffer in) throws IOException {
+        int position = in.position;
+        in.readVarInt();
+        int baselineSequence = in.readVarInt();
+        in.position = position;
+        return baselineSequence;
+    }
+    
+    /**
+     * Reads a frame
+     * 
+     * @param in the snapshot to read
+     * @param baseline the frame it was written against, which must be the
+     *                 one readBaselineSequence() named, or null if it
+     *                 named none
+     * @param frame the frame to read it into, which can't be the baseline
+     * @throws IOException if the snapshot is cut short, or doesn't match the
+     *                     baseline
+     */
+    public void decode(NetBuffer in, StateFrame baseline, StateFrame frame) throws IOException {
+        if (frame == baseline) {
+            throw new IllegalArgumentException("Can't read a frame over its own baseline");
+        }
+        int sequence = in.readVarInt();
+        int baselineSequence = in.readVarInt();
+        if (baselineSequence != (baseline != null ? baseline.sequence : 0)) {
+            throw new IOException("Snapshot " + sequence + " needs baseline " + baselineSequence);
+        }
+        frame.clear();
+        frame.sequence = sequence;
+        frame.tick = in.readVarLong();
+        frame.gameState = in.readByte();
+        frame.propertyValue = in.readSignedVarInt();
+        
+        int removed = in.readVarInt();
+        if (removed > in.remaining()) {
+            throw new IOException("Snapshot " + sequence + " removes " + removed + " entities");
+        }
+        if (this.removedKeys.length < removed) {
+            this.removedKeys = new long[Math.max(removed, this.removedKeys.length * 2)];
+        }
+        long key = 0;
+        for (int r = 0; r < removed; r++) {
+            key += in.readVarLong();
+            this.removedKeys[r] = key;
+        }
+        
+        int baseCount = baseline != null ? baseline.count : 0;
+        int b = 0;
+        int r = 0;
+        int changed = in.readVarInt();
+        key = 0;
+        for (int c = 0; c < changed; c++) {
+            key += in.readVarLong();
+            int flags = in.readByte();
+            
+            // everything in the baseline before this entity is unchanged,
+            // unless it has gone
+            while (b < baseCount && baseline.keys[b] < key) {
+                r = this.copyUnlessRemoved(baseline, b++, r, removed, frame);
+            }
+            
+            if ((flags & FLAG_NEW) != 0) {
+                int x = in.readSignedVarInt();
+                int y = in.readSignedVarInt();
+                int rotation = in.readSignedVarInt();
+                int sprite = in.readByte();
+                frame.add(key, x, y, rotation, sprite);
+                if (b < baseCount && baseline.keys[b] == key) {
+                    b++;
+                }
+            } else {
+                if (b == baseCount || baseline.keys[b] != key) {
+                    throw new IOException("Snapshot " + sequence + " changes an entity that isn't in its baseline");
+                }
+                int x = baseline.x[b];
+                int y = baseline.y[b];
+                int rotation = baseline.rotation[b];
+                int sprite = baseline.sprite[b];
+                if ((flags & FLAG_X) != 0) {
+                    x += in.readSignedVarInt();
+                }
+                if ((flags & FLAG_Y) != 0) {
+                    y += in.readSignedVarInt();
+                }
+                if ((flags & FLAG_ROTATION) != 0) {
+                    rotation = (rotation + in.readSignedVarInt()) & (NetProtocol.ROTATION_STEPS - 1);
+                }
+                if ((flags & FLAG_SPRITE) != 0) {
+                    sprite = in.readByte();
+                }
+                frame.add(key, x, y, rotation, sprite);
+                b++;
+            }
+        }
+        while (b < baseCount) {
+            r = this.copyUnlessRemoved(baseline, b++, r, removed, frame);
+        }
+    }
+    
+    /**
+     * Copies an entity from the baseline into a frame, unless it is the
+     * next one that has gone
+     * 
+     * @return the index of the next entity that has gone
+     */
+    protected int copyUnlessRemoved(StateFrame baseline, int b, int r, int removed, StateFrame frame) {
+        long key = baseline.keys[b];
+        if (r < removed && this.removedKeys[r] == key) {
+            return r + 1;
+        }
+        frame.add(key, baseline.x[b], baseline.y[b], baseline.rotation[b], baseline.sprite[b]);
+        return r;
+    }
+    
+}
@@ -0,0 +1,71 @@
+package uk.co.austinbirch.net;
+
+/**
+ * @author Austin Birch
+ *
+ * The last few frames sent to, or received by, a client, so that a new
+ * frame can be sent as the difference from one the client is known to
+ * have. Frame n lives in slot n % capacity until frame n + capacity takes
+ * its place, and the frames are reused rather than allocated.
+ *
+ */
+public class FrameHistory {
+
+    // Member variables
+    
+    /**
+     * The frames, indexed by sequence number modulo their count
+     */
+    protected StateFrame[] frames;
+    
+    /**
+     * Creates a history of empty frames
+     * 
+     * @param capacity the number of frames to keep
+     */
+    public FrameHistory(int capacity) {
+        this.frames = new StateFrame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.frames[i] = new StateFrame();
+        }
+    }
+    
+    /**
+     * Returns the frame to fill in for a sequence number, forgetting the
+     * frame that was there before
+     * 
+     * @param sequence the sequence number, counting from 1
+     * @return the frame to fill in
+     */
+    public StateFrame next(int sequence) {
+        StateFrame frame = this.frames[this.slot(sequence)];
+        frame.clear();
+        frame.sequence = sequence;
+        return frame;
+    }
+    
+    /**
+     * @param sequence a sequence number
+     * @return the frame with that sequence number, or null if it has been
+     *         forgotten or there never was one
+     */
+    public StateFrame get(int sequence) {
+        if (sequence <= 0) {
+            return null;
+        }
+        StateFrame frame = this.frames[this.slot(sequence)];
+        return frame.sequence == sequence ? frame : null;
+    }
+    
+    /**
+     * @return the number of frames kept
+     */
+    public int getCapacity() {
+        return this.frames.length;
+    }
+    
+    protected int slot(int sequence) {
+        return (sequence & Integer.MAX_VALUE) % this.frames.length;
+    }
+    
+}
@@ -0,0 +1,321 @@
+package uk.co.austinbirch.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.newdawn.slick.util.Log;
+
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.replay.InputRecording;
+
+/**
+ * @author Austin Birch
+ *
+ * A client of a GameServer, with no display of its own. It sends the
+ * player's controls and where it is looking, and reads each snapshot the
+ * server sends into a frame, acknowledging it so that the next can be
+ * sent as the difference from it.
+ *
+ * The frames are read on a thread of the client's own. Whatever draws
+ * them takes a copy of the latest with getLatestFrame().
+ *
+ */
+public class GameClient {
+
+    // Global variables
+    
+    /**
+     * The number of frames received that are kept as possible baselines,
+     * more than the server keeps so the client always has any it names
+     */
+    public static final int HISTORY_FRAMES = 64;
+    
+    // Member variables
+    
+    /**
+     * The socket to the server, and the streams over it
+     */
+    protected Socket socket;
+    protected DataInputStream in;
+    protected DataOutputStream out;
+    
+    /**
+     * What the server said about the game when it welcomed us
+     */
+    protected int spaceWidth;
+    protected int spaceHeight;
+    protected float tickDeltaSeconds;
+    protected int snapshotInterval;
+    protected String scenarioName;
+    
+    /**
+     * The frames received, and the sequence number of the latest, or 0 if
+     * there hasn't been one. Both are only touched while holding the lock
+     * of the history.
+     */
+    protected FrameHistory history = new FrameHistory(HISTORY_FRAMES);
+    protected int latestSequence = 0;
+    
+    /**
+     * Reads the snapshots
+     */
+    protected DeltaCodec codec = new DeltaCodec();
+    
+    /**
+     * The snapshot being read
+     */
+    protected NetBuffer buffer = new NetBuffer(4096);
+    
+    /**
+     * The thread reading the snapshots
+     */
+    protected Thread readThread;
+    
+    /**
+     * Whether the connection is still open
+     */
+    protected volatile boolean open = true;
+    
+    /**
+     * What has been received: the bytes, the snapshots, and the ones sent
+     * whole
+     */
+    protected volatile long bytesReceived = 0;
+    protected volatile long snapshotsReceived = 0;
+    protected volatile long fullSnapshots = 0;
+    
+    /**
+     * Connects to a server and says hello, then starts reading snapshots
+     * 
+     * @param host the host the server is on
+     * @param port the port the server is listening on
+     * @param viewWidth the width of the view to be sent the entities in
+     * @param viewHeight the height of the view to be sent the entities in
+     * @throws IOException if the server can't be reached, or doesn't answer
+     *                     properly
+     */
+    public GameClient(String host, int port, int viewWidth, int viewHeight) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+        
+        this.out.writeByte(NetProtocol.CLIENT_HELLO);
+        this.out.writeInt(NetProtocol.MAGIC);
+        this.out.writeShort(NetProtocol.VERSION);
+        this.out.writeShort(viewWidth);
+        this.out.writeShort(viewHeight);
+        this.out.flush();
+        
+        if (this.in.readUnsignedByte() != NetProtocol.SERVER_WELCOME) {
+            this.socket.close();
+            throw new IOException("Not a McHammer server");
+        }
+        this.spaceWidth = this.in.readInt();
+        this.spaceHeight = this.in.readInt();
+        this.tickDeltaSeconds = this.in.readFloat();
+        this.snapshotInterval = this.in.readInt();
+        this.scenarioName = this.in.readUTF();
+        
+        this.readThread = new Thread(new Runnable() {
+            public void run() {
+                GameClient.this.readLoop();
+            }
+        }, "McHammer client");
+        this.readThread.setDaemon(true);
+        this.readThread.start();
+    }
+    
+    /**
+     * Reads snapshots until the connection closes
+     */
+    protected void readLoop() {
+        try {
+            while (this.open) {
+                int type = this.in.readUnsignedByte();
+                if (type != NetProtocol.SERVER_SNAPSHOT) {
+                    throw new IOException("Unknown message " + type);
+                }
+                int length = this.in.readInt();
+                if (length < 0 || length > NetProtocol.MAX_SNAPSHOT_BYTES) {
+                    throw new IOException("Snapshot of " + length + " bytes");
+                }
+                this.buffer.readFrom(this.in, length);
+                
+                int sequence;
+                synchronized (this.history) {
+                    int baselineSequence = DeltaCodec.readBaselineSequence(this.buffer);
+                    StateFrame baseline = null;
+                    if (baselineSequence != 0) {
+                        baseline = this.history.get(baselineSequence);
+                        if (baseline == null) {
+                            throw new IOException("Missing baseline " + baselineSequence);
+                        }
+                    }
+                    // a frame's slot can't be taken until its baseline has
+                    // been read
+                    sequence = DeltaCodec.readSequence(this.buffer);
+                    StateFrame frame = this.history.next(sequence);
+                    if (frame == baseline) {
+                        throw new IOException("Baseline " + baselineSequence + " is too old");
+                    }
+                    this.codec.decode(this.buffer, baseline, frame);
+                    if (baseline == null) {
+                        this.fullSnapshots++;
+                    }
+                    this.latestSequence = sequence;
+                }
+                this.bytesReceived += 5 + length;
+                this.snapshotsReceived++;
+                
+                synchronized (this.out) {
+                    this.out.writeByte(NetProtocol.CLIENT_ACK);
+                    this.out.writeInt(sequence);
+                    this.out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // the server has gone
+        } catch (IOException e) {
+            if (this.open) {
+                Log.info("Lost the server: " + e.getMessage());
+            }
+        }
+        this.close();
+    }
+    
+    /**
+     * Sends a control change for the player
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     * @throws IOException if it can't be sent
+     */
+    public void sendInput(Control control, boolean isPressed) throws IOException {
+        synchronized (this.out) {
+            this.out.writeByte(NetProtocol.CLIENT_INPUT);
+            this.out.writeByte(InputRecording.encode(control, isPressed));
+            this.out.flush();
+        }
+    }
+    
+    /**
+     * Asks to be sent the entities around a point in space, rather than
+     * around the player
+     * 
+     * @param x the x position in space to look at, or NaN to follow the
+     *          player again
+     * @param y the y position in space to look at, or NaN to follow the
+     *          player again
+     * @throws IOException if it can't be sent
+     */
+    public void setView(float x, float y) throws IOException {
+        synchronized (this.out) {
+            this.out.writeByte(NetProtocol.CLIENT_VIEW);
+            this.out.writeFloat(x);
+            this.out.writeFloat(y);
+            this.out.flush();
+        }
+    }
+    
+    /**
+     * Copies the latest frame received
+     * 
+     * @param frame the frame to copy it into
+     * @return whether there was a frame to copy
+     */
+    public boolean getLatestFrame(StateFrame frame) {
+        synchronized (this.history) {
+            StateFrame latest = this.history.get(this.latestSequence);
+            if (latest == null) {
+                return false;
+            }
+            frame.copyFrom(latest);
+            return true;
+        }
+    }
+    
+    /**
+     * Disconnects from the server
+     */
+    public void close() {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // it is closed either way
+        }
+    }
+    
+    /**
+     * @return whether the connection is still open
+     */
+    public boolean isOpen() {
+        return this.open;
+    }
+    
+    /**
+     * @return the width of space
+     */
+    public int getSpaceWidth() {
+        return this.spaceWidth;
+    }
+    
+    /**
+     * @return the height of space
+     */
+    public int getSpaceHeight() {
+        return this.spaceHeight;
+    }
+    
+    /**
+     * @return the length of a tick on the server
+     */
+    public float getTickDeltaSeconds() {
+        return this.tickDeltaSeconds;
+    }
+    
+    /**
+     * @return the number of ticks between the snapshots the server sends
+     */
+    public int getSnapshotInterval() {
+        return this.snapshotInterval;
+    }
+    
+    /**
+     * @return the name of the scenario being played
+     */
+    public String getScenarioName() {
+        return this.scenarioName;
+    }
+    
+    /**
+     * @return the number of bytes of snapshots received
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+    
+    /**
+     * @return the number of snapshots received
+     */
+    public long getSnapshotsReceived() {
+        return this.snapshotsReceived;
+    }
+    
+    /**
+     * @return the number of snapshots that were sent whole
+     */
+    public long getFullSnapshots() {
+        return this.fullSnapshots;
+    }
+    
+}
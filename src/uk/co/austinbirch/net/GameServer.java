@@ -0,0 +1,398 @@
+package uk.co.austinbirch.net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.newdawn.slick.util.Log;
+
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.LatencyHistogram;
+import uk.co.austinbirch.RenderSnapshot;
+import uk.co.austinbirch.Scenario;
+import uk.co.austinbirch.Simulation;
+import uk.co.austinbirch.SimulationLoop;
+
+/**
+ * @author Austin Birch
+ *
+ * Runs the game without a display, as the one authority on what happens
+ * in it, for any number of clients over TCP.
+ *
+ * The simulation ticks on a SimulationLoop of its own, in fixed steps,
+ * exactly as it does under the game, and publishes a RenderSnapshot after
+ * every tick. A broadcast thread picks up every snapshotInterval'th one
+ * and encodes it for each client, and each client's own thread sends it.
+ * Input from every client goes to the one player.
+ *
+ * Run headless from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.net.GameServer
+ *        --port 4747 --scenario large
+ *
+ * Arguments:
+ *   --port 4747                  the port to listen on, or 0 for any
+ *   --scenario default           the scenario to play, one of Scenario.NAMES
+ *   --seed 1                     the seed for the simulation
+ *   --tick-rate 60               ticks per second
+ *   --snapshot-interval 3        ticks between the snapshots sent
+ *   --stats-seconds 5            seconds between the stats in the log
+ *
+ */
+public class GameServer {
+
+    // Global variables
+    
+    /**
+     * The port the server listens on unless told otherwise
+     */
+    public static final int DEFAULT_PORT = 4747;
+    
+    /**
+     * The most ticks the simulation runs at once to catch up
+     */
+    public static final int MAX_TICKS_PER_UPDATE = 5;
+    
+    /**
+     * How long the broadcast thread waits before looking for a new
+     * snapshot again
+     */
+    protected static final long POLL_NANOS = 1000000L;
+    
+    // Member variables
+    
+    /**
+     * The simulation, and the loop that ticks it
+     */
+    protected Simulation simulation;
+    protected SimulationLoop loop;
+    
+    /**
+     * The length of a tick
+     */
+    protected float tickDeltaSeconds;
+    
+    /**
+     * The number of ticks between the snapshots sent
+     */
+    protected int snapshotInterval;
+    
+    /**
+     * The socket clients connect to
+     */
+    protected ServerSocket serverSocket;
+    
+    /**
+     * The clients that are connected
+     */
+    protected List<ClientConnection> clients = new CopyOnWriteArrayList<ClientConnection>();
+    
+    /**
+     * The time taken to encode each snapshot for each client, in
+     * nanoseconds, which is only touched while holding its lock
+     */
+    protected LatencyHistogram encodeTimes = new LatencyHistogram();
+    
+    /**
+     * The number of snapshots encoded whole, and as a difference
+     */
+    protected volatile long fullSnapshots = 0;
+    protected volatile long deltaSnapshots = 0;
+    
+    /**
+     * The threads accepting clients and broadcasting snapshots
+     */
+    protected Thread acceptThread;
+    protected Thread broadcastThread;
+    
+    /**
+     * Whether the server is running
+     */
+    protected volatile boolean running = false;
+    
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        String scenarioName = "default";
+        long seed = 1;
+        int tickRate = 60;
+        int snapshotInterval = 3;
+        int statsSeconds = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--scenario")) {
+                    scenarioName = args[++i];
+                } else if (arg.equals("--seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (arg.equals("--tick-rate")) {
+                    tickRate = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--snapshot-interval")) {
+                    snapshotInterval = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--stats-seconds")) {
+                    statsSeconds = Integer.parseInt(args[++i]);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        
+        GameServer server = new GameServer(new Simulation(Scenario.named(scenarioName), seed),
+                                           1.0f / Math.max(1, tickRate),
+                                           snapshotInterval);
+        try {
+            server.start(port);
+        } catch (IOException e) {
+            Log.error("Unable to listen on port " + port, e);
+            System.exit(1);
+            return;
+        }
+        Log.info("Serving " + scenarioName + " on port " + server.getPort());
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(Math.max(1, statsSeconds)));
+            Log.info(server.getStats());
+        }
+    }
+    
+    /**
+     * Creates a server for a simulation, which it will own once started
+     * 
+     * @param simulation the simulation to serve
+     * @param tickDeltaSeconds the length of a tick
+     * @param snapshotInterval the number of ticks between the snapshots sent
+     */
+    public GameServer(Simulation simulation, float tickDeltaSeconds, int snapshotInterval) {
+        this.simulation = simulation;
+        this.tickDeltaSeconds = tickDeltaSeconds;
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        this.loop = new SimulationLoop(simulation, true, tickDeltaSeconds, MAX_TICKS_PER_UPDATE);
+    }
+    
+    /**
+     * Starts ticking the simulation and listening for clients
+     * 
+     * @param port the port to listen on, or 0 for any free one
+     * @throws IOException if the port can't be listened on
+     */
+    public void start(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.running = true;
+        this.loop.start();
+        
+        this.acceptThread = new Thread(new Runnable() {
+            public void run() {
+                GameServer.this.acceptLoop();
+            }
+        }, "McHammer server acceptor");
+        this.broadcastThread = new Thread(new Runnable() {
+            public void run() {
+                GameServer.this.broadcastLoop();
+            }
+        }, "McHammer server broadcaster");
+        this.acceptThread.setDaemon(true);
+        this.broadcastThread.setDaemon(true);
+        this.acceptThread.start();
+        this.broadcastThread.start();
+    }
+    
+    /**
+     * Stops the server, disconnecting every client and stopping the
+     * simulation
+     */
+    public void stop() {
+        this.running = false;
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            // it is closed either way
+        }
+        for (ClientConnection client : this.clients) {
+            client.close();
+        }
+        try {
+            this.acceptThread.join();
+            this.broadcastThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.loop.stop();
+    }
+    
+    /**
+     * Accepts clients until stopped
+     */
+    protected void acceptLoop() {
+        while (this.running) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                if (this.running) {
+                    Log.error("Stopped accepting clients", e);
+                }
+                return;
+            }
+            try {
+                ClientConnection client = ClientConnection.accept(this, socket);
+                this.clients.add(client);
+                client.start();
+                Log.info("Client " + client.getName() + " connected");
+            } catch (IOException e) {
+                Log.info("Turned away " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException closeException) {
+                    // it is closed either way
+                }
+            }
+        }
+    }
+    
+    /**
+     * Encodes every snapshotInterval'th snapshot for every client, until
+     * stopped. This is the only thread that acquires snapshots.
+     */
+    protected void broadcastLoop() {
+        long lastTick = -1;
+        while (this.running) {
+            RenderSnapshot snapshot = this.loop.getSnapshots().acquire();
+            long tick = snapshot.getTickCount();
+            if (tick == lastTick || tick % this.snapshotInterval != 0) {
+                LockSupport.parkNanos(POLL_NANOS);
+                continue;
+            }
+            lastTick = tick;
+            
+            for (ClientConnection client : this.clients) {
+                long start = System.nanoTime();
+                boolean full = client.queueSnapshot(snapshot);
+                long elapsed = System.nanoTime() - start;
+                synchronized (this.encodeTimes) {
+                    this.encodeTimes.record(elapsed);
+                }
+                if (full) {
+                    this.fullSnapshots++;
+                } else {
+                    this.deltaSnapshots++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Queues a control change from any client for the next tick
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     */
+    public synchronized void queueInput(Control control, boolean isPressed) {
+        // the loop only takes input from one thread at a time
+        this.loop.queueInput(control, isPressed);
+    }
+    
+    /**
+     * Forgets a client whose connection has closed
+     * 
+     * @param client the client
+     */
+    protected void removeClient(ClientConnection client) {
+        if (this.clients.remove(client)) {
+            Log.info("Client " + client.getName() + " disconnected");
+        }
+    }
+    
+    /**
+     * @return a line describing how the server and each client are doing
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        synchronized (this.encodeTimes) {
+            stats.append(String.format(Locale.ROOT,
+                    "%d ticks, %d clients, %d full and %d delta snapshots, encode p50 %.1fus p99 %.1fus max %.1fus",
+                    this.loop.getSnapshots().getPublishedCount(),
+                    this.clients.size(),
+                    this.fullSnapshots,
+                    this.deltaSnapshots,
+                    this.encodeTimes.getValueAtPercentile(50.0) / 1.0e3,
+                    this.encodeTimes.getValueAtPercentile(99.0) / 1.0e3,
+                    this.encodeTimes.getMax() / 1.0e3));
+        }
+        for (ClientConnection client : this.clients) {
+            stats.append(String.format(Locale.ROOT,
+                    "\n  %s: %d bytes in %d snapshots, %d dropped",
+                    client.getName(),
+                    client.getBytesSent(),
+                    client.getSnapshotsSent(),
+                    client.getSnapshotsDropped()));
+        }
+        return stats.toString();
+    }
+    
+    /**
+     * @return the simulation being served, which must only be read from
+     *         the simulation's own thread while the server is running
+     */
+    public Simulation getSimulation() {
+        return this.simulation;
+    }
+    
+    /**
+     * @return the length of a tick
+     */
+    public float getTickDeltaSeconds() {
+        return this.tickDeltaSeconds;
+    }
+    
+    /**
+     * @return the number of ticks between the snapshots sent
+     */
+    public int getSnapshotInterval() {
+        return this.snapshotInterval;
+    }
+    
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+    
+    /**
+     * @return the clients that are connected
+     */
+    public List<ClientConnection> getClients() {
+        return this.clients;
+    }
+    
+    /**
+     * @return the time taken to encode each snapshot for each client, in
+     *         nanoseconds, which must only be read while holding its lock
+     */
+    public LatencyHistogram getEncodeTimes() {
+        return this.encodeTimes;
+    }
+    
+    /**
+     * @return the number of snapshots encoded whole
+     */
+    public long getFullSnapshots() {
+        return this.fullSnapshots;
+    }
+    
+    /**
+     * @return the number of snapshots encoded as a difference
+     */
+    public long getDeltaSnapshots() {
+        return this.deltaSnapshots;
+    }
+    
+}
@@ -0,0 +1,210 @@
+package uk.co.austinbirch.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * @author Austin Birch
+ *
+ * A reusable buffer that a snapshot is written into and read back out of.
+ * Whole numbers are written as LEB128 varints, seven bits per byte, with
+ * signed ones zigzagged first so that small negative numbers stay small.
+ *
+ * The buffer only ever grows, so once it is big enough for the largest
+ * snapshot, writing and reading allocate nothing.
+ *
+ */
+public class NetBuffer {
+
+    // Member variables
+    
+    /**
+     * The bytes in the buffer
+     */
+    protected byte[] data;
+    
+    /**
+     * The number of bytes written
+     */
+    protected int length = 0;
+    
+    /**
+     * The index of the next byte to read
+     */
+    protected int position = 0;
+    
+    /**
+     * Creates an empty buffer
+     * 
+     * @param capacity the number of bytes it starts with room for
+     */
+    public NetBuffer(int capacity) {
+        this.data = new byte[Math.max(16, capacity)];
+    }
+    
+    /**
+     * Empties the buffer, ready to be written again
+     */
+    public void clear() {
+        this.length = 0;
+        this.position = 0;
+    }
+    
+    /**
+     * @param value the byte to write
+     */
+    public void writeByte(int value) {
+        if (this.length == this.data.length) {
+            byte[] newData = new byte[this.data.length * 2];
+            System.arraycopy(this.data, 0, newData, 0, this.length);
+            this.data = newData;
+        }
+        this.data[this.length++] = (byte)value;
+    }
+    
+    /**
+     * @param value the value to write, which is treated as unsigned
+     */
+    public void writeVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            this.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.writeByte((int)value);
+    }
+    
+    /**
+     * @param value the value to write, which must not be negative
+     */
+    public void writeVarInt(int value) {
+        this.writeVarLong(value & 0xffffffffL);
+    }
+    
+    /**
+     * @param value the signed value to write
+     */
+    public void writeSignedVarInt(int value) {
+        this.writeVarInt((value << 1) ^ (value >> 31));
+    }
+    
+    /**
+     * @return the next byte, from 0 to 255
+     * @throws EOFException if the buffer has been read to the end
+     */
+    public int readByte() throws EOFException {
+        if (this.position >= this.length) {
+            throw new EOFException("Read past the end of a " + this.length + " byte buffer");
+        }
+        return this.data[this.position++] & 0xff;
+    }
+    
+    /**
+     * @return the next unsigned varint
+     * @throws EOFException if the buffer ends in the middle of it
+     */
+    public long readVarLong() throws EOFException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = this.readByte();
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return value;
+    }
+    
+    /**
+     * @return the next unsigned varint, as an int
+     * @throws EOFException if the buffer ends in the middle of it
+     */
+    public int readVarInt() throws EOFException {
+        return (int)this.readVarLong();
+    }
+    
+    /**
+     * @return the next signed varint
+     * @throws EOFException if the buffer ends in the middle of it
+     */
+    public int readSignedVarInt() throws EOFException {
+        int value = this.readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    /**
+     * Replaces the buffer with bytes read from a stream, ready to be read
+     * 
+     * @param in the stream to read from
+     * @param length the number of bytes to read
+     * @throws IOException if they can't all be read
+     */
+    public void readFrom(DataInputStream in, int length) throws IOException {
+        if (this.data.length < length) {
+            this.data = new byte[Math.max(length, this.data.length * 2)];
+        }
+        in.readFully(this.data, 0, length);
+        this.length = length;
+        this.position = 0;
+    }
+    
+    /**
+     * Writes everything in the buffer to a stream
+     * 
+     * @param out the stream to write to
+     * @throws IOException if it can't be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.write(this.data, 0, this.length);
+    }
+    
+    /**
+     * Moves to where the next byte will be read from
+     * 
+     * @param position the index of the byte, from 0 to size()
+     */
+    public void seek(int position) {
+        this.position = position;
+    }
+    
+    /**
+     * Drops everything written after a point, so writing carries on from
+     * there
+     * 
+     * @param length the number of bytes to keep
+     */
+    public void truncate(int length) {
+        this.length = length;
+        this.position = Math.min(this.position, length);
+    }
+    
+    /**
+     * @return the index of the next byte to read
+     */
+    public int position() {
+        return this.position;
+    }
+    
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return this.length;
+    }
+    
+    /**
+     * @return the number of bytes the buffer has room for before it grows
+     */
+    public int capacity() {
+        return this.data.length;
+    }
+    
+    /**
+     * @return the number of bytes left to read
+     */
+    public int remaining() {
+        return this.length - this.position;
+    }
+    
+}
@@ -0,0 +1,152 @@
+package uk.co.austinbirch.net;
+
+import uk.co.austinbirch.SpriteInfo;
+import uk.co.austinbirch.VisibilityCuller;
+
+/**
+ * @author Austin Birch
+ *
+ * The messages a GameServer and its GameClients send each other, and how
+ * the state in them is quantized.
+ *
+ * A client opens with
+ *   byte   CLIENT_HELLO
+ *   int    MAGIC
+ *   short  VERSION
+ *   short  the width of its view
+ *   short  the height of its view
+ * and the server answers with
+ *   byte   SERVER_WELCOME
+ *   int    the width of space
+ *   int    the height of space
+ *   float  the length of a tick, in seconds
+ *   int    the number of ticks between snapshots
+ *   utf    the name of the scenario
+ *
+ * After that, the client sends any of
+ *   byte   CLIENT_INPUT, then a byte of (control ordinal << 1) | pressed
+ *   byte   CLIENT_VIEW, then two floats: the point in space its view is
+ *          centered on, or NaNs to follow the player
+ *   byte   CLIENT_ACK, then the int sequence number of a snapshot
+ * and the server sends
+ *   byte   SERVER_SNAPSHOT, then an int length and that many bytes, as
+ *          written by a DeltaCodec
+ *
+ * Positions are sent in 1/POSITION_SCALE of a pixel and rotations in
+ * 1/ROTATION_STEPS of a turn, both relative to space rather than to the
+ * simulation's origin.
+ *
+ */
+public class NetProtocol {
+
+    // Global variables
+    
+    /**
+     * The first four bytes a client sends, "MCHN"
+     */
+    public static final int MAGIC = 0x4d43484e;
+    
+    /**
+     * The version of the messages
+     */
+    public static final short VERSION = 1;
+    
+    /**
+     * The messages a client sends
+     */
+    public static final int CLIENT_HELLO = 1;
+    public static final int CLIENT_INPUT = 2;
+    public static final int CLIENT_VIEW = 3;
+    public static final int CLIENT_ACK = 4;
+    
+    /**
+     * The messages the server sends
+     */
+    public static final int SERVER_WELCOME = 1;
+    public static final int SERVER_SNAPSHOT = 2;
+    
+    /**
+     * The kind of each entity in a snapshot. The worlds, hammers, aliens and
+     * buildings are their VisibilityCuller layers.
+     */
+    public static final int KIND_WORLD = VisibilityCuller.WORLDS;
+    public static final int KIND_HAMMER = VisibilityCuller.HAMMERS;
+    public static final int KIND_ALIEN = VisibilityCuller.ALIENS;
+    public static final int KIND_BUILDING = VisibilityCuller.BUILDINGS;
+    public static final int KIND_PLAYER = VisibilityCuller.LAYER_COUNT;
+    
+    /**
+     * The number of steps positions are sent in per pixel
+     */
+    public static final float POSITION_SCALE = 8.0f;
+    
+    /**
+     * The number of steps rotations are sent in per turn
+     */
+    public static final int ROTATION_STEPS = 65536;
+    
+    /**
+     * The largest snapshot a client will accept, in bytes
+     */
+    public static final int MAX_SNAPSHOT_BYTES = 16 * 1024 * 1024;
+    
+    /**
+     * The sprites an entity can have, sent as their index in here
+     */
+    public static final SpriteInfo[] SPRITES = { SpriteInfo.PLAYER_JETPACK_OFF,
+                                                 SpriteInfo.PLAYER_JETPACK_ON,
+                                                 SpriteInfo.PLAYER_JETPACK_REVERSE,
+                                                 SpriteInfo.ALIEN,
+                                                 SpriteInfo.BUILDING_01,
+                                                 SpriteInfo.BUILDING_02,
+                                                 SpriteInfo.BUILDING_03,
+                                                 SpriteInfo.HAMMER,
+                                                 SpriteInfo.WORLD };
+    
+    /**
+     * @param sprite a sprite
+     * @return the index of the sprite in SPRITES, or 0 if it isn't there
+     */
+    public static int spriteIndex(SpriteInfo sprite) {
+        for (int i = 0; i < SPRITES.length; i++) {
+            if (SPRITES[i] == sprite) {
+                return i;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * @param position a position in pixels
+     * @return the position in the steps it is sent in
+     */
+    public static int quantizePosition(float position) {
+        return Math.round(position * POSITION_SCALE);
+    }
+    
+    /**
+     * @param quantized a position in the steps it is sent in
+     * @return the position in pixels
+     */
+    public static float dequantizePosition(int quantized) {
+        return quantized / POSITION_SCALE;
+    }
+    
+    /**
+     * @param rotation a rotation in degrees
+     * @return the rotation in the steps it is sent in, from 0 to
+     *         ROTATION_STEPS - 1
+     */
+    public static int quantizeRotation(float rotation) {
+        return Math.round(rotation / 360.0f * ROTATION_STEPS) & (ROTATION_STEPS - 1);
+    }
+    
+    /**
+     * @param quantized a rotation in the steps it is sent in
+     * @return the rotation in degrees, from 0 to 360
+     */
+    public static float dequantizeRotation(int quantized) {
+        return quantized * 360.0f / ROTATION_STEPS;
+    }
+    
+}
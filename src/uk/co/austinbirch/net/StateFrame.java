@@ -0,0 +1,381 @@
+package uk.co.austinbirch.net;
+
+import uk.co.austinbirch.RenderSnapshot;
+import uk.co.austinbirch.SpriteInfo;
+import uk.co.austinbirch.VisibilityCuller;
+
+/**
+ * @author Austin Birch
+ *
+ * The quantized state of the game as one client sees it at one tick: the
+ * game state and score, and the position, rotation and sprite of every
+ * entity in or near its view.
+ *
+ * Each entity is identified by a key made of its kind and its handle, and
+ * the entities are kept sorted by key, so two frames can be compared
+ * entity by entity in one pass. Entity i of the frame is at index i of
+ * each array. The arrays are only ever grown, so filling a frame again
+ * allocates nothing once it is big enough.
+ *
+ */
+public class StateFrame {
+
+    // Global variables
+    
+    /**
+     * The number of bits of the sort order used for the entity's index
+     */
+    protected static final int INDEX_BITS = 24;
+    
+    // Member variables
+    
+    /**
+     * The sequence number of the snapshot the frame was sent in, counting
+     * from 1
+     */
+    protected int sequence = 0;
+    
+    /**
+     * The number of ticks the simulation had run
+     */
+    protected long tick = 0;
+    
+    /**
+     * The game state and score
+     */
+    protected int gameState = 0;
+    protected int propertyValue = 0;
+    
+    /**
+     * The number of entities in the frame
+     */
+    protected int count = 0;
+    
+    /**
+     * The kind and handle of each entity, as made by key()
+     */
+    protected long[] keys = new long[64];
+    
+    /**
+     * The position of each entity in space, in 1/POSITION_SCALE pixels
+     */
+    protected int[] x = new int[64];
+    protected int[] y = new int[64];
+    
+    /**
+     * The rotation of each entity, in 1/ROTATION_STEPS turns
+     */
+    protected int[] rotation = new int[64];
+    
+    /**
+     * The index of each entity's sprite in NetProtocol.SPRITES
+     */
+    protected byte[] sprite = new byte[64];
+    
+    /**
+     * Somewhere to sort the entities while they are put in key order
+     */
+    protected long[] order = new long[64];
+    protected long[] scratchKeys = new long[64];
+    protected int[] scratchX = new int[64];
+    protected int[] scratchY = new int[64];
+    protected int[] scratchRotation = new int[64];
+    protected byte[] scratchSprite = new byte[64];
+    
+    /**
+     * @param kind one of the NetProtocol kinds
+     * @param handle the handle of the entity
+     * @return the key the entity is identified by
+     */
+    public static long key(int kind, int handle) {
+        return ((long)kind << 32) | (handle & 0xffffffffL);
+    }
+    
+    /**
+     * Empties the frame
+     */
+    public void clear() {
+        this.count = 0;
+    }
+    
+    /**
+     * Adds an entity to the end of the frame. The frame must be put back
+     * in key order with sort() once everything has been added.
+     * 
+     * @param key the key of the entity
+     * @param x the quantized x position of the entity
+     * @param y the quantized y position of the entity
+     * @param rotation the quantized rotation of the entity
+     * @param sprite the sprite index of the entity
+     */
+    public void add(long key, int x, int y, int rotation, int sprite) {
+        int i = this.count;
+        if (i == this.keys.length) {
+            this.grow(i * 2);
+        }
+        this.keys[i] = key;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.rotation[i] = rotation;
+        this.sprite[i] = (byte)sprite;
+        this.count = i + 1;
+    }
+    
+    /**
+     * Fills the frame from a render snapshot, with only the entities that
+     * overlap a view. The player is always in the frame, wherever it is.
+     * 
+     * @param snapshot the snapshot to copy
+     * @param sequence the sequence number of the frame
+     * @param left the left edge of the view, relative to the snapshot's
+     *             origin
+     * @param top the top edge of the view, relative to the snapshot's
+     *            origin
+     * @param right the right edge of the view
+     * @param bottom the bottom edge of the view
+     */
+    public void capture(RenderSnapshot snapshot,
+                        int sequence,
+                        float left,
+                        float top,
+                        float right,
+                        float bottom) {
+        this.clear();
+        this.sequence = sequence;
+        this.tick = snapshot.getTickCount();
+        this.gameState = snapshot.getGameState();
+        this.propertyValue = snapshot.getPropertyValue();
+        
+        int originX = snapshot.getOriginX();
+        int originY = snapshot.getOriginY();
+        this.captureLayer(snapshot.getPlayer(), NetProtocol.KIND_PLAYER, originX, originY,
+                          Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                          Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        for (int layer = 0; layer < VisibilityCuller.LAYER_COUNT; layer++) {
+            this.captureLayer(snapshot.getLayer(layer), layer, originX, originY,
+                              left, top, right, bottom);
+        }
+        this.sort();
+    }
+    
+    /**
+     * Adds the entities of one layer of a snapshot that overlap a view
+     */
+    protected void captureLayer(RenderSnapshot.Layer layer,
+                                int kind,
+                                int originX,
+                                int originY,
+                                float left,
+                                float top,
+                                float right,
+                                float bottom) {
+        for (int i = 0; i < layer.size(); i++) {
+            float x = layer.getX(i);
+            float y = layer.getY(i);
+            SpriteInfo sprite = layer.getSprite(i);
+            if (x <= right && y <= bottom &&
+                    x + sprite.getWidth() >= left && y + sprite.getHeight() >= top) {
+                this.add(StateFrame.key(kind, layer.getHandle(i)),
+                         NetProtocol.quantizePosition(x + originX),
+                         NetProtocol.quantizePosition(y + originY),
+                         NetProtocol.quantizeRotation(layer.getRotation(i)),
+                         NetProtocol.spriteIndex(sprite));
+            }
+        }
+    }
+    
+    /**
+     * Puts the entities in key order
+     */
+    public void sort() {
+        int count = this.count;
+        if (count > 1 << INDEX_BITS) {
+            throw new IllegalStateException("Too many entities to sort: " + count);
+        }
+        if (this.order.length < count) {
+            this.order = new long[this.keys.length];
+        }
+        
+        // sort the keys with each entity's index in their low bits, which
+        // the keys never use
+        for (int i = 0; i < count; i++) {
+            this.order[i] = (this.keys[i] << INDEX_BITS) | i;
+        }
+        java.util.Arrays.sort(this.order, 0, count);
+        
+        System.arraycopy(this.keys, 0, this.scratchKeys, 0, count);
+        System.arraycopy(this.x, 0, this.scratchX, 0, count);
+        System.arraycopy(this.y, 0, this.scratchY, 0, count);
+        System.arraycopy(this.rotation, 0, this.scratchRotation, 0, count);
+        System.arraycopy(this.sprite, 0, this.scratchSprite, 0, count);
+        int indexMask = (1 << INDEX_BITS) - 1;
+        for (int i = 0; i < count; i++) {
+            int from = (int)(this.order[i] & indexMask);
+            this.keys[i] = this.scratchKeys[from];
+            this.x[i] = this.scratchX[from];
+            this.y[i] = this.scratchY[from];
+            this.rotation[i] = this.scratchRotation[from];
+            this.sprite[i] = this.scratchSprite[from];
+        }
+    }
+    
+    /**
+     * Makes this frame a copy of another one
+     * 
+     * @param other the frame to copy
+     */
+    public void copyFrom(StateFrame other) {
+        if (this.keys.length < other.count) {
+            this.grow(other.keys.length);
+        }
+        this.sequence = other.sequence;
+        this.tick = other.tick;
+        this.gameState = other.gameState;
+        this.propertyValue = other.propertyValue;
+        this.count = other.count;
+        System.arraycopy(other.keys, 0, this.keys, 0, other.count);
+        System.arraycopy(other.x, 0, this.x, 0, other.count);
+        System.arraycopy(other.y, 0, this.y, 0, other.count);
+        System.arraycopy(other.rotation, 0, this.rotation, 0, other.count);
+        System.arraycopy(other.sprite, 0, this.sprite, 0, other.count);
+    }
+    
+    /**
+     * @param key the key of an entity
+     * @return the index of the entity, or -1 if it isn't in the frame
+     */
+    public int indexOf(long key) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = this.keys[middle];
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Makes room for a number of entities
+     * 
+     * @param capacity the number of entities
+     */
+    protected void grow(int capacity) {
+        this.keys = StateFrame.grow(this.keys, capacity);
+        this.x = StateFrame.grow(this.x, capacity);
+        this.y = StateFrame.grow(this.y, capacity);
+        this.rotation = StateFrame.grow(this.rotation, capacity);
+        byte[] newSprite = new byte[capacity];
+        System.arraycopy(this.sprite, 0, newSprite, 0, this.sprite.length);
+        this.sprite = newSprite;
+        
+        this.order = new long[capacity];
+        this.scratchKeys = new long[capacity];
+        this.scratchX = new int[capacity];
+        this.scratchY = new int[capacity];
+        this.scratchRotation = new int[capacity];
+        this.scratchSprite = new byte[capacity];
+    }
+    
+    private static long[] grow(long[] array, int capacity) {
+        long[] newArray = new long[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    private static int[] grow(int[] array, int capacity) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    /**
+     * @return the sequence number of the snapshot the frame was sent in
+     */
+    public int getSequence() {
+        return this.sequence;
+    }
+    
+    /**
+     * @return the number of ticks the simulation had run
+     */
+    public long getTick() {
+        return this.tick;
+    }
+    
+    /**
+     * @return the game state
+     */
+    public int getGameState() {
+        return this.gameState;
+    }
+    
+    /**
+     * @return the property value
+     */
+    public int getPropertyValue() {
+        return this.propertyValue;
+    }
+    
+    /**
+     * @return the number of entities in the frame
+     */
+    public int size() {
+        return this.count;
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the key of the entity
+     */
+    public long getKey(int index) {
+        return this.keys[index];
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the kind of the entity, one of the NetProtocol kinds
+     */
+    public int getKind(int index) {
+        return (int)(this.keys[index] >>> 32);
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the x position of the entity in space
+     */
+    public float getX(int index) {
+        return NetProtocol.dequantizePosition(this.x[index]);
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the y position of the entity in space
+     */
+    public float getY(int index) {
+        return NetProtocol.dequantizePosition(this.y[index]);
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the rotation of the entity in degrees
+     */
+    public float getRotation(int index) {
+        return NetProtocol.dequantizeRotation(this.rotation[index]);
+    }
+    
+    /**
+     * @param index the index of the entity
+     * @return the sprite of the entity
+     */
+    public SpriteInfo getSprite(int index) {
+        return NetProtocol.SPRITES[this.sprite[index]];
+    }
+    
+}
@@ -17,17 +17,30 @@ public class ABPhysicsHelper {
      * @return the Vector2f MTV
      */
     public static Vector2f calculateMTV(Shape shapeA, Shape shapeB) {
+        return ABPhysicsHelper.calculateMTV(shapeA, shapeB, new Vector2f());
+    }
+    
+    /**
+     * Calculates the Minimum Translation Vector(MTV) required to resolve a
+     * collision between two Shapes, without allocating. The MTV is for shapeA
+     * 
+     * @param shapeA the Shape that the MTV is calculated for
+     * @param shapeB the Shape that shapeA is intersecting with
+     * @param mtv the Vector2f to store the MTV in
+     * @return mtv, for convenience
+     */
+    public static Vector2f calculateMTV(Shape shapeA, Shape shapeB, Vector2f mtv) {
         if (shapeB instanceof Rectangle) {
-            return ABPhysicsHelper.calculateMTV((Rectangle)shapeA, (Rectangle)shapeB);
+            return ABPhysicsHelper.calculateMTV((Rectangle)shapeA, (Rectangle)shapeB, mtv);
         } else if (shapeB instanceof Ellipse) {
-            return ABPhysicsHelper.calculateMTV((Rectangle)shapeA, (Ellipse)shapeB);
+            return ABPhysicsHelper.calculateMTV((Rectangle)shapeA, (Ellipse)shapeB, mtv);
         }
         
         // TODO: Error handling
         // we don't know what these Shapes are, so we should throw an error
         // here
         Log.error("Unknown shapes passed to calculateMTV");
-        return new Vector2f(0.0f, 0.0f);
+        return mtv.set(0.0f, 0.0f);
     }
     
     /**
@@ -36,89 +49,91 @@ public class ABPhysicsHelper {
      * 
      * @param rectA the Rectangle that the MTV is calculated for
      * @param rectB the Rectangle that rectA is intersecting with
-     * @return the Vector2f MTV
+     * @param mtv the Vector2f to store the MTV in
+     * @return mtv, for convenience
      */
-    protected static Vector2f calculateMTV(Rectangle rectA, Rectangle rectB) {
+    protected static Vector2f calculateMTV(Rectangle rectA, Rectangle rectB, Vector2f mtv) {
         // AABB Separating Axis Theorem (Minimum Translation Vector
         // for collision)
-
-        Vector2f centerA = new Vector2f(rectA.getCenterX(), rectA.getCenterY());
-        Vector2f centerB = new Vector2f(rectB.getCenterX(), rectB.getCenterY());
-
-        float halfWidthA = rectA.getWidth() / 2;
-        float halfWidthB = rectB.getWidth() / 2;
-        float halfHeightA = rectA.getHeight() / 2;
-        float halfHeightB = rectB.getHeight() / 2;
-        float diffX = centerB.x - centerA.x;
-        float diffY = centerB.y - centerA.y;
-
-        if (Math.abs(diffX) < Math.abs(halfWidthA + halfWidthB)) {
-            // no gap on the x-axis
-            float oX = (halfWidthA + halfWidthB) - Math.abs(diffX);
-
-            if (Math.abs(diffY) < Math.abs(halfHeightA + halfHeightB)) {
-                // no gap on the y-axis either,
-                // so there is a collision
-                float oY = (halfHeightA + halfHeightB) - Math.abs(diffY);
-
-                if (oY < oX) {
-                    // resolve using y-axis
-                    if (diffY < 0) {
-                        return new Vector2f(0.0f, oY);
-                    } else {
-                        return new Vector2f(0.0f, (-1.0f * oY));
-                    }
-                } else {
-                    // resolve using x-axis
-                    if (diffX < 0) {
-                        return new Vector2f(oX, 0.0f);
-                    } else {
-                        return new Vector2f((-1.0f * oX), 0.0f);
-                    }
-                }
-            }
-
-        }
-        // no collision, so no MTV
-        return new Vector2f(0.0f, 0.0f);
+        Narrowphase.boxBoxMTV(rectA.getX(), rectA.getY(), rectA.getWidth(), rectA.getHeight(),
+                              rectB.getX(), rectB.getY(), rectB.getWidth(), rectB.getHeight(),
+                              mtv);
+        return mtv;
     }
     
     /**
      * Calculates the Minimum Translation Vector(MTV) to resolve a collision 
      * between a Rectangle object, and an Ellipse object. The MTV returned is 
-     * for rectA.
+     * for rectA, and the Ellipse is treated as a circle.
      * 
      * @param rectA the Rectangle that the MTV is translated for
      * @param ellipseB the Ellipse that rectA is intersecting with
-     * @return the Vector2f MTV
+     * @param mtv the Vector2f to store the MTV in
+     * @return mtv, for convenience
      */
-    protected static Vector2f calculateMTV(Rectangle rectA, Ellipse ellipseB) {
-        float[] points = rectA.getPoints();
-
-        // check to see which points collide 
-        for (int i = 0; i < rectA.getPointCount() * 2; i+=2) {
-            Vector2f point = new Vector2f(points[i], points[i+1]);
-            if (ellipseB.contains(point.x, point.y)) {
-                
-                Vector2f center = new Vector2f(ellipseB.getCenterX(),
-                                               ellipseB.getCenterY());
-                // get the angle between center and our intersection point
-                double theta = Math.atan2(center.y - point.y,
-                                         center.x - point.x);
-                
-                // calculate the position on the circle in which we should have
-                // stopped our intersection
-                double xLength = Math.cos(theta) * ellipseB.getRadius1();
-                double yLength = Math.sin(theta) * ellipseB.getRadius1();
-                Vector2f dest = new Vector2f(center.x - (float)xLength, 
-                                            center.y - (float)yLength);
-                Vector2f mtv = dest.sub(point);
-                return mtv;
+    protected static Vector2f calculateMTV(Rectangle rectA, Ellipse ellipseB, Vector2f mtv) {
+        // our ellipses are all circles
+        Narrowphase.boxCircleMTV(rectA.getX(), rectA.getY(), rectA.getWidth(), rectA.getHeight(),
+                                 ellipseB.getCenterX(), ellipseB.getCenterY(), ellipseB.getRadius1(),
+                                 mtv);
+        return mtv;
+    }
+    
+    /**
+     * Works out when, during a step, a moving rectangle first touches a
+     * still one (the swept AABB test). Touching edges count, as they do for
+     * Rectangle.intersects(). To test two moving rectangles, pass the
+     * difference between their movements, with rectB where it started.
+     * 
+     * @param ax the left edge of rectA at the start of the step
+     * @param ay the top edge of rectA at the start of the step
+     * @param aw the width of rectA
+     * @param ah the height of rectA
+     * @param dx how far rectA moves in x over the step
+     * @param dy how far rectA moves in y over the step
+     * @param bx the left edge of rectB
+     * @param by the top edge of rectB
+     * @param bw the width of rectB
+     * @param bh the height of rectB
+     * @return the fraction of the step, from 0 to 1, at which they first
+     *         touch (0 if they already are), or Float.POSITIVE_INFINITY if
+     *         they don't touch during the step
+     */
+    public static float timeOfImpact(float ax, float ay, float aw, float ah,
+                                     float dx, float dy,
+                                     float bx, float by, float bw, float bh) {
+        float enter = Float.NEGATIVE_INFINITY;
+        float exit = Float.POSITIVE_INFINITY;
+        
+        // the times the x extents start and stop overlapping
+        if (dx == 0.0f) {
+            if (ax > bx + bw || ax + aw < bx) {
+                return Float.POSITIVE_INFINITY;
+            }
+        } else {
+            float near = dx > 0.0f ? (bx - (ax + aw)) / dx : (bx + bw - ax) / dx;
+            float far = dx > 0.0f ? (bx + bw - ax) / dx : (bx - (ax + aw)) / dx;
+            enter = near;
+            exit = far;
+        }
+        
+        // and the y extents
+        if (dy == 0.0f) {
+            if (ay > by + bh || ay + ah < by) {
+                return Float.POSITIVE_INFINITY;
             }
+        } else {
+            float near = dy > 0.0f ? (by - (ay + ah)) / dy : (by + bh - ay) / dy;
+            float far = dy > 0.0f ? (by + bh - ay) / dy : (by - (ay + ah)) / dy;
+            enter = Math.max(enter, near);
+            exit = Math.min(exit, far);
         }
         
-        // no collision, so no MTV
-        return new Vector2f(0.0f, 0.0f);
+        // they touch while both overlap, if that is during the step
+        if (enter > exit || enter > 1.0f || exit < 0.0f) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return Math.max(enter, 0.0f);
     }
-
+    
 }
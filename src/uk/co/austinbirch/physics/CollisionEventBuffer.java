@@ -0,0 +1,86 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ *
+ * A growable list of collisions, each recorded as a pair of ints (normally
+ * the indices of the two things that touched).
+ *
+ * Collisions found on worker threads are recorded into a buffer per chunk
+ * of work rather than handled straight away, and then played back on the
+ * main thread one buffer after another, so the callbacks happen in the
+ * same order however the work was split up.
+ *
+ */
+public class CollisionEventBuffer {
+
+    // Member variables
+    
+    /**
+     * The recorded pairs, two ints per event
+     */
+    protected int[] events;
+    
+    /**
+     * The number of events recorded since the last clear
+     */
+    protected int count = 0;
+    
+    /**
+     * Creates an empty buffer
+     * 
+     * @param capacity the number of events to make room for up front
+     */
+    public CollisionEventBuffer(int capacity) {
+        this.events = new int[Math.max(1, capacity) * 2];
+    }
+    
+    /**
+     * Records an event
+     * 
+     * @param a the first of the pair
+     * @param b the second of the pair
+     */
+    public void add(int a, int b) {
+        int index = this.count * 2;
+        if (index == this.events.length) {
+            int[] newEvents = new int[this.events.length * 2];
+            System.arraycopy(this.events, 0, newEvents, 0, index);
+            this.events = newEvents;
+        }
+        this.events[index] = a;
+        this.events[index + 1] = b;
+        this.count++;
+    }
+    
+    /**
+     * Forgets every recorded event
+     */
+    public void clear() {
+        this.count = 0;
+    }
+    
+    /**
+     * @return the number of events recorded
+     */
+    public int size() {
+        return this.count;
+    }
+    
+    /**
+     * @param index the index of the event
+     * @return the first of the pair for an event
+     */
+    public int getA(int index) {
+        return this.events[index * 2];
+    }
+    
+    /**
+     * @param index the index of the event
+     * @return the second of the pair for an event
+     */
+    public int getB(int index) {
+        return this.events[index * 2 + 1];
+    }
+    
+}
@@ -0,0 +1,482 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ *
+ * The gravity from a set of fixed attractors, baked into a grid over the
+ * play space so a body's acceleration can be looked up with one bilinear
+ * sample rather than summed over every attractor.
+ *
+ * The field uses the same force law and sign conventions as the
+ * KinematicKernel's accumulateGravity(), with the field holding the total
+ * change in velocity per second.
+ *
+ * Close to an attractor its pull changes too quickly to interpolate, so
+ * each cell only bakes in the attractors further than nearDistance from
+ * it, and keeps a short list of the nearer ones to add exactly. When the
+ * field is built every cell is checked against the exact sum at a few
+ * points inside it, and any cell still out by more than the error bound
+ * falls back to summing every attractor exactly. Bodies outside the grid
+ * use the exact sum too.
+ *
+ * The field is rebuilt whenever update() is given attractors that differ
+ * from the ones it was built from.
+ *
+ */
+public class GravityField {
+
+    // Global variables
+    
+    /**
+     * The number of steps along each side of a cell between the points
+     * that are checked against the exact sum when the field is built
+     */
+    public static final int ERROR_SAMPLES = 4;
+    
+    /**
+     * The distance, in cells, inside which an attractor is added exactly
+     * rather than baked in. Interpolating an attractor d away from a cell
+     * of size h is out by around h^2 / 8d^2 of its pull, so at six cells
+     * that is well under one percent.
+     */
+    public static final float NEAR_CELLS = 6.0f;
+    
+    /**
+     * The number of floats stored for each cell
+     */
+    protected static final int CELL_FLOATS = 8;
+    
+    // Member variables
+    
+    /**
+     * The left edge of the field
+     */
+    protected float originX;
+    
+    /**
+     * The top edge of the field
+     */
+    protected float originY;
+    
+    /**
+     * The width and height of each cell
+     */
+    protected float cellSize;
+    
+    /**
+     * 1 / cellSize
+     */
+    protected float inverseCellSize;
+    
+    /**
+     * The number of cells across
+     */
+    protected int columns;
+    
+    /**
+     * The number of cells down
+     */
+    protected int rows;
+    
+    /**
+     * The largest error allowed before a cell uses the exact sum, relative
+     * to the size of the exact acceleration
+     */
+    protected float maxRelativeError;
+    
+    /**
+     * Attractors closer than this to a cell are added exactly rather than
+     * baked in
+     */
+    protected float nearDistance;
+    
+    /**
+     * The baked acceleration at the corners of each cell, eight floats per
+     * cell: (x, y) at the top left, top right, bottom left and bottom right.
+     * Each cell leaves out its own near attractors, so the corners aren't
+     * shared with the neighbouring cells, and a sample only touches one
+     * cache line. Cells that use the exact sum have NaN in their first
+     * float.
+     */
+    protected float[] cells;
+    
+    /**
+     * Where each cell's near attractors start in nearAttractors, with one
+     * extra entry at the end so nearStart[c + 1] is always the end of cell c
+     */
+    protected int[] nearStart;
+    
+    /**
+     * The indices of the near attractors of each cell, packed cell after
+     * cell
+     */
+    protected int[] nearAttractors = new int[64];
+    
+    /**
+     * The number of cells that use the exact sum
+     */
+    protected int exactCellCount = 0;
+    
+    /**
+     * The largest relative error measured in the cells that use the grid
+     */
+    protected float measuredError = 0.0f;
+    
+    /**
+     * The number of times the field has been built
+     */
+    protected int buildCount = 0;
+    
+    /**
+     * The x position of each attractor the field was built from
+     */
+    protected float[] attractorX = new float[0];
+    
+    /**
+     * The y position of each attractor the field was built from
+     */
+    protected float[] attractorY = new float[0];
+    
+    /**
+     * The mass of each attractor the field was built from
+     */
+    protected float[] attractorMass = new float[0];
+    
+    /**
+     * Whether each attractor is near the cell being built
+     */
+    protected boolean[] attractorNear = new boolean[0];
+    
+    /**
+     * The number of attractors the field was built from
+     */
+    protected int attractorCount = 0;
+    
+    /**
+     * Creates an empty field over the given area. It has no attractors
+     * until update() is called.
+     * 
+     * @param originX the left edge of the area
+     * @param originY the top edge of the area
+     * @param width the width of the area
+     * @param height the height of the area
+     * @param cellSize the size of the cells in the grid
+     * @param maxRelativeError the largest error allowed, relative to the
+     *                         exact acceleration, before a cell falls back
+     *                         to the exact sum
+     */
+    public GravityField(float originX,
+                        float originY,
+                        float width,
+                        float height,
+                        float cellSize,
+                        float maxRelativeError) {
+        this.originX = originX;
+        this.originY = originY;
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1.0f / cellSize;
+        this.columns = Math.max(1, (int)Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int)Math.ceil(height / cellSize));
+        this.maxRelativeError = maxRelativeError;
+        this.nearDistance = cellSize * NEAR_CELLS;
+        this.cells = new float[this.columns * this.rows * CELL_FLOATS];
+        this.nearStart = new int[this.columns * this.rows + 1];
+    }
+    
+    /**
+     * Sets the attractors, rebuilding the field if they aren't the ones it
+     * was built from. This is cheap when nothing has changed, so it can be
+     * called every tick.
+     * 
+     * @param x the x position of each attractor
+     * @param y the y position of each attractor
+     * @param mass the mass of each attractor
+     * @param count the number of attractors
+     * @return whether the field was rebuilt
+     */
+    public boolean update(float[] x, float[] y, float[] mass, int count) {
+        if (count == this.attractorCount) {
+            boolean changed = false;
+            for (int i = 0; i < count && !changed; i++) {
+                changed = x[i] != this.attractorX[i] ||
+                          y[i] != this.attractorY[i] ||
+                          mass[i] != this.attractorMass[i];
+            }
+            if (!changed) {
+                return false;
+            }
+        }
+        
+        if (this.attractorX.length < count) {
+            this.attractorX = new float[count];
+            this.attractorY = new float[count];
+            this.attractorMass = new float[count];
+            this.attractorNear = new boolean[count];
+        }
+        System.arraycopy(x, 0, this.attractorX, 0, count);
+        System.arraycopy(y, 0, this.attractorY, 0, count);
+        System.arraycopy(mass, 0, this.attractorMass, 0, count);
+        this.attractorCount = count;
+        this.build();
+        return true;
+    }
+    
+    /**
+     * Finds each cell's near attractors, bakes the rest in at its corners,
+     * and marks the cells that still can't be interpolated accurately
+     */
+    protected void build() {
+        int nearCount = 0;
+        this.exactCellCount = 0;
+        this.measuredError = 0.0f;
+        
+        for (int row = 0; row < this.rows; row++) {
+            for (int column = 0; column < this.columns; column++) {
+                int cell = row * this.columns + column;
+                float left = this.originX + column * this.cellSize;
+                float top = this.originY + row * this.cellSize;
+                
+                // find the attractors too close to interpolate
+                this.nearStart[cell] = nearCount;
+                for (int a = 0; a < this.attractorCount; a++) {
+                    float dx = Math.max(0.0f, Math.max(left - this.attractorX[a],
+                                                       this.attractorX[a] - (left + this.cellSize)));
+                    float dy = Math.max(0.0f, Math.max(top - this.attractorY[a],
+                                                       this.attractorY[a] - (top + this.cellSize)));
+                    this.attractorNear[a] = dx * dx + dy * dy < this.nearDistance * this.nearDistance;
+                    if (this.attractorNear[a]) {
+                        if (nearCount == this.nearAttractors.length) {
+                            int[] newNear = new int[nearCount * 2];
+                            System.arraycopy(this.nearAttractors, 0, newNear, 0, nearCount);
+                            this.nearAttractors = newNear;
+                        }
+                        this.nearAttractors[nearCount++] = a;
+                    }
+                }
+                
+                // bake in the rest
+                int index = cell * CELL_FLOATS;
+                for (int corner = 0; corner < 4; corner++) {
+                    double x = left + (corner & 1) * this.cellSize;
+                    double y = top + (corner >> 1) * this.cellSize;
+                    this.cells[index + corner * 2] = (float)this.sumX(x, y, true);
+                    this.cells[index + corner * 2 + 1] = (float)this.sumY(x, y, true);
+                }
+                
+                float error = this.cellError(cell, left, top);
+                if (error > this.maxRelativeError) {
+                    this.cells[index] = Float.NaN;
+                    this.exactCellCount++;
+                } else if (error > this.measuredError) {
+                    this.measuredError = error;
+                }
+            }
+        }
+        this.nearStart[this.columns * this.rows] = nearCount;
+        this.buildCount++;
+    }
+    
+    /**
+     * Measures how far the field is from the exact sum inside a cell, which
+     * must be the one whose near attractors are marked
+     * 
+     * @param cell the index of the cell
+     * @param left the left edge of the cell
+     * @param top the top edge of the cell
+     * @return the largest relative error at the points checked
+     */
+    protected float cellError(int cell, float left, float top) {
+        int index = cell * CELL_FLOATS;
+        float worst = 0.0f;
+        for (int sy = 0; sy <= ERROR_SAMPLES; sy++) {
+            for (int sx = 0; sx <= ERROR_SAMPLES; sx++) {
+                float tx = sx / (float)ERROR_SAMPLES;
+                float ty = sy / (float)ERROR_SAMPLES;
+                double x = left + tx * this.cellSize;
+                double y = top + ty * this.cellSize;
+                double exactX = this.sumX(x, y, false);
+                double exactY = this.sumY(x, y, false);
+                double magnitude = Math.sqrt(exactX * exactX + exactY * exactY);
+                
+                // the near attractors are exact, so only the baked part
+                // can be out
+                double errorX = this.interpolate(index, tx, ty) - this.sumX(x, y, true);
+                double errorY = this.interpolate(index + 1, tx, ty) - this.sumY(x, y, true);
+                double error = Math.sqrt(errorX * errorX + errorY * errorY);
+                if (!(error <= magnitude * this.maxRelativeError)) {
+                    // also catches the NaNs and infinities on an attractor
+                    return Float.POSITIVE_INFINITY;
+                }
+                if (magnitude > 0.0) {
+                    worst = Math.max(worst, (float)(error / magnitude));
+                }
+            }
+        }
+        return worst;
+    }
+    
+    /**
+     * Accelerates the bodies in one range of a store by the field
+     * 
+     * @param store the bodies to accelerate
+     * @param from the first slot to accelerate
+     * @param to one past the last slot to accelerate
+     * @param deltaSeconds the timestep
+     */
+    public void accumulate(KinematicStore store, int from, int to, float deltaSeconds) {
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        float[] cells = this.cells;
+        for (int i = from; i < to; i++) {
+            float px = x[i];
+            float py = y[i];
+            float fx = (px - this.originX) * this.inverseCellSize;
+            float fy = (py - this.originY) * this.inverseCellSize;
+            int column = (int)fx;
+            int row = (int)fy;
+            float ax = 0.0f;
+            float ay = 0.0f;
+            
+            boolean baked = false;
+            int first = 0;
+            int last = this.attractorCount;
+            if (fx >= 0.0f && fy >= 0.0f && column < this.columns && row < this.rows) {
+                int cell = row * this.columns + column;
+                int index = cell * CELL_FLOATS;
+                if (!Float.isNaN(cells[index])) {
+                    float tx = fx - column;
+                    float ty = fy - row;
+                    ax = this.interpolate(index, tx, ty);
+                    ay = this.interpolate(index + 1, tx, ty);
+                    baked = true;
+                    first = this.nearStart[cell];
+                    last = this.nearStart[cell + 1];
+                }
+            }
+            
+            // add the attractors that weren't baked in, which is every one
+            // of them if we are off the grid
+            for (int n = first; n < last; n++) {
+                int a = baked ? this.nearAttractors[n] : n;
+                float dx = px - this.attractorX[a];
+                float dy = py - this.attractorY[a];
+                float scale = this.attractorMass[a] / (dx * dx + dy * dy);
+                ax += dx * scale;
+                ay -= dy * scale;
+            }
+            
+            vx[i] += ax * deltaSeconds;
+            vy[i] += ay * deltaSeconds;
+        }
+    }
+    
+    /**
+     * Bilinearly interpolates one component within a cell
+     * 
+     * @param index the index of the component at the cell's top left corner
+     * @param tx how far across the cell, from 0 to 1
+     * @param ty how far down the cell, from 0 to 1
+     * @return the interpolated value
+     */
+    protected float interpolate(int index, float tx, float ty) {
+        float[] cells = this.cells;
+        float top = cells[index] + (cells[index + 2] - cells[index]) * tx;
+        float bottom = cells[index + 4] + (cells[index + 6] - cells[index + 4]) * tx;
+        return top + (bottom - top) * ty;
+    }
+    
+    /**
+     * @param x the x position of the point
+     * @param y the y position of the point
+     * @param farOnly whether to leave out the attractors marked as near
+     * @return the x acceleration at a point, summed over the attractors
+     */
+    protected double sumX(double x, double y, boolean farOnly) {
+        double total = 0.0;
+        for (int i = 0; i < this.attractorCount; i++) {
+            if (farOnly && this.attractorNear[i]) {
+                continue;
+            }
+            double dx = x - this.attractorX[i];
+            double dy = y - this.attractorY[i];
+            // a = m/r along the unit vector (dx, -dy) / r
+            total += dx * this.attractorMass[i] / (dx * dx + dy * dy);
+        }
+        return total;
+    }
+    
+    /**
+     * @param x the x position of the point
+     * @param y the y position of the point
+     * @param farOnly whether to leave out the attractors marked as near
+     * @return the y acceleration at a point, summed over the attractors
+     */
+    protected double sumY(double x, double y, boolean farOnly) {
+        double total = 0.0;
+        for (int i = 0; i < this.attractorCount; i++) {
+            if (farOnly && this.attractorNear[i]) {
+                continue;
+            }
+            double dx = x - this.attractorX[i];
+            double dy = y - this.attractorY[i];
+            total -= dy * this.attractorMass[i] / (dx * dx + dy * dy);
+        }
+        return total;
+    }
+    
+    /**
+     * @return the size of the cells in the grid
+     */
+    public float getCellSize() {
+        return this.cellSize;
+    }
+    
+    /**
+     * @return the largest error allowed before a cell uses the exact sum
+     */
+    public float getMaxRelativeError() {
+        return this.maxRelativeError;
+    }
+    
+    /**
+     * @return the largest relative error measured in the cells that are
+     *         interpolated
+     */
+    public float getMeasuredError() {
+        return this.measuredError;
+    }
+    
+    /**
+     * @return the number of cells that use the exact sum
+     */
+    public int getExactCellCount() {
+        return this.exactCellCount;
+    }
+    
+    /**
+     * @return the number of cells in the field
+     */
+    public int getCellCount() {
+        return this.columns * this.rows;
+    }
+    
+    /**
+     * @return the number of times the field has been built
+     */
+    public int getBuildCount() {
+        return this.buildCount;
+    }
+    
+    @Override
+    public String toString() {
+        return "cellSize=" + this.cellSize +
+               " cells=" + this.getCellCount() +
+               " exactCells=" + this.exactCellCount +
+               " nearEntries=" + this.nearStart[this.getCellCount()] +
+               " measuredError=" + this.measuredError +
+               " builds=" + this.buildCount;
+    }
+    
+}
@@ -0,0 +1,472 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ *
+ * The gravity from a set of attractors, summed with a Barnes-Hut quadtree
+ * so a body only visits the attractors near it one by one, and pulls
+ * towards whole groups of the distant ones at once, from their center of
+ * mass. That costs around log N per body rather than N, so it copes with
+ * attractors that move every tick, like the hammers, where the
+ * GravityField would have to be baked again each time.
+ *
+ * A group is treated as one attractor once its size is less than theta
+ * times its distance from the body. Theta 0 opens every group and gives
+ * the exact sum; the usual 0.5 is out by around a tenth of a percent on
+ * average, which GravityAccuracy in the benchmarks measures.
+ *
+ * The tree uses the same force law and sign conventions as the
+ * KinematicKernel's accumulateGravity(), with an optional softening
+ * length added to every distance so bodies that pass through each other
+ * aren't flung apart. A body sitting exactly on an attractor, as each
+ * attractor does on itself, isn't pulled by it.
+ *
+ * The nodes are stored depth first in parallel arrays, with each node
+ * knowing where the node after its subtree is, so walking the tree needs
+ * no stack and many threads can walk it at once. Once build() has grown
+ * the arrays big enough, rebuilding it every tick allocates nothing.
+ *
+ */
+public class GravityTree {
+
+    // Global variables
+    
+    /**
+     * The most attractors in a node before it is split into four
+     */
+    public static final int LEAF_SIZE = 8;
+    
+    /**
+     * The deepest the tree goes, which only matters when more than
+     * LEAF_SIZE attractors are in the same place
+     */
+    public static final int MAX_DEPTH = 24;
+    
+    // Member variables
+    
+    /**
+     * The largest size of a node relative to its distance from a body for
+     * which the node is treated as a single attractor
+     */
+    protected float theta;
+    
+    /**
+     * theta * theta
+     */
+    protected float thetaSquared;
+    
+    /**
+     * The square of the softening length added to every distance
+     */
+    protected float softeningSquared;
+    
+    /**
+     * The position and mass of each attractor, in the order of the tree so
+     * each node's attractors are together
+     */
+    protected float[] bodyX = new float[0];
+    protected float[] bodyY = new float[0];
+    protected float[] bodyMass = new float[0];
+    
+    /**
+     * Somewhere to sort the attractors into while the tree is built
+     */
+    protected float[] scratchX = new float[0];
+    protected float[] scratchY = new float[0];
+    protected float[] scratchMass = new float[0];
+    
+    /**
+     * The number of attractors in the tree
+     */
+    protected int bodyCount = 0;
+    
+    /**
+     * The total mass of each node, and its center of mass
+     */
+    protected float[] nodeMass = new float[16];
+    protected float[] nodeX = new float[16];
+    protected float[] nodeY = new float[16];
+    
+    /**
+     * The square of the width of each node
+     */
+    protected float[] nodeSizeSquared = new float[16];
+    
+    /**
+     * The first attractor in each node, and one past its last
+     */
+    protected int[] nodeFirst = new int[16];
+    protected int[] nodeLast = new int[16];
+    
+    /**
+     * The index of the node after each node's subtree. A node's first child
+     * always comes straight after it, so a node whose next node does too is
+     * a leaf.
+     */
+    protected int[] nodeNext = new int[16];
+    
+    /**
+     * The number of nodes in the tree
+     */
+    protected int nodeCount = 0;
+    
+    /**
+     * The number of times the tree has been built
+     */
+    protected int buildCount = 0;
+    
+    /**
+     * Creates an empty tree. It has no attractors until build() is called.
+     * 
+     * @param theta the largest size of a node relative to its distance for
+     *              which it is treated as a single attractor, or 0 to sum
+     *              every attractor exactly
+     * @param softening the length added to every distance, or 0 to use the
+     *                  exact force law
+     */
+    public GravityTree(float theta, float softening) {
+        this.theta = theta;
+        this.thetaSquared = theta * theta;
+        this.softeningSquared = softening * softening;
+    }
+    
+    /**
+     * Builds the tree from a set of attractors. Attractors without any mass
+     * are left out.
+     * 
+     * @param x the x position of each attractor
+     * @param y the y position of each attractor
+     * @param mass the mass of each attractor
+     * @param count the number of attractors
+     */
+    public void build(float[] x, float[] y, float[] mass, int count) {
+        this.ensureBodyCapacity(count);
+        int bodies = 0;
+        for (int i = 0; i < count; i++) {
+            if (mass[i] != 0.0f) {
+                this.bodyX[bodies] = x[i];
+                this.bodyY[bodies] = y[i];
+                this.bodyMass[bodies] = mass[i];
+                bodies++;
+            }
+        }
+        this.bodyCount = bodies;
+        this.buildNodes();
+    }
+    
+    /**
+     * Builds the tree from the bodies in a store, each pulling with its own
+     * mass
+     * 
+     * @param store the bodies to build the tree from
+     */
+    public void build(KinematicStore store) {
+        this.build(store.x, store.y, store.mass, store.size());
+    }
+    
+    /**
+     * Splits space into nodes around the attractors, which have been copied
+     * into the body arrays
+     */
+    protected void buildNodes() {
+        this.nodeCount = 0;
+        this.buildCount++;
+        if (this.bodyCount == 0) {
+            return;
+        }
+        
+        float left = Float.POSITIVE_INFINITY;
+        float top = Float.POSITIVE_INFINITY;
+        float right = Float.NEGATIVE_INFINITY;
+        float bottom = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < this.bodyCount; i++) {
+            left = Math.min(left, this.bodyX[i]);
+            top = Math.min(top, this.bodyY[i]);
+            right = Math.max(right, this.bodyX[i]);
+            bottom = Math.max(bottom, this.bodyY[i]);
+        }
+        
+        // the root is square, and a little bigger than it needs to be so
+        // the attractors on its right and bottom edges are inside it
+        float size = Math.max(right - left, bottom - top);
+        size = Math.max(size * 1.0001f, 1.0f);
+        this.buildNode(0, this.bodyCount, left, top, size, 0);
+    }
+    
+    /**
+     * Adds a node for a range of the attractors, then splits it into four
+     * if it has too many
+     * 
+     * @param first the first attractor in the node
+     * @param last one past the last attractor in the node
+     * @param left the left edge of the node
+     * @param top the top edge of the node
+     * @param size the width and height of the node
+     * @param depth how deep the node is in the tree
+     */
+    protected void buildNode(int first, int last, float left, float top, float size, int depth) {
+        int node = this.nodeCount++;
+        if (node == this.nodeMass.length) {
+            this.growNodes();
+        }
+        
+        float mass = 0.0f;
+        float massX = 0.0f;
+        float massY = 0.0f;
+        for (int i = first; i < last; i++) {
+            mass += this.bodyMass[i];
+            massX += this.bodyX[i] * this.bodyMass[i];
+            massY += this.bodyY[i] * this.bodyMass[i];
+        }
+        this.nodeMass[node] = mass;
+        this.nodeX[node] = massX / mass;
+        this.nodeY[node] = massY / mass;
+        this.nodeSizeSquared[node] = size * size;
+        this.nodeFirst[node] = first;
+        this.nodeLast[node] = last;
+        
+        if (last - first > LEAF_SIZE && depth < MAX_DEPTH) {
+            float half = size * 0.5f;
+            float centerX = left + half;
+            float centerY = top + half;
+            
+            // count the attractors in each quarter, then sort them into the
+            // quarters in order: top left, top right, bottom left, bottom
+            // right
+            int topLeft = 0;
+            int topRight = 0;
+            int bottomLeft = 0;
+            for (int i = first; i < last; i++) {
+                int quarter = GravityTree.quarter(this.bodyX[i], this.bodyY[i], centerX, centerY);
+                if (quarter == 0) {
+                    topLeft++;
+                } else if (quarter == 1) {
+                    topRight++;
+                } else if (quarter == 2) {
+                    bottomLeft++;
+                }
+            }
+            int topRightStart = first + topLeft;
+            int bottomLeftStart = topRightStart + topRight;
+            int bottomRightStart = bottomLeftStart + bottomLeft;
+            int topLeftFill = first;
+            int topRightFill = topRightStart;
+            int bottomLeftFill = bottomLeftStart;
+            int bottomRightFill = bottomRightStart;
+            for (int i = first; i < last; i++) {
+                int quarter = GravityTree.quarter(this.bodyX[i], this.bodyY[i], centerX, centerY);
+                int to;
+                if (quarter == 0) {
+                    to = topLeftFill++;
+                } else if (quarter == 1) {
+                    to = topRightFill++;
+                } else if (quarter == 2) {
+                    to = bottomLeftFill++;
+                } else {
+                    to = bottomRightFill++;
+                }
+                this.scratchX[to] = this.bodyX[i];
+                this.scratchY[to] = this.bodyY[i];
+                this.scratchMass[to] = this.bodyMass[i];
+            }
+            System.arraycopy(this.scratchX, first, this.bodyX, first, last - first);
+            System.arraycopy(this.scratchY, first, this.bodyY, first, last - first);
+            System.arraycopy(this.scratchMass, first, this.bodyMass, first, last - first);
+            
+            this.buildChild(first, topRightStart, left, top, half, depth);
+            this.buildChild(topRightStart, bottomLeftStart, left + half, top, half, depth);
+            this.buildChild(bottomLeftStart, bottomRightStart, left, top + half, half, depth);
+            this.buildChild(bottomRightStart, last, left + half, top + half, half, depth);
+        }
+        
+        this.nodeNext[node] = this.nodeCount;
+    }
+    
+    /**
+     * Adds a child node for a quarter of a node, if any attractors are in it
+     * 
+     * @param first the first attractor in the quarter
+     * @param last one past the last attractor in the quarter
+     * @param left the left edge of the quarter
+     * @param top the top edge of the quarter
+     * @param size the width and height of the quarter
+     * @param parentDepth how deep the node being split is in the tree
+     */
+    protected void buildChild(int first, int last, float left, float top, float size, int parentDepth) {
+        if (first < last) {
+            this.buildNode(first, last, left, top, size, parentDepth + 1);
+        }
+    }
+    
+    /**
+     * Accelerates the bodies in one range of a store towards the
+     * attractors in the tree
+     * 
+     * @param store the bodies to accelerate
+     * @param from the first slot to accelerate
+     * @param to one past the last slot to accelerate
+     * @param deltaSeconds the timestep
+     */
+    public void accumulate(KinematicStore store, int from, int to, float deltaSeconds) {
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        float[] bodyX = this.bodyX;
+        float[] bodyY = this.bodyY;
+        float[] bodyMass = this.bodyMass;
+        float[] nodeX = this.nodeX;
+        float[] nodeY = this.nodeY;
+        float[] nodeMass = this.nodeMass;
+        float[] nodeSizeSquared = this.nodeSizeSquared;
+        int[] nodeNext = this.nodeNext;
+        float softeningSquared = this.softeningSquared;
+        float thetaSquared = this.thetaSquared;
+        int nodeCount = this.nodeCount;
+        
+        for (int i = from; i < to; i++) {
+            float px = x[i];
+            float py = y[i];
+            float ax = 0.0f;
+            float ay = 0.0f;
+            
+            int node = 0;
+            while (node < nodeCount) {
+                int next = nodeNext[node];
+                float dx = px - nodeX[node];
+                float dy = py - nodeY[node];
+                float distanceSquared = dx * dx + dy * dy;
+                if (nodeSizeSquared[node] < thetaSquared * distanceSquared) {
+                    // far enough away to pull as one
+                    float scale = nodeMass[node] / (distanceSquared + softeningSquared);
+                    ax += dx * scale;
+                    ay -= dy * scale;
+                    node = next;
+                } else if (next == node + 1) {
+                    // a leaf that is too close, so add its attractors
+                    // one by one
+                    for (int b = this.nodeFirst[node]; b < this.nodeLast[node]; b++) {
+                        float bx = px - bodyX[b];
+                        float by = py - bodyY[b];
+                        float rSquared = bx * bx + by * by + softeningSquared;
+                        if (rSquared > 0.0f) {
+                            // a = m/r along the unit vector (dx, -dy) / r
+                            float scale = bodyMass[b] / rSquared;
+                            ax += bx * scale;
+                            ay -= by * scale;
+                        }
+                    }
+                    node = next;
+                } else {
+                    // too close, so open it up
+                    node++;
+                }
+            }
+            
+            vx[i] += ax * deltaSeconds;
+            vy[i] += ay * deltaSeconds;
+        }
+    }
+    
+    /**
+     * @param x the x position of an attractor
+     * @param y the y position of an attractor
+     * @param centerX the x position of the center of the node
+     * @param centerY the y position of the center of the node
+     * @return which quarter of the node the attractor is in: 0 for the top
+     *         left, 1 for the top right, 2 for the bottom left and 3 for the
+     *         bottom right
+     */
+    protected static int quarter(float x, float y, float centerX, float centerY) {
+        return (x >= centerX ? 1 : 0) | (y >= centerY ? 2 : 0);
+    }
+    
+    /**
+     * Makes room for a number of attractors
+     * 
+     * @param count the number of attractors
+     */
+    protected void ensureBodyCapacity(int count) {
+        if (this.bodyX.length < count) {
+            int capacity = Math.max(count, this.bodyX.length * 2);
+            this.bodyX = new float[capacity];
+            this.bodyY = new float[capacity];
+            this.bodyMass = new float[capacity];
+            this.scratchX = new float[capacity];
+            this.scratchY = new float[capacity];
+            this.scratchMass = new float[capacity];
+        }
+    }
+    
+    /**
+     * Doubles the room for nodes
+     */
+    protected void growNodes() {
+        int capacity = this.nodeMass.length * 2;
+        this.nodeMass = GravityTree.grow(this.nodeMass, capacity);
+        this.nodeX = GravityTree.grow(this.nodeX, capacity);
+        this.nodeY = GravityTree.grow(this.nodeY, capacity);
+        this.nodeSizeSquared = GravityTree.grow(this.nodeSizeSquared, capacity);
+        this.nodeFirst = GravityTree.grow(this.nodeFirst, capacity);
+        this.nodeLast = GravityTree.grow(this.nodeLast, capacity);
+        this.nodeNext = GravityTree.grow(this.nodeNext, capacity);
+    }
+    
+    /**
+     * @return the largest size of a node relative to its distance for which
+     *         it is treated as a single attractor
+     */
+    public float getTheta() {
+        return this.theta;
+    }
+    
+    /**
+     * @return the softening length added to every distance
+     */
+    public float getSoftening() {
+        return (float)Math.sqrt(this.softeningSquared);
+    }
+    
+    /**
+     * @return the number of attractors in the tree
+     */
+    public int getBodyCount() {
+        return this.bodyCount;
+    }
+    
+    /**
+     * @return the number of nodes in the tree
+     */
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+    
+    /**
+     * @return the number of times the tree has been built
+     */
+    public int getBuildCount() {
+        return this.buildCount;
+    }
+    
+    private static float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    private static int[] grow(int[] array, int capacity) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    @Override
+    public String toString() {
+        return "theta=" + this.theta +
+               " softening=" + this.getSoftening() +
+               " bodies=" + this.bodyCount +
+               " nodes=" + this.nodeCount +
+               " builds=" + this.buildCount;
+    }
+    
+}
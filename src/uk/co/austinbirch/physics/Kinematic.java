@@ -0,0 +1,14 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ * 
+ * Something whose position, velocity and mass live in a KinematicStore.
+ * The store tells it whenever it has been moved to a different slot.
+ *
+ */
+public interface Kinematic {
+
+    void setSlot(KinematicStore store, int slot);
+    
+}
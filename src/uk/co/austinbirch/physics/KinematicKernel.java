@@ -0,0 +1,68 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ * 
+ * The batched physics operations that run over a whole KinematicStore
+ *
+ */
+public interface KinematicKernel {
+
+    /**
+     * Moves every body in the store by its velocity
+     * 
+     * @param store the bodies to move
+     * @param deltaSeconds the timestep
+     */
+    void integrate(KinematicStore store, float deltaSeconds);
+    
+    /**
+     * Moves the bodies in one range of slots by their velocity, so the store
+     * can be split between threads
+     * 
+     * @param store the bodies to move
+     * @param from the first slot to move
+     * @param to one past the last slot to move
+     * @param deltaSeconds the timestep
+     */
+    void integrate(KinematicStore store, int from, int to, float deltaSeconds);
+    
+    /**
+     * Accelerates every body in the store towards an attractor, using our
+     * force law of f = m1*m2/r. As with the rest of the game, a positive y
+     * velocity here points up the screen.
+     * 
+     * @param store the bodies to accelerate
+     * @param attractorX the x position of the attractor
+     * @param attractorY the y position of the attractor
+     * @param attractorMass the mass of the attractor
+     * @param deltaSeconds the timestep
+     */
+    void accumulateGravity(KinematicStore store,
+                           float attractorX,
+                           float attractorY,
+                           float attractorMass,
+                           float deltaSeconds);
+    
+    /**
+     * Accelerates the bodies in one range of slots towards an attractor. Each
+     * body gets exactly the same result as it would from accumulating over
+     * the whole store.
+     * 
+     * @param store the bodies to accelerate
+     * @param from the first slot to accelerate
+     * @param to one past the last slot to accelerate
+     * @param attractorX the x position of the attractor
+     * @param attractorY the y position of the attractor
+     * @param attractorMass the mass of the attractor
+     * @param deltaSeconds the timestep
+     */
+    void accumulateGravity(KinematicStore store,
+                           int from,
+                           int to,
+                           float attractorX,
+                           float attractorY,
+                           float attractorMass,
+                           float deltaSeconds);
+    
+}
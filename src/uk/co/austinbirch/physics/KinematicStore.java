@@ -0,0 +1,232 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ * 
+ * Stores the position, velocity and mass of a group of bodies as parallel
+ * float arrays, so the physics kernels can run over them in one tight loop
+ * rather than chasing a Vector2f per body.
+ * 
+ * Slots 0 to size()-1 are always in use. Freeing a slot moves the last body
+ * into it, and that body is told about its new slot.
+ * 
+ * The positions can also be saved, in one copy, so that rendering can blend
+ * between the positions from the last two ticks, and collision detection
+ * can sweep along the path between them. A body added since they were last
+ * saved has no saved position (it is NaN), unless whoever added it set one.
+ *
+ */
+public class KinematicStore {
+
+    // Member variables
+    
+    /**
+     * The x position of each body
+     */
+    public float[] x;
+    
+    /**
+     * The y position of each body
+     */
+    public float[] y;
+    
+    /**
+     * The x velocity of each body
+     */
+    public float[] vx;
+    
+    /**
+     * The y velocity of each body
+     */
+    public float[] vy;
+    
+    /**
+     * The mass of each body
+     */
+    public float[] mass;
+    
+    /**
+     * The x and y position of each body when the positions were last saved
+     */
+    public float[] previousX;
+    public float[] previousY;
+    
+    /**
+     * The body in each slot
+     */
+    protected Kinematic[] bodies;
+    
+    /**
+     * The number of slots in use
+     */
+    protected int size = 0;
+    
+    /**
+     * Creates a store
+     * 
+     * @param capacity the number of bodies to make room for up front
+     */
+    public KinematicStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.x = new float[capacity];
+        this.y = new float[capacity];
+        this.vx = new float[capacity];
+        this.vy = new float[capacity];
+        this.mass = new float[capacity];
+        this.previousX = new float[capacity];
+        this.previousY = new float[capacity];
+        this.bodies = new Kinematic[capacity];
+    }
+    
+    /**
+     * Adds a body to the store, growing it if required
+     * 
+     * @param body the body to add
+     * @return the slot the body was given
+     */
+    public int add(Kinematic body) {
+        if (this.size == this.x.length) {
+            this.ensureCapacity(this.size * 2);
+        }
+        int slot = this.size++;
+        this.x[slot] = 0.0f;
+        this.y[slot] = 0.0f;
+        this.vx[slot] = 0.0f;
+        this.vy[slot] = 0.0f;
+        this.mass[slot] = 0.0f;
+        this.previousX[slot] = Float.NaN;
+        this.previousY[slot] = Float.NaN;
+        this.bodies[slot] = body;
+        body.setSlot(this, slot);
+        return slot;
+    }
+    
+    /**
+     * Removes the body in a slot, moving the last body into its place
+     * 
+     * @param slot the slot to free
+     */
+    public void remove(int slot) {
+        int last = --this.size;
+        if (slot != last) {
+            this.x[slot] = this.x[last];
+            this.y[slot] = this.y[last];
+            this.vx[slot] = this.vx[last];
+            this.vy[slot] = this.vy[last];
+            this.mass[slot] = this.mass[last];
+            this.previousX[slot] = this.previousX[last];
+            this.previousY[slot] = this.previousY[last];
+            this.bodies[slot] = this.bodies[last];
+            this.bodies[slot].setSlot(this, slot);
+        }
+        this.bodies[last] = null;
+    }
+    
+    /**
+     * Removes every body from the store
+     */
+    public void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.bodies[i] = null;
+        }
+        this.size = 0;
+    }
+    
+    /**
+     * Makes sure the store can hold a number of bodies without growing
+     * 
+     * @param capacity the number of bodies
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= this.x.length) {
+            return;
+        }
+        this.x = KinematicStore.grow(this.x, capacity);
+        this.y = KinematicStore.grow(this.y, capacity);
+        this.vx = KinematicStore.grow(this.vx, capacity);
+        this.vy = KinematicStore.grow(this.vy, capacity);
+        this.mass = KinematicStore.grow(this.mass, capacity);
+        this.previousX = KinematicStore.grow(this.previousX, capacity);
+        this.previousY = KinematicStore.grow(this.previousY, capacity);
+        Kinematic[] newBodies = new Kinematic[capacity];
+        System.arraycopy(this.bodies, 0, newBodies, 0, this.size);
+        this.bodies = newBodies;
+    }
+    
+    /**
+     * Saves the position of every body, to be blended from until they are
+     * next saved
+     */
+    public void savePositions() {
+        System.arraycopy(this.x, 0, this.previousX, 0, this.size);
+        System.arraycopy(this.y, 0, this.previousY, 0, this.size);
+    }
+    
+    /**
+     * Moves every body, and its saved position, by the same amount, as when
+     * the frame they are positioned in is moved
+     * 
+     * @param dx how far to move in x
+     * @param dy how far to move in y
+     */
+    public void translate(float dx, float dy) {
+        for (int i = 0; i < this.size; i++) {
+            this.x[i] += dx;
+            this.y[i] += dy;
+            this.previousX[i] += dx;
+            this.previousY[i] += dy;
+        }
+    }
+    
+    /**
+     * Works out where a body was a fraction of the way between its saved
+     * position and its current one
+     * 
+     * @param slot the slot of the body
+     * @param alpha how far from the saved position to the current one, from
+     *              0 to 1
+     * @return the x position, or the current one if it hasn't been saved
+     */
+    public float interpolateX(int slot, float alpha) {
+        float previous = this.previousX[slot];
+        float current = this.x[slot];
+        return previous != previous ? current : previous + (current - previous) * alpha;
+    }
+    
+    /**
+     * Works out where a body was a fraction of the way between its saved
+     * position and its current one
+     * 
+     * @param slot the slot of the body
+     * @param alpha how far from the saved position to the current one, from
+     *              0 to 1
+     * @return the y position, or the current one if it hasn't been saved
+     */
+    public float interpolateY(int slot, float alpha) {
+        float previous = this.previousY[slot];
+        float current = this.y[slot];
+        return previous != previous ? current : previous + (current - previous) * alpha;
+    }
+    
+    /**
+     * @return the number of bodies in the store
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * @param slot the slot
+     * @return the body in the slot
+     */
+    public Kinematic getBody(int slot) {
+        return this.bodies[slot];
+    }
+    
+    private static float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+}
@@ -0,0 +1,69 @@
+package uk.co.austinbirch.physics;
+
+import org.newdawn.slick.util.Log;
+
+/**
+ * @author Austin Birch
+ * 
+ * Picks the kinematic kernel to use. The SIMD kernel is used when the JVM
+ * was started with --add-modules jdk.incubator.vector and it has been
+ * compiled from simd/, unless the mchammer.simd system property is set to
+ * false. Without either, src/ builds and runs on any JDK with the scalar
+ * kernel, which gives exactly the same results.
+ *
+ * The SIMD kernel only takes ranges of a few thousand bodies, for which it
+ * is about a quarter quicker (kernel.vector against kernel.scalar). It
+ * allocates until C2 has compiled it, so a world that big needs a
+ * mchammer.allocationWarmup of around 5000 ticks rather than the default
+ * 300 for AllocationMonitor not to complain.
+ *
+ */
+public class Kinematics {
+
+    /**
+     * The kernel picked for this JVM
+     */
+    private static KinematicKernel _kernel = null;
+    
+    /**
+     * Returns the best kernel available, picking it the first time
+     * 
+     * @return the kinematic kernel to use
+     */
+    public static synchronized KinematicKernel getKernel() {
+        if (_kernel == null) {
+            _kernel = Kinematics.createKernel();
+        }
+        return _kernel;
+    }
+    
+    /**
+     * Overrides the kernel, e.g. to compare the two in a benchmark
+     * 
+     * @param kernel the kernel to use from now on
+     */
+    public static synchronized void setKernel(KinematicKernel kernel) {
+        _kernel = kernel;
+    }
+    
+    /**
+     * @return whether the Vector API module has been loaded into this JVM
+     */
+    public static boolean isVectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+    
+    protected static KinematicKernel createKernel() {
+        if (!"false".equals(System.getProperty("mchammer.simd")) &&
+                Kinematics.isVectorApiAvailable()) {
+            try {
+                Class<?> kernelClass = Class.forName("uk.co.austinbirch.physics.VectorKinematicKernel");
+                return (KinematicKernel) kernelClass.getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                Log.warn("Unable to load the SIMD kinematic kernel, using the scalar kernel", e);
+            }
+        }
+        return new ScalarKinematicKernel();
+    }
+    
+}
@@ -0,0 +1,75 @@
+package uk.co.austinbirch.physics;
+
+import org.newdawn.slick.geom.Rectangle;
+
+/**
+ * @author Austin Birch
+ * 
+ * A Slick Rectangle that can be moved and resized without allocating. Slick
+ * creates a new points array (and a new center) every time a Rectangle's
+ * points are rebuilt, which happens after every move, so entities keep one
+ * of these each and reuse it for their collision shape.
+ *
+ */
+public class MutableRectangle extends Rectangle {
+
+    // Global variables
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Creates a rectangle
+     * 
+     * @param x the left edge
+     * @param y the top edge
+     * @param width the width
+     * @param height the height
+     */
+    public MutableRectangle(float x, float y, float width, float height) {
+        super(x, y, width, height);
+    }
+    
+    /**
+     * Builds the points in place, matching Slick's Rectangle
+     */
+    @Override
+    protected void createPoints() {
+        float useWidth = this.width - 1;
+        float useHeight = this.height - 1;
+        if (this.points == null || this.points.length != 8) {
+            this.points = new float[8];
+        }
+        this.points[0] = this.x;
+        this.points[1] = this.y;
+        this.points[2] = this.x + useWidth;
+        this.points[3] = this.y;
+        this.points[4] = this.x + useWidth;
+        this.points[5] = this.y + useHeight;
+        this.points[6] = this.x;
+        this.points[7] = this.y + useHeight;
+        this.maxX = this.points[2];
+        this.maxY = this.points[5];
+        this.minX = this.points[0];
+        this.minY = this.points[1];
+    }
+    
+    /**
+     * Finds the center in place, matching Slick's Shape
+     */
+    @Override
+    protected void findCenter() {
+        if (this.center == null) {
+            this.center = new float[2];
+        }
+        int length = this.points.length;
+        float centerX = 0.0f;
+        float centerY = 0.0f;
+        for (int i = 0; i < length; i += 2) {
+            centerX += this.points[i];
+            centerY += this.points[i + 1];
+        }
+        this.center[0] = centerX / (length / 2);
+        this.center[1] = centerY / (length / 2);
+    }
+    
+}
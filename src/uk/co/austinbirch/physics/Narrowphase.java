@@ -0,0 +1,262 @@
+package uk.co.austinbirch.physics;
+
+import org.newdawn.slick.geom.Vector2f;
+
+/**
+ * @author Austin Birch
+ *
+ * Exact collision tests between the simple shapes the game uses: axis
+ * aligned boxes, circles, and boxes rotated about their center (oriented
+ * boxes). Everything is worked out from floats, so nothing has to build a
+ * Slick Shape and its points first.
+ *
+ * Boxes are given by their left edge, top edge, width and height. Oriented
+ * boxes are given by their center, half their width and height, and the
+ * cosine and sine of their rotation, so a point (dx, dy) from the center of
+ * the unrotated box ends up at (dx * cos - dy * sin, dx * sin + dy * cos).
+ *
+ * Shapes whose edges are just touching count as intersecting, as they do
+ * for Slick's intersects(), and each MTV test agrees with its intersection
+ * test, giving an MTV of nothing for them. Each MTV is the smallest move of
+ * the first shape that stops the two overlapping, or nothing if they don't.
+ *
+ */
+public class Narrowphase {
+
+    /**
+     * @return whether two boxes overlap
+     */
+    public static boolean boxesIntersect(float ax, float ay, float aw, float ah,
+                                         float bx, float by, float bw, float bh) {
+        return ax <= bx + bw &&
+                ax + aw >= bx &&
+                ay <= by + bh &&
+                ay + ah >= by;
+    }
+    
+    /**
+     * Works out the MTV for box A against box B, resolving along whichever
+     * axis they overlap least on (the x-axis if it is a draw). Boxes that
+     * are only touching overlap, but need no moving.
+     * 
+     * @param mtv the Vector2f to store the MTV in
+     * @return whether the boxes overlap
+     */
+    public static boolean boxBoxMTV(float ax, float ay, float aw, float ah,
+                                    float bx, float by, float bw, float bh,
+                                    Vector2f mtv) {
+        float halfWidthA = aw / 2;
+        float halfWidthB = bw / 2;
+        float halfHeightA = ah / 2;
+        float halfHeightB = bh / 2;
+        float diffX = (bx + halfWidthB) - (ax + halfWidthA);
+        float diffY = (by + halfHeightB) - (ay + halfHeightA);
+        
+        float oX = Math.abs(halfWidthA + halfWidthB) - Math.abs(diffX);
+        float oY = Math.abs(halfHeightA + halfHeightB) - Math.abs(diffY);
+        if (oX < 0.0f || oY < 0.0f) {
+            mtv.set(0.0f, 0.0f);
+            return false;
+        }
+        
+        if (oY < oX) {
+            mtv.set(0.0f, diffY < 0 ? oY : -oY);
+        } else {
+            mtv.set(diffX < 0 ? oX : -oX, 0.0f);
+        }
+        return true;
+    }
+    
+    /**
+     * @return whether a circle overlaps a box
+     */
+    public static boolean circleIntersectsBox(float cx, float cy, float radius,
+                                              float x, float y, float width, float height) {
+        float dx = Narrowphase.clamp(cx, x, x + width) - cx;
+        float dy = Narrowphase.clamp(cy, y, y + height) - cy;
+        return dx * dx + dy * dy <= radius * radius;
+    }
+    
+    /**
+     * Works out the MTV for a box against a circle. The box is pushed
+     * straight away from the circle's center, out from the point on the box
+     * closest to it. If the center is inside the box, it is pushed out past
+     * whichever side is closest instead.
+     * 
+     * @param mtv the Vector2f to store the MTV in
+     * @return whether the box and circle overlap
+     */
+    public static boolean boxCircleMTV(float x, float y, float width, float height,
+                                       float cx, float cy, float radius,
+                                       Vector2f mtv) {
+        float dx = Narrowphase.clamp(cx, x, x + width) - cx;
+        float dy = Narrowphase.clamp(cy, y, y + height) - cy;
+        float distanceSquared = dx * dx + dy * dy;
+        if (distanceSquared > radius * radius) {
+            mtv.set(0.0f, 0.0f);
+            return false;
+        }
+        
+        if (distanceSquared > 0.0f) {
+            float distance = (float)Math.sqrt(distanceSquared);
+            float push = (radius - distance) / distance;
+            mtv.set(dx * push, dy * push);
+            return true;
+        }
+        
+        // the center is inside the box, so move the box until the circle is
+        // past one of its sides
+        float left = (cx - radius) - (x + width);
+        float right = (cx + radius) - x;
+        float up = (cy - radius) - (y + height);
+        float down = (cy + radius) - y;
+        float moveX = -left < right ? left : right;
+        float moveY = -up < down ? up : down;
+        if (Math.abs(moveY) < Math.abs(moveX)) {
+            mtv.set(0.0f, moveY);
+        } else {
+            mtv.set(moveX, 0.0f);
+        }
+        return true;
+    }
+    
+    /**
+     * @return whether an oriented box overlaps a circle
+     */
+    public static boolean orientedBoxIntersectsCircle(float ox, float oy,
+                                                      float halfWidth, float halfHeight,
+                                                      float cos, float sin,
+                                                      float cx, float cy, float radius) {
+        // test the circle against the box in the box's own frame
+        float offsetX = cx - ox;
+        float offsetY = cy - oy;
+        float localX = offsetX * cos + offsetY * sin;
+        float localY = offsetY * cos - offsetX * sin;
+        return Narrowphase.circleIntersectsBox(localX, localY, radius,
+                                               -halfWidth, -halfHeight,
+                                               halfWidth * 2, halfHeight * 2);
+    }
+    
+    /**
+     * Works out the MTV for an oriented box against a circle, as
+     * boxCircleMTV() does in the box's own frame
+     * 
+     * @param mtv the Vector2f to store the MTV in
+     * @return whether the box and circle overlap
+     */
+    public static boolean orientedBoxCircleMTV(float ox, float oy,
+                                               float halfWidth, float halfHeight,
+                                               float cos, float sin,
+                                               float cx, float cy, float radius,
+                                               Vector2f mtv) {
+        float offsetX = cx - ox;
+        float offsetY = cy - oy;
+        float localX = offsetX * cos + offsetY * sin;
+        float localY = offsetY * cos - offsetX * sin;
+        if (!Narrowphase.boxCircleMTV(-halfWidth, -halfHeight,
+                                      halfWidth * 2, halfHeight * 2,
+                                      localX, localY, radius,
+                                      mtv)) {
+            return false;
+        }
+        
+        // and turn the MTV back into the world's frame
+        float moveX = mtv.x;
+        float moveY = mtv.y;
+        mtv.set(moveX * cos - moveY * sin, moveX * sin + moveY * cos);
+        return true;
+    }
+    
+    /**
+     * @return whether an oriented box overlaps a box
+     */
+    public static boolean orientedBoxIntersectsBox(float ox, float oy,
+                                                   float halfWidth, float halfHeight,
+                                                   float cos, float sin,
+                                                   float x, float y, float width, float height) {
+        return Narrowphase.leastOverlap(ox, oy, halfWidth, halfHeight, cos, sin,
+                                        x, y, width, height, null) >= 0.0f;
+    }
+    
+    /**
+     * Works out the MTV for an oriented box against a box with the
+     * Separating Axis Theorem. The only axes that can separate them are the
+     * world's and the oriented box's own, so the MTV is along whichever of
+     * those four they overlap least on.
+     * 
+     * @param mtv the Vector2f to store the MTV in
+     * @return whether the boxes overlap
+     */
+    public static boolean orientedBoxBoxMTV(float ox, float oy,
+                                            float halfWidth, float halfHeight,
+                                            float cos, float sin,
+                                            float x, float y, float width, float height,
+                                            Vector2f mtv) {
+        if (Narrowphase.leastOverlap(ox, oy, halfWidth, halfHeight, cos, sin,
+                                     x, y, width, height, mtv) >= 0.0f) {
+            return true;
+        }
+        mtv.set(0.0f, 0.0f);
+        return false;
+    }
+    
+    /**
+     * The Separating Axis Theorem test behind orientedBoxIntersectsBox()
+     * and orientedBoxBoxMTV()
+     * 
+     * @param mtv the Vector2f to store the MTV in, or null if it isn't
+     *            wanted
+     * @return how far the boxes overlap along the axis they overlap least
+     *         on, which is below 0 if they don't overlap
+     */
+    protected static float leastOverlap(float ox, float oy,
+                                        float halfWidth, float halfHeight,
+                                        float cos, float sin,
+                                        float x, float y, float width, float height,
+                                        Vector2f mtv) {
+        float absCos = Math.abs(cos);
+        float absSin = Math.abs(sin);
+        float boxHalfWidth = width / 2;
+        float boxHalfHeight = height / 2;
+        float diffX = (x + boxHalfWidth) - ox;
+        float diffY = (y + boxHalfHeight) - oy;
+        
+        // the world's x-axis and y-axis
+        float overlapX = halfWidth * absCos + halfHeight * absSin + boxHalfWidth - Math.abs(diffX);
+        float overlapY = halfWidth * absSin + halfHeight * absCos + boxHalfHeight - Math.abs(diffY);
+        
+        // and the oriented box's own axes
+        float diffU = diffX * cos + diffY * sin;
+        float diffV = diffY * cos - diffX * sin;
+        float overlapU = halfWidth + boxHalfWidth * absCos + boxHalfHeight * absSin - Math.abs(diffU);
+        float overlapV = halfHeight + boxHalfWidth * absSin + boxHalfHeight * absCos - Math.abs(diffV);
+        
+        float least = Math.min(Math.min(overlapX, overlapY), Math.min(overlapU, overlapV));
+        if (mtv == null || least < 0.0f) {
+            return least;
+        }
+        
+        // push away from the box along the axis with the least overlap,
+        // taking the first of them if it is a draw
+        if (least == overlapX) {
+            mtv.set(diffX < 0 ? overlapX : -overlapX, 0.0f);
+        } else if (least == overlapY) {
+            mtv.set(0.0f, diffY < 0 ? overlapY : -overlapY);
+        } else if (least == overlapU) {
+            float push = diffU < 0 ? overlapU : -overlapU;
+            mtv.set(cos * push, sin * push);
+        } else {
+            float push = diffV < 0 ? overlapV : -overlapV;
+            mtv.set(-sin * push, cos * push);
+        }
+        return least;
+    }
+    
+    /**
+     * @return value, kept between min and max
+     */
+    protected static float clamp(float value, float min, float max) {
+        return value < min ? min : (value > max ? max : value);
+    }
+    
+}
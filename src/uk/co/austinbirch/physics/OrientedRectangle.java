@@ -0,0 +1,96 @@
+package uk.co.austinbirch.physics;
+
+import org.newdawn.slick.geom.Polygon;
+
+/**
+ * @author Austin Birch
+ * 
+ * A rectangle rotated about a point, kept as a Slick Polygon so it can be
+ * used with the rest of Slick's geometry. Unlike Rectangle.transform(), this
+ * updates its four points in place instead of creating a new Polygon and
+ * Transform on every call.
+ *
+ */
+public class OrientedRectangle extends Polygon {
+
+    // Global variables
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Creates an empty oriented rectangle, call set() before using it
+     */
+    public OrientedRectangle() {
+        super(new float[8]);
+    }
+    
+    /**
+     * Positions the rectangle. As with Slick's Rectangle, the points span
+     * width - 1 by height - 1.
+     * 
+     * @param x the left edge before rotation
+     * @param y the top edge before rotation
+     * @param width the width
+     * @param height the height
+     * @param radians the rotation
+     * @param centerX the x position to rotate about
+     * @param centerY the y position to rotate about
+     */
+    public void set(float x,
+                    float y,
+                    float width,
+                    float height,
+                    float radians,
+                    float centerX,
+                    float centerY) {
+        float cos = (float)Math.cos(radians);
+        float sin = (float)Math.sin(radians);
+        float right = x + width - 1;
+        float bottom = y + height - 1;
+        this.setPoint(0, x, y, cos, sin, centerX, centerY);
+        this.setPoint(1, right, y, cos, sin, centerX, centerY);
+        this.setPoint(2, right, bottom, cos, sin, centerX, centerY);
+        this.setPoint(3, x, bottom, cos, sin, centerX, centerY);
+        this.pointsDirty = true;
+    }
+    
+    private void setPoint(int index,
+                          float px,
+                          float py,
+                          float cos,
+                          float sin,
+                          float centerX,
+                          float centerY) {
+        float dx = px - centerX;
+        float dy = py - centerY;
+        this.points[index * 2] = centerX + dx * cos - dy * sin;
+        this.points[index * 2 + 1] = centerY + dx * sin + dy * cos;
+    }
+    
+    /**
+     * The points are already in place
+     */
+    @Override
+    protected void createPoints() {
+        // nothing to do
+    }
+    
+    /**
+     * Finds the center in place, matching Slick's Shape
+     */
+    @Override
+    protected void findCenter() {
+        if (this.center == null) {
+            this.center = new float[2];
+        }
+        float centerX = 0.0f;
+        float centerY = 0.0f;
+        for (int i = 0; i < 8; i += 2) {
+            centerX += this.points[i];
+            centerY += this.points[i + 1];
+        }
+        this.center[0] = centerX / 4;
+        this.center[1] = centerY / 4;
+    }
+    
+}
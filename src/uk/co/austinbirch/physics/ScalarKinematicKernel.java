@@ -0,0 +1,66 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ * 
+ * Plain Java implementation of the kinematic kernels, used wherever the
+ * Vector API isn't available
+ *
+ */
+public class ScalarKinematicKernel implements KinematicKernel {
+
+    @Override
+    public void integrate(KinematicStore store, float deltaSeconds) {
+        this.integrate(store, 0, store.size(), deltaSeconds);
+    }
+    
+    @Override
+    public void integrate(KinematicStore store, int from, int to, float deltaSeconds) {
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        for (int i = from; i < to; i++) {
+            x[i] += vx[i] * deltaSeconds;
+            y[i] += vy[i] * deltaSeconds;
+        }
+    }
+    
+    @Override
+    public void accumulateGravity(KinematicStore store,
+                                  float attractorX,
+                                  float attractorY,
+                                  float attractorMass,
+                                  float deltaSeconds) {
+        this.accumulateGravity(store, 0, store.size(),
+                               attractorX, attractorY, attractorMass,
+                               deltaSeconds);
+    }
+    
+    @Override
+    public void accumulateGravity(KinematicStore store,
+                                  int from,
+                                  int to,
+                                  float attractorX,
+                                  float attractorY,
+                                  float attractorMass,
+                                  float deltaSeconds) {
+        float[] x = store.x;
+        float[] y = store.y;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        float[] mass = store.mass;
+        for (int i = from; i < to; i++) {
+            float dx = x[i] - attractorX;
+            float dy = y[i] - attractorY;
+            float distance = (float)Math.sqrt(dx * dx + dy * dy);
+            // a = f/m, with f = m1*m2/r
+            float a = ((attractorMass * mass[i]) / distance) / mass[i];
+            // the components of a along the unit vector to the body
+            float scale = a / distance * deltaSeconds;
+            vx[i] += dx * scale;
+            vy[i] -= dy * scale;
+        }
+    }
+    
+}
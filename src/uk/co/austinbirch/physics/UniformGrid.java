@@ -0,0 +1,398 @@
+package uk.co.austinbirch.physics;
+
+/**
+ * @author Austin Birch
+ *
+ * A uniform grid broadphase. Items are inserted as axis aligned boxes with
+ * an integer id, the grid is built in one pass, and then boxes can be
+ * queried for the ids of every item whose cells they overlap.
+ *
+ * Items that straddle the edge of the grid are clamped onto the edge cells.
+ * Items entirely outside of it are kept in a separate overflow list, which
+ * is only searched by queries that reach outside the grid, so a crowd of
+ * far away items doesn't end up in every edge cell.
+ *
+ * Edges are treated as touching (inclusive), matching Slick's Rectangle
+ * intersects().
+ *
+ * Once built, the grid can be queried from several threads at once, each
+ * passing in its own Query.
+ *
+ */
+public class UniformGrid {
+
+    // Member variables
+    
+    /**
+     * The left edge of the grid
+     */
+    protected float originX;
+    
+    /**
+     * The top edge of the grid
+     */
+    protected float originY;
+    
+    /**
+     * The width and height of each cell
+     */
+    protected float cellSize;
+    
+    /**
+     * The number of cells across
+     */
+    protected int columns;
+    
+    /**
+     * The number of cells down
+     */
+    protected int rows;
+    
+    /**
+     * The number of items inserted since the last clear
+     */
+    protected int itemCount = 0;
+    
+    /**
+     * The id of each inserted item
+     */
+    protected int[] itemIds;
+    
+    /**
+     * The cell range each item covers, four ints per item
+     * (minColumn, minRow, maxColumn, maxRow)
+     */
+    protected int[] itemCells;
+    
+    /**
+     * The item indices that lie entirely outside of the grid
+     */
+    protected int[] overflow;
+    
+    /**
+     * The number of items in the overflow list
+     */
+    protected int overflowCount = 0;
+    
+    /**
+     * The right edge of the grid
+     */
+    protected float maxX;
+    
+    /**
+     * The bottom edge of the grid
+     */
+    protected float maxY;
+    
+    /**
+     * Where each cell's entries start in cellEntries, with one extra entry
+     * at the end so cellStart[c + 1] is always the end of cell c
+     */
+    protected int[] cellStart;
+    
+    /**
+     * The item indices in each cell, packed cell after cell
+     */
+    protected int[] cellEntries;
+    
+    /**
+     * The scratch space used by query() without a Query of its own
+     */
+    protected Query defaultQuery;
+    
+    /**
+     * The scratch space for a query. A built grid is only read by queries,
+     * so several threads can query it at once as long as each has its own
+     * Query.
+     */
+    public static class Query {
+        
+        /**
+         * The query each item was last returned for, to avoid duplicates
+         * when an item spans multiple cells
+         */
+        protected int[] itemStamps = new int[64];
+        
+        /**
+         * The current query number
+         */
+        protected int queryStamp = 0;
+        
+        /**
+         * The ids returned by the last query
+         */
+        protected int[] results = new int[64];
+        
+        /**
+         * @param index the index of the result
+         * @return the id of a result from the last query
+         */
+        public int getResult(int index) {
+            return this.results[index];
+        }
+        
+    }
+    
+    /**
+     * Creates a grid over the given area
+     * 
+     * @param originX the left edge of the area
+     * @param originY the top edge of the area
+     * @param width the width of the area
+     * @param height the height of the area
+     * @param cellSize the width and height of each cell
+     */
+    public UniformGrid(float originX,
+                       float originY,
+                       float width,
+                       float height,
+                       float cellSize) {
+        this.originX = originX;
+        this.originY = originY;
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int)Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int)Math.ceil(height / cellSize));
+        this.maxX = originX + width;
+        this.maxY = originY + height;
+        this.cellStart = new int[this.columns * this.rows + 1];
+        this.overflow = new int[64];
+        this.itemIds = new int[64];
+        this.itemCells = new int[64 * 4];
+        this.cellEntries = new int[64];
+        this.defaultQuery = new Query();
+    }
+    
+    /**
+     * Removes every item from the grid
+     */
+    public void clear() {
+        this.itemCount = 0;
+        this.overflowCount = 0;
+    }
+    
+    /**
+     * Adds an item to the grid. build() must be called once every item has
+     * been inserted, before querying.
+     * 
+     * @param id the id to return for this item
+     * @param x the left edge of the item
+     * @param y the top edge of the item
+     * @param width the width of the item
+     * @param height the height of the item
+     */
+    public void insert(int id, float x, float y, float width, float height) {
+        if (this.itemCount == this.itemIds.length) {
+            int capacity = this.itemCount * 2;
+            int[] newIds = new int[capacity];
+            int[] newCells = new int[capacity * 4];
+            System.arraycopy(this.itemIds, 0, newIds, 0, this.itemCount);
+            System.arraycopy(this.itemCells, 0, newCells, 0, this.itemCount * 4);
+            this.itemIds = newIds;
+            this.itemCells = newCells;
+        }
+        
+        int index = this.itemCount * 4;
+        this.itemIds[this.itemCount] = id;
+        
+        if (this.isOutside(x, y, width, height)) {
+            // mark the item as covering no cells, and keep it to one side
+            this.itemCells[index] = 0;
+            this.itemCells[index + 1] = 0;
+            this.itemCells[index + 2] = -1;
+            this.itemCells[index + 3] = -1;
+            if (this.overflowCount == this.overflow.length) {
+                int[] newOverflow = new int[this.overflowCount * 2];
+                System.arraycopy(this.overflow, 0, newOverflow, 0, this.overflowCount);
+                this.overflow = newOverflow;
+            }
+            this.overflow[this.overflowCount++] = this.itemCount;
+            this.itemCount++;
+            return;
+        }
+        
+        this.itemCells[index] = this.column(x);
+        this.itemCells[index + 1] = this.row(y);
+        this.itemCells[index + 2] = this.column(x + width);
+        this.itemCells[index + 3] = this.row(y + height);
+        this.itemCount++;
+    }
+    
+    /**
+     * Sorts the inserted items into their cells
+     */
+    public void build() {
+        int cellCount = this.columns * this.rows;
+        int[] start = this.cellStart;
+        for (int c = 0; c <= cellCount; c++) {
+            start[c] = 0;
+        }
+        
+        // count the entries in each cell
+        int entries = 0;
+        for (int i = 0; i < this.itemCount; i++) {
+            int index = i * 4;
+            for (int row = this.itemCells[index + 1]; row <= this.itemCells[index + 3]; row++) {
+                for (int column = this.itemCells[index]; column <= this.itemCells[index + 2]; column++) {
+                    start[row * this.columns + column + 1]++;
+                    entries++;
+                }
+            }
+        }
+        
+        // turn the counts into offsets
+        for (int c = 0; c < cellCount; c++) {
+            start[c + 1] += start[c];
+        }
+        
+        if (this.cellEntries.length < entries) {
+            this.cellEntries = new int[Math.max(entries, this.cellEntries.length * 2)];
+        }
+        
+        // fill the cells, using start[] as the write cursor and then putting
+        // it back afterwards
+        for (int i = 0; i < this.itemCount; i++) {
+            int index = i * 4;
+            for (int row = this.itemCells[index + 1]; row <= this.itemCells[index + 3]; row++) {
+                for (int column = this.itemCells[index]; column <= this.itemCells[index + 2]; column++) {
+                    this.cellEntries[start[row * this.columns + column]++] = i;
+                }
+            }
+        }
+        for (int c = cellCount; c > 0; c--) {
+            start[c] = start[c - 1];
+        }
+        start[0] = 0;
+    }
+    
+    /**
+     * Finds every item sharing a cell with the given box. The ids can be
+     * read back with getResult() until the next query.
+     * 
+     * @param x the left edge of the box
+     * @param y the top edge of the box
+     * @param width the width of the box
+     * @param height the height of the box
+     * @return the number of items found
+     */
+    public int query(float x, float y, float width, float height) {
+        return this.query(x, y, width, height, this.defaultQuery);
+    }
+    
+    /**
+     * Finds every item sharing a cell with the given box, using the given
+     * scratch space. The ids can be read back from the Query until it is
+     * next used.
+     * 
+     * @param x the left edge of the box
+     * @param y the top edge of the box
+     * @param width the width of the box
+     * @param height the height of the box
+     * @param query the scratch space to search with
+     * @return the number of items found
+     */
+    public int query(float x, float y, float width, float height, Query query) {
+        int minColumn = this.column(x);
+        int minRow = this.row(y);
+        int maxColumn = this.column(x + width);
+        int maxRow = this.row(y + height);
+        
+        if (query.itemStamps.length < this.itemCount) {
+            query.itemStamps = new int[Math.max(this.itemCount, query.itemStamps.length * 2)];
+            query.queryStamp = 0;
+        }
+        int[] itemStamps = query.itemStamps;
+        int stamp = ++query.queryStamp;
+        if (stamp == Integer.MAX_VALUE) {
+            for (int i = 0; i < itemStamps.length; i++) {
+                itemStamps[i] = 0;
+            }
+            stamp = query.queryStamp = 1;
+        }
+        
+        int found = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                int cell = row * this.columns + column;
+                for (int e = this.cellStart[cell]; e < this.cellStart[cell + 1]; e++) {
+                    int item = this.cellEntries[e];
+                    if (itemStamps[item] != stamp) {
+                        itemStamps[item] = stamp;
+                        if (found == query.results.length) {
+                            int[] newResults = new int[found * 2];
+                            System.arraycopy(query.results, 0, newResults, 0, found);
+                            query.results = newResults;
+                        }
+                        query.results[found++] = this.itemIds[item];
+                    }
+                }
+            }
+        }
+        
+        // only reaching outside the grid can find items that are outside it
+        if (x < this.originX || y < this.originY ||
+                x + width > this.maxX || y + height > this.maxY) {
+            for (int o = 0; o < this.overflowCount; o++) {
+                int item = this.overflow[o];
+                if (found == query.results.length) {
+                    int[] newResults = new int[found * 2];
+                    System.arraycopy(query.results, 0, newResults, 0, found);
+                    query.results = newResults;
+                }
+                query.results[found++] = this.itemIds[item];
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * @return whether the box lies entirely outside of the grid
+     */
+    protected boolean isOutside(float x, float y, float width, float height) {
+        return x > this.maxX || y > this.maxY ||
+               x + width < this.originX || y + height < this.originY;
+    }
+    
+    /**
+     * @param index the index of the result
+     * @return the id of a result from the last query
+     */
+    public int getResult(int index) {
+        return this.defaultQuery.results[index];
+    }
+    
+    /**
+     * @return the number of items in the grid
+     */
+    public int size() {
+        return this.itemCount;
+    }
+    
+    /**
+     * @param x the x coordinate
+     * @return the column containing x, clamped onto the grid
+     */
+    protected int column(float x) {
+        int column = (int)Math.floor((x - this.originX) / this.cellSize);
+        if (column < 0) {
+            return 0;
+        } else if (column >= this.columns) {
+            return this.columns - 1;
+        }
+        return column;
+    }
+    
+    /**
+     * @param y the y coordinate
+     * @return the row containing y, clamped onto the grid
+     */
+    protected int row(float y) {
+        int row = (int)Math.floor((y - this.originY) / this.cellSize);
+        if (row < 0) {
+            return 0;
+        } else if (row >= this.rows) {
+            return this.rows - 1;
+        }
+        return row;
+    }
+    
+}
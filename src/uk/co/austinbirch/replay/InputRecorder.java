@@ -0,0 +1,140 @@
+package uk.co.austinbirch.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.Scenario;
+import uk.co.austinbirch.Simulation;
+
+/**
+ * @author Austin Birch
+ *
+ * Records a game to a file as it is played, so it can be played back later
+ * by an InputRecording. See InputRecording for the layout of the file.
+ *
+ * Only the control changes are written, each as a byte for the change and
+ * the number of ticks since the previous one, so a recording costs a few
+ * bytes per key press however long the game goes on. Everything else is
+ * worked out again from the seed when it is played back, which only works
+ * if the simulation is ticked by the same fixed length every time.
+ *
+ */
+public class InputRecorder {
+
+    // Member variables
+    
+    /**
+     * The stream the recording is written to
+     */
+    protected DataOutputStream out;
+    
+    /**
+     * The tick the last event was recorded on
+     */
+    protected long lastTick = 0;
+    
+    /**
+     * Starts recording a simulation that hasn't been ticked yet, and will be
+     * ticked by Simulation.FIXED_DELTA_SECONDS
+     * 
+     * @param file the file to write the recording to
+     * @param simulation the simulation being recorded
+     * @throws IOException if the file can't be written
+     */
+    public InputRecorder(File file, Simulation simulation) throws IOException {
+        this(file, simulation, Simulation.FIXED_DELTA_SECONDS);
+    }
+    
+    /**
+     * Starts recording a simulation that hasn't been ticked yet
+     * 
+     * @param file the file to write the recording to
+     * @param simulation the simulation being recorded
+     * @param deltaSeconds the length of every tick the simulation will be
+     *                     ticked by
+     * @throws IOException if the file can't be written
+     */
+    public InputRecorder(File file, Simulation simulation, float deltaSeconds) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.out.writeInt(InputRecording.MAGIC);
+        this.out.writeShort(InputRecording.VERSION);
+        this.out.writeLong(simulation.getSeed());
+        this.out.writeInt(simulation.getHammerCap());
+        Scenario scenario = simulation.getScenario();
+        this.out.writeUTF(scenario.getName());
+        this.out.writeInt(scenario.getWorldCount());
+        this.out.writeInt(scenario.getSpaceWidth());
+        this.out.writeInt(scenario.getSpaceHeight());
+        this.out.writeInt(scenario.getAlienCountLimit());
+        this.out.writeFloat(scenario.getAlienReleaseLimit());
+        this.out.writeFloat(scenario.getAlienReleaseCount());
+        this.out.writeInt(scenario.getWorldSpacing());
+        this.out.writeInt(scenario.getChunkSize());
+        this.out.writeInt(scenario.getActiveRadius());
+        this.out.writeBoolean(scenario.hasMutualGravity());
+        this.out.writeFloat(deltaSeconds);
+    }
+    
+    /**
+     * Records the control changes about to be handed to the simulation
+     * 
+     * @param tick the tick they will be handed over on
+     * @param inputs the queued control changes
+     * @throws IOException if the recording can't be written
+     */
+    public void record(long tick, InputQueue inputs) throws IOException {
+        for (int i = 0; i < inputs.size(); i++) {
+            this.out.writeByte(InputRecording.encode(inputs.getControl(i), inputs.isPressed(i)));
+            this.writeVarLong(tick - this.lastTick);
+            this.lastTick = tick;
+        }
+    }
+    
+    /**
+     * Ends the recording with the simulation's tick count and state hash,
+     * so that a replay can check it ended up in the same place, and closes
+     * the file
+     * 
+     * @param simulation the simulation being recorded
+     * @throws IOException if the recording can't be written
+     */
+    public void finish(Simulation simulation) throws IOException {
+        try {
+            this.out.writeByte(InputRecording.END_OF_EVENTS);
+            this.out.writeLong(simulation.getTickCount());
+            this.out.writeLong(simulation.stateHash());
+        } finally {
+            this.out.close();
+        }
+    }
+    
+    /**
+     * Closes the file without finishing the recording
+     */
+    public void close() {
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            // nothing more we can do with it
+        }
+    }
+    
+    /**
+     * Writes a value as an unsigned LEB128 varint, seven bits per byte
+     * 
+     * @param value the value to write, which must not be negative
+     * @throws IOException
+     */
+    protected void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            this.out.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.out.writeByte((int)value);
+    }
+    
+}
@@ -0,0 +1,358 @@
+package uk.co.austinbirch.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import uk.co.austinbirch.Control;
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.Scenario;
+import uk.co.austinbirch.Simulation;
+
+/**
+ * @author Austin Birch
+ *
+ * A recorded game: the seed and settings the simulation was created with,
+ * every control change along with the tick it was handed to the
+ * simulation on, and the number of ticks and state hash it finished with.
+ *
+ * The file is written by an InputRecorder, and is laid out as
+ *   int    MAGIC
+ *   short  VERSION
+ *   long   the simulation's seed
+ *   int    the simulation's hammer cap
+ *   utf    the name of the simulation's scenario
+ *   int    the number of worlds
+ *   int    the width of space
+ *   int    the height of space
+ *   int    the most aliens there can be
+ *   float  the time before the first alien release, in milliseconds
+ *   float  the number of aliens in the first release, less a half
+ *   int    how far apart the worlds are spread across a row
+ *   int    the size of each chunk of space, 0 if space is one chunk
+ *   int    how many chunks out from the player are simulated in full
+ *   bool   whether the hammers pull on each other and on the buildings
+ *   float  the length of every tick, in seconds
+ *   events each a byte of (control ordinal << 1) | pressed, then a varint
+ *          of the ticks since the previous event
+ *   byte   END_OF_EVENTS
+ *   long   the number of ticks run
+ *   long   the state hash after the last tick
+ *
+ * Version 1 recordings have no scenario, and were all made with the
+ * default one. Version 2 recordings have no world spacing or chunks, and
+ * were all made with space in one chunk. Version 3 recordings have no
+ * mutual gravity, and were all made without it.
+ *
+ * A recording that was cut short (the game crashed, say) has no end
+ * marker. It can still be played, up to the tick of its last event, but
+ * there is nothing to check the result against.
+ *
+ */
+public class InputRecording {
+
+    // Global variables
+    
+    /**
+     * The first four bytes of a recording, "MCHR"
+     */
+    public static final int MAGIC = 0x4d434852;
+    
+    /**
+     * The version of the file layout
+     */
+    public static final short VERSION = 4;
+    
+    /**
+     * The byte written in place of an event once there are no more
+     */
+    public static final int END_OF_EVENTS = 0xff;
+    
+    /**
+     * The controls, indexed by the ordinal they are recorded with
+     */
+    protected static final Control[] CONTROLS = Control.values();
+    
+    // Member variables
+    
+    /**
+     * The seed the recorded simulation was created with
+     */
+    protected long seed;
+    
+    /**
+     * The hammer cap the recorded simulation was created with
+     */
+    protected int hammerCap;
+    
+    /**
+     * The settings the recorded simulation was created with
+     */
+    protected Scenario scenario;
+    
+    /**
+     * The length of every recorded tick, in seconds
+     */
+    protected float deltaSeconds;
+    
+    /**
+     * The tick each event was handed to the simulation on
+     */
+    protected long[] eventTicks = new long[256];
+    
+    /**
+     * The encoded control change for each event
+     */
+    protected byte[] eventCodes = new byte[256];
+    
+    /**
+     * The number of recorded events
+     */
+    protected int eventCount = 0;
+    
+    /**
+     * The number of ticks the recording runs for
+     */
+    protected long tickCount = 0;
+    
+    /**
+     * The state hash the recording finished with
+     */
+    protected long finalHash = 0;
+    
+    /**
+     * Whether the recording was finished properly, and so has a final hash
+     */
+    protected boolean complete = false;
+    
+    /**
+     * Creates an empty recording, to be filled in by read()
+     */
+    protected InputRecording() {
+        super();
+    }
+    
+    /**
+     * Reads a recording from a file
+     * 
+     * @param file the file written by an InputRecorder
+     * @return the recording
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    public static InputRecording read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            InputRecording recording = new InputRecording();
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a McHammer recording");
+            }
+            short version = in.readShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + " is a version " + version +
+                                      " recording, expected version " + VERSION + " or older");
+            }
+            recording.seed = in.readLong();
+            recording.hammerCap = in.readInt();
+            if (version >= 2) {
+                Scenario scenario = new Scenario(in.readUTF());
+                scenario.setWorldCount(in.readInt());
+                int spaceWidth = in.readInt();
+                scenario.setSpaceSize(spaceWidth, in.readInt());
+                scenario.setAlienCountLimit(in.readInt());
+                scenario.setAlienReleaseLimit(in.readFloat());
+                scenario.setAlienReleaseCount(in.readFloat());
+                if (version >= 3) {
+                    scenario.setWorldSpacing(in.readInt());
+                    scenario.setChunkSize(in.readInt());
+                    scenario.setActiveRadius(in.readInt());
+                }
+                if (version >= 4) {
+                    scenario.setMutualGravity(in.readBoolean());
+                }
+                recording.scenario = scenario;
+            } else {
+                recording.scenario = Scenario.named("default");
+            }
+            recording.scenario.setHammerCap(recording.hammerCap);
+            recording.deltaSeconds = in.readFloat();
+            recording.readEvents(in);
+            return recording;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Reads the events, and the tick count and hash after them if the
+     * recording was finished
+     * 
+     * @param in the stream positioned after the header
+     * @throws IOException
+     */
+    protected void readEvents(DataInputStream in) throws IOException {
+        long tick = 0;
+        try {
+            while (true) {
+                int code = in.readUnsignedByte();
+                if (code == END_OF_EVENTS) {
+                    this.tickCount = in.readLong();
+                    this.finalHash = in.readLong();
+                    this.complete = true;
+                    return;
+                }
+                if ((code >> 1) >= CONTROLS.length) {
+                    throw new IOException("Unknown control " + (code >> 1) + " in recording");
+                }
+                tick += InputRecording.readVarLong(in);
+                this.addEvent(tick, (byte)code);
+            }
+        } catch (EOFException e) {
+            // cut short, so play up to and including the last event
+            this.tickCount = this.eventCount > 0 ? this.eventTicks[this.eventCount - 1] + 1 : 0;
+            this.complete = false;
+        }
+    }
+    
+    /**
+     * Appends an event, growing the arrays if required
+     * 
+     * @param tick the tick the event happened on
+     * @param code the encoded control change
+     */
+    protected void addEvent(long tick, byte code) {
+        if (this.eventCount == this.eventTicks.length) {
+            long[] newTicks = new long[this.eventCount * 2];
+            byte[] newCodes = new byte[this.eventCount * 2];
+            System.arraycopy(this.eventTicks, 0, newTicks, 0, this.eventCount);
+            System.arraycopy(this.eventCodes, 0, newCodes, 0, this.eventCount);
+            this.eventTicks = newTicks;
+            this.eventCodes = newCodes;
+        }
+        this.eventTicks[this.eventCount] = tick;
+        this.eventCodes[this.eventCount] = code;
+        this.eventCount++;
+    }
+    
+    /**
+     * Reads an unsigned LEB128 varint, seven bits per byte
+     * 
+     * @param in the stream to read from
+     * @return the value
+     * @throws IOException
+     */
+    protected static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Encodes a control change into the byte it is recorded as
+     * 
+     * @param control the control that changed
+     * @param isPressed whether it was pressed or released
+     * @return the encoded change
+     */
+    public static int encode(Control control, boolean isPressed) {
+        return (control.ordinal() << 1) | (isPressed ? 1 : 0);
+    }
+    
+    /**
+     * Creates a simulation in the state the recording started from
+     * 
+     * @return the new simulation
+     */
+    public Simulation createSimulation() {
+        return new Simulation(this.scenario, this.seed);
+    }
+    
+    /**
+     * Plays the whole recording into a simulation as fast as it will go,
+     * handing each event to the simulation on the tick it was recorded on
+     * 
+     * @param simulation a simulation from createSimulation() that hasn't
+     *                   been ticked yet
+     * @param inputs the queue to hand the events over in
+     * @return the simulation's state hash after the last tick
+     */
+    public long play(Simulation simulation, InputQueue inputs) {
+        int event = 0;
+        for (long tick = 0; tick < this.tickCount; tick++) {
+            while (event < this.eventCount && this.eventTicks[event] == tick) {
+                int code = this.eventCodes[event];
+                inputs.add(CONTROLS[code >> 1], (code & 1) != 0);
+                event++;
+            }
+            simulation.tick(inputs, this.deltaSeconds);
+        }
+        return simulation.stateHash();
+    }
+    
+    /**
+     * @return the seed the recorded simulation was created with
+     */
+    public long getSeed() {
+        return this.seed;
+    }
+    
+    /**
+     * @return the hammer cap the recorded simulation was created with
+     */
+    public int getHammerCap() {
+        return this.hammerCap;
+    }
+    
+    /**
+     * @return the settings the recorded simulation was created with
+     */
+    public Scenario getScenario() {
+        return this.scenario;
+    }
+    
+    /**
+     * @return the length of every recorded tick, in seconds
+     */
+    public float getDeltaSeconds() {
+        return this.deltaSeconds;
+    }
+    
+    /**
+     * @return the number of recorded control changes
+     */
+    public int getEventCount() {
+        return this.eventCount;
+    }
+    
+    /**
+     * @return the number of ticks the recording runs for
+     */
+    public long getTickCount() {
+        return this.tickCount;
+    }
+    
+    /**
+     * @return the state hash the recording finished with, only meaningful
+     *         if isComplete()
+     */
+    public long getFinalHash() {
+        return this.finalHash;
+    }
+    
+    /**
+     * @return whether the recording was finished properly, and so can be
+     *         checked against its final hash
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+    
+}
@@ -0,0 +1,113 @@
+package uk.co.austinbirch.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import uk.co.austinbirch.FrameProfiler;
+import uk.co.austinbirch.InputQueue;
+import uk.co.austinbirch.Simulation;
+
+/**
+ * @author Austin Birch
+ *
+ * Plays a recorded game back headless, as fast as the simulation will go,
+ * and checks it finishes in the same state as when it was recorded. As
+ * well as catching anything that makes the game play out differently, a
+ * recording makes a repeatable workload to measure the tick against.
+ *
+ * Run from the project root, e.g.
+ *   java -cp bin:McHammer.jar uk.co.austinbirch.replay.ReplayRunner
+ *        game.mchr --repeat 5
+ *
+ * The usual mchammer.* system properties apply to the replayed simulation,
+ * so a recording can be replayed across threads with -Dmchammer.threads.
+ * It exits with 1 if any replay doesn't match the recording, and with 2 if
+ * the recording can't be read.
+ *
+ * The tick's phase times from the last run are printed at the end, and
+ * with --profile path they are also written to path.csv and path.json.
+ *
+ */
+public class ReplayRunner {
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: ReplayRunner <recording> [--repeat n] [--profile path]");
+            System.exit(2);
+        }
+        
+        int repeat = 1;
+        String profilePath = null;
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals("--repeat")) {
+                repeat = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--profile")) {
+                profilePath = args[i + 1];
+            }
+        }
+        
+        InputRecording recording;
+        try {
+            recording = InputRecording.read(new File(args[0]));
+        } catch (IOException e) {
+            System.err.println("Unable to read " + args[0] + ": " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        
+        System.out.println(String.format(Locale.ROOT,
+                "%s: %s scenario, seed %d, %d events over %d ticks of %.4fs%s",
+                args[0],
+                recording.getScenario().getName(),
+                recording.getSeed(),
+                recording.getEventCount(),
+                recording.getTickCount(),
+                recording.getDeltaSeconds(),
+                recording.isComplete() ? "" : " (cut short, nothing to check against)"));
+        
+        boolean matched = true;
+        FrameProfiler profiler = null;
+        for (int run = 0; run < repeat; run++) {
+            Simulation simulation = recording.createSimulation();
+            profiler = simulation.getProfiler();
+            long start = System.nanoTime();
+            long hash = recording.play(simulation, new InputQueue());
+            long elapsed = System.nanoTime() - start;
+            simulation.getExecutor().shutdown();
+            
+            boolean runMatched = !recording.isComplete() ||
+                                 (hash == recording.getFinalHash() &&
+                                  simulation.getTickCount() == recording.getTickCount());
+            matched &= runMatched;
+            
+            double seconds = elapsed / 1.0e9;
+            System.out.println(String.format(Locale.ROOT,
+                    "run %d: %.1f ms, %.0f ticks/s, %.1f us/tick, %.0fx real time, hash %016x %s",
+                    run + 1,
+                    elapsed / 1.0e6,
+                    recording.getTickCount() / seconds,
+                    elapsed / 1.0e3 / Math.max(1, recording.getTickCount()),
+                    recording.getTickCount() * recording.getDeltaSeconds() / seconds,
+                    hash,
+                    !recording.isComplete() ? "" : runMatched ? "OK" :
+                        String.format("MISMATCH, expected %016x", recording.getFinalHash())));
+        }
+        
+        if (profiler != null) {
+            for (String line : profiler.getOverlayLines()) {
+                System.out.println(line);
+            }
+            if (profilePath != null) {
+                try {
+                    profiler.dump(profilePath);
+                } catch (IOException e) {
+                    System.err.println("Unable to write the profile to " + profilePath + ": " + e.getMessage());
+                }
+            }
+        }
+        
+        System.exit(matched ? 0 : 1);
+    }
+    
+}